@@ -0,0 +1,156 @@
+package com.badat.study1.benchmark;
+
+import com.badat.study1.model.Order;
+import com.badat.study1.model.PaymentQueue;
+import com.badat.study1.model.Warehouse;
+import com.badat.study1.service.OrderService;
+import com.badat.study1.service.PaymentQueueClaimService;
+import com.badat.study1.service.PaymentQueueService;
+import com.badat.study1.service.WalletHoldService;
+import com.badat.study1.service.WarehouseLockService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark hot path checkout trên H2 in-memory + Redis in-process
+ * Đo throughput (ops/s) từng bước: reserve kho, hold tiền, tạo order và toàn bộ xử lý 1 payment đã claim
+ * qua processClaimedPayment (entry point mà product lane gọi trong production),
+ * với 1 thread và 8 thread cùng mua 1 sản phẩm. Chạy kèm -prof gc để có allocation rate (gc.alloc.rate.norm)
+ *
+ * mvn -Pbenchmark test-compile exec:exec
+ * mvn -Pbenchmark test-compile exec:exec -Djmh.args="CheckoutBenchmark.processPayment -prof gc"
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Benchmark)
+public class CheckoutBenchmark {
+
+    private static final int QUANTITY = 1;
+    private static final BigDecimal HOLD_AMOUNT = CheckoutFixture.PRICE.multiply(BigDecimal.valueOf(QUANTITY));
+
+    private CheckoutFixture fixture;
+    private WarehouseLockService warehouseLockService;
+    private WalletHoldService walletHoldService;
+    private OrderService orderService;
+    private PaymentQueueService paymentQueueService;
+    private Map<Long, Integer> productQuantities;
+    private List<Map<String, Object>> cart;
+
+    @Setup(Level.Trial)
+    public void start() {
+        fixture = CheckoutFixture.get();
+        warehouseLockService = fixture.bean(WarehouseLockService.class);
+        walletHoldService = fixture.bean(WalletHoldService.class);
+        orderService = fixture.bean(OrderService.class);
+        paymentQueueService = fixture.bean(PaymentQueueService.class);
+        productQuantities = Map.of(fixture.getProductId(), QUANTITY);
+        cart = fixture.cart(QUANTITY);
+    }
+
+    @Setup(Level.Iteration)
+    public void replenish() {
+        fixture.replenishStock();
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+        CheckoutFixture.shutdown();
+    }
+
+    /**
+     * Mỗi thread dùng một nhóm buyer riêng và xoay vòng để ví của các thread không tranh chấp nhau
+     */
+    @State(Scope.Thread)
+    public static class Buyer {
+        private static final int BUYERS_PER_THREAD = 8;
+
+        private long[] buyerIds;
+        private int next;
+
+        @Setup(Level.Trial)
+        public void claim() {
+            buyerIds = CheckoutFixture.get().claimBuyers(BUYERS_PER_THREAD);
+        }
+
+        long nextBuyer() {
+            long buyerId = buyerIds[next];
+            next = (next + 1) % buyerIds.length;
+            return buyerId;
+        }
+    }
+
+    /**
+     * Payment như sau bước enqueue + claim, tạo trước mỗi lần gọi và không tính vào thời gian đo
+     * Giữ entity vừa tạo và chỉ chép lease từ bản claim: H2 đọc lại cột JSON cart_data thành chuỗi JSON
+     */
+    @State(Scope.Thread)
+    public static class PendingPayment {
+        PaymentQueue payment;
+
+        @Setup(Level.Invocation)
+        public void enqueue(Buyer buyer) {
+            CheckoutFixture fixture = CheckoutFixture.get();
+            payment = fixture.pendingPayment(buyer.nextBuyer(), QUANTITY);
+            PaymentQueue claimed = fixture.bean(PaymentQueueClaimService.class)
+                    .claimPayment(payment.getId(), "benchmark-" + Thread.currentThread().getName());
+            payment.setStatus(claimed.getStatus());
+            payment.setLeaseOwner(claimed.getLeaseOwner());
+        }
+    }
+
+    @Benchmark
+    public List<Warehouse> reserveWarehouseItems(Buyer buyer) {
+        return warehouseLockService.reserveWarehouseItemsWithTimeout(productQuantities, buyer.nextBuyer(), 5);
+    }
+
+    @Benchmark
+    public void holdMoney(Buyer buyer) {
+        walletHoldService.holdMoney(buyer.nextBuyer(), HOLD_AMOUNT, fixture.nextCode("BENCH_HOLD"));
+    }
+
+    @Benchmark
+    public Order createOrderFromCart(Buyer buyer) {
+        return orderService.createOrderFromCart(buyer.nextBuyer(), cart, "WALLET", "benchmark", fixture.nextCode("BENCH_ORDER"));
+    }
+
+    @Benchmark
+    public PaymentQueue processPayment(PendingPayment pending) {
+        return process(pending.payment);
+    }
+
+    /**
+     * 8 buyer cùng checkout 1 sản phẩm - đo tranh chấp trên các dòng warehouse của cùng product
+     */
+    @Benchmark
+    @Threads(8)
+    public PaymentQueue processPaymentSameProductConcurrent(PendingPayment pending) {
+        return process(pending.payment);
+    }
+
+    private PaymentQueue process(PaymentQueue payment) {
+        paymentQueueService.processClaimedPayment(payment);
+        if (payment.getStatus() != PaymentQueue.Status.COMPLETED) {
+            throw new IllegalStateException("Payment " + payment.getId() + " ended with status " + payment.getStatus());
+        }
+        return payment;
+    }
+}
@@ -0,0 +1,182 @@
+package com.badat.study1.benchmark;
+
+import com.badat.study1.Study1Application;
+import com.badat.study1.model.PaymentQueue;
+import com.badat.study1.repository.PaymentQueueRepository;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Dữ liệu và Spring context dùng chung cho benchmark checkout
+ * Boot ứng dụng thật với profile "benchmark" (H2 in-memory + Redis in-process), seed 1 seller, 1 shop/stall/product,
+ * nhiều buyer có sẵn tiền và một kho lớn cho cùng 1 sản phẩm để đo trường hợp nhiều người mua cùng sản phẩm
+ */
+public final class CheckoutFixture {
+
+    public static final int BUYER_COUNT = 256;
+    public static final int STOCK_SIZE = 200_000;
+    public static final BigDecimal PRICE = new BigDecimal("10000.00");
+
+    private static CheckoutFixture instance;
+
+    private final ConfigurableApplicationContext context;
+    private final JdbcTemplate jdbcTemplate;
+    private final InMemoryStringRedisTemplate redis;
+    private final PaymentQueueRepository paymentQueueRepository;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final AtomicInteger nextBuyer = new AtomicInteger();
+    private final AtomicInteger sequence = new AtomicInteger();
+
+    private long sellerId;
+    private long shopId;
+    private long stallId;
+    private long productId;
+    private final long[] buyerIds = new long[BUYER_COUNT];
+    private long sampleWarehouseId;
+
+    private CheckoutFixture() {
+        context = new SpringApplicationBuilder(Study1Application.class, InMemoryRedisConfiguration.class)
+                .profiles("benchmark")
+                .run();
+        jdbcTemplate = context.getBean(JdbcTemplate.class);
+        redis = context.getBean(InMemoryStringRedisTemplate.class);
+        paymentQueueRepository = context.getBean(PaymentQueueRepository.class);
+        seed();
+    }
+
+    /**
+     * Fixture dùng chung cho mọi thread của 1 fork
+     */
+    public static synchronized CheckoutFixture get() {
+        if (instance == null) {
+            instance = new CheckoutFixture();
+        }
+        return instance;
+    }
+
+    public <T> T bean(Class<T> type) {
+        return context.getBean(type);
+    }
+
+    private void seed() {
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+
+        sellerId = insertUser("bench_seller", "SELLER", now);
+        jdbcTemplate.update("INSERT INTO bankaccount (user_id, bank_name, account_number, bank_account, created_at, is_delete) " +
+                "VALUES (?, 'BENCH', '000000002', '000000002 BENCH', ?, false)", sellerId, now);
+        Long bankAccountId = jdbcTemplate.queryForObject("SELECT id FROM bankaccount WHERE user_id = ?", Long.class, sellerId);
+
+        jdbcTemplate.update("INSERT INTO shop (user_id, shop_name, cccd, bank_account_id, status, created_at, is_delete) " +
+                "VALUES (?, 'Bench Shop', 'BENCH', ?, 'ACTIVE', ?, false)", sellerId, bankAccountId, now);
+        shopId = jdbcTemplate.queryForObject("SELECT id FROM shop WHERE user_id = ?", Long.class, sellerId);
+
+        jdbcTemplate.update("INSERT INTO stall (shop_id, stall_name, status, is_active, created_at, is_delete) " +
+                "VALUES (?, 'Bench Stall', 'OPEN', true, ?, false)", shopId, now);
+        stallId = jdbcTemplate.queryForObject("SELECT id FROM stall WHERE shop_id = ?", Long.class, shopId);
+
+        jdbcTemplate.update("INSERT INTO product (shop_id, stall_id, type, name, price, quantity, unique_key, status, is_delete, created_at) " +
+                "VALUES (?, ?, 'KEY', 'Bench Product', ?, ?, 'bench-product', 'AVAILABLE', false, ?)",
+                shopId, stallId, PRICE, STOCK_SIZE, now);
+        productId = jdbcTemplate.queryForObject("SELECT id FROM product WHERE unique_key = 'bench-product'", Long.class);
+
+        for (int i = 0; i < BUYER_COUNT; i++) {
+            buyerIds[i] = insertUser("bench_buyer_" + i, "USER", now);
+        }
+        // Số dư đủ lớn để không iteration nào hết tiền
+        jdbcTemplate.update("INSERT INTO wallet (user_id, balance, version, is_delete, created_at) " +
+                "SELECT id, 1000000000000, 0, false, ? FROM `user` WHERE username LIKE 'bench_%'", now);
+
+        jdbcTemplate.update("INSERT INTO warehouse (item_type, item_data, product_id, shop_id, stall_id, user_id, created_at, is_delete, locked) " +
+                "SELECT 'KEY', CONCAT('BENCH-KEY-', \"X\"), ?, ?, ?, ?, DATEADD('MILLISECOND', \"X\", CAST(? AS TIMESTAMP)), false, false " +
+                "FROM SYSTEM_RANGE(1, ?)", productId, shopId, stallId, sellerId, now, STOCK_SIZE);
+        sampleWarehouseId = jdbcTemplate.queryForObject("SELECT MIN(id) FROM warehouse WHERE product_id = ?", Long.class, productId);
+    }
+
+    private long insertUser(String username, String role, Timestamp now) {
+        jdbcTemplate.update("INSERT INTO `user` (username, password, email, role, status, provider, is_delete, created_at) " +
+                "VALUES (?, 'x', ?, ?, 'ACTIVE', 'LOCAL', false, ?)", username, username + "@bench.local", role, now);
+        return jdbcTemplate.queryForObject("SELECT id FROM `user` WHERE username = ?", Long.class, username);
+    }
+
+    /**
+     * Trả toàn bộ kho về trạng thái còn trống và xóa counter trong Redis - gọi giữa các iteration
+     */
+    public void replenishStock() {
+        jdbcTemplate.update("UPDATE warehouse SET locked = false, locked_by = NULL, locked_at = NULL, reserved_until = NULL, " +
+                "reservation_token = NULL, is_delete = false, deleted_by = NULL WHERE product_id = ?", productId);
+        redis.flushAll();
+    }
+
+    /**
+     * Lấy buyer kế tiếp - mỗi thread benchmark giữ một nhóm buyer riêng
+     */
+    public long[] claimBuyers(int count) {
+        int start = nextBuyer.getAndAdd(count);
+        if (start + count > BUYER_COUNT) {
+            throw new IllegalStateException("Not enough benchmark buyers, increase BUYER_COUNT");
+        }
+        return Arrays.copyOfRange(buyerIds, start, start + count);
+    }
+
+    /**
+     * Giỏ hàng 1 dòng cho sản phẩm benchmark
+     */
+    public List<Map<String, Object>> cart(int quantity) {
+        Map<String, Object> item = new HashMap<>();
+        item.put("productId", productId);
+        item.put("warehouseId", sampleWarehouseId);
+        item.put("quantity", quantity);
+        item.put("price", PRICE);
+        item.put("stallId", stallId);
+        return List.of(item);
+    }
+
+    /**
+     * Tạo payment PENDING như sau bước enqueue để đo riêng bước xử lý
+     */
+    public PaymentQueue pendingPayment(long buyerId, int quantity) {
+        try {
+            return paymentQueueRepository.save(PaymentQueue.builder()
+                    .userId(buyerId)
+                    .cartData(objectMapper.writeValueAsString(cart(quantity)))
+                    .totalAmount(PRICE.multiply(BigDecimal.valueOf(quantity)))
+                    .status(PaymentQueue.Status.PENDING)
+                    .build());
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException("Failed to serialize benchmark cart", e);
+        }
+    }
+
+    /**
+     * Mã duy nhất cho order/hold tạo trực tiếp trong benchmark
+     */
+    public String nextCode(String prefix) {
+        return prefix + "_" + sequence.incrementAndGet();
+    }
+
+    public long getProductId() {
+        return productId;
+    }
+
+    /**
+     * Đóng fixture dùng chung khi trial kết thúc
+     */
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            instance.context.close();
+            instance = null;
+        }
+    }
+}
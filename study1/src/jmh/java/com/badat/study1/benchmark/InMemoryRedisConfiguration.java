@@ -0,0 +1,36 @@
+package com.badat.study1.benchmark;
+
+import org.mockito.Mockito;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.integration.redis.util.RedisLockRegistry;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Thay Redis bằng bản in-process cho benchmark để số đo chỉ phản ánh code checkout + DB
+ * RedisLockRegistry là class final nên dùng Mockito (inline mock maker) trả về ReentrantLock theo key
+ */
+@Configuration(proxyBeanMethods = false)
+public class InMemoryRedisConfiguration {
+
+    @Bean
+    @Primary
+    public InMemoryStringRedisTemplate inMemoryStringRedisTemplate() {
+        return new InMemoryStringRedisTemplate();
+    }
+
+    @Bean
+    @Primary
+    public RedisLockRegistry inMemoryLockRegistry() {
+        Map<Object, Lock> locks = new ConcurrentHashMap<>();
+        RedisLockRegistry registry = Mockito.mock(RedisLockRegistry.class);
+        Mockito.when(registry.obtain(Mockito.any()))
+                .thenAnswer(invocation -> locks.computeIfAbsent(invocation.getArgument(0), key -> new ReentrantLock()));
+        return registry;
+    }
+}
@@ -0,0 +1,251 @@
+package com.badat.study1.benchmark;
+
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.SetOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * StringRedisTemplate chạy hoàn toàn trong process cho benchmark
+ * Chỉ hỗ trợ đúng các lệnh mà hot path checkout dùng: hash của stock counter, ZSET lịch hết hạn hold,
+ * SET các stall card dirty
+ * và các Lua script của stock counter (HINCRBY-if-present, nạp từ DB, thay hash khi reconcile) và claim hold đến hạn. Mọi thao tác chạy tuần tự như Redis thật
+ */
+public class InMemoryStringRedisTemplate extends StringRedisTemplate {
+
+    private final Map<String, Map<String, String>> hashes = new HashMap<>();
+    private final Map<String, Map<String, Double>> sortedSets = new HashMap<>();
+    private final Map<String, Set<String>> sets = new HashMap<>();
+
+    private final HashOperations<String, Object, Object> hashOperations = proxy(HashOperations.class, this::onHash);
+    private final ZSetOperations<String, String> zSetOperations = proxy(ZSetOperations.class, this::onZSet);
+    private final SetOperations<String, String> setOperations = proxy(SetOperations.class, this::onSet);
+
+    @Override
+    public void afterPropertiesSet() {
+        // Không có connection factory - không cần khởi tạo serializer
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <HK, HV> HashOperations<String, HK, HV> opsForHash() {
+        return (HashOperations<String, HK, HV>) (HashOperations<String, ?, ?>) hashOperations;
+    }
+
+    @Override
+    public ZSetOperations<String, String> opsForZSet() {
+        return zSetOperations;
+    }
+
+    @Override
+    public SetOperations<String, String> opsForSet() {
+        return setOperations;
+    }
+
+    @Override
+    public synchronized Boolean delete(String key) {
+        return hashes.remove(key) != null | sortedSets.remove(key) != null | sets.remove(key) != null;
+    }
+
+    @Override
+    public Boolean expire(String key, long timeout, TimeUnit unit) {
+        // Không có TTL trong bộ nhớ - key được xóa tường minh
+        return Boolean.TRUE;
+    }
+
+    @Override
+    public synchronized void rename(String oldKey, String newKey) {
+        Map<String, String> hash = hashes.remove(oldKey);
+        if (hash != null) {
+            hashes.put(newKey, hash);
+        }
+        Map<String, Double> sortedSet = sortedSets.remove(oldKey);
+        if (sortedSet != null) {
+            sortedSets.put(newKey, sortedSet);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized <T> T execute(RedisScript<T> script, List<String> keys, Object... args) {
+        String source = script.getScriptAsString();
+        if (source.contains("RENAME")) {
+            // Thay hash stock counter bằng hash rebuild sau khi cộng các delta trong journal
+            Map<String, String> rebuilt = hashes.remove(keys.get(1));
+            Map<String, String> journal = hashes.remove(keys.get(2));
+            if (journal != null) {
+                journal.forEach((field, delta) -> {
+                    if (!field.equals(args[0].toString()) && rebuilt.containsKey(field)) {
+                        rebuilt.put(field, String.valueOf(Long.parseLong(rebuilt.get(field)) + Long.parseLong(delta)));
+                    }
+                });
+            }
+            hashes.put(keys.get(0), rebuilt);
+            return (T) Long.valueOf(journal == null ? 0 : journal.size());
+        }
+        if (source.contains("HINCRBY")) {
+            String field = args[0].toString();
+            long delta = Long.parseLong(args[1].toString());
+            hashes.computeIfAbsent(keys.get(1), k -> new HashMap<>()).merge(field, "1",
+                    (current, one) -> String.valueOf(Long.parseLong(current) + 1));
+            Map<String, String> journal = hashes.get(keys.get(2));
+            if (journal != null) {
+                journal.merge(field, String.valueOf(delta), (current, added) -> String.valueOf(Long.parseLong(current) + delta));
+            }
+            Map<String, String> hash = hashes.get(keys.get(0));
+            if (hash == null || !hash.containsKey(field)) {
+                return null;
+            }
+            long value = Long.parseLong(hash.get(field)) + delta;
+            hash.put(field, String.valueOf(value));
+            return (T) Long.valueOf(value);
+        }
+        if (source.contains("HSET")) {
+            // Nạp counter từ DB nếu generation của field không đổi
+            Map<String, String> hash = hashes.computeIfAbsent(keys.get(0), k -> new HashMap<>());
+            String field = args[0].toString();
+            if (hash.containsKey(field)) {
+                return (T) Long.valueOf(hash.get(field));
+            }
+            String generation = hashes.getOrDefault(keys.get(1), Map.of()).getOrDefault(field, "0");
+            if (!generation.equals(args[1].toString())) {
+                return null;
+            }
+            hash.put(field, args[2].toString());
+            return (T) Long.valueOf(args[2].toString());
+        }
+        if (source.contains("ZRANGEBYSCORE")) {
+            double max = Double.parseDouble(args[0].toString());
+            int limit = Integer.parseInt(args[1].toString());
+            double newScore = Double.parseDouble(args[2].toString());
+            Map<String, Double> sortedSet = sortedSets.getOrDefault(keys.get(0), Map.of());
+            List<String> due = sortedSet.entrySet().stream()
+                    .filter(entry -> entry.getValue() <= max)
+                    .sorted(Map.Entry.comparingByValue())
+                    .limit(limit)
+                    .map(Map.Entry::getKey)
+                    .toList();
+            due.forEach(member -> sortedSet.put(member, newScore));
+            return (T) new ArrayList<>(due);
+        }
+        throw new UnsupportedOperationException("Script not supported by in-memory Redis: " + source);
+    }
+
+    /**
+     * Xóa toàn bộ dữ liệu (dùng khi nạp lại kho giữa các iteration)
+     */
+    public synchronized void flushAll() {
+        hashes.clear();
+        sortedSets.clear();
+        sets.clear();
+    }
+
+    private synchronized Object onHash(String method, Object[] args) {
+        String key = (String) args[0];
+        Map<String, String> hash = hashes.computeIfAbsent(key, k -> new HashMap<>());
+        switch (method) {
+            case "get":
+                return hash.get(args[1].toString());
+            case "multiGet": {
+                List<Object> values = new ArrayList<>();
+                for (Object field : (Collection<?>) args[1]) {
+                    values.add(hash.get(field.toString()));
+                }
+                return values;
+            }
+            case "put":
+                hash.put(args[1].toString(), args[2].toString());
+                return null;
+            case "putIfAbsent":
+                return hash.putIfAbsent(args[1].toString(), args[2].toString()) == null;
+            case "putAll":
+                ((Map<?, ?>) args[1]).forEach((field, value) -> hash.put(field.toString(), value.toString()));
+                return null;
+            case "delete":
+                return Arrays.stream((Object[]) args[1]).filter(field -> hash.remove(field.toString()) != null).count();
+            case "entries":
+                return new HashMap<Object, Object>(hash);
+            default:
+                throw new UnsupportedOperationException("HashOperations." + method + " not supported by in-memory Redis");
+        }
+    }
+
+    private synchronized Object onZSet(String method, Object[] args) {
+        String key = (String) args[0];
+        Map<String, Double> sortedSet = sortedSets.computeIfAbsent(key, k -> new TreeMap<>());
+        switch (method) {
+            case "add":
+                return sortedSet.put(args[1].toString(), (Double) args[2]) == null;
+            case "addIfAbsent":
+                return sortedSet.putIfAbsent(args[1].toString(), (Double) args[2]) == null;
+            case "remove":
+                return Arrays.stream((Object[]) args[1]).filter(member -> sortedSet.remove(member.toString()) != null).count();
+            case "count": {
+                double min = (Double) args[1];
+                double max = (Double) args[2];
+                return sortedSet.values().stream().filter(score -> score >= min && score <= max).count();
+            }
+            case "zCard":
+            case "size":
+                return (long) sortedSet.size();
+            default:
+                throw new UnsupportedOperationException("ZSetOperations." + method + " not supported by in-memory Redis");
+        }
+    }
+
+    private synchronized Object onSet(String method, Object[] args) {
+        String key = (String) args[0];
+        Set<String> set = sets.computeIfAbsent(key, k -> new LinkedHashSet<>());
+        switch (method) {
+            case "add":
+                return Arrays.stream((Object[]) args[1]).filter(member -> set.add(member.toString())).count();
+            case "pop": {
+                List<String> popped = new ArrayList<>();
+                Iterator<String> iterator = set.iterator();
+                while (iterator.hasNext() && popped.size() < (Long) args[1]) {
+                    popped.add(iterator.next());
+                    iterator.remove();
+                }
+                return popped;
+            }
+            case "size":
+                return (long) set.size();
+            default:
+                throw new UnsupportedOperationException("SetOperations." + method + " not supported by in-memory Redis");
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<?> type, Handler handler) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type},
+                (instance, method, args) -> {
+                    if (method.getDeclaringClass() == Object.class) {
+                        return switch (method.getName()) {
+                            case "equals" -> instance == args[0];
+                            case "hashCode" -> System.identityHashCode(instance);
+                            default -> "InMemory" + type.getSimpleName();
+                        };
+                    }
+                    return handler.handle(method.getName(), args);
+                });
+    }
+
+    @FunctionalInterface
+    private interface Handler {
+        Object handle(String method, Object[] args);
+    }
+}
@@ -2,6 +2,7 @@ package com.badat.study1.configuration;
 
 import com.badat.study1.model.User;
 import com.badat.study1.service.ApiCallLogService;
+import com.badat.study1.service.ApiLatencyRollupService;
 import jakarta.servlet.FilterChain;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServletRequest;
@@ -14,6 +15,7 @@ import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Component;
 import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.servlet.HandlerMapping;
 
 @Slf4j
 @Component
@@ -21,6 +23,7 @@ import org.springframework.web.filter.OncePerRequestFilter;
 public class ApiCallLogFilter extends OncePerRequestFilter {
     
     private final ApiCallLogService apiCallLogService;
+    private final ApiLatencyRollupService apiLatencyRollupService;
     
     private static final String START_TIME_ATTRIBUTE = "apiCallStartTime";
     
@@ -32,17 +35,22 @@ public class ApiCallLogFilter extends OncePerRequestFilter {
         request.setAttribute(START_TIME_ATTRIBUTE, System.currentTimeMillis());
         
         // Process the request first to allow authentication to happen
+        boolean failed = false;
         try {
             filterChain.doFilter(request, response);
         } catch (Exception e) {
+            failed = true;
             // Extract user ID after processing for failed requests
             Long userId = getCurrentUserId();
             logFailedRequest(request, response, userId, e);
             throw e;
         } finally {
-            // Extract user ID after processing for successful requests
-            Long userId = getCurrentUserId();
-            logSuccessfulRequest(request, response, userId);
+            // Request lỗi đã được ghi ở catch, không ghi lần 2
+            if (!failed) {
+                // Extract user ID after processing for successful requests
+                Long userId = getCurrentUserId();
+                logSuccessfulRequest(request, response, userId);
+            }
         }
     }
     
@@ -65,6 +73,7 @@ public class ApiCallLogFilter extends OncePerRequestFilter {
             
             // Log the API call asynchronously with extracted data
             apiCallLogService.logApiCall(userId, endpoint, method, statusCode, ipAddress, userAgent, durationMs);
+            apiLatencyRollupService.record(method, getRoutePattern(request), statusCode, durationMs);
             
         } catch (Exception e) {
             log.error("Error logging successful API call: {}", e.getMessage());
@@ -93,6 +102,7 @@ public class ApiCallLogFilter extends OncePerRequestFilter {
             
             // Log the failed API call asynchronously with extracted data
             apiCallLogService.logApiCall(userId, endpoint, method, statusCode, ipAddress, userAgent, durationMs);
+            apiLatencyRollupService.record(method, getRoutePattern(request), statusCode, durationMs);
             
         } catch (Exception e) {
             log.error("Error logging failed API call: {}", e.getMessage());
@@ -126,6 +136,14 @@ public class ApiCallLogFilter extends OncePerRequestFilter {
         }
     }
     
+    /**
+     * Route pattern của handler đã xử lý request (/product/{id}) để rollup không tách theo từng id
+     */
+    private String getRoutePattern(HttpServletRequest request) {
+        Object pattern = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+        return pattern != null ? pattern.toString() : null;
+    }
+    
     private String getClientIpAddress(HttpServletRequest request) {
         String xForwardedFor = request.getHeader("X-Forwarded-For");
         if (xForwardedFor != null && !xForwardedFor.isEmpty() && !"unknown".equalsIgnoreCase(xForwardedFor)) {
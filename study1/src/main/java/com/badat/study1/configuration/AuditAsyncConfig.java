@@ -1,66 +0,0 @@
-package com.badat.study1.configuration;
-
-import lombok.extern.slf4j.Slf4j;
-import org.springframework.context.annotation.Bean;
-import org.springframework.context.annotation.Configuration;
-import org.springframework.scheduling.annotation.EnableAsync;
-import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
-
-import java.util.concurrent.Executor;
-
-@Slf4j
-@EnableAsync
-@Configuration
-public class AuditAsyncConfig {
-
-    @Bean(name = "auditExecutor")
-    public Executor auditExecutor() {
-        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
-        executor.setCorePoolSize(2);
-        executor.setMaxPoolSize(8);
-        executor.setQueueCapacity(1000);
-        executor.setThreadNamePrefix("audit-");
-        executor.setWaitForTasksToCompleteOnShutdown(true);
-        executor.setAwaitTerminationSeconds(60);
-        executor.initialize();
-        log.info("Audit executor configured with core pool size: {}, max pool size: {}", 
-                executor.getCorePoolSize(), executor.getMaxPoolSize());
-        return executor;
-    }
-
-    @Bean(name = "activityLogExecutor")
-    public Executor activityLogExecutor() {
-        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
-        executor.setCorePoolSize(2);
-        executor.setMaxPoolSize(5);
-        executor.setQueueCapacity(100);
-        executor.setThreadNamePrefix("activity-");
-        executor.setWaitForTasksToCompleteOnShutdown(true);
-        executor.setAwaitTerminationSeconds(60);
-        executor.initialize();
-        log.info("Activity log executor configured with core pool size: {}, max pool size: {}", 
-                executor.getCorePoolSize(), executor.getMaxPoolSize());
-        return executor;
-    }
-
-    @Bean(name = "apiLogExecutor")
-    public Executor apiLogExecutor() {
-        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
-        executor.setCorePoolSize(3);
-        executor.setMaxPoolSize(8);
-        executor.setQueueCapacity(200);
-        executor.setThreadNamePrefix("api-log-");
-        executor.setWaitForTasksToCompleteOnShutdown(true);
-        executor.setAwaitTerminationSeconds(60);
-        executor.initialize();
-        log.info("API log executor configured with core pool size: {}, max pool size: {}", 
-                executor.getCorePoolSize(), executor.getMaxPoolSize());
-        return executor;
-    }
-}
-
-
-
-
-
-
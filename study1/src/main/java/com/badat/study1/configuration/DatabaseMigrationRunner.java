@@ -3,16 +3,37 @@ package com.badat.study1.configuration;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.CommandLineRunner;
+import com.badat.study1.model.Warehouse;
+import com.badat.study1.service.ImageStorageService;
+import com.badat.study1.repository.WarehouseRepository;
+import com.badat.study1.service.InventoryImportService;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Component;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 @Slf4j
 @Component
 public class DatabaseMigrationRunner implements CommandLineRunner {
 
+    // Key riêng cho item cũ trùng key với item khác (dòng được giữ mang key thật)
+    private static final String DUPLICATE_ITEM_KEY_PREFIX = "dup:";
+
     @Autowired
     private JdbcTemplate jdbcTemplate;
 
+    @Autowired
+    private ImageStorageService imageStorageService;
+
+    @Autowired
+    private WarehouseRepository warehouseRepository;
+
     @Override
     public void run(String... args) throws Exception {
         try {
@@ -80,34 +101,142 @@ public class DatabaseMigrationRunner implements CommandLineRunner {
                 log.info("Database migration already applied, skipping...");
             }
             
-            // Check and run avatar migration
-            runAvatarMigration();
+            // Move image blobs into the content-addressed image store
+            runImageStoreMigration("stall", "stall_image_data", "image_hash", "image_thumb_hash");
+            runImageStoreMigration("user", "avatar_data", "avatar_hash", "avatar_thumb_hash");
+            
+            // Điền item_key cho item kho cũ để import tra trùng theo index
+            runWarehouseItemKeyBackfill();
+            runWarehouseItemKeyUniqueMigration();
         } catch (Exception e) {
             log.error("Database migration failed: {}", e.getMessage(), e);
         }
     }
     
-    private void runAvatarMigration() {
+    /**
+     * Chuyển ảnh LONGBLOB cũ sang kho ảnh: lưu file, ghi hash vào cột mới rồi xóa blob,
+     * mỗi lần 50 dòng để không tải toàn bộ ảnh vào bộ nhớ
+     */
+    private void runImageStoreMigration(String table, String blobColumn, String hashColumn, String thumbHashColumn) {
+        try {
+            String checkBlobColumnQuery = "SELECT COUNT(*) FROM INFORMATION_SCHEMA.COLUMNS " +
+                    "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ? AND COLUMN_NAME = ?";
+            Integer blobColumnExists = jdbcTemplate.queryForObject(checkBlobColumnQuery, Integer.class, table, blobColumn);
+            if (blobColumnExists == null || blobColumnExists == 0) {
+                return;
+            }
+            
+            int migrated = 0;
+            while (true) {
+                var rows = jdbcTemplate.queryForList(
+                        "SELECT id, " + blobColumn + " AS data FROM " + table + " WHERE " + blobColumn + " IS NOT NULL LIMIT 50");
+                if (rows.isEmpty()) {
+                    break;
+                }
+                for (var row : rows) {
+                    byte[] data = (byte[]) row.get("data");
+                    String hash = null;
+                    String thumbHash = null;
+                    if (data != null && data.length > 0) {
+                        ImageStorageService.StoredImage image = imageStorageService.store(data);
+                        hash = image.getHash();
+                        thumbHash = image.getThumbnailHash();
+                    }
+                    jdbcTemplate.update("UPDATE " + table + " SET " + hashColumn + " = ?, " + thumbHashColumn + " = ?, " +
+                            blobColumn + " = NULL WHERE id = ?", hash, thumbHash, row.get("id"));
+                    migrated++;
+                }
+            }
+            if (migrated > 0) {
+                log.info("Moved {} images from {}.{} to the image store", migrated, table, blobColumn);
+            }
+        } catch (Exception e) {
+            log.error("Image store migration for {}.{} failed: {}", table, blobColumn, e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Tính item_key cho các item kho tạo trước khi có cột này, theo id tăng dần mỗi lần 1000 dòng
+     * Key đã thuộc về dòng khác thì dòng sau nhận key riêng theo id để không vi phạm unique key
+     */
+    private void runWarehouseItemKeyBackfill() {
         try {
-            // Check if avatar columns already exist
-            String checkAvatarDataQuery = "SELECT COUNT(*) FROM INFORMATION_SCHEMA.COLUMNS " +
-                    "WHERE TABLE_SCHEMA = 'mmo_market' AND TABLE_NAME = 'user' AND COLUMN_NAME = 'avatar_data'";
+            int updated = 0;
+            long lastId = 0;
+            while (true) {
+                var rows = jdbcTemplate.queryForList(
+                        "SELECT id, item_type, item_data FROM warehouse WHERE item_key IS NULL AND id > ? ORDER BY id LIMIT 1000", lastId);
+                if (rows.isEmpty()) {
+                    break;
+                }
+                Map<String, Map<Long, String>> keysByType = new HashMap<>();
+                for (var row : rows) {
+                    lastId = ((Number) row.get("id")).longValue();
+                    String itemData = (String) row.get("item_data");
+                    if (itemData == null) {
+                        continue;
+                    }
+                    Warehouse.ItemType itemType = null;
+                    try {
+                        itemType = Warehouse.ItemType.valueOf((String) row.get("item_type"));
+                    } catch (Exception e) {
+                        // Loại không còn tồn tại: khóa theo cả dòng
+                    }
+                    keysByType.computeIfAbsent((String) row.get("item_type"), type -> new LinkedHashMap<>())
+                            .put(lastId, InventoryImportService.itemKeyOf(itemType, itemData));
+                }
+                List<Object[]> keys = new ArrayList<>(rows.size());
+                for (var entry : keysByType.entrySet()) {
+                    Set<String> taken = new HashSet<>();
+                    warehouseRepository.findKeyStatesByItemTypeAndItemKeyIn(entry.getKey(), entry.getValue().values())
+                            .forEach(state -> taken.add((String) state[1]));
+                    entry.getValue().forEach((id, key) ->
+                            keys.add(new Object[]{taken.add(key) ? key : DUPLICATE_ITEM_KEY_PREFIX + id, id}));
+                }
+                jdbcTemplate.batchUpdate("UPDATE warehouse SET item_key = ? WHERE id = ?", keys);
+                updated += keys.size();
+            }
+            if (updated > 0) {
+                log.info("Backfilled item_key for {} warehouse items", updated);
+            }
+        } catch (Exception e) {
+            log.error("Warehouse item_key backfill failed: {}", e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Đổi index (item_type, item_key) cũ thành unique key cho DB đã có dữ liệu: trong mỗi nhóm trùng key
+     * giữ dòng còn hiệu lực, rồi dòng khôi phục được, rồi id nhỏ nhất - các dòng còn lại nhận key riêng theo id
+     */
+    private void runWarehouseItemKeyUniqueMigration() {
+        try {
+            String checkConstraintQuery = "SELECT COUNT(*) FROM INFORMATION_SCHEMA.TABLE_CONSTRAINTS " +
+                    "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'warehouse' AND CONSTRAINT_NAME = 'uk_warehouse_item_key'";
+            Integer constraintExists = jdbcTemplate.queryForObject(checkConstraintQuery, Integer.class);
+            if (constraintExists != null && constraintExists > 0) {
+                return;
+            }
+            
+            List<Object[]> rekeys = new ArrayList<>();
+            var duplicates = jdbcTemplate.queryForList("SELECT item_type, item_key FROM warehouse WHERE item_key IS NOT NULL " +
+                    "GROUP BY item_type, item_key HAVING COUNT(*) > 1");
+            for (var duplicate : duplicates) {
+                var rows = jdbcTemplate.queryForList("SELECT id FROM warehouse WHERE item_type = ? AND item_key = ? " +
+                        "ORDER BY is_delete, locked, id", duplicate.get("item_type"), duplicate.get("item_key"));
+                rows.stream().skip(1).forEach(row -> rekeys.add(new Object[]{DUPLICATE_ITEM_KEY_PREFIX + row.get("id"), row.get("id")}));
+            }
+            jdbcTemplate.batchUpdate("UPDATE warehouse SET item_key = ? WHERE id = ?", rekeys);
             
-            Integer avatarDataExists = jdbcTemplate.queryForObject(checkAvatarDataQuery, Integer.class);
+            jdbcTemplate.execute("ALTER TABLE warehouse ADD CONSTRAINT uk_warehouse_item_key UNIQUE (item_type, item_key)");
+            log.info("Added unique key on warehouse (item_type, item_key), re-keyed {} duplicate items", rekeys.size());
             
-            if (avatarDataExists == null || avatarDataExists == 0) {
-                log.info("Running avatar migration for user table...");
-                
-                // Add avatar columns
-                jdbcTemplate.execute("ALTER TABLE user ADD COLUMN avatar_data LONGBLOB NULL COMMENT 'Avatar image data'");
-                jdbcTemplate.execute("ALTER TABLE user ADD COLUMN avatar_url VARCHAR(500) NULL COMMENT 'Avatar URL from OAuth provider'");
-                
-                log.info("Avatar migration completed successfully!");
-            } else {
-                log.info("Avatar migration already applied, skipping...");
+            try {
+                jdbcTemplate.execute("DROP INDEX idx_warehouse_item_key ON warehouse");
+            } catch (Exception e) {
+                log.warn("Index idx_warehouse_item_key might not exist: {}", e.getMessage());
             }
         } catch (Exception e) {
-            log.error("Avatar migration failed: {}", e.getMessage(), e);
+            log.error("Warehouse item_key unique migration failed: {}", e.getMessage(), e);
         }
     }
 }
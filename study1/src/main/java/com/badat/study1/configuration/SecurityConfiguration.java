@@ -44,7 +44,7 @@ public class SecurityConfiguration {
             "/login", "/register", "/verify-otp", "/forgot-password", "/reset-password", 
             "/terms", "/faqs", 
             "/css/**", "/js/**", "/images/**", "/static/**", "/favicon.ico",
-            "/stall-image/**",
+            "/stall-image/**", "/media/**",
             "/oauth2/**", "/login/oauth2/**",
             "/error", // Thêm /error vào whitelist để tránh authentication loop
             "/admin-simple", "/admin/test-withdraw", "/api/admin/withdraw/requests-simple", "/api/admin/withdraw/approve-simple/**", "/api/admin/withdraw/reject-simple/**"};
@@ -17,15 +17,15 @@ import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
-import org.springframework.http.HttpHeaders;
+import org.springframework.http.CacheControl;
 import org.springframework.http.HttpStatus;
-import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.servlet.mvc.support.RedirectAttributes;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 import java.time.Instant;
 import java.math.BigDecimal;
 import java.util.List;
@@ -341,23 +341,14 @@ public class AdminController {
     }
     
     @GetMapping("/admin/stalls/{id}/image")
-    public ResponseEntity<byte[]> getStallImage(@PathVariable("id") Long stallId) {
-        try {
-            Stall stall = stallRepository.findById(stallId).orElse(null);
-            if (stall == null || stall.getStallImageData() == null || stall.getStallImageData().length == 0) {
-                return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
-            }
-
-            byte[] imageBytes = stall.getStallImageData();
-
-            HttpHeaders headers = new HttpHeaders();
-            headers.setContentType(MediaType.IMAGE_JPEG);
-            headers.setCacheControl("max-age=3600, must-revalidate");
-
-            return new ResponseEntity<>(imageBytes, headers, HttpStatus.OK);
-        } catch (Exception ex) {
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
-        }
+    public ResponseEntity<Void> getStallImage(@PathVariable("id") Long stallId) {
+        // Chỉ đọc hash ảnh rồi chuyển hướng sang URL bất biến trong kho ảnh
+        return stallRepository.findImageHashById(stallId)
+                .map(hash -> ResponseEntity.status(HttpStatus.FOUND)
+                        .location(ServletUriComponentsBuilder.fromCurrentContextPath().path("/media/{hash}").buildAndExpand(hash).toUri())
+                        .cacheControl(CacheControl.noCache())
+                        .<Void>build())
+                .orElseGet(() -> ResponseEntity.status(HttpStatus.NOT_FOUND).build());
     }
     
     @PostMapping("/api/admin/sellers/{sellerId}/toggle-lock")
@@ -3,6 +3,9 @@ package com.badat.study1.controller;
 import com.badat.study1.dto.response.ApiCallLogResponse;
 import com.badat.study1.model.ApiCallLog;
 import com.badat.study1.repository.ApiCallLogRepository;
+import com.badat.study1.service.ApiLatencyRollupService;
+import com.badat.study1.service.LogExportService;
+import com.badat.study1.service.TelemetryBus;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.domain.Page;
@@ -12,7 +15,9 @@ import org.springframework.data.domain.Sort;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.HashMap;
@@ -26,6 +31,9 @@ import java.util.Map;
 public class ApiCallLogController {
     
     private final ApiCallLogRepository apiCallLogRepository;
+    private final TelemetryBus telemetryBus;
+    private final ApiLatencyRollupService apiLatencyRollupService;
+    private final LogExportService logExportService;
     
     @GetMapping("/api-calls")
     @PreAuthorize("hasRole('ADMIN')")
@@ -78,36 +86,47 @@ public class ApiCallLogController {
         }
     }
     
+    @GetMapping("/api-calls/export")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<StreamingResponseBody> exportApiCallLogs(
+            @RequestParam(required = false) Long userId,
+            @RequestParam(required = false) String endpoint,
+            @RequestParam(required = false) String method,
+            @RequestParam(required = false) Integer statusCode,
+            @RequestParam(required = false) String fromDate,
+            @RequestParam(required = false) String toDate,
+            @RequestParam(defaultValue = "csv") String format,
+            @RequestParam(defaultValue = "false") boolean gzip) {
+        
+        // Cùng filter với /api-calls, dữ liệu được stream thẳng ra response
+        LocalDateTime fromDateTime = null;
+        LocalDateTime toDateTime = null;
+        try {
+            if (fromDate != null && !fromDate.trim().isEmpty()) {
+                fromDateTime = LocalDate.parse(fromDate).atStartOfDay();
+            }
+            if (toDate != null && !toDate.trim().isEmpty()) {
+                toDateTime = LocalDate.parse(toDate).atTime(23, 59, 59);
+            }
+        } catch (Exception e) {
+            log.warn("Invalid API call log export filter: {}", e.getMessage());
+            return ResponseEntity.badRequest().build();
+        }
+        
+        return logExportService.export(
+                logExportService.apiCallLogs(userId, endpoint, method, statusCode, fromDateTime, toDateTime),
+                LogExportService.Format.of(format), gzip);
+    }
+    
     @GetMapping("/api-calls/statistics")
     @PreAuthorize("hasRole('ADMIN')")
     public ResponseEntity<?> getApiStatistics(
             @RequestParam(defaultValue = "7") int days) {
         
         try {
+            // Đọc từ rollup theo phút/giờ thay vì aggregate trên api_call_log
             LocalDateTime fromDate = LocalDateTime.now().minusDays(days);
-            
-            // Get statistics
-            Double avgResponseTime = apiCallLogRepository.findAverageResponseTime(fromDate);
-            Long errorCount = apiCallLogRepository.countErrorsSince(fromDate);
-            Long totalCalls = apiCallLogRepository.countTotalCallsSince(fromDate);
-            
-            // Get top endpoints
-            Pageable topEndpointsPageable = PageRequest.of(0, 10);
-            List<Object[]> topEndpoints = apiCallLogRepository.findTopEndpoints(fromDate, topEndpointsPageable);
-            
-            // Get slow calls
-            Pageable slowCallsPageable = PageRequest.of(0, 10);
-            List<ApiCallLog> slowCalls = apiCallLogRepository.findSlowCalls(1000, fromDate, slowCallsPageable);
-            
-            Map<String, Object> statistics = new HashMap<>();
-            statistics.put("avgResponseTime", avgResponseTime != null ? Math.round(avgResponseTime) : 0);
-            statistics.put("errorCount", errorCount);
-            statistics.put("totalCalls", totalCalls);
-            statistics.put("errorRate", totalCalls > 0 ? Math.round((double) errorCount / totalCalls * 100) : 0);
-            statistics.put("topEndpoints", topEndpoints);
-            statistics.put("slowCalls", slowCalls.stream().map(ApiCallLogResponse::fromApiCallLog).toList());
-            
-            return ResponseEntity.ok(statistics);
+            return ResponseEntity.ok(apiLatencyRollupService.getStatistics(fromDate, 10));
             
         } catch (Exception e) {
             log.error("Error getting API statistics: {}", e.getMessage());
@@ -150,18 +169,13 @@ public class ApiCallLogController {
             return ResponseEntity.status(500).body(Map.of("error", "Internal server error"));
         }
     }
+    
+    /**
+     * Metrics của các sink telemetry (queued, written, dropped, flush latency...)
+     */
+    @GetMapping("/telemetry/stats")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<List<TelemetryBus.SinkStats>> getTelemetryStats() {
+        return ResponseEntity.ok(telemetryBus.getStats());
+    }
 }
-
-
-
-
-
-
-
-
-
-
-
-
-
-
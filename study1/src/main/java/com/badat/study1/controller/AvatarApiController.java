@@ -3,6 +3,7 @@ package com.badat.study1.controller;
 import com.badat.study1.service.UserService;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.CacheControl;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
@@ -10,6 +11,9 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+
+import java.time.Duration;
 
 @Slf4j
 @RestController
@@ -22,22 +26,7 @@ public class AvatarApiController {
     @GetMapping("/{userId}")
     public ResponseEntity<byte[]> getAvatar(@PathVariable Long userId) {
         try {
-            byte[] avatarData = userService.getAvatar(userId);
-            
-            if (avatarData != null && avatarData.length > 0) {
-                HttpHeaders headers = new HttpHeaders();
-                String contentType = detectContentType(avatarData);
-                headers.setContentType(MediaType.valueOf(contentType));
-                headers.setContentLength(avatarData.length);
-                headers.setCacheControl("public, max-age=3600");
-                
-                return ResponseEntity.ok()
-                        .headers(headers)
-                        .body(avatarData);
-            } else {
-                return getDefaultAvatarResponse();
-            }
-            
+            return avatarResponse(userService.getAvatarHash(userId));
         } catch (Exception e) {
             log.error("Error getting avatar for user {}: {}", userId, e.getMessage());
             return getDefaultAvatarResponse();
@@ -55,23 +44,8 @@ public class AvatarApiController {
             
             // Get user from authentication
             Object principal = authentication.getPrincipal();
-            if (principal instanceof org.springframework.security.core.userdetails.UserDetails) {
-                // This is a UserDetails object, we need to get the actual User
-                // You might need to fetch the user by username here
-                return getDefaultAvatarResponse();
-            } else {
-                // This is our custom User object
-                com.badat.study1.model.User currentUser = (com.badat.study1.model.User) principal;
-                byte[] avatarData = userService.getAvatar(currentUser.getId());
-                
-                if (avatarData != null && avatarData.length > 0) {
-                    HttpHeaders headers = new HttpHeaders();
-                    String contentType = detectContentType(avatarData);
-                    headers.setContentType(MediaType.valueOf(contentType));
-                    headers.setContentLength(avatarData.length);
-                    headers.setCacheControl("public, max-age=3600");
-                    return ResponseEntity.ok().headers(headers).body(avatarData);
-                }
+            if (principal instanceof com.badat.study1.model.User currentUser) {
+                return avatarResponse(userService.getAvatarHash(currentUser.getId()));
             }
             
             return getDefaultAvatarResponse();
@@ -81,6 +55,17 @@ public class AvatarApiController {
         }
     }
     
+    // Chuyển hướng sang URL bất biến của ảnh trong kho (/media/{hash}), trình duyệt cache ảnh đó vĩnh viễn
+    private ResponseEntity<byte[]> avatarResponse(String avatarHash) {
+        if (avatarHash == null) {
+            return getDefaultAvatarResponse();
+        }
+        return ResponseEntity.status(HttpStatus.FOUND)
+                .location(ServletUriComponentsBuilder.fromCurrentContextPath().path("/media/{hash}").buildAndExpand(avatarHash).toUri())
+                .cacheControl(CacheControl.maxAge(Duration.ofMinutes(5)).cachePrivate())
+                .build();
+    }
+    
     private ResponseEntity<byte[]> getDefaultAvatarResponse() {
         try {
             byte[] defaultAvatar = userService.getDefaultAvatar();
@@ -94,33 +79,4 @@ public class AvatarApiController {
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
         }
     }
-    
-    private String detectContentType(byte[] data) {
-        if (data.length < 4) {
-            return "image/svg+xml";
-        }
-        
-        // JPEG: FF D8 FF
-        if (data[0] == (byte) 0xFF && data[1] == (byte) 0xD8 && data[2] == (byte) 0xFF) {
-            return "image/jpeg";
-        }
-        
-        // PNG: 89 50 4E 47
-        if (data[0] == (byte) 0x89 && data[1] == (byte) 0x50 && data[2] == (byte) 0x4E && data[3] == (byte) 0x47) {
-            return "image/png";
-        }
-        
-        // GIF: 47 49 46 38
-        if (data[0] == (byte) 0x47 && data[1] == (byte) 0x49 && data[2] == (byte) 0x46 && data[3] == (byte) 0x38) {
-            return "image/gif";
-        }
-        
-        // SVG: Check for SVG content
-        String content = new String(data, 0, Math.min(100, data.length));
-        if (content.contains("<svg") || content.contains("<?xml")) {
-            return "image/svg+xml";
-        }
-        
-        return "image/png";
-    }
 }
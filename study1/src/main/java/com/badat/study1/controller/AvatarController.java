@@ -5,6 +5,7 @@ import com.badat.study1.service.UserActivityLogService;
 import com.badat.study1.service.UserService;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.CacheControl;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
@@ -13,9 +14,11 @@ import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 
 import jakarta.servlet.http.HttpServletRequest;
 import java.io.IOException;
+import java.time.Duration;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -91,25 +94,7 @@ public class AvatarController {
     @GetMapping("/avatar/{userId}")
     public ResponseEntity<byte[]> getAvatar(@PathVariable Long userId) {
         try {
-            // Add timeout handling - return default avatar if takes too long
-            byte[] avatarData = userService.getAvatar(userId);
-            
-            if (avatarData != null && avatarData.length > 0) {
-                HttpHeaders headers = new HttpHeaders();
-                // Detect content type from byte data
-                String contentType = detectContentType(avatarData);
-                headers.setContentType(MediaType.valueOf(contentType));
-                headers.setContentLength(avatarData.length);
-                headers.setCacheControl("public, max-age=300"); // Cache for 5 minutes
-                
-                return ResponseEntity.ok()
-                        .headers(headers)
-                        .body(avatarData);
-            } else {
-                // Return default avatar instead of 404
-                return getDefaultAvatarResponse();
-            }
-            
+            return avatarResponse(userService.getAvatarHash(userId));
         } catch (Exception e) {
             log.error("Error getting avatar for user {}: {}", userId, e.getMessage());
             // Return default avatar instead of 404
@@ -127,29 +112,24 @@ public class AvatarController {
                 return getDefaultAvatarResponse();
             }
             User currentUser = (User) authentication.getPrincipal();
-            log.info("Getting avatar for current user: {} (ID: {})", currentUser.getUsername(), currentUser.getId());
-            
-            byte[] avatarData = userService.getAvatar(currentUser.getId());
-            log.info("Avatar data received: {} bytes", avatarData != null ? avatarData.length : 0);
-            
-            if (avatarData != null && avatarData.length > 0) {
-                HttpHeaders headers = new HttpHeaders();
-                // Detect content type from byte data
-                String contentType = detectContentType(avatarData);
-                headers.setContentType(MediaType.valueOf(contentType));
-                headers.setContentLength(avatarData.length);
-                headers.setCacheControl("public, max-age=300"); // Cache for 5 minutes
-                log.info("Returning avatar with content type: {}", contentType);
-                return ResponseEntity.ok().headers(headers).body(avatarData);
-            }
-            log.info("No avatar data, returning default avatar");
-            return getDefaultAvatarResponse();
+            return avatarResponse(userService.getAvatarHash(currentUser.getId()));
         } catch (Exception e) {
             log.error("Error getting current user's avatar: {}", e.getMessage());
             return getDefaultAvatarResponse();
         }
     }
     
+    // Chuyển hướng sang URL bất biến của ảnh trong kho (/media/{hash}), trình duyệt cache ảnh đó vĩnh viễn
+    private ResponseEntity<byte[]> avatarResponse(String avatarHash) {
+        if (avatarHash == null) {
+            return getDefaultAvatarResponse();
+        }
+        return ResponseEntity.status(HttpStatus.FOUND)
+                .location(ServletUriComponentsBuilder.fromCurrentContextPath().path("/media/{hash}").buildAndExpand(avatarHash).toUri())
+                .cacheControl(CacheControl.maxAge(Duration.ofMinutes(5)).cachePrivate())
+                .build();
+    }
+    
     private ResponseEntity<byte[]> getDefaultAvatarResponse() {
         try {
             byte[] defaultAvatar = userService.getDefaultAvatar();
@@ -213,35 +193,4 @@ public class AvatarController {
         
         return request.getRemoteAddr();
     }
-    
-    private String detectContentType(byte[] data) {
-        if (data.length < 4) {
-            return "image/svg+xml"; // Default fallback
-        }
-        
-        // Check for common image formats
-        // JPEG: FF D8 FF
-        if (data[0] == (byte) 0xFF && data[1] == (byte) 0xD8 && data[2] == (byte) 0xFF) {
-            return "image/jpeg";
-        }
-        
-        // PNG: 89 50 4E 47
-        if (data[0] == (byte) 0x89 && data[1] == (byte) 0x50 && data[2] == (byte) 0x4E && data[3] == (byte) 0x47) {
-            return "image/png";
-        }
-        
-        // GIF: 47 49 46 38
-        if (data[0] == (byte) 0x47 && data[1] == (byte) 0x49 && data[2] == (byte) 0x46 && data[3] == (byte) 0x38) {
-            return "image/gif";
-        }
-        
-        // SVG: Check for SVG content
-        String content = new String(data, 0, Math.min(100, data.length));
-        if (content.contains("<svg") || content.contains("<?xml")) {
-            return "image/svg+xml";
-        }
-        
-        // Default fallback
-        return "image/png";
-    }
 }
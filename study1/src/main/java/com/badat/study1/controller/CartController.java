@@ -1,9 +1,8 @@
 package com.badat.study1.controller;
 
 import com.badat.study1.dto.response.CartDTO;
-import com.badat.study1.model.Cart;
 import com.badat.study1.service.CartService;
-import com.badat.study1.repository.WarehouseRepository;
+import com.badat.study1.service.StockCounterService;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.http.HttpStatus;
@@ -19,7 +18,7 @@ import java.util.Map;
 public class CartController {
 
     private final CartService cartService;
-    private final WarehouseRepository warehouseRepository;
+    private final StockCounterService stockCounterService;
 
     /**
      * Test endpoint để kiểm tra authentication
@@ -37,17 +36,14 @@ public class CartController {
 
     /**
      * Lấy thông tin giỏ hàng hiện tại của người dùng.
-     * SỬA: Gọi service với tham số true để sử dụng Fetch Join, tải đầy đủ CartItem và Product.
+     * Đọc từ cart store trên Redis, không truy vấn cart/cart_item.
      */
     @GetMapping
     public ResponseEntity<?> getMyCart() {
         try {
             log.info("Getting cart for current user");
-            Cart cart = cartService.getOrCreateMyCart(true);
-            log.info("Cart retrieved successfully with {} items", cart.getItems() != null ? cart.getItems().size() : 0);
-            
-            // Convert to DTO to avoid Jackson serialization issues
-            CartDTO cartDTO = CartDTO.fromEntity(cart);
+            CartDTO cartDTO = cartService.getMyCart();
+            log.info("Cart retrieved successfully with {} items", cartDTO.getItems().size());
             return ResponseEntity.ok(cartDTO);
         } catch (IllegalStateException e) {
             log.warn("User not authenticated: {}", e.getMessage());
@@ -62,11 +58,9 @@ public class CartController {
     public ResponseEntity<?> addToCart(@PathVariable Long productId, @RequestParam(defaultValue = "1") int quantity) {
         try {
             log.info("Adding product {} to cart with quantity {}", productId, quantity);
-            Cart cart = cartService.addProduct(productId, quantity);
+            CartDTO cartDTO = cartService.addProduct(productId, quantity);
             log.info("Product added successfully");
-            
-            // Convert to DTO to avoid Jackson serialization issues
-            CartDTO cartDTO = CartDTO.fromEntity(cart);
+
             return ResponseEntity.ok(cartDTO);
         } catch (IllegalStateException e) {
             log.warn("User not authenticated: {}", e.getMessage());
@@ -81,10 +75,8 @@ public class CartController {
     public ResponseEntity<?> updateQuantity(@PathVariable Long productId, @RequestParam int quantity) {
         try {
             log.info("Updating quantity for product {} to {}", productId, quantity);
-            Cart cart = cartService.updateQuantity(productId, quantity);
-            
-            // Convert to DTO to avoid Jackson serialization issues
-            CartDTO cartDTO = CartDTO.fromEntity(cart);
+            CartDTO cartDTO = cartService.updateQuantity(productId, quantity);
+
             return ResponseEntity.ok(cartDTO);
         } catch (IllegalStateException e) {
             log.warn("User not authenticated: {}", e.getMessage());
@@ -99,10 +91,8 @@ public class CartController {
     public ResponseEntity<?> removeItem(@PathVariable Long productId) {
         try {
             log.info("Removing product {} from cart", productId);
-            Cart cart = cartService.removeProduct(productId);
-            
-            // Convert to DTO to avoid Jackson serialization issues
-            CartDTO cartDTO = CartDTO.fromEntity(cart);
+            CartDTO cartDTO = cartService.removeProduct(productId);
+
             return ResponseEntity.ok(cartDTO);
         } catch (IllegalStateException e) {
             log.warn("User not authenticated: {}", e.getMessage());
@@ -117,10 +107,8 @@ public class CartController {
     public ResponseEntity<?> clearCart() {
         try {
             log.info("Clearing cart");
-            Cart cart = cartService.clearCart();
-            
-            // Convert to DTO to avoid Jackson serialization issues
-            CartDTO cartDTO = CartDTO.fromEntity(cart);
+            CartDTO cartDTO = cartService.clearCart();
+
             return ResponseEntity.ok(cartDTO);
         } catch (IllegalStateException e) {
             log.warn("User not authenticated: {}", e.getMessage());
@@ -137,7 +125,7 @@ public class CartController {
             log.info("Checking stock for product: {}", productId);
             
             // Count available warehouse items for this product
-            long availableStock = warehouseRepository.countByProductIdAndLockedFalseAndIsDeleteFalse(productId);
+            long availableStock = stockCounterService.getProductAvailable(productId);
             
             return ResponseEntity.ok(Map.of(
                 "productId", productId,
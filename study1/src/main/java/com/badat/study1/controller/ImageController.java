@@ -0,0 +1,69 @@
+package com.badat.study1.controller;
+
+import com.badat.study1.service.ImageStorageService;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.context.request.ServletWebRequest;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Phục vụ ảnh trong kho content-addressed theo hash
+ * Nội dung của 1 hash không bao giờ đổi nên trả ETag = hash và cache immutable 1 năm;
+ * file được gửi bằng sendfile của Tomcat nếu connector hỗ trợ, nếu không thì FileChannel.transferTo
+ */
+@Slf4j
+@Controller
+@RequiredArgsConstructor
+public class ImageController {
+
+    private static final String IMMUTABLE_CACHE = "public, max-age=31536000, immutable";
+
+    private final ImageStorageService imageStorageService;
+
+    @GetMapping("/media/{hash}")
+    public void getImage(@PathVariable String hash, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        Path path = imageStorageService.resolve(hash);
+        if (path == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        response.setHeader(HttpHeaders.CACHE_CONTROL, IMMUTABLE_CACHE);
+        if (new ServletWebRequest(request, response).checkNotModified("\"" + hash + "\"")) {
+            return;
+        }
+
+        long size = Files.size(path);
+        response.setContentType(imageStorageService.detectContentType(path));
+        response.setContentLengthLong(size);
+
+        if (Boolean.TRUE.equals(request.getAttribute("org.apache.tomcat.sendfile.support"))) {
+            // Tomcat gửi file bằng sendfile sau khi handler trả về, không copy qua user space
+            request.setAttribute("org.apache.tomcat.sendfile.filename", path.toString());
+            request.setAttribute("org.apache.tomcat.sendfile.start", 0L);
+            request.setAttribute("org.apache.tomcat.sendfile.end", size);
+            return;
+        }
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+            long position = 0;
+            while (position < size) {
+                position += channel.transferTo(position, size - position, out);
+            }
+        }
+    }
+}
@@ -3,9 +3,11 @@ package com.badat.study1.controller;
 import com.badat.study1.dto.request.CartPaymentRequest;
 import com.badat.study1.dto.response.PaymentResponse;
 import com.badat.study1.dto.response.PaymentStatusResponse;
+import com.badat.study1.service.CheckoutIdempotencyService;
 import com.badat.study1.service.PaymentService;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
@@ -19,17 +21,23 @@ public class ImprovedPaymentController {
     
     /**
      * Xử lý thanh toán giỏ hàng với queue system
+     * Header Idempotency-Key (tùy chọn): retry cùng key nhận lại paymentId của lần đầu
      */
     @PostMapping("/process-cart")
-    public ResponseEntity<PaymentResponse> processCartPayment(@RequestBody CartPaymentRequest request) {
+    public ResponseEntity<PaymentResponse> processCartPayment(
+            @RequestBody CartPaymentRequest request,
+            @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey) {
         try {
             log.info("Processing cart payment for amount: {}", request.getTotalAmount());
             
-            PaymentResponse response = paymentService.processCartPayment(request);
+            PaymentResponse response = paymentService.processCartPayment(request, idempotencyKey);
             
             if (response.isSuccess()) {
                 log.info("Cart payment queued successfully");
                 return ResponseEntity.ok(response);
+            } else if (CheckoutIdempotencyService.Outcome.State.IN_PROGRESS.name().equals(response.getStatus())) {
+                log.info("Cart payment with Idempotency-Key {} is still in progress", idempotencyKey);
+                return ResponseEntity.status(HttpStatus.CONFLICT).body(response);
             } else {
                 log.warn("Cart payment failed: {}", response.getMessage());
                 return ResponseEntity.badRequest().body(response);
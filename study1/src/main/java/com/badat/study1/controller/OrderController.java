@@ -2,6 +2,7 @@ package com.badat.study1.controller;
 
 import com.badat.study1.model.Order;
 import com.badat.study1.model.User;
+import com.badat.study1.model.Warehouse;
 import com.badat.study1.service.OrderService;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -41,6 +42,12 @@ public class OrderController {
             List<Order> orders = orderService.getOrdersByBuyerWithFilters(
                 user.getId(), startDate, endDate, searchStall, searchProduct, sortBy);
             
+            // Key đã giao của mọi dòng order, lấy 1 lần cho cả danh sách
+            Map<Long, List<Warehouse>> deliveredKeys = orderService.getDeliveredKeys(orders.stream()
+                    .filter(order -> order.getOrderItems() != null)
+                    .flatMap(order -> order.getOrderItems().stream())
+                    .toList());
+
             // Chuyển đổi orders thành format mới với thông tin OrderItem
             List<Map<String, Object>> orderDetails = orders.stream().map(order -> {
                 Map<String, Object> orderMap = new HashMap<>();
@@ -80,11 +87,13 @@ public class OrderController {
                         } else {
                             itemMap.put("warehouse", null);
                         }
+                        itemMap.put("keys", keyInfos(deliveredKeys.get(item.getId())));
                         
                         return itemMap;
                     }).collect(Collectors.toList());
                     orderMap.put("orderItems", orderItems);
-                    orderMap.put("itemCount", orderItems.size());
+                    // Số key đã mua (mỗi dòng order mang quantity)
+                    orderMap.put("itemCount", order.getOrderItems().stream().mapToInt(item -> item.getQuantity()).sum());
                 } else {
                     orderMap.put("orderItems", new java.util.ArrayList<>());
                     orderMap.put("itemCount", 0);
@@ -168,6 +177,7 @@ public class OrderController {
             
             // Thêm thông tin OrderItem
             if (order.getOrderItems() != null && !order.getOrderItems().isEmpty()) {
+                Map<Long, List<Warehouse>> deliveredKeys = orderService.getDeliveredKeys(order.getOrderItems());
                 List<Map<String, Object>> orderItems = order.getOrderItems().stream().map(item -> {
                     Map<String, Object> itemMap = new HashMap<>();
                     itemMap.put("id", item.getId());
@@ -191,11 +201,13 @@ public class OrderController {
                         warehouseInfo.put("sellerName", item.getWarehouse().getUser() != null ? item.getWarehouse().getUser().getUsername() : "N/A");
                         itemMap.put("warehouse", warehouseInfo);
                     }
+                    itemMap.put("keys", keyInfos(deliveredKeys.get(item.getId())));
                     
                     return itemMap;
                 }).collect(Collectors.toList());
                 orderDetail.put("orderItems", orderItems);
-                orderDetail.put("itemCount", orderItems.size());
+                // Số key đã mua (mỗi dòng order mang quantity)
+                orderDetail.put("itemCount", order.getOrderItems().stream().mapToInt(item -> item.getQuantity()).sum());
             } else {
                 orderDetail.put("orderItems", new java.util.ArrayList<>());
                 orderDetail.put("itemCount", 0);
@@ -286,4 +298,19 @@ public class OrderController {
             return ResponseEntity.badRequest().body(errorResponse);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Danh sách key đã giao của 1 dòng order (id + itemData)
+     */
+    private List<Map<String, Object>> keyInfos(List<Warehouse> keys) {
+        if (keys == null) {
+            return List.of();
+        }
+        return keys.stream().map(key -> {
+            Map<String, Object> keyInfo = new HashMap<>();
+            keyInfo.put("id", key.getId());
+            keyInfo.put("itemData", key.getItemData());
+            return keyInfo;
+        }).collect(Collectors.toList());
+    }
+}
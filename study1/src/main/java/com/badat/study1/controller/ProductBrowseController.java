@@ -1,9 +1,11 @@
 package com.badat.study1.controller;
 
 import com.badat.study1.model.Product;
+import com.badat.study1.model.RatingSummary;
 import com.badat.study1.model.Review;
 import com.badat.study1.model.Shop;
 import com.badat.study1.model.Stall;
+import com.badat.study1.model.StallCard;
 import com.badat.study1.model.User;
 import com.badat.study1.model.Wallet;
 import com.badat.study1.repository.ProductRepository;
@@ -11,7 +13,10 @@ import com.badat.study1.repository.ReviewRepository;
 import com.badat.study1.repository.ShopRepository;
 import com.badat.study1.repository.StallRepository;
 import com.badat.study1.repository.WalletRepository;
-import com.badat.study1.repository.WarehouseRepository;
+import com.badat.study1.service.RatingSummaryService;
+import com.badat.study1.service.StallSearchService;
+import com.badat.study1.service.StockCounterService;
+import com.badat.study1.util.PaginationValidator;
 import lombok.RequiredArgsConstructor;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
@@ -35,7 +40,9 @@ public class ProductBrowseController {
     private final ShopRepository shopRepository;
     private final StallRepository stallRepository;
     private final WalletRepository walletRepository;
-    private final WarehouseRepository warehouseRepository;
+    private final StockCounterService stockCounterService;
+    private final StallSearchService stallSearchService;
+    private final RatingSummaryService ratingSummaryService;
 
     @GetMapping("/products")
     public String listProducts(
@@ -44,65 +51,31 @@ public class ProductBrowseController {
             @RequestParam(value = "minPrice", required = false) BigDecimal minPrice,
             @RequestParam(value = "maxPrice", required = false) BigDecimal maxPrice,
             @RequestParam(value = "shop", required = false) String shopName,
+            @RequestParam(value = "inStock", defaultValue = "false") boolean inStock,
+            @RequestParam(value = "sort", defaultValue = "NEWEST") StallSearchService.Sort sort,
+            @RequestParam(value = "after", required = false) String after,
+            @RequestParam(value = "size", defaultValue = "24") int size,
             Model model) {
-        List<Stall> stalls;
-        if (query != null && !query.isBlank()) {
-            stalls = stallRepository.findByStallNameContainingIgnoreCaseAndIsDeleteFalseAndStatus(
-                    query.trim(), "OPEN");
-        } else {
-            stalls = stallRepository.findByStatusAndIsDeleteFalse("OPEN");
-        }
-        
-        // Optional in-memory filters to avoid adding more repo methods
-        if (type != null && !type.isBlank()) {
-            String filterType = type.trim();
-            stalls = stalls.stream()
-                    .filter(s -> filterType.equalsIgnoreCase(s.getStallCategory()))
-                    .toList();
-        }
-        // Get shop information for all stalls
-        Map<Long, Shop> shopMap = stalls.stream()
-                .map(Stall::getShopId)
-                .distinct()
-                .collect(Collectors.toMap(
-                        shopId -> shopId,
-                        shopId -> shopRepository.findById(shopId).orElse(null)
-                ));
-
-        if (shopName != null && !shopName.isBlank()) {
-            String filterShop = shopName.trim().toLowerCase();
-            stalls = stalls.stream()
-                    .filter(s -> {
-                        Shop shop = shopMap.get(s.getShopId());
-                        return shop != null && shop.getShopName() != null
-                                && shop.getShopName().toLowerCase().contains(filterShop);
-                    })
-                    .toList();
-        }
-
-        // Compute average rating per stall (0 if none)
-        Map<Long, Double> stallRatings = stalls.stream().collect(Collectors.toMap(
-                Stall::getId,
-                s -> {
-                    Long stallId = s.getId();
-                    List<Review> reviews = reviewRepository.findByStallIdAndIsDeleteFalse(stallId);
-                    return reviews.stream()
-                            .map(Review::getRating)
-                            .filter(r -> r != null && r > 0)
-                            .mapToInt(Integer::intValue)
-                            .average()
-                            .orElse(0.0);
-                }
-        ));
-
-        // Compute product count per stall from warehouse (available items only)
+        // Tìm trên bảng stall_card theo index, mỗi trang đọc size + 1 dòng
+        StallSearchService.SearchResult result = stallSearchService.search(StallSearchService.SearchCriteria.builder()
+                .keyword(query)
+                .category(type)
+                .shop(shopName)
+                .minPrice(minPrice)
+                .maxPrice(maxPrice)
+                .inStock(inStock)
+                .sort(sort)
+                .after(after)
+                .size(PaginationValidator.validateSize(size))
+                .build());
+        List<StallCard> stalls = result.getCards();
+
+        // Product count per stall from stock counters (available items only) - 1 HMGET cho các stall của trang
+        Map<Long, Long> stallStock = stockCounterService.getStallAvailable(
+                stalls.stream().map(StallCard::getStallId).toList());
         Map<Long, Integer> productCounts = stalls.stream().collect(Collectors.toMap(
-                Stall::getId,
-                s -> {
-                    Long stallId = s.getId();
-                    long warehouseCount = warehouseRepository.countAvailableItemsByStallId(stallId);
-                    return (int) warehouseCount;
-                }
+                StallCard::getStallId,
+                s -> stallStock.getOrDefault(s.getStallId(), 0L).intValue()
         ));
         // Add authentication attributes
         Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
@@ -130,14 +103,16 @@ public class ProductBrowseController {
         }
 
         model.addAttribute("stalls", stalls);
-        model.addAttribute("shopMap", shopMap);
         model.addAttribute("productCounts", productCounts);
+        model.addAttribute("nextCursor", result.getNextCursor());
         model.addAttribute("q", query);
         model.addAttribute("type", type);
         model.addAttribute("minPrice", minPrice);
         model.addAttribute("maxPrice", maxPrice);
         model.addAttribute("shop", shopName);
-        model.addAttribute("stallRatings", stallRatings);
+        model.addAttribute("inStock", inStock);
+        model.addAttribute("sort", sort.name());
+        model.addAttribute("size", size);
         return "products/list";
     }
 
@@ -147,12 +122,7 @@ public class ProductBrowseController {
                 .filter(p -> Boolean.FALSE.equals(p.getIsDelete()) && p.getStatus() == Product.Status.AVAILABLE)
                 .orElseThrow(() -> new IllegalArgumentException("Product not found"));
         List<Review> reviews = reviewRepository.findByProductIdAndIsDeleteFalse(id);
-        double avgRating = reviews.stream()
-                .map(Review::getRating)
-                .filter(r -> r != null && r > 0)
-                .mapToInt(Integer::intValue)
-                .average()
-                .orElse(0.0);
+        RatingSummary ratingSummary = ratingSummaryService.getSummary(RatingSummary.Scope.PRODUCT, id);
         
         // Add authentication attributes
         Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
@@ -181,7 +151,8 @@ public class ProductBrowseController {
         
         model.addAttribute("product", product);
         model.addAttribute("reviews", reviews);
-        model.addAttribute("avgRating", avgRating);
+        model.addAttribute("avgRating", ratingSummary.getAverageRating());
+        model.addAttribute("ratingSummary", ratingSummary);
         return "products/detail";
     }
 
@@ -203,12 +174,7 @@ public class ProductBrowseController {
 
         // Get stall reviews and rating
         List<Review> reviews = reviewRepository.findByStallIdAndIsDeleteFalse(id);
-        double avgRating = reviews.stream()
-                .map(Review::getRating)
-                .filter(r -> r != null && r > 0)
-                .mapToInt(Integer::intValue)
-                .average()
-                .orElse(0.0);
+        RatingSummary ratingSummary = ratingSummaryService.getSummary(RatingSummary.Scope.STALL, id);
 
         // Add authentication attributes
         Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
@@ -239,7 +205,8 @@ public class ProductBrowseController {
         model.addAttribute("products", products);
         model.addAttribute("shop", shop);
         model.addAttribute("reviews", reviews);
-        model.addAttribute("avgRating", avgRating);
+        model.addAttribute("avgRating", ratingSummary.getAverageRating());
+        model.addAttribute("ratingSummary", ratingSummary);
         return "stall/detail";
     }
 }
@@ -11,12 +11,15 @@ import com.badat.study1.repository.ShopRepository;
 import com.badat.study1.repository.StallRepository;
 import com.badat.study1.repository.UploadHistoryRepository;
 import com.badat.study1.repository.WarehouseRepository;
+import com.badat.study1.service.ImageStorageService;
+import com.badat.study1.service.InventoryImportService;
+import com.badat.study1.service.StockCounterService;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Controller;
-import org.springframework.http.HttpHeaders;
+import org.springframework.http.CacheControl;
 import org.springframework.http.HttpStatus;
-import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
@@ -25,12 +28,13 @@ import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.servlet.mvc.support.RedirectAttributes;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+import org.springframework.util.unit.DataSize;
 
 import java.math.BigDecimal;
+import java.time.Duration;
 import java.time.Instant;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 
 @Controller
 public class ShopController {
@@ -39,14 +43,25 @@ public class ShopController {
     private final ProductRepository productRepository;
     private final UploadHistoryRepository uploadHistoryRepository;
     private final WarehouseRepository warehouseRepository;
-    
+    private final StockCounterService stockCounterService;
+    private final ImageStorageService imageStorageService;
+    private final InventoryImportService inventoryImportService;
 
-    public ShopController(ShopRepository shopRepository, StallRepository stallRepository, ProductRepository productRepository, UploadHistoryRepository uploadHistoryRepository, WarehouseRepository warehouseRepository) {
+    @Value("${inventory.import.max-file-size:128MB}")
+    private DataSize maxImportFileSize;
+
+    @Value("${image.storage.max-upload-size:2MB}")
+    private DataSize maxImageUploadSize;
+
+    public ShopController(ShopRepository shopRepository, StallRepository stallRepository, ProductRepository productRepository, UploadHistoryRepository uploadHistoryRepository, WarehouseRepository warehouseRepository, StockCounterService stockCounterService, ImageStorageService imageStorageService, InventoryImportService inventoryImportService) {
         this.shopRepository = shopRepository;
         this.stallRepository = stallRepository;
         this.productRepository = productRepository;
         this.uploadHistoryRepository = uploadHistoryRepository;
         this.warehouseRepository = warehouseRepository;
+        this.stockCounterService = stockCounterService;
+        this.imageStorageService = imageStorageService;
+        this.inventoryImportService = inventoryImportService;
     }
 
     @PostMapping("/seller/add-stall")
@@ -129,9 +144,15 @@ public class ShopController {
             
             // Handle image upload
             if (stallImageFile != null && !stallImageFile.isEmpty()) {
+                // Giới hạn multipart được nới cho file import kho nên ảnh tự kiểm tra kích thước
+                if (stallImageFile.getSize() > maxImageUploadSize.toBytes()) {
+                    redirectAttributes.addFlashAttribute("errorMessage", "Hình ảnh quá lớn! Vui lòng chọn ảnh nhỏ hơn " + maxImageUploadSize.toMegabytes() + "MB.");
+                    return "redirect:/seller/add-stall";
+                }
                 try {
-                    byte[] imageData = stallImageFile.getBytes();
-                    stall.setStallImageData(imageData);
+                    ImageStorageService.StoredImage image = imageStorageService.store(stallImageFile.getBytes());
+                    stall.setImageHash(image.getHash());
+                    stall.setImageThumbHash(image.getThumbnailHash());
                 } catch (Exception e) {
                     redirectAttributes.addFlashAttribute("errorMessage", "Có lỗi xảy ra khi xử lý hình ảnh. Vui lòng thử lại!");
                     return "redirect:/seller/add-stall";
@@ -155,23 +176,15 @@ public class ShopController {
         }
     }
 
+    // Chuyển hướng sang URL bất biến của ảnh trong kho (/media/{hash}) - chỉ đọc hash, không tải entity stall
     @GetMapping("/stall-image/{stallId}")
-    public ResponseEntity<byte[]> getStallImage(@PathVariable Long stallId) {
-        try {
-            Stall stall = stallRepository.findById(stallId).orElse(null);
-            if (stall == null || stall.getStallImageData() == null) {
-                return ResponseEntity.notFound().build();
-            }
-
-            HttpHeaders headers = new HttpHeaders();
-            headers.setContentType(MediaType.IMAGE_JPEG);
-            headers.setContentLength(stall.getStallImageData().length);
-            headers.setCacheControl("max-age=3600"); // Cache for 1 hour
-
-            return new ResponseEntity<>(stall.getStallImageData(), headers, HttpStatus.OK);
-        } catch (Exception e) {
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
-        }
+    public ResponseEntity<Void> getStallImage(@PathVariable Long stallId) {
+        return stallRepository.findImageHashById(stallId)
+                .map(hash -> ResponseEntity.status(HttpStatus.FOUND)
+                        .location(ServletUriComponentsBuilder.fromCurrentContextPath().path("/media/{hash}").buildAndExpand(hash).toUri())
+                        .cacheControl(CacheControl.maxAge(Duration.ofMinutes(5)).cachePublic())
+                        .<Void>build())
+                .orElseGet(() -> ResponseEntity.notFound().build());
     }
 
     @PostMapping("/seller/edit-stall/{id}")
@@ -224,7 +237,7 @@ public class ShopController {
                 if ("OPEN".equals(status)) {
                     // Kiểm tra xem gian hàng có sản phẩm nào trong kho không
                     // Check if stall has available warehouse items (not locked, not deleted)
-                    long availableStock = warehouseRepository.countAvailableItemsByStallId(stall.getId());
+                    long availableStock = stockCounterService.getStallAvailable(stall.getId());
                     boolean hasStock = availableStock > 0;
                     
                     if (!hasStock) {
@@ -255,9 +268,15 @@ public class ShopController {
             
             // Xử lý hình ảnh mới nếu có
             if (stallImageFile != null && !stallImageFile.isEmpty()) {
+                // Giới hạn multipart được nới cho file import kho nên ảnh tự kiểm tra kích thước
+                if (stallImageFile.getSize() > maxImageUploadSize.toBytes()) {
+                    redirectAttributes.addFlashAttribute("errorMessage", "Hình ảnh quá lớn! Vui lòng chọn ảnh nhỏ hơn " + maxImageUploadSize.toMegabytes() + "MB.");
+                    return "redirect:/seller/edit-stall/" + id;
+                }
                 try {
-                    byte[] imageData = stallImageFile.getBytes();
-                    stall.setStallImageData(imageData);
+                    ImageStorageService.StoredImage image = imageStorageService.store(stallImageFile.getBytes());
+                    stall.setImageHash(image.getHash());
+                    stall.setImageThumbHash(image.getThumbnailHash());
                 } catch (Exception e) {
                     redirectAttributes.addFlashAttribute("errorMessage", "Có lỗi xảy ra khi xử lý hình ảnh. Vui lòng thử lại!");
                     return "redirect:/seller/edit-stall/" + id;
@@ -455,8 +474,8 @@ public class ShopController {
                 return "redirect:/seller/add-quantity/" + productId;
             }
             
-            if (file.getSize() > 1024 * 1024) { // 1MB limit
-                redirectAttributes.addFlashAttribute("errorMessage", "File quá lớn! Vui lòng chọn file nhỏ hơn 1MB.");
+            if (file.getSize() > maxImportFileSize.toBytes()) {
+                redirectAttributes.addFlashAttribute("errorMessage", "File quá lớn! Vui lòng chọn file nhỏ hơn " + maxImportFileSize.toMegabytes() + "MB.");
                 return "redirect:/seller/add-quantity/" + productId;
             }
             
@@ -487,192 +506,20 @@ public class ShopController {
                 return "redirect:/seller/stall-management";
             }
             
-            // Read file content
-            String content = new String(file.getBytes(), "UTF-8").trim();
-            String[] lines = content.split("\\r?\\n");
-            
-            
-            int successCount = 0;
-            int failureCount = 0;
-            StringBuilder resultDetails = new StringBuilder();
-            
-            // Determine expected item type based on stall category
-            Warehouse.ItemType expectedType = determineItemTypeFromStall(stall.getStallCategory());
-            
-            // Track processed items in this file to avoid duplicates
-            Set<String> processedItemsInFile = new HashSet<>();
-            Set<String> processedItemKeys = new HashSet<>(); // Track unique item keys (e.g., CVV codes)
-            
-            // Process each line
-            for (int i = 0; i < lines.length; i++) {
-                String line = lines[i].trim();
-                if (line.isEmpty()) continue;
-                
-                try {
-                    // Parse line format: TYPE|data1|data2|data3
-                    String[] parts = line.split("\\|");
-                    if (parts.length < 2) {
-                        failureCount++;
-                        resultDetails.append("Dòng ").append(i + 1).append(": Định dạng không hợp lệ (cần ít nhất 2 phần)\n");
-                        continue;
-                    }
-                    
-                    String itemType = parts[0].toUpperCase();
-                    String itemData = line; // Store the full line as item data
-                    
-                    // Check for duplicates within the file (exact line match)
-                    if (processedItemsInFile.contains(itemData)) {
-                        failureCount++;
-                        resultDetails.append("Dòng ").append(i + 1).append(": Item trùng lặp trong file (").append(itemType).append(")\n");
-                        continue;
-                    }
-                    
-                    // Check for duplicate item keys within the file
-                    String itemKey = null;
-                    if (parts.length >= 2) {
-                        // For LICENSE types: treat the second part as the unique key
-                        if ("KEY_LICENSE_BASIC".equals(itemType) || "KEY_LICENSE_PREMIUM".equals(itemType)) {
-                            itemKey = parts[1];
-                        }
-                    }
-                    
-                    if (itemKey != null && processedItemKeys.contains(itemKey)) {
-                        failureCount++;
-                        resultDetails.append("Dòng ").append(i + 1).append(": ").append(itemType).append(" với ").append(itemKey).append(" đã tồn tại trong file\n");
-                        continue;
-                    }
-                    
-                    // Validate item type matches expected type
-                    Warehouse.ItemType type;
-                    try {
-                        type = Warehouse.ItemType.valueOf(itemType);
-                    } catch (IllegalArgumentException e) {
-                        failureCount++;
-                        resultDetails.append("Dòng ").append(i + 1).append(": Loại sản phẩm không hợp lệ (").append(itemType).append(")\n");
-                        continue;
-                    }
-                    
-                    // Check if item type matches expected type for this stall
-                    boolean isValidType = (type == expectedType);
-                    
-                    if (!isValidType) {
-                        failureCount++;
-                        resultDetails.append("Dòng ").append(i + 1).append(": Loại sản phẩm không khớp với gian hàng\n");
-                        continue;
-                    }
-                    
-                    // Kiểm tra xem có warehouse item đã tồn tại với cùng unique key trong toàn bộ hệ thống không
-                    List<Warehouse> existingItems = warehouseRepository.findByItemTypeOrderByCreatedAtDesc(type);
-                    Warehouse existingItem = null;
-                    boolean isItemAlreadyPurchased = false;
-                    
-                    for (Warehouse item : existingItems) {
-                        // Check by unique key instead of full line match
-                        boolean isDuplicate = false;
-                        if (itemKey != null) {
-                            // Extract key from existing item
-                            String[] existingParts = item.getItemData().split("\\|");
-                            String existingKey = null;
-                            
-                            if (("KEY_LICENSE_BASIC".equals(itemType) || "KEY_LICENSE_PREMIUM".equals(itemType)) && existingParts.length >= 2) {
-                                existingKey = existingParts[1];
-                            }
-                            
-                            isDuplicate = (existingKey != null && existingKey.equals(itemKey));
-                        } else {
-                            // Fallback to full line match if no key available
-                            isDuplicate = item.getItemData().equals(itemData);
-                        }
-                        
-                        if (isDuplicate) {
-                            if (item.getIsDelete()) {
-                                // Item đã bị xóa mềm - kiểm tra trạng thái locked
-                                if (item.getLocked()) {
-                                    // Item đã bị xóa mềm và bị khóa - không thể restore
-                                    existingItem = item;
-                                    break;
-                                } else {
-                                    // Item đã bị xóa mềm và chưa bị khóa - có thể restore
-                                    existingItem = item;
-                                    break;
-                                }
-                            } else {
-                                // Item đã tồn tại và chưa được mua - không thể thêm duplicate
-                                existingItem = item;
-                                break;
-                            }
-                        }
-                    }
-                    
-                    // Kiểm tra các điều kiện không được phép lưu
-                    if (isItemAlreadyPurchased) {
-                        failureCount++;
-                        resultDetails.append("Dòng ").append(i + 1).append(": Item đã tồn tại trong hệ thống và đã được mua (").append(itemType).append(")\n");
-                        continue;
-                    }
-                    
-                    if (existingItem != null && !existingItem.getIsDelete()) {
-                        failureCount++;
-                        if (itemKey != null) {
-                            resultDetails.append("Dòng ").append(i + 1).append(": Item đã tồn tại trong hệ thống (").append(itemType).append(" với ").append(itemKey).append(")\n");
-                        } else {
-                            resultDetails.append("Dòng ").append(i + 1).append(": Item đã tồn tại trong hệ thống (").append(itemType).append(")\n");
-                        }
-                        continue;
-                    }
-                    
-                    // Kiểm tra trường hợp item bị xóa mềm và bị khóa
-                    if (existingItem != null && existingItem.getIsDelete() && existingItem.getLocked()) {
-                        failureCount++;
-                        if (itemKey != null) {
-                            resultDetails.append("Dòng ").append(i + 1).append(": Item đã bị khóa và không thể khôi phục (").append(itemType).append(" với ").append(itemKey).append(")\n");
-                        } else {
-                            resultDetails.append("Dòng ").append(i + 1).append(": Item đã bị khóa và không thể khôi phục (").append(itemType).append(")\n");
-                        }
-                        continue;
-                    }
-                    
-                    // Thêm item vào danh sách đã xử lý để tránh duplicate trong file
-                    processedItemsInFile.add(itemData);
-                    if (itemKey != null) {
-                        processedItemKeys.add(itemKey);
-                    }
-                    
-                    if (existingItem != null && existingItem.getIsDelete() && !existingItem.getLocked()) {
-                        // Restore warehouse item đã bị xóa mềm và chưa bị khóa
-                        existingItem.setIsDelete(false);
-                        existingItem.setDeletedBy(null);
-                        warehouseRepository.save(existingItem);
-                        if (itemKey != null) {
-                            resultDetails.append("Dòng ").append(i + 1).append(": Khôi phục item (").append(itemType).append(" với ").append(itemKey).append(")\n");
-                        } else {
-                            resultDetails.append("Dòng ").append(i + 1).append(": Khôi phục item (").append(itemType).append(")\n");
-                        }
-                    } else {
-                        // Tạo warehouse item mới
-                        Warehouse warehouseItem = Warehouse.builder()
-                                .itemType(type)
-                                .itemData(itemData)
-                                .product(product)
-                                .shop(shop)
-                                .stall(stall)
-                                .user(user)
-                                .build();
-                        
-                        warehouseRepository.save(warehouseItem);
-                        if (itemKey != null) {
-                            resultDetails.append("Dòng ").append(i + 1).append(": Thêm mới item (").append(itemType).append(" với ").append(itemKey).append(")\n");
-                        } else {
-                            resultDetails.append("Dòng ").append(i + 1).append(": Thêm mới item (").append(itemType).append(")\n");
-                        }
-                    }
-                    successCount++;
-                    
-                } catch (Exception e) {
-                    failureCount++;
-                    resultDetails.append("Dòng ").append(i + 1).append(": Lỗi xử lý - ").append(e.getMessage()).append("\n");
-                }
+            // Stream file theo batch: tra trùng theo item_key và insert bằng JDBC batch
+            InventoryImportService.ImportResult importResult;
+            try (var inputStream = file.getInputStream()) {
+                importResult = inventoryImportService.importItems(inputStream, InventoryImportService.ImportTarget.builder()
+                        .productId(product.getId())
+                        .stallId(stall.getId())
+                        .shopId(shop.getId())
+                        .userId(user.getId())
+                        .expectedType(determineItemTypeFromStall(stall.getStallCategory()))
+                        .build());
             }
+            int successCount = importResult.getSuccessCount();
+            int failureCount = importResult.getFailureCount();
+            String resultDetails = importResult.getResultDetails();
             
             // Update product quantity from warehouse count
             long warehouseCount = productRepository.countWarehouseItemsByProductId(productId);
@@ -716,12 +563,12 @@ public class ShopController {
                 detailedResult.append("Tên mặt hàng: ").append(product.getName()).append("\n");
                 detailedResult.append("Tên file: ").append(file.getOriginalFilename()).append("\n");
                 detailedResult.append("Ngày upload: ").append(java.time.LocalDateTime.now().toString()).append("\n");
-                detailedResult.append("Tổng số dòng: ").append(lines.length).append("\n");
+                detailedResult.append("Tổng số dòng: ").append(importResult.getTotalLines()).append("\n");
                 detailedResult.append("Thành công: ").append(successCount).append("\n");
                 detailedResult.append("Thất bại: ").append(failureCount).append("\n");
                 detailedResult.append("Trạng thái: ").append(successCount > 0 ? "THÀNH CÔNG" : "THẤT BẠI").append("\n");
-                if (resultDetails.length() > 0) {
-                    detailedResult.append("\nChi tiết:\n").append(resultDetails.toString());
+                if (!resultDetails.isEmpty()) {
+                    detailedResult.append("\nChi tiết:\n").append(resultDetails);
                 }
                 
                 UploadHistory uploadHistory = UploadHistory.builder()
@@ -730,7 +577,7 @@ public class ShopController {
                         .isSuccess(successCount > 0)
                         .result(successCount > 0 ? "SUCCESS" : "FAILED")
                         .status(successCount > 0 ? "COMPLETED" : "FAILED")
-                        .totalItems(lines.length)
+                        .totalItems(importResult.getTotalLines())
                         .successCount(successCount)
                         .failureCount(failureCount)
                         .resultDetails(detailedResult.toString())
@@ -854,11 +701,15 @@ public class ShopController {
             
             // Soft delete tất cả warehouse items liên quan đến product này
             List<Warehouse> warehouseItems = warehouseRepository.findByProductIdOrderByCreatedAtDesc(productId);
+            List<Warehouse> removedFromStock = warehouseItems.stream()
+                    .filter(item -> !Boolean.TRUE.equals(item.getIsDelete()) && !Boolean.TRUE.equals(item.getLocked()))
+                    .toList();
             for (Warehouse warehouseItem : warehouseItems) {
                 warehouseItem.setIsDelete(true);
                 warehouseItem.setDeletedBy(user.getUsername());
                 warehouseRepository.save(warehouseItem);
             }
+            stockCounterService.onItemsRemoved(removedFromStock);
             
             redirectAttributes.addFlashAttribute("successMessage", "Sản phẩm đã được xóa thành công!");
             
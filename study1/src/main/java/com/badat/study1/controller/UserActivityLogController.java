@@ -3,6 +3,7 @@ package com.badat.study1.controller;
 import com.badat.study1.dto.response.UserActivityLogResponse;
 import com.badat.study1.model.User;
 import com.badat.study1.model.UserActivityLog;
+import com.badat.study1.service.LogExportService;
 import com.badat.study1.service.UserActivityLogService;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -10,14 +11,18 @@ import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.domain.Sort;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.time.LocalDate;
+import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.HashMap;
 import java.util.List;
@@ -30,6 +35,7 @@ import java.util.stream.Collectors;
 public class UserActivityLogController {
     
     private final UserActivityLogService userActivityLogService;
+    private final LogExportService logExportService;
     
     @GetMapping("/activity-history")
     public String getActivityHistory(
@@ -139,4 +145,39 @@ public class UserActivityLogController {
             return "customer/activity-history";
         }
     }
+    
+    @GetMapping("/api/admin/activity-logs/export")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<StreamingResponseBody> exportActivityLogs(
+            @RequestParam(required = false) Long userId,
+            @RequestParam(required = false) String action,
+            @RequestParam(required = false) String category,
+            @RequestParam(required = false) Boolean success,
+            @RequestParam(required = false) String fromDate,
+            @RequestParam(required = false) String toDate,
+            @RequestParam(defaultValue = "csv") String format,
+            @RequestParam(defaultValue = "false") boolean gzip) {
+        
+        UserActivityLog.Category categoryEnum = null;
+        LocalDateTime from = null;
+        LocalDateTime to = null;
+        try {
+            if (category != null && !category.trim().isEmpty()) {
+                categoryEnum = UserActivityLog.Category.valueOf(category.toUpperCase());
+            }
+            if (fromDate != null && !fromDate.isEmpty()) {
+                from = LocalDate.parse(fromDate, DateTimeFormatter.ISO_LOCAL_DATE).atStartOfDay();
+            }
+            if (toDate != null && !toDate.isEmpty()) {
+                to = LocalDate.parse(toDate, DateTimeFormatter.ISO_LOCAL_DATE).atTime(23, 59, 59);
+            }
+        } catch (Exception e) {
+            log.warn("Invalid activity log export filter: {}", e.getMessage());
+            return ResponseEntity.badRequest().build();
+        }
+        
+        return logExportService.export(
+                logExportService.activityLogs(userId, action, categoryEnum, success, from, to),
+                LogExportService.Format.of(format), gzip);
+    }
 }
\ No newline at end of file
@@ -2,6 +2,7 @@ package com.badat.study1.controller;
 
 import com.badat.study1.model.AuditLog;
 import com.badat.study1.model.Stall;
+import com.badat.study1.model.StallCard;
 import com.badat.study1.model.User;
 import com.badat.study1.model.Wallet;
 import com.badat.study1.model.WalletHistory;
@@ -24,7 +25,14 @@ import com.badat.study1.repository.ApiCallLogRepository;
 import com.badat.study1.repository.UserActivityLogRepository;
 import com.badat.study1.service.WalletHistoryService;
 import com.badat.study1.service.AuditLogService;
+import com.badat.study1.service.LogExportService;
+import com.badat.study1.service.ApiLatencyRollupService;
 import com.badat.study1.service.UserService;
+import com.badat.study1.service.OrderService;
+import com.badat.study1.service.StallCardService;
+import com.badat.study1.service.RatingSummaryService;
+import com.badat.study1.service.ReviewService;
+import com.badat.study1.model.RatingSummary;
 import java.time.LocalDateTime;
 import com.badat.study1.dto.response.AuditLogResponse;
 import com.badat.study1.util.PaginationValidator;
@@ -39,6 +47,7 @@ import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.domain.Sort;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import org.springframework.web.servlet.mvc.support.RedirectAttributes;
 import org.springframework.http.ResponseEntity;
 import org.springframework.http.HttpHeaders;
@@ -54,7 +63,6 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.stream.Collectors;
 import java.util.Map;
-import java.util.Base64;
 import java.time.LocalDate;
 import java.time.ZoneId;
 import java.text.NumberFormat;
@@ -79,7 +87,13 @@ public class ViewController {
 
     private final WalletHistoryService walletHistoryService;
     private final AuditLogService auditLogService;
+    private final LogExportService logExportService;
+    private final ApiLatencyRollupService apiLatencyRollupService;
     private final UserService userService;
+    private final OrderService orderService;
+    private final StallCardService stallCardService;
+    private final RatingSummaryService ratingSummaryService;
+    private final ReviewService reviewService;
 
     // Inject common attributes (auth info and wallet balance) for all views
     @ModelAttribute
@@ -162,102 +176,22 @@ public class ViewController {
             model.addAttribute("userRole", "USER");
         }
 
-        // Load top 8 stalls with highest product counts for homepage preview
+        // Top 8 stalls with highest product counts - đọc sẵn từ bảng stall_card
         try {
-            var activeStalls = stallRepository.findByStatusAndIsDeleteFalse("OPEN");
             List<Map<String, Object>> stallCards = new ArrayList<>();
-            
-            // Calculate product counts for all stalls
-            List<Map<String, Object>> stallsWithCounts = new ArrayList<>();
-            for (Stall stall : activeStalls) {
+            for (StallCard card : stallCardService.getHomepageCards()) {
                 Map<String, Object> vm = new HashMap<>();
-                vm.put("stallId", stall.getId());
-                vm.put("stallName", stall.getStallName());
-                vm.put("stallCategory", stall.getStallCategory());
-
-                // Compute product count by summing quantities of products in the stall
-                var products = productRepository.findByStallIdAndIsDeleteFalse(stall.getId());
-                int totalStock = products.stream()
-                        .mapToInt(p -> p.getQuantity() != null ? p.getQuantity() : 0)
-                        .sum();
-                vm.put("productCount", totalStock);
-                
-                // Calculate price range from available products
-                if (!products.isEmpty()) {
-                    var availableProducts = products.stream()
-                            .filter(product -> product.getQuantity() != null && product.getQuantity() > 0)
-                            .collect(Collectors.toList());
-                    
-                    if (!availableProducts.isEmpty()) {
-                        BigDecimal minPrice = availableProducts.stream()
-                                .map(Product::getPrice)
-                                .min(BigDecimal::compareTo)
-                                .orElse(BigDecimal.ZERO);
-                        
-                        BigDecimal maxPrice = availableProducts.stream()
-                                .map(Product::getPrice)
-                                .max(BigDecimal::compareTo)
-                                .orElse(BigDecimal.ZERO);
-                        
-                        NumberFormat viNumber = NumberFormat.getNumberInstance(Locale.US);
-                        viNumber.setGroupingUsed(true);
-                        String minStr = viNumber.format(minPrice.setScale(0, RoundingMode.HALF_UP));
-                        String maxStr = viNumber.format(maxPrice.setScale(0, RoundingMode.HALF_UP));
-                        if (minPrice.equals(maxPrice)) {
-                            vm.put("priceRange", minStr + " VND");
-                        } else {
-                            vm.put("priceRange", minStr + " VND - " + maxStr + " VND");
-                        }
-                    } else {
-                        vm.put("priceRange", "Hết hàng");
-                    }
-                } else {
-                    vm.put("priceRange", "Chưa có sản phẩm");
-                }
-
-                // Resolve shop name
-                shopRepository.findById(stall.getShopId())
-                        .ifPresent(shop -> vm.put("shopName", shop.getShopName()));
-                if (!vm.containsKey("shopName")) {
-                    vm.put("shopName", "Unknown Shop");
-                }
-
-                // Calculate average rating for the stall
-                try {
-                    var reviews = reviewRepository.findByStallIdAndIsDeleteFalse(stall.getId());
-                    if (!reviews.isEmpty()) {
-                        double avgRating = reviews.stream()
-                                .mapToInt(Review::getRating)
-                                .average()
-                                .orElse(0.0);
-                        vm.put("averageRating", Math.round(avgRating * 10.0) / 10.0); // Round to 1 decimal place
-                        vm.put("reviewCount", reviews.size());
-                    } else {
-                        vm.put("averageRating", 0.0);
-                        vm.put("reviewCount", 0);
-                    }
-                } catch (Exception e) {
-                    log.warn("Error calculating average rating for stall {}: {}", stall.getId(), e.getMessage());
-                    vm.put("averageRating", 0.0);
-                    vm.put("reviewCount", 0);
-                }
-
-                // Always set imageBase64 key, even if null
-                if (stall.getStallImageData() != null && stall.getStallImageData().length > 0) {
-                    String base64 = Base64.getEncoder().encodeToString(stall.getStallImageData());
-                    vm.put("imageBase64", base64);
-                } else {
-                    vm.put("imageBase64", null);
-                }
-
-                stallsWithCounts.add(vm);
+                vm.put("stallId", card.getStallId());
+                vm.put("stallName", card.getStallName());
+                vm.put("stallCategory", card.getStallCategory());
+                vm.put("productCount", card.getProductCount());
+                vm.put("priceRange", formatPriceRange(card));
+                vm.put("shopName", card.getShopName());
+                vm.put("averageRating", card.getAverageRating());
+                vm.put("reviewCount", card.getReviewCount());
+                vm.put("imageUrl", card.getImageUrl());
+                stallCards.add(vm);
             }
-            
-            // Sort by product count descending and take top 8
-            stallCards = stallsWithCounts.stream()
-                    .sorted((a, b) -> Integer.compare((Integer) b.get("productCount"), (Integer) a.get("productCount")))
-                    .limit(8)
-                    .collect(Collectors.toList());
                     
             model.addAttribute("stalls", stallCards);
         } catch (Exception e) {
@@ -270,6 +204,23 @@ public class ViewController {
         return "home";
     }
 
+    private String formatPriceRange(StallCard card) {
+        if (card.getProductTotal() == 0) {
+            return "Chưa có sản phẩm";
+        }
+        if (card.getMinPrice() == null) {
+            return "Hết hàng";
+        }
+        NumberFormat viNumber = NumberFormat.getNumberInstance(Locale.US);
+        viNumber.setGroupingUsed(true);
+        String minStr = viNumber.format(card.getMinPrice().setScale(0, RoundingMode.HALF_UP));
+        String maxStr = viNumber.format(card.getMaxPrice().setScale(0, RoundingMode.HALF_UP));
+        if (card.getMinPrice().compareTo(card.getMaxPrice()) == 0) {
+            return minStr + " VND";
+        }
+        return minStr + " VND - " + maxStr + " VND";
+    }
+
     @GetMapping("/index")
     public String indexPage() {
         return "redirect:/";
@@ -660,6 +611,8 @@ public class ViewController {
                     var allOrderItems = orderItemRepository.findAllOrderItemsByBuyerId(user.getId());
                     System.out.println("Total order items for PREMIUM user: " + allOrderItems.size());
                     model.addAttribute("orderItems", allOrderItems);
+                    // Key đã giao theo từng dòng order (1 dòng có thể mang nhiều key)
+                    model.addAttribute("orderItemKeys", orderService.getDeliveredKeys(allOrderItems));
                     model.addAttribute("isPremium", true);
                 } catch (Exception e) {
                     System.out.println("Error getting order items for premium user: " + e.getMessage());
@@ -1166,33 +1119,20 @@ public class ViewController {
             return "redirect:/seller/stall-management";
         }
 
-        // Get seller's stalls with review statistics
+        // Get seller's stalls with review statistics (1 query on rating_summary for all stalls)
         var stalls = stallRepository.findByShopIdAndIsDeleteFalse(userShop.get().getId());
+        Map<Long, RatingSummary> ratingSummaries = ratingSummaryService.getSummaries(RatingSummary.Scope.STALL,
+                stalls.stream().map(com.badat.study1.model.Stall::getId).toList());
         var stallStats = new java.util.ArrayList<java.util.Map<String, Object>>();
         
         for (var stall : stalls) {
-            var stallReviews = reviewRepository.findByStallIdAndIsDeleteFalse(stall.getId());
-            
-            double averageRating = 0.0;
-            int reviewCount = stallReviews.size();
-            
-            if (reviewCount > 0) {
-                averageRating = stallReviews.stream()
-                    .mapToInt(com.badat.study1.model.Review::getRating)
-                    .average()
-                    .orElse(0.0);
-            }
-            
-            // Calculate unread count for this stall
-            int unreadCount = (int) stallReviews.stream()
-                .filter(review -> !review.getIsRead())
-                .count();
+            RatingSummary summary = ratingSummaries.get(stall.getId());
             
             var stallStat = new java.util.HashMap<String, Object>();
             stallStat.put("stall", stall);
-            stallStat.put("averageRating", Math.round(averageRating * 10.0) / 10.0); // Round to 1 decimal
-            stallStat.put("reviewCount", reviewCount);
-            stallStat.put("unreadCount", unreadCount);
+            stallStat.put("averageRating", summary.getAverageRating());
+            stallStat.put("reviewCount", summary.getReviewCount());
+            stallStat.put("unreadCount", summary.getUnreadCount());
             stallStats.add(stallStat);
         }
         
@@ -1319,15 +1259,9 @@ public ResponseEntity<?> markReviewsAsRead(@RequestParam Long stallId) {
         }
 
         // Mark all reviews for this stall as read
-        var reviews = reviewRepository.findByStallIdAndIsDeleteFalse(stallId);
-        for (var review : reviews) {
-            if (!review.getIsRead()) {
-                review.setIsRead(true);
-                reviewRepository.save(review);
-            }
-        }
+        int marked = reviewService.markStallReviewsRead(stallId, stall.get().getShopId());
 
-        return ResponseEntity.ok(Map.of("message", "Reviews marked as read", "count", reviews.size()));
+        return ResponseEntity.ok(Map.of("message", "Reviews marked as read", "count", marked));
 
     } catch (Exception e) {
         log.error("Error marking reviews as read for stall {}: {}", stallId, e.getMessage());
@@ -1377,9 +1311,7 @@ public ResponseEntity<?> markReviewsAsRead(@RequestParam Long stallId) {
             }
 
             // Update seller reply
-            review.setReplyContent(sellerReply);
-            review.setReplyAt(java.time.LocalDateTime.now());
-            reviewRepository.save(review);
+            reviewService.replyToReview(review, sellerReply);
 
             redirectAttributes.addFlashAttribute("successMessage", "Đã trả lời đánh giá thành công!");
         } catch (Exception e) {
@@ -1677,56 +1609,46 @@ public ResponseEntity<?> markReviewsAsRead(@RequestParam Long stallId) {
     }
 
     @GetMapping("/admin/audit-logs/export")
-    public ResponseEntity<?> exportAuditLogs(@RequestParam(required = false) String action,
-                                            @RequestParam(required = false) String category,
-                                            @RequestParam(required = false) Boolean success,
-                                            @RequestParam(required = false) String startDate,
-                                            @RequestParam(required = false) String endDate) {
+    public ResponseEntity<StreamingResponseBody> exportAuditLogs(@RequestParam(required = false) String action,
+                                                                 @RequestParam(required = false) String category,
+                                                                 @RequestParam(required = false) Boolean success,
+                                                                 @RequestParam(required = false) String startDate,
+                                                                 @RequestParam(required = false) String endDate,
+                                                                 @RequestParam(defaultValue = "csv") String format,
+                                                                 @RequestParam(defaultValue = "false") boolean gzip) {
         Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
         if (authentication == null || !authentication.isAuthenticated() || 
             "anonymousUser".equals(authentication.getName())) {
-            return ResponseEntity.status(401).body(Map.of("error", "Unauthorized"));
+            return ResponseEntity.status(401).build();
         }
 
         User currentUser = (User) authentication.getPrincipal();
         if (!currentUser.getRole().equals(User.Role.ADMIN)) {
-            return ResponseEntity.status(403).body(Map.of("error", "Forbidden"));
+            return ResponseEntity.status(403).build();
         }
 
+        // Cùng filter với trang danh sách, dữ liệu được stream thẳng ra response
+        AuditLog.Category categoryEnum = null;
+        LocalDateTime startDateTime = null;
+        LocalDateTime endDateTime = null;
         try {
-            // Get all audit logs (no pagination for export)
-            List<AuditLog> auditLogs = auditLogRepository.findAll(Sort.by(Sort.Direction.DESC, "createdAt"));
-            
-            // Create CSV content
-            StringBuilder csv = new StringBuilder();
-            csv.append("ID,Thời gian,Hành động,Danh mục,Trạng thái,User ID,IP Address,Chi tiết\n");
-            
-            for (AuditLog log : auditLogs) {
-                csv.append(String.format("%d,%s,%s,%s,%s,%s,%s,\"%s\"\n",
-                    log.getId(),
-                    log.getCreatedAt().format(java.time.format.DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm:ss")),
-                    log.getAction(),
-                    log.getCategory().name(),
-                    log.getSuccess() ? "Thành công" : "Thất bại",
-                    log.getUserId() != null ? log.getUserId().toString() : "",
-                    log.getIpAddress(),
-                    log.getDetails().replace("\"", "\"\"") // Escape quotes
-                ));
+            if (category != null && !category.trim().isEmpty()) {
+                categoryEnum = AuditLog.Category.valueOf(category.toUpperCase());
+            }
+            if (startDate != null && !startDate.trim().isEmpty()) {
+                startDateTime = LocalDateTime.parse(startDate);
+            }
+            if (endDate != null && !endDate.trim().isEmpty()) {
+                endDateTime = LocalDateTime.parse(endDate);
             }
-            
-            HttpHeaders headers = new HttpHeaders();
-            headers.setContentType(MediaType.APPLICATION_OCTET_STREAM);
-            headers.setContentDispositionFormData("attachment", "audit-logs-" + 
-                java.time.LocalDateTime.now().format(java.time.format.DateTimeFormatter.ofPattern("yyyy-MM-dd-HH-mm-ss")) + ".csv");
-            
-            return ResponseEntity.ok()
-                .headers(headers)
-                .body(csv.toString().getBytes("UTF-8"));
-                
         } catch (Exception e) {
-            log.error("Error exporting audit logs: {}", e.getMessage(), e);
-            return ResponseEntity.status(500).body(Map.of("error", "Internal server error"));
+            log.warn("Invalid audit log export filter: {}", e.getMessage());
+            return ResponseEntity.badRequest().build();
         }
+
+        return logExportService.export(
+                logExportService.auditLogs(action, categoryEnum, success, startDateTime, endDateTime),
+                LogExportService.Format.of(format), gzip);
     }
     
     @GetMapping("/logout")
@@ -1845,11 +1767,9 @@ public ResponseEntity<?> markReviewsAsRead(@RequestParam Long stallId) {
                 return "redirect:" + redirectUrl;
             }
             
-            // Get statistics
-            LocalDateTime weekAgo = LocalDateTime.now().minusDays(7);
-            Double avgResponseTime = apiCallLogRepository.findAverageResponseTime(weekAgo);
-            Long errorCount = apiCallLogRepository.countErrorsSince(weekAgo);
-            Long totalCalls = apiCallLogRepository.countTotalCallsSince(weekAgo);
+            // Get statistics (từ rollup, không aggregate trên api_call_log)
+            ApiLatencyRollupService.ApiStatistics statistics =
+                    apiLatencyRollupService.getStatistics(LocalDateTime.now().minusDays(7), 10);
             
             // Get distinct values for filter dropdowns
             List<String> endpoints = apiCallLogRepository.findDistinctEndpoints();
@@ -1877,10 +1797,10 @@ public ResponseEntity<?> markReviewsAsRead(@RequestParam Long stallId) {
             model.addAttribute("statusCodes", statusCodes);
             
             // Statistics
-            model.addAttribute("avgResponseTime", avgResponseTime != null ? Math.round(avgResponseTime) : 0);
-            model.addAttribute("errorCount", errorCount);
-            model.addAttribute("totalCalls", totalCalls);
-            model.addAttribute("errorRate", totalCalls > 0 ? Math.round((double) errorCount / totalCalls * 100) : 0);
+            model.addAttribute("avgResponseTime", statistics.getAvgResponseTime());
+            model.addAttribute("errorCount", statistics.getErrorCount());
+            model.addAttribute("totalCalls", statistics.getTotalCalls());
+            model.addAttribute("errorRate", statistics.getErrorRate());
             
             return "admin/api-logs";
             
@@ -15,4 +15,5 @@ public class PaymentResponse {
     private String message;
     private boolean success;
     private Long paymentId;
+    private String status;
 }
@@ -1,11 +1,13 @@
 package com.badat.study1.event;
 
-import com.badat.study1.service.PaymentTriggerService;
+import com.badat.study1.service.PaymentDispatchService;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.context.event.EventListener;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionPhase;
+import org.springframework.transaction.event.TransactionalEventListener;
 
 /**
  * Event listener để lắng nghe payment events và trigger xử lý ngay lập tức
@@ -15,19 +17,19 @@ import org.springframework.stereotype.Component;
 @Slf4j
 public class PaymentEventListener {
     
-    private final PaymentTriggerService paymentTriggerService;
+    private final PaymentDispatchService paymentDispatchService;
     
     /**
-     * Lắng nghe payment created event và trigger xử lý ngay lập tức
+     * Lắng nghe payment created event sau khi transaction enqueue commit và đẩy vào dispatch buffer
+     * Chỉ là 1 lần append vào buffer nên chạy luôn trên thread commit, không cần @Async
      */
-    @EventListener
-    @Async("paymentTaskExecutor")
+    @TransactionalEventListener(phase = TransactionPhase.AFTER_COMMIT, fallbackExecution = true,
+            condition = "#event.eventType == 'PAYMENT_CREATED'")
     public void handlePaymentCreated(PaymentEvent event) {
         log.info("Received payment created event for payment: {}", event.getPaymentId());
         
         try {
-            // Trigger xử lý payment ngay lập tức
-            paymentTriggerService.triggerPaymentProcessing(event.getPaymentId());
+            paymentDispatchService.dispatch(event.getPaymentId(), event.getUserId());
             
         } catch (Exception e) {
             log.error("Error handling payment created event for payment {}: {}", 
@@ -38,7 +40,7 @@ public class PaymentEventListener {
     /**
      * Lắng nghe payment failed event
      */
-    @EventListener
+    @EventListener(condition = "#event.eventType == 'PAYMENT_FAILED'")
     @Async("paymentTaskExecutor")
     public void handlePaymentFailed(PaymentEvent event) {
         log.info("Received payment failed event for payment: {}", event.getPaymentId());
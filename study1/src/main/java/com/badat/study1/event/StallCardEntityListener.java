@@ -0,0 +1,47 @@
+package com.badat.study1.event;
+
+import com.badat.study1.model.Product;
+import com.badat.study1.model.Review;
+import com.badat.study1.model.Shop;
+import com.badat.study1.model.Stall;
+import com.badat.study1.service.StallCardService;
+import jakarta.persistence.PostPersist;
+import jakarta.persistence.PostRemove;
+import jakarta.persistence.PostUpdate;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * JPA entity listener của Product/Review/Stall/Shop: đánh dấu thẻ gian hàng liên quan cần tính lại
+ * StallCardService được lấy lúc gọi (ObjectProvider) vì listener được tạo cùng EntityManagerFactory
+ */
+@Component
+@RequiredArgsConstructor
+public class StallCardEntityListener {
+
+    private final ObjectProvider<StallCardService> stallCardService;
+
+    @PostPersist
+    @PostUpdate
+    @PostRemove
+    public void onChange(Object entity) {
+        if (entity instanceof Product product) {
+            markStall(product.getStallId());
+        } else if (entity instanceof Review review) {
+            markStall(review.getStallId());
+        } else if (entity instanceof Stall stall) {
+            markStall(stall.getId());
+        } else if (entity instanceof Shop shop) {
+            stallCardService.getObject().markShopDirty(shop.getId());
+        }
+    }
+
+    private void markStall(Long stallId) {
+        if (stallId != null) {
+            stallCardService.getObject().markStallsDirty(List.of(stallId));
+        }
+    }
+}
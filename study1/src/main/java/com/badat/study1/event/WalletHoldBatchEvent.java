@@ -0,0 +1,27 @@
+package com.badat.study1.event;
+
+import lombok.Getter;
+import org.springframework.context.ApplicationEvent;
+
+import java.util.List;
+
+/**
+ * Event được publish khi một batch wallet hold đến hạn
+ * Settlement engine sẽ lắng nghe event này để settle cả batch trong 1 transaction
+ */
+@Getter
+public class WalletHoldBatchEvent extends ApplicationEvent {
+    
+    private final List<Long> holdIds;
+    private final String eventType;
+    
+    public WalletHoldBatchEvent(Object source, List<Long> holdIds, String eventType) {
+        super(source);
+        this.holdIds = holdIds;
+        this.eventType = eventType;
+    }
+    
+    public static WalletHoldBatchEvent holdsExpired(Object source, List<Long> holdIds) {
+        return new WalletHoldBatchEvent(source, holdIds, "HOLDS_EXPIRED");
+    }
+}
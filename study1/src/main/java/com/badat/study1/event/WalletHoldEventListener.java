@@ -29,6 +29,23 @@ public class WalletHoldEventListener {
         // Ví dụ: gửi notification cho user
     }
     
+    /**
+     * Lắng nghe batch hold đến hạn và settle cả batch
+     */
+    @EventListener
+    @Async("walletHoldTaskExecutor")
+    public void handleHoldsExpired(WalletHoldBatchEvent event) {
+        log.info("Received expired event for {} holds", event.getHoldIds().size());
+        
+        try {
+            paymentTriggerService.triggerExpiredHoldSettlement(event.getHoldIds());
+            
+        } catch (Exception e) {
+            log.error("Error handling expired event for holds {}: {}", 
+                    event.getHoldIds(), e.getMessage());
+        }
+    }
+    
     /**
      * Lắng nghe hold expired event và trigger xử lý ngay lập tức
      */
@@ -0,0 +1,37 @@
+package com.badat.study1.event;
+
+import lombok.Getter;
+import org.springframework.context.ApplicationEvent;
+
+import java.util.Map;
+
+/**
+ * Event được publish khi các warehouse item bị lock được trả lại kho
+ * (ví dụ reservation hết hạn) - chứa số item được trả lại theo từng product/stall/shop
+ * StockCounterService cộng lại stock counter sau khi transaction release commit
+ */
+@Getter
+public class WarehouseReleaseEvent extends ApplicationEvent {
+    
+    private final Map<Long, Long> releasedByProduct;
+    private final Map<Long, Long> releasedByStall;
+    private final Map<Long, Long> releasedByShop;
+    private final int totalReleased;
+    private final String reason;
+    
+    public WarehouseReleaseEvent(Object source, Map<Long, Long> releasedByProduct, Map<Long, Long> releasedByStall,
+                                 Map<Long, Long> releasedByShop, int totalReleased, String reason) {
+        super(source);
+        this.releasedByProduct = releasedByProduct;
+        this.releasedByStall = releasedByStall;
+        this.releasedByShop = releasedByShop;
+        this.totalReleased = totalReleased;
+        this.reason = reason;
+    }
+    
+    public static WarehouseReleaseEvent reservationsExpired(Object source, Map<Long, Long> releasedByProduct,
+                                                            Map<Long, Long> releasedByStall, Map<Long, Long> releasedByShop,
+                                                            int totalReleased) {
+        return new WarehouseReleaseEvent(source, releasedByProduct, releasedByStall, releasedByShop, totalReleased, "RESERVATION_EXPIRED");
+    }
+}
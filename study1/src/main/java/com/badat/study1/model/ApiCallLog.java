@@ -30,7 +30,7 @@ public class ApiCallLog extends BaseEntity {
     Long userId;
     
     @ManyToOne(fetch = FetchType.LAZY)
-    @JoinColumn(name = "user_id", insertable = false, updatable = false)
+    @JoinColumn(name = "user_id", insertable = false, updatable = false, foreignKey = @ForeignKey(ConstraintMode.NO_CONSTRAINT))
     User user;
     
     @Column(name = "endpoint", nullable = false, length = 255)
@@ -0,0 +1,58 @@
+package com.badat.study1.model;
+
+import jakarta.persistence.*;
+import lombok.*;
+import lombok.experimental.FieldDefaults;
+
+import java.time.LocalDateTime;
+
+/**
+ * Tổng hợp API call theo endpoint (route pattern) cho 1 khoảng thời gian: 1 phút (bucket_seconds = 60),
+ * sau vài giờ được gộp thành 1 giờ (3600). Mỗi instance ghi dòng riêng, đọc thì cộng dồn các dòng
+ * Ghi/đọc bằng native query (ApiLatencyRollupService), entity chỉ để tạo bảng
+ */
+@Entity
+@Table(name = "api_latency_rollup", indexes = {
+    @Index(name = "idx_api_rollup_bucket", columnList = "bucket_seconds, bucket_start"),
+    @Index(name = "idx_api_rollup_start", columnList = "bucket_start")
+})
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class ApiLatencyRollup {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    Long id;
+
+    @Column(name = "bucket_start", nullable = false)
+    LocalDateTime bucketStart;
+
+    @Column(name = "bucket_seconds", nullable = false)
+    Integer bucketSeconds;
+
+    @Column(name = "method", nullable = false, length = 10)
+    String method;
+
+    @Column(name = "endpoint", nullable = false, length = 255)
+    String endpoint;
+
+    @Column(name = "call_count", nullable = false)
+    Long callCount;
+
+    @Column(name = "error_count", nullable = false)
+    Long errorCount;
+
+    @Column(name = "duration_sum_ms", nullable = false)
+    Long durationSumMs;
+
+    @Column(name = "duration_max_ms", nullable = false)
+    Long durationMaxMs;
+
+    // LatencyHistogram.encode()
+    @Column(name = "histogram", columnDefinition = "TEXT")
+    String histogram;
+}
@@ -0,0 +1,43 @@
+package com.badat.study1.model;
+
+import jakarta.persistence.*;
+import lombok.*;
+import lombok.experimental.FieldDefaults;
+
+import java.time.LocalDateTime;
+
+/**
+ * Key (warehouse item) đã giao cho một dòng OrderItem
+ * Một OrderItem mang quantity N và có N dòng ở bảng này, nhờ vậy order mua hàng nghìn key
+ * chỉ cần vài dòng order_item
+ */
+@Entity
+@Table(name = "order_item_key", indexes = {
+    @Index(name = "idx_order_item_key_order_item", columnList = "order_item_id"),
+    @Index(name = "idx_order_item_key_warehouse", columnList = "warehouse_id")
+})
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class OrderItemKey {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    Long id;
+
+    @Column(name = "order_item_id", nullable = false)
+    Long orderItemId;
+
+    @Column(name = "warehouse_id", nullable = false)
+    Long warehouseId;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "warehouse_id", insertable = false, updatable = false)
+    Warehouse warehouse;
+
+    @Column(name = "created_at", nullable = false)
+    LocalDateTime createdAt;
+}
@@ -7,7 +7,10 @@ import java.math.BigDecimal;
 import java.time.Instant;
 
 @Entity
-@Table(name = "payment_queue")
+@Table(name = "payment_queue", indexes = {
+    @Index(name = "idx_payment_queue_status_created", columnList = "status, createdAt"),
+    @Index(name = "idx_payment_queue_status_lease", columnList = "status, lease_expires_at")
+})
 @Getter
 @Setter
 @NoArgsConstructor
@@ -44,6 +47,13 @@ public class PaymentQueue extends BaseEntity {
     @Column(name = "error_message", columnDefinition = "TEXT")
     String errorMessage;
 
+    // Worker đang giữ payment (claim) và thời điểm lease hết hạn - hết hạn thì worker khác được claim lại
+    @Column(name = "lease_owner", length = 100)
+    String leaseOwner;
+
+    @Column(name = "lease_expires_at")
+    Instant leaseExpiresAt;
+
     public enum Status {
         PENDING, PROCESSING, COMPLETED, FAILED
     }
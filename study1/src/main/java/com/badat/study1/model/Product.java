@@ -1,5 +1,6 @@
 package com.badat.study1.model;
 
+import com.badat.study1.event.StallCardEntityListener;
 import jakarta.persistence.*;
 import lombok.*;
 import lombok.experimental.FieldDefaults;
@@ -8,6 +9,7 @@ import java.math.BigDecimal;
 
 @Entity
 @Table(name = "product")
+@EntityListeners(StallCardEntityListener.class)
 @Getter
 @Setter
 @FieldDefaults(level = AccessLevel.PRIVATE)
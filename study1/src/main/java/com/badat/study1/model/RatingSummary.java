@@ -0,0 +1,103 @@
+package com.badat.study1.model;
+
+import jakarta.persistence.*;
+import lombok.*;
+import lombok.experimental.FieldDefaults;
+
+import java.time.Instant;
+
+/**
+ * Tổng hợp rating đang chạy của 1 stall/product/shop: số review, tổng điểm, số review theo từng sao
+ * và số review seller chưa đọc. Được cộng/trừ trong cùng transaction với thao tác review
+ * (RatingSummaryService) nên trang hiển thị đọc 1 dòng thay vì tải toàn bộ review
+ */
+@Entity
+@Table(name = "rating_summary", uniqueConstraints = {
+    @UniqueConstraint(name = "uk_rating_summary_scope_target", columnNames = {"scope", "target_id"})
+})
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class RatingSummary {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    Long id;
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "scope", nullable = false, length = 20)
+    Scope scope;
+
+    @Column(name = "target_id", nullable = false)
+    Long targetId;
+
+    @Column(name = "review_count", nullable = false)
+    @Builder.Default
+    Integer reviewCount = 0;
+
+    @Column(name = "rating_sum", nullable = false)
+    @Builder.Default
+    Long ratingSum = 0L;
+
+    @Column(name = "star_1", nullable = false)
+    @Builder.Default
+    Integer star1 = 0;
+
+    @Column(name = "star_2", nullable = false)
+    @Builder.Default
+    Integer star2 = 0;
+
+    @Column(name = "star_3", nullable = false)
+    @Builder.Default
+    Integer star3 = 0;
+
+    @Column(name = "star_4", nullable = false)
+    @Builder.Default
+    Integer star4 = 0;
+
+    @Column(name = "star_5", nullable = false)
+    @Builder.Default
+    Integer star5 = 0;
+
+    @Column(name = "unread_count", nullable = false)
+    @Builder.Default
+    Integer unreadCount = 0;
+
+    @Column(name = "updated_at")
+    Instant updatedAt;
+
+    public enum Scope {
+        STALL, PRODUCT, SHOP
+    }
+
+    /**
+     * Tổng hợp rỗng cho đối tượng chưa có review
+     */
+    public static RatingSummary empty(Scope scope, Long targetId) {
+        return RatingSummary.builder().scope(scope).targetId(targetId).build();
+    }
+
+    /**
+     * Điểm trung bình làm tròn 1 chữ số thập phân, 0 khi chưa có review
+     */
+    public double getAverageRating() {
+        return reviewCount > 0 ? Math.round(ratingSum * 10.0 / reviewCount) / 10.0 : 0.0;
+    }
+
+    /**
+     * Số review của mức sao 1..5
+     */
+    public int getStarCount(int star) {
+        return switch (star) {
+            case 1 -> star1;
+            case 2 -> star2;
+            case 3 -> star3;
+            case 4 -> star4;
+            case 5 -> star5;
+            default -> 0;
+        };
+    }
+}
@@ -1,5 +1,6 @@
 package com.badat.study1.model;
 
+import com.badat.study1.event.StallCardEntityListener;
 import jakarta.persistence.*;
 import jakarta.validation.constraints.Max;
 import jakarta.validation.constraints.Min;
@@ -8,6 +9,7 @@ import lombok.experimental.FieldDefaults;
 
 @Entity
 @Table(name = "review")
+@EntityListeners(StallCardEntityListener.class)
 @Getter
 @Setter
 @FieldDefaults(level = AccessLevel.PRIVATE)
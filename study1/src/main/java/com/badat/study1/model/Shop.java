@@ -1,5 +1,6 @@
 package com.badat.study1.model;
 
+import com.badat.study1.event.StallCardEntityListener;
 import jakarta.persistence.*;
 import lombok.*;
 import lombok.experimental.FieldDefaults;
@@ -7,6 +8,7 @@ import java.time.Instant;
 
 @Entity
 @Table(name = "shop")
+@EntityListeners(StallCardEntityListener.class)
 @Getter
 @Setter
 @FieldDefaults(level = AccessLevel.PRIVATE)
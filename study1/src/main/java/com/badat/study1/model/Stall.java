@@ -1,10 +1,12 @@
 package com.badat.study1.model;
 
+import com.badat.study1.event.StallCardEntityListener;
 import jakarta.persistence.*;
 import java.time.Instant;
 
 @Entity
 @Table(name = "stall")
+@EntityListeners(StallCardEntityListener.class)
 public class Stall {
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
@@ -31,9 +33,12 @@ public class Stall {
     @Column(name = "detailed_description", columnDefinition = "TEXT")
     private String detailedDescription;
 
-    @Lob
-    @Column(name = "stall_image_data", columnDefinition = "LONGBLOB")
-    private byte[] stallImageData;
+    // Ảnh nằm trong kho content-addressed (ImageStorageService), stall chỉ giữ SHA-256 của ảnh gốc và thumbnail
+    @Column(name = "image_hash", length = 64)
+    private String imageHash;
+
+    @Column(name = "image_thumb_hash", length = 64)
+    private String imageThumbHash;
 
     @Column(name = "status", length = 20, nullable = false)
     private String status = "PENDING";
@@ -67,7 +72,7 @@ public class Stall {
 
     public Stall(Long shopId, String stallName, String businessType, String stallCategory, 
                  Double discountPercentage, String shortDescription, String detailedDescription, 
-                 byte[] stallImageData) {
+                 String imageHash, String imageThumbHash) {
         this.shopId = shopId;
         this.stallName = stallName;
         this.businessType = businessType;
@@ -75,7 +80,8 @@ public class Stall {
         this.discountPercentage = discountPercentage;
         this.shortDescription = shortDescription;
         this.detailedDescription = detailedDescription;
-        this.stallImageData = stallImageData;
+        this.imageHash = imageHash;
+        this.imageThumbHash = imageThumbHash;
         this.status = "PENDING";
         this.isActive = false;
         this.createdAt = Instant.now();
@@ -107,8 +113,11 @@ public class Stall {
     public String getDetailedDescription() { return detailedDescription; }
     public void setDetailedDescription(String detailedDescription) { this.detailedDescription = detailedDescription; }
 
-    public byte[] getStallImageData() { return stallImageData; }
-    public void setStallImageData(byte[] stallImageData) { this.stallImageData = stallImageData; }
+    public String getImageHash() { return imageHash; }
+    public void setImageHash(String imageHash) { this.imageHash = imageHash; }
+
+    public String getImageThumbHash() { return imageThumbHash; }
+    public void setImageThumbHash(String imageThumbHash) { this.imageThumbHash = imageThumbHash; }
 
     public String getStatus() { return status; }
     public void setStatus(String status) { this.status = status; }
@@ -0,0 +1,88 @@
+package com.badat.study1.model;
+
+import jakarta.persistence.*;
+import lombok.*;
+import lombok.experimental.FieldDefaults;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+
+/**
+ * Read model thẻ gian hàng cho trang chủ và trang tìm kiếm /products: số sản phẩm, khoảng giá, tên shop,
+ * rating và URL ảnh được tính sẵn theo từng stall và cập nhật khi product/review/stall/shop thay đổi
+ * (StallCardService). Mỗi kiểu sắp xếp có index (status, khóa sắp xếp) để đọc theo keyset,
+ * không chạm bảng product/review/ảnh
+ */
+@Entity
+@Table(name = "stall_card", indexes = {
+    @Index(name = "idx_stall_card_status_count", columnList = "status, product_count, stall_id"),
+    @Index(name = "idx_stall_card_status_rating", columnList = "status, average_rating, stall_id"),
+    @Index(name = "idx_stall_card_status_price", columnList = "status, min_price, stall_id"),
+    @Index(name = "idx_stall_card_status_created", columnList = "status, created_at, stall_id"),
+    @Index(name = "idx_stall_card_category", columnList = "stall_category")
+})
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class StallCard {
+
+    @Id
+    @Column(name = "stall_id")
+    Long stallId;
+
+    @Column(name = "shop_id", nullable = false)
+    Long shopId;
+
+    @Column(name = "stall_name", nullable = false, length = 100)
+    String stallName;
+
+    @Column(name = "stall_category", length = 50)
+    String stallCategory;
+
+    @Column(name = "business_type", length = 50)
+    String businessType;
+
+    @Column(name = "shop_name", length = 100)
+    String shopName;
+
+    @Column(name = "status", nullable = false, length = 20)
+    String status;
+
+    // Tổng số item còn trống trong kho của các product trong stall (theo stock counter)
+    @Column(name = "product_count", nullable = false)
+    Integer productCount;
+
+    // Số product (kể cả hết hàng) - 0 nghĩa là stall chưa có sản phẩm
+    @Column(name = "product_total", nullable = false)
+    Integer productTotal;
+
+    // Khoảng giá của các product còn hàng, null nếu hết hàng
+    @Column(name = "min_price", precision = 15, scale = 2)
+    BigDecimal minPrice;
+
+    @Column(name = "max_price", precision = 15, scale = 2)
+    BigDecimal maxPrice;
+
+    @Column(name = "review_count", nullable = false)
+    Integer reviewCount;
+
+    @Column(name = "rating_sum", nullable = false)
+    Long ratingSum;
+
+    // Điểm trung bình làm tròn 1 chữ số thập phân (lưu sẵn để sắp xếp theo rating)
+    @Column(name = "average_rating", nullable = false)
+    Double averageRating;
+
+    @Column(name = "image_url")
+    String imageUrl;
+
+    // Thời điểm tạo stall - sắp xếp "mới nhất"
+    @Column(name = "created_at")
+    Instant createdAt;
+
+    @Column(name = "updated_at", nullable = false)
+    Instant updatedAt;
+}
@@ -0,0 +1,38 @@
+package com.badat.study1.model;
+
+import jakarta.persistence.*;
+import lombok.*;
+import lombok.experimental.FieldDefaults;
+
+/**
+ * Chỉ mục keyword của trang tìm kiếm: mỗi dòng là 1 tiền tố của 1 từ trong tên stall hoặc tên product của stall
+ * (StallCardService tính lại cùng thẻ). Tìm keyword là tra bằng nhau trên index (token, stall_id)
+ * thay vì LIKE '%x%' quét toàn bộ stall_card
+ */
+@Entity
+@Table(name = "stall_card_token", uniqueConstraints = {
+    @UniqueConstraint(name = "uk_stall_card_token", columnNames = {"token", "stall_id"})
+}, indexes = {
+    @Index(name = "idx_stall_card_token_stall", columnList = "stall_id")
+})
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class StallCardToken {
+
+    // Từ dài hơn chỉ được index tới tiền tố này
+    public static final int MAX_LENGTH = 20;
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    Long id;
+
+    @Column(name = "token", nullable = false, length = MAX_LENGTH)
+    String token;
+
+    @Column(name = "stall_id", nullable = false)
+    Long stallId;
+}
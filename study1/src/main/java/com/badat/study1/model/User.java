@@ -85,9 +85,12 @@ public class User extends BaseEntity implements UserDetails {
     @Column(name = "provider_id", length = 100)
     String providerId;
     
-    @Lob
-    @Column(name = "avatar_data", columnDefinition = "LONGBLOB")
-    byte[] avatarData;
+    // Avatar nằm trong kho content-addressed (ImageStorageService), user chỉ giữ SHA-256 của ảnh gốc và thumbnail
+    @Column(name = "avatar_hash", length = 64)
+    String avatarHash;
+    
+    @Column(name = "avatar_thumb_hash", length = 64)
+    String avatarThumbHash;
     
     public enum Role {
         USER, ADMIN, SELLER
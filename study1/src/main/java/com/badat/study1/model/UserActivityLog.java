@@ -28,7 +28,7 @@ public class UserActivityLog extends BaseEntity {
     Long userId;
     
     @ManyToOne(fetch = FetchType.LAZY)
-    @JoinColumn(name = "user_id", insertable = false, updatable = false)
+    @JoinColumn(name = "user_id", insertable = false, updatable = false, foreignKey = @ForeignKey(ConstraintMode.NO_CONSTRAINT))
     User user;
     
     @Column(name = "action", nullable = false, length = 100)
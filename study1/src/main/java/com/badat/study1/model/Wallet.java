@@ -30,4 +30,10 @@ public class Wallet extends BaseEntity {
     @Column(name = "balance", precision = 15, scale = 2)
     @Builder.Default
     BigDecimal balance = BigDecimal.ZERO;
+
+    // Optimistic lock cho các đường còn ghi balance qua entity - các câu UPDATE có điều kiện cũng tăng version
+    @Version
+    @Column(name = "version", nullable = false, columnDefinition = "BIGINT DEFAULT 0")
+    @Builder.Default
+    Long version = 0L;
 }
@@ -11,7 +11,13 @@ import org.springframework.data.jpa.domain.support.AuditingEntityListener;
 import java.time.LocalDateTime;
 
 @Entity
-@Table(name = "warehouse")
+@Table(name = "warehouse", indexes = {
+    @Index(name = "idx_warehouse_product_available", columnList = "product_id, locked, is_delete, created_at"),
+    @Index(name = "idx_warehouse_reservation_token", columnList = "reservation_token"),
+    @Index(name = "idx_warehouse_reserved_until", columnList = "locked, is_delete, reserved_until")
+}, uniqueConstraints = {
+    @UniqueConstraint(name = "uk_warehouse_item_key", columnNames = {"item_type", "item_key"})
+})
 @Data
 @Builder
 @NoArgsConstructor
@@ -30,6 +36,10 @@ public class Warehouse {
     @Column(name = "item_data", nullable = false, columnDefinition = "TEXT")
     private String itemData;
     
+    // Khóa chống trùng của item (license key, hoặc SHA-256 của cả dòng) - xem InventoryImportService.itemKeyOf
+    @Column(name = "item_key", length = 255)
+    private String itemKey;
+    
     @ManyToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "product_id", nullable = false)
     private Product product;
@@ -70,6 +80,10 @@ public class Warehouse {
     @Column(name = "reserved_until")
     private LocalDateTime reservedUntil;
     
+    // Token của lần claim đã giữ item này - dùng để đọc lại các item vừa claim bằng 1 câu UPDATE
+    @Column(name = "reservation_token", length = 36)
+    private String reservationToken;
+    
     public enum ItemType {
         EMAIL, CARD, ACCOUNT, KEY, KEY_LICENSE_BASIC, KEY_LICENSE_PREMIUM
     }
@@ -41,27 +41,6 @@ public interface ApiCallLogRepository extends JpaRepository<ApiCallLog, Long> {
                                      @Param("toDate") LocalDateTime toDate,
                                      Pageable pageable);
     
-    // Statistics queries
-    @Query("SELECT AVG(a.durationMs) FROM ApiCallLog a WHERE a.createdAt >= :fromDate")
-    Double findAverageResponseTime(@Param("fromDate") LocalDateTime fromDate);
-    
-    @Query("SELECT COUNT(a) FROM ApiCallLog a WHERE a.statusCode >= 400 AND a.createdAt >= :fromDate")
-    Long countErrorsSince(@Param("fromDate") LocalDateTime fromDate);
-    
-    @Query("SELECT COUNT(a) FROM ApiCallLog a WHERE a.createdAt >= :fromDate")
-    Long countTotalCallsSince(@Param("fromDate") LocalDateTime fromDate);
-    
-    @Query("SELECT a.endpoint, COUNT(a) as callCount, AVG(a.durationMs) as avgDuration " +
-           "FROM ApiCallLog a WHERE a.createdAt >= :fromDate " +
-           "GROUP BY a.endpoint ORDER BY callCount DESC")
-    List<Object[]> findTopEndpoints(@Param("fromDate") LocalDateTime fromDate, Pageable pageable);
-    
-    @Query("SELECT a FROM ApiCallLog a WHERE a.durationMs > :threshold AND a.createdAt >= :fromDate " +
-           "ORDER BY a.durationMs DESC")
-    List<ApiCallLog> findSlowCalls(@Param("threshold") Integer threshold, 
-                                   @Param("fromDate") LocalDateTime fromDate, 
-                                   Pageable pageable);
-    
     // Get distinct values for filter dropdowns
     @Query("SELECT DISTINCT a.endpoint FROM ApiCallLog a ORDER BY a.endpoint")
     List<String> findDistinctEndpoints();
@@ -71,8 +50,4 @@ public interface ApiCallLogRepository extends JpaRepository<ApiCallLog, Long> {
     
     @Query("SELECT DISTINCT a.statusCode FROM ApiCallLog a ORDER BY a.statusCode")
     List<Integer> findDistinctStatusCodes();
-    
-    // Cleanup old logs
-    void deleteByCreatedAtBefore(LocalDateTime dateTime);
-    long countByCreatedAtBefore(LocalDateTime dateTime);
 }
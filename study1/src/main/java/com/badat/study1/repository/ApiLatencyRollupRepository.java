@@ -0,0 +1,39 @@
+package com.badat.study1.repository;
+
+import com.badat.study1.model.ApiLatencyRollup;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+@Repository
+public interface ApiLatencyRollupRepository extends JpaRepository<ApiLatencyRollup, Long> {
+
+    // [method, endpoint, call_count, error_count, duration_sum_ms, duration_max_ms, histogram]
+    @Query(value = "SELECT method, endpoint, call_count, error_count, duration_sum_ms, duration_max_ms, histogram " +
+            "FROM api_latency_rollup WHERE bucket_start >= :fromDate", nativeQuery = true)
+    List<Object[]> findRollupsSince(@Param("fromDate") LocalDateTime fromDate);
+
+    // Cùng cột như trên, các dòng 1 phút trong [fromDate, toDate)
+    @Query(value = "SELECT method, endpoint, call_count, error_count, duration_sum_ms, duration_max_ms, histogram " +
+            "FROM api_latency_rollup WHERE bucket_seconds = 60 AND bucket_start >= :fromDate AND bucket_start < :toDate",
+            nativeQuery = true)
+    List<Object[]> findMinuteRollupsBetween(@Param("fromDate") LocalDateTime fromDate, @Param("toDate") LocalDateTime toDate);
+
+    @Query(value = "SELECT MIN(bucket_start) FROM api_latency_rollup WHERE bucket_seconds = 60 AND bucket_start < :before",
+            nativeQuery = true)
+    LocalDateTime findOldestMinuteRollupBefore(@Param("before") LocalDateTime before);
+
+    @Modifying
+    @Query(value = "DELETE FROM api_latency_rollup WHERE bucket_seconds = 60 AND bucket_start >= :fromDate AND bucket_start < :toDate",
+            nativeQuery = true)
+    int deleteMinuteRollupsBetween(@Param("fromDate") LocalDateTime fromDate, @Param("toDate") LocalDateTime toDate);
+
+    @Modifying
+    @Query(value = "DELETE FROM api_latency_rollup WHERE bucket_start < :before", nativeQuery = true)
+    int deleteRollupsBefore(@Param("before") LocalDateTime before);
+}
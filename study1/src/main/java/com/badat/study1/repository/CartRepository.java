@@ -4,6 +4,7 @@ import com.badat.study1.model.Cart;
 import com.badat.study1.model.User;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import java.util.Optional;
@@ -23,6 +24,12 @@ public interface CartRepository extends JpaRepository<Cart, Long> {
     @Query("SELECT c FROM Cart c LEFT JOIN FETCH c.items ci LEFT JOIN FETCH ci.product p WHERE c.user = :user")
     Optional<Cart> findByUserWithItems(User user);
 
+    /**
+     * Tải Cart kèm CartItem theo userId - dùng cho nạp cart vào Redis và write-behind flush
+     */
+    @Query("SELECT c FROM Cart c LEFT JOIN FETCH c.items ci LEFT JOIN FETCH ci.product p WHERE c.userId = :userId")
+    Optional<Cart> findByUserIdWithItems(@Param("userId") Long userId);
+
     // ĐÃ XÓA: findByUserIdAndProductId và deleteByUserIdAndProductId
     // vì cấu trúc Cart mới không còn chứa productId trực tiếp.
 }
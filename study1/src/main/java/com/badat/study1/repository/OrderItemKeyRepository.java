@@ -0,0 +1,20 @@
+package com.badat.study1.repository;
+
+import com.badat.study1.model.OrderItemKey;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.util.Collection;
+import java.util.List;
+
+@Repository
+public interface OrderItemKeyRepository extends JpaRepository<OrderItemKey, Long> {
+
+    /**
+     * Lấy các key đã giao của nhiều OrderItem kèm warehouse item trong 1 query
+     */
+    @Query("SELECT k FROM OrderItemKey k JOIN FETCH k.warehouse WHERE k.orderItemId IN :orderItemIds ORDER BY k.id")
+    List<OrderItemKey> findWithWarehouseByOrderItemIdIn(@Param("orderItemIds") Collection<Long> orderItemIds);
+}
@@ -2,10 +2,12 @@ package com.badat.study1.repository;
 
 import com.badat.study1.model.OrderItem;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -17,6 +19,18 @@ public interface OrderItemRepository extends JpaRepository<OrderItem, Long> {
      */
     List<OrderItem> findByOrderIdOrderByCreatedAtAsc(Long orderId);
 
+    /**
+     * Tìm tất cả OrderItem của nhiều Order trong 1 query
+     */
+    List<OrderItem> findByOrderIdIn(Collection<Long> orderIds);
+
+    /**
+     * Cập nhật status của tất cả OrderItem thuộc các Order
+     */
+    @Modifying
+    @Query("UPDATE OrderItem oi SET oi.status = :status WHERE oi.orderId IN :orderIds")
+    int updateStatusByOrderIds(@Param("orderIds") Collection<Long> orderIds, @Param("status") OrderItem.Status status);
+
     /**
      * Tìm tất cả OrderItem theo Order ID với fetch join
      */
@@ -73,9 +87,9 @@ public interface OrderItemRepository extends JpaRepository<OrderItem, Long> {
     List<OrderItem> findByWarehouseUserOrderByCreatedAtDesc(@Param("sellerId") Long sellerId);
 
     /**
-     * Đếm số lượng OrderItem theo Warehouse User ID và trạng thái
+     * Đếm số key đã bán theo Warehouse User ID và trạng thái (cộng quantity của từng dòng order)
      */
-    @Query("SELECT COUNT(oi) FROM OrderItem oi " +
+    @Query("SELECT COALESCE(SUM(oi.quantity), 0) FROM OrderItem oi " +
            "LEFT JOIN oi.warehouse w " +
            "LEFT JOIN w.user u " +
            "WHERE u.id = :sellerId AND oi.status = :status")
@@ -2,6 +2,7 @@ package com.badat.study1.repository;
 
 import com.badat.study1.model.Order;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
@@ -9,6 +10,7 @@ import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 
 import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -29,6 +31,12 @@ public interface OrderRepository extends JpaRepository<Order, Long> {
     
     Optional<Order> findByOrderCode(String orderCode);
     
+    List<Order> findByOrderCodeIn(Collection<String> orderCodes);
+    
+    @Modifying
+    @Query("UPDATE Order o SET o.status = :status WHERE o.id IN :orderIds")
+    int updateStatusByIds(@Param("orderIds") Collection<Long> orderIds, @Param("status") Order.Status status);
+    
     @Query("SELECT o FROM Order o WHERE o.buyerId = :buyerId AND o.createdAt >= :startDate ORDER BY o.createdAt DESC")
     List<Order> findByBuyerIdAndCreatedAtAfter(@Param("buyerId") Long buyerId, @Param("startDate") LocalDateTime startDate);
     
@@ -2,18 +2,18 @@ package com.badat.study1.repository;
 
 import com.badat.study1.model.PaymentQueue;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import java.time.Instant;
+import java.util.Collection;
 import java.util.List;
 
 @Repository
 public interface PaymentQueueRepository extends JpaRepository<PaymentQueue, Long> {
     
-    List<PaymentQueue> findByStatusOrderByCreatedAtAsc(PaymentQueue.Status status);
-    
     List<PaymentQueue> findByUserIdAndStatus(Long userId, PaymentQueue.Status status);
     
     List<PaymentQueue> findByUserIdAndStatusOrderByCreatedAtDesc(Long userId, PaymentQueue.Status status);
@@ -27,4 +27,62 @@ public interface PaymentQueueRepository extends JpaRepository<PaymentQueue, Long
     
     // Methods for finding by status and processed time
     List<PaymentQueue> findByStatusAndProcessedAtAfter(PaymentQueue.Status status, Instant processedAt);
+    
+    /**
+     * Lấy ID các payment có thể claim (PENDING hoặc PROCESSING đã hết lease) và khóa các dòng này.
+     * SKIP LOCKED bỏ qua các dòng đang bị worker khác khóa nên nhiều worker claim song song không bị chờ nhau.
+     */
+    @Query(value = "SELECT id FROM payment_queue WHERE status = 'PENDING' " +
+            "OR (status = 'PROCESSING' AND lease_expires_at < :now) " +
+            "ORDER BY created_at ASC LIMIT :limit FOR UPDATE SKIP LOCKED", nativeQuery = true)
+    List<Long> findClaimableIdsForUpdate(@Param("now") Instant now, @Param("limit") int limit);
+    
+    /**
+     * Gán lease cho các payment vừa được khóa bởi findClaimableIdsForUpdate (cùng transaction)
+     */
+    @Modifying(clearAutomatically = true)
+    @Query("UPDATE PaymentQueue pq SET pq.status = :processing, pq.leaseOwner = :owner, " +
+           "pq.leaseExpiresAt = :leaseExpiresAt, pq.processedAt = :now WHERE pq.id IN :ids")
+    int claimByIds(@Param("ids") List<Long> ids,
+                   @Param("processing") PaymentQueue.Status processing,
+                   @Param("owner") String owner,
+                   @Param("leaseExpiresAt") Instant leaseExpiresAt,
+                   @Param("now") Instant now);
+    
+    /**
+     * Claim một payment cụ thể bằng conditional update - trả về 1 nếu claim thành công, 0 nếu đã có worker khác claim
+     */
+    @Modifying(clearAutomatically = true)
+    @Query("UPDATE PaymentQueue pq SET pq.status = :processing, pq.leaseOwner = :owner, " +
+           "pq.leaseExpiresAt = :leaseExpiresAt, pq.processedAt = :now " +
+           "WHERE pq.id = :id AND pq.status = :pending")
+    int claimById(@Param("id") Long id,
+                  @Param("pending") PaymentQueue.Status pending,
+                  @Param("processing") PaymentQueue.Status processing,
+                  @Param("owner") String owner,
+                  @Param("leaseExpiresAt") Instant leaseExpiresAt,
+                  @Param("now") Instant now);
+    
+    /**
+     * Gia hạn lease các payment mà worker vẫn đang giữ - dòng đã bị worker khác claim lại (lease hết hạn) không bị đụng tới
+     */
+    @Modifying(flushAutomatically = true)
+    @Query("UPDATE PaymentQueue pq SET pq.leaseExpiresAt = :leaseExpiresAt " +
+           "WHERE pq.id IN :ids AND pq.leaseOwner = :owner AND pq.status = :processing")
+    int renewLeases(@Param("ids") Collection<Long> ids,
+                    @Param("owner") String owner,
+                    @Param("processing") PaymentQueue.Status processing,
+                    @Param("leaseExpiresAt") Instant leaseExpiresAt);
+    
+    /**
+     * Ghi kết quả (COMPLETED/FAILED) chỉ khi worker vẫn giữ lease - trả về 0 nếu payment đã thuộc worker khác
+     */
+    @Modifying(flushAutomatically = true)
+    @Query("UPDATE PaymentQueue pq SET pq.status = :status, pq.errorMessage = :errorMessage, pq.leaseExpiresAt = NULL " +
+           "WHERE pq.id = :id AND pq.leaseOwner = :owner AND pq.status = :processing")
+    int finishLeased(@Param("id") Long id,
+                     @Param("owner") String owner,
+                     @Param("processing") PaymentQueue.Status processing,
+                     @Param("status") PaymentQueue.Status status,
+                     @Param("errorMessage") String errorMessage);
 }
@@ -7,6 +7,7 @@ import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import java.math.BigDecimal;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -33,6 +34,14 @@ public interface ProductRepository extends JpaRepository<Product, Long> {
 	// Recovery methods
 	Optional<Product> findByNameAndPriceAndShopIdAndIsDeleteTrue(String name, BigDecimal price, Long shopId);
 	
+	// Cart quote: product kèm shop và stall (commission) trong 1 query
+	@Query("SELECT p FROM Product p LEFT JOIN FETCH p.shop LEFT JOIN FETCH p.stall WHERE p.id IN :ids")
+	List<Product> findAllWithShopAndStallByIdIn(@Param("ids") Collection<Long> ids);
+	
+	// Thẻ gian hàng: id, stall_id, price, name của product chưa xóa - tồn kho lấy từ stock counter, không từ product.quantity
+	@Query(value = "SELECT id, stall_id, price, name FROM product WHERE is_delete = false AND stall_id IN (:stallIds)", nativeQuery = true)
+	List<Object[]> findCardProductsByStallIdIn(@Param("stallIds") Collection<Long> stallIds);
+	
 	// Warehouse quantity methods
 	@Query("SELECT COUNT(w) FROM Warehouse w WHERE w.product.id = :productId")
 	long countWarehouseItemsByProductId(@Param("productId") Long productId);
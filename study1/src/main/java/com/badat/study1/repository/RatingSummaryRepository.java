@@ -0,0 +1,39 @@
+package com.badat.study1.repository;
+
+import com.badat.study1.model.RatingSummary;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface RatingSummaryRepository extends JpaRepository<RatingSummary, Long> {
+
+    Optional<RatingSummary> findByScopeAndTargetId(RatingSummary.Scope scope, Long targetId);
+
+    List<RatingSummary> findByScopeAndTargetIdIn(RatingSummary.Scope scope, Collection<Long> targetIds);
+
+    // Khóa dòng tổng hợp (kể cả khoảng trống của dòng chưa có) trước khi tính lại - applyDelta đồng thời phải chờ commit
+    @Query(value = "SELECT * FROM rating_summary WHERE scope = :scope AND target_id IN (:targetIds) FOR UPDATE", nativeQuery = true)
+    List<RatingSummary> lockByScopeAndTargetIdIn(@Param("scope") String scope, @Param("targetIds") Collection<Long> targetIds);
+
+    @Query("SELECT r.targetId FROM RatingSummary r WHERE r.scope = :scope")
+    List<Long> findTargetIdsByScope(@Param("scope") RatingSummary.Scope scope);
+
+    // Cộng delta vào tổng hợp bằng 1 câu lệnh (tạo dòng nếu chưa có) - không đọc rồi ghi nên không mất cập nhật đồng thời
+    @Modifying(flushAutomatically = true)
+    @Query(value = "INSERT INTO rating_summary (scope, target_id, review_count, rating_sum, star_1, star_2, star_3, star_4, star_5, unread_count, updated_at) " +
+            "VALUES (:scope, :targetId, :count, :sum, :star1, :star2, :star3, :star4, :star5, :unread, CURRENT_TIMESTAMP) " +
+            "ON DUPLICATE KEY UPDATE review_count = review_count + :count, rating_sum = rating_sum + :sum, " +
+            "star_1 = star_1 + :star1, star_2 = star_2 + :star2, star_3 = star_3 + :star3, star_4 = star_4 + :star4, " +
+            "star_5 = star_5 + :star5, unread_count = unread_count + :unread, updated_at = CURRENT_TIMESTAMP", nativeQuery = true)
+    int applyDelta(@Param("scope") String scope, @Param("targetId") Long targetId,
+                   @Param("count") int count, @Param("sum") long sum,
+                   @Param("star1") int star1, @Param("star2") int star2, @Param("star3") int star3,
+                   @Param("star4") int star4, @Param("star5") int star5, @Param("unread") int unread);
+}
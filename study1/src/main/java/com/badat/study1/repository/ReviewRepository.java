@@ -3,10 +3,14 @@ package com.badat.study1.repository;
 import com.badat.study1.model.Review;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.EntityGraph;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
 import java.util.List;
 
 @Repository
@@ -35,4 +39,42 @@ public interface ReviewRepository extends JpaRepository<Review, Long> {
     @EntityGraph(attributePaths = {"buyer", "product"})
     List<Review> findByStallIdAndIsDeleteFalse(Long stallId);
     List<Review> findByOrderIdAndIsDeleteFalse(Long orderId);
+    
+    // Cột tổng hợp của 1 nhóm review: count, sum(rating), số review 1..5 sao, số review chưa đọc
+    String RATING_SUMMARY_COLUMNS = "COUNT(*), COALESCE(SUM(rating), 0), " +
+            "SUM(CASE WHEN rating = 1 THEN 1 ELSE 0 END), SUM(CASE WHEN rating = 2 THEN 1 ELSE 0 END), " +
+            "SUM(CASE WHEN rating = 3 THEN 1 ELSE 0 END), SUM(CASE WHEN rating = 4 THEN 1 ELSE 0 END), " +
+            "SUM(CASE WHEN rating = 5 THEN 1 ELSE 0 END), SUM(CASE WHEN is_read = false THEN 1 ELSE 0 END) ";
+
+    // Tính lại tổng hợp rating theo đối tượng (backfill): target_id + RATING_SUMMARY_COLUMNS
+
+    @Query(value = "SELECT stall_id, " + RATING_SUMMARY_COLUMNS + "FROM review " +
+            "WHERE is_delete = false AND stall_id IN (:stallIds) GROUP BY stall_id", nativeQuery = true)
+    List<Object[]> summarizeByStallIdIn(@Param("stallIds") Collection<Long> stallIds);
+
+    @Query(value = "SELECT product_id, " + RATING_SUMMARY_COLUMNS + "FROM review " +
+            "WHERE is_delete = false AND product_id IN (:productIds) GROUP BY product_id", nativeQuery = true)
+    List<Object[]> summarizeByProductIdIn(@Param("productIds") Collection<Long> productIds);
+
+    @Query(value = "SELECT shop_id, " + RATING_SUMMARY_COLUMNS + "FROM review " +
+            "WHERE is_delete = false AND shop_id IN (:shopIds) GROUP BY shop_id", nativeQuery = true)
+    List<Object[]> summarizeByShopIdIn(@Param("shopIds") Collection<Long> shopIds);
+
+    @Query(value = "SELECT DISTINCT stall_id FROM review WHERE is_delete = false", nativeQuery = true)
+    List<Long> findReviewedStallIds();
+
+    @Query(value = "SELECT DISTINCT product_id FROM review WHERE is_delete = false", nativeQuery = true)
+    List<Long> findReviewedProductIds();
+
+    @Query(value = "SELECT DISTINCT shop_id FROM review WHERE is_delete = false", nativeQuery = true)
+    List<Long> findReviewedShopIds();
+
+    // Review chưa đọc của stall (id, product_id) - khóa dòng để số trừ vào tổng hợp khớp với số dòng được đánh dấu
+    @Query(value = "SELECT id, product_id FROM review " +
+            "WHERE stall_id = :stallId AND is_read = false AND is_delete = false FOR UPDATE", nativeQuery = true)
+    List<Object[]> lockUnreadByStallId(@Param("stallId") Long stallId);
+
+    @Modifying
+    @Query("UPDATE Review r SET r.isRead = true WHERE r.id IN :ids")
+    int markReadByIds(@Param("ids") Collection<Long> ids);
 }
@@ -0,0 +1,79 @@
+package com.badat.study1.repository;
+
+import com.badat.study1.model.StallCard;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+
+@Repository
+public interface StallCardRepository extends JpaRepository<StallCard, Long> {
+
+    // Top 8 stall theo số sản phẩm cho trang chủ - đọc thẳng index (status, product_count)
+    List<StallCard> findTop8ByStatusOrderByProductCountDesc(String status);
+
+    // Bộ lọc chung của trang tìm kiếm: keyword là các token (StallCardService.keywordTokens) tra trên index
+    // stall_card_token - stall phải có đủ keywordCount token; shop là pattern LIKE đã lower-case
+    // (ký tự \, %, _ được escape bằng \), khoảng giá giao với [min_price, max_price]
+    String SEARCH_FILTER = "c.status = :status " +
+            "AND (:keywordCount = 0 OR c.stallId IN (SELECT t.stallId FROM StallCardToken t WHERE t.token IN :keywords " +
+            "GROUP BY t.stallId HAVING COUNT(t.id) = :keywordCount)) " +
+            "AND (:category IS NULL OR c.stallCategory = :category) " +
+            "AND (:shop IS NULL OR LOWER(c.shopName) LIKE :shop ESCAPE '\\') " +
+            "AND (:minPrice IS NULL OR c.maxPrice >= :minPrice) " +
+            "AND (:maxPrice IS NULL OR c.minPrice <= :maxPrice) " +
+            "AND (:inStock = false OR c.minPrice IS NOT NULL) ";
+
+    // Keyset theo (khóa sắp xếp, stall_id): trang sau bắt đầu ngay sau dòng cuối của trang trước
+
+    @Query("SELECT c FROM StallCard c WHERE " + SEARCH_FILTER +
+           "AND (:afterId IS NULL OR c.averageRating < :afterRating OR (c.averageRating = :afterRating AND c.stallId < :afterId)) " +
+           "ORDER BY c.averageRating DESC, c.stallId DESC")
+    List<StallCard> searchByRating(@Param("status") String status,
+                                   @Param("keywords") Collection<String> keywords, @Param("keywordCount") long keywordCount,
+                                   @Param("category") String category, @Param("shop") String shop,
+                                   @Param("minPrice") BigDecimal minPrice, @Param("maxPrice") BigDecimal maxPrice,
+                                   @Param("inStock") boolean inStock,
+                                   @Param("afterRating") Double afterRating, @Param("afterId") Long afterId,
+                                   Pageable pageable);
+
+    // Sắp xếp theo giá chỉ gồm stall còn hàng (stall hết hàng không có giá)
+    @Query("SELECT c FROM StallCard c WHERE " + SEARCH_FILTER + "AND c.minPrice IS NOT NULL " +
+           "AND (:afterId IS NULL OR c.minPrice > :afterPrice OR (c.minPrice = :afterPrice AND c.stallId > :afterId)) " +
+           "ORDER BY c.minPrice ASC, c.stallId ASC")
+    List<StallCard> searchByPrice(@Param("status") String status,
+                                  @Param("keywords") Collection<String> keywords, @Param("keywordCount") long keywordCount,
+                                  @Param("category") String category, @Param("shop") String shop,
+                                  @Param("minPrice") BigDecimal minPrice, @Param("maxPrice") BigDecimal maxPrice,
+                                  @Param("inStock") boolean inStock,
+                                  @Param("afterPrice") BigDecimal afterPrice, @Param("afterId") Long afterId,
+                                  Pageable pageable);
+
+    @Query("SELECT c FROM StallCard c WHERE " + SEARCH_FILTER +
+           "AND (:afterId IS NULL OR c.productCount < :afterCount OR (c.productCount = :afterCount AND c.stallId < :afterId)) " +
+           "ORDER BY c.productCount DESC, c.stallId DESC")
+    List<StallCard> searchByStock(@Param("status") String status,
+                                  @Param("keywords") Collection<String> keywords, @Param("keywordCount") long keywordCount,
+                                  @Param("category") String category, @Param("shop") String shop,
+                                  @Param("minPrice") BigDecimal minPrice, @Param("maxPrice") BigDecimal maxPrice,
+                                  @Param("inStock") boolean inStock,
+                                  @Param("afterCount") Integer afterCount, @Param("afterId") Long afterId,
+                                  Pageable pageable);
+
+    @Query("SELECT c FROM StallCard c WHERE " + SEARCH_FILTER +
+           "AND (:afterId IS NULL OR c.createdAt < :afterCreatedAt OR (c.createdAt = :afterCreatedAt AND c.stallId < :afterId)) " +
+           "ORDER BY c.createdAt DESC, c.stallId DESC")
+    List<StallCard> searchByNewest(@Param("status") String status,
+                                   @Param("keywords") Collection<String> keywords, @Param("keywordCount") long keywordCount,
+                                   @Param("category") String category, @Param("shop") String shop,
+                                   @Param("minPrice") BigDecimal minPrice, @Param("maxPrice") BigDecimal maxPrice,
+                                   @Param("inStock") boolean inStock,
+                                   @Param("afterCreatedAt") Instant afterCreatedAt, @Param("afterId") Long afterId,
+                                   Pageable pageable);
+}
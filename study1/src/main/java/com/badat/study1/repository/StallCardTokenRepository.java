@@ -0,0 +1,23 @@
+package com.badat.study1.repository;
+
+import com.badat.study1.model.StallCardToken;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.util.Collection;
+import java.util.List;
+
+@Repository
+public interface StallCardTokenRepository extends JpaRepository<StallCardToken, Long> {
+
+    // stall_id, token của các stall - để so với token mới và chỉ ghi lại stall có tên thay đổi
+    @Query("SELECT t.stallId, t.token FROM StallCardToken t WHERE t.stallId IN :stallIds")
+    List<Object[]> findTokensByStallIdIn(@Param("stallIds") Collection<Long> stallIds);
+
+    @Modifying
+    @Query("DELETE FROM StallCardToken t WHERE t.stallId IN :stallIds")
+    int deleteByStallIdIn(@Param("stallIds") Collection<Long> stallIds);
+}
@@ -2,8 +2,11 @@ package com.badat.study1.repository;
 
 import com.badat.study1.model.Stall;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -40,4 +43,22 @@ public interface StallRepository extends JpaRepository<Stall, Long> {
     // Find all stalls by shop ID (including deleted ones for admin operations)
     List<Stall> findByShopId(Long shopId);
     
+    // Dữ liệu dựng thẻ gian hàng (không đọc cột ảnh):
+    // id, shop_id, stall_name, stall_category, status, image_thumb_hash, shop_name, business_type, created_at
+    @Query(value = "SELECT s.id, s.shop_id, s.stall_name, s.stall_category, s.status, " +
+            "s.image_thumb_hash, sh.shop_name, s.business_type, s.created_at " +
+            "FROM stall s LEFT JOIN shop sh ON sh.id = s.shop_id " +
+            "WHERE s.id IN (:ids) AND s.is_delete = false", nativeQuery = true)
+    List<Object[]> findCardSourcesByIdIn(@Param("ids") Collection<Long> ids);
+    
+    @Query("SELECT s.id FROM Stall s WHERE s.shopId = :shopId")
+    List<Long> findIdsByShopId(@Param("shopId") Long shopId);
+    
+    @Query("SELECT s.id FROM Stall s ORDER BY s.id")
+    List<Long> findAllIds();
+    
+    // Hash ảnh gốc của stall - không tải entity
+    @Query("SELECT s.imageHash FROM Stall s WHERE s.id = :id")
+    Optional<String> findImageHashById(@Param("id") Long id);
+    
 }
@@ -85,8 +85,4 @@ public interface UserActivityLogRepository extends JpaRepository<UserActivityLog
     
     @Query("SELECT DISTINCT u.category FROM UserActivityLog u ORDER BY u.category")
     List<UserActivityLog.Category> findDistinctCategories();
-    
-    // Cleanup old logs
-    void deleteByCreatedAtBefore(LocalDateTime dateTime);
-    long countByCreatedAtBefore(LocalDateTime dateTime);
 }
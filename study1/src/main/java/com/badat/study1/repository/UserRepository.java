@@ -50,4 +50,8 @@ public interface UserRepository extends JpaRepository<User, Long> {
                                    @Param("role") String role, 
                                    @Param("status") String status, 
                                    Pageable pageable);
+    
+    // Hash thumbnail avatar - không tải entity
+    @Query("SELECT u.avatarThumbHash FROM User u WHERE u.id = :id")
+    Optional<String> findAvatarThumbHashById(@Param("id") Long id);
 }
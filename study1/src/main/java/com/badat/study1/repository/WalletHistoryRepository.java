@@ -2,8 +2,13 @@ package com.badat.study1.repository;
 
 import com.badat.study1.model.WalletHistory;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.math.BigDecimal;
+
 import java.util.List;
 
 @Repository
@@ -15,6 +20,14 @@ public interface WalletHistoryRepository extends JpaRepository<WalletHistory, Lo
     java.util.Optional<WalletHistory> findByWalletIdAndReferenceIdAndTypeAndIsDeleteFalse(Long walletId, String referenceId, WalletHistory.Type type);
     // Kiểm tra xem transaction đã được xử lý thành công chưa (để tránh duplicate processing)
     java.util.Optional<WalletHistory> findByReferenceIdAndTypeAndStatus(String referenceId, WalletHistory.Type type, WalletHistory.Status status);
+    // Ghi lịch sử theo user: wallet_id lấy từ wallet của user ngay trong câu INSERT, không cần đọc wallet trước
+    @Modifying
+    @Query(value = "INSERT INTO wallethistory (wallet_id, type, amount, reference_id, description, is_delete, created_by, created_at, status) " +
+            "SELECT id, :type, :amount, :referenceId, :description, false, 'system', CURRENT_TIMESTAMP, :status " +
+            "FROM wallet WHERE user_id = :userId", nativeQuery = true)
+    int insertForUser(@Param("userId") Long userId, @Param("type") String type, @Param("amount") BigDecimal amount,
+                      @Param("referenceId") String referenceId, @Param("description") String description,
+                      @Param("status") String status);
 }
 
 
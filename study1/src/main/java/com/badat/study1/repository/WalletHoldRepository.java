@@ -2,11 +2,13 @@ package com.badat.study1.repository;
 
 import com.badat.study1.model.WalletHold;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import java.time.Instant;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -15,12 +17,32 @@ public interface WalletHoldRepository extends JpaRepository<WalletHold, Long> {
     
     List<WalletHold> findByUserIdAndStatus(Long userId, WalletHold.Status status);
     
-    List<WalletHold> findByUserIdAndOrderIdAndStatus(Long userId, String orderId, WalletHold.Status status);
     
-    List<WalletHold> findByStatusAndExpiresAtBefore(WalletHold.Status status, Instant expiresAt);
+    /**
+     * Lấy (id, expiresAt) của các hold theo status - dùng để dựng lại lịch hết hạn
+     */
+    @Query("SELECT wh.id, wh.expiresAt FROM WalletHold wh WHERE wh.status = :status")
+    List<Object[]> findIdAndExpiresAtByStatus(@Param("status") WalletHold.Status status);
     
     Optional<WalletHold> findByOrderId(String orderId);
     
+    /**
+     * Khóa các hold còn PENDING trong danh sách - hold đã được xử lý ở nơi khác sẽ không có trong kết quả
+     */
+    @Query(value = "SELECT id FROM wallet_hold WHERE id IN (:ids) AND status = 'PENDING' FOR UPDATE", nativeQuery = true)
+    List<Long> lockPendingIds(@Param("ids") Collection<Long> ids);
+    
+    /**
+     * Chuyển status của hold nếu đang ở status from - trả về 0 nếu hold đã được xử lý ở nơi khác
+     */
+    @Modifying
+    @Query("UPDATE WalletHold wh SET wh.status = :to WHERE wh.id = :id AND wh.status = :from")
+    int transitionStatus(@Param("id") Long id, @Param("from") WalletHold.Status from, @Param("to") WalletHold.Status to);
+    
+    @Modifying
+    @Query("UPDATE WalletHold wh SET wh.status = :status WHERE wh.id IN :ids")
+    int updateStatusByIds(@Param("ids") Collection<Long> ids, @Param("status") WalletHold.Status status);
+    
     @Query("SELECT wh FROM WalletHold wh WHERE wh.userId = :userId AND wh.status = :status AND wh.expiresAt > :now")
     List<WalletHold> findActiveHoldsByUser(@Param("userId") Long userId, 
                                           @Param("status") WalletHold.Status status, 
@@ -28,7 +50,4 @@ public interface WalletHoldRepository extends JpaRepository<WalletHold, Long> {
     
     // Methods for counting by status
     long countByStatus(WalletHold.Status status);
-    
-    // Method for counting expired holds
-    long countByStatusAndExpiresAtBefore(WalletHold.Status status, Instant expiresAt);
 }
@@ -2,14 +2,42 @@ package com.badat.study1.repository;
 
 import com.badat.study1.model.Wallet;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.math.BigDecimal;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
 @Repository
 public interface WalletRepository extends JpaRepository<Wallet, Long> {
     Optional<Wallet> findByUserId(Long userId);
+    List<Wallet> findByUserIdIn(Collection<Long> userIds);
     Optional<Wallet> findByUserIdAndIsDeleteFalse(Long userId);
     List<Wallet> findByIsDeleteFalse();
+    
+    /**
+     * Đọc balance hiện tại trực tiếp từ DB
+     */
+    @Query("SELECT w.balance FROM Wallet w WHERE w.userId = :userId")
+    Optional<BigDecimal> findBalanceByUserId(@Param("userId") Long userId);
+    
+    /**
+     * Trừ tiền nếu đủ số dư - trả về 0 nếu không đủ tiền hoặc không có ví
+     */
+    @Modifying(flushAutomatically = true)
+    @Query(value = "UPDATE wallet SET balance = balance - :amount, version = version + 1, updated_at = CURRENT_TIMESTAMP " +
+            "WHERE user_id = :userId AND balance >= :amount", nativeQuery = true)
+    int debitIfSufficient(@Param("userId") Long userId, @Param("amount") BigDecimal amount);
+    
+    /**
+     * Cộng tiền vào ví - trả về 0 nếu không có ví
+     */
+    @Modifying(flushAutomatically = true)
+    @Query(value = "UPDATE wallet SET balance = balance + :amount, version = version + 1, updated_at = CURRENT_TIMESTAMP " +
+            "WHERE user_id = :userId", nativeQuery = true)
+    int credit(@Param("userId") Long userId, @Param("amount") BigDecimal amount);
 }
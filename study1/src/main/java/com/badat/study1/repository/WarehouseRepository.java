@@ -3,11 +3,13 @@ package com.badat.study1.repository;
 import com.badat.study1.model.Warehouse;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -102,7 +104,60 @@ public interface WarehouseRepository extends JpaRepository<Warehouse, Long> {
     @Query(value = "SELECT * FROM warehouse WHERE product_id = :productId AND locked = false AND is_delete = false ORDER BY created_at ASC LIMIT :quantity FOR UPDATE", nativeQuery = true)
     List<Warehouse> findAvailableItemsForReservation(@Param("productId") Long productId, @Param("quantity") Integer quantity);
 
+    /**
+     * Claim nguyên tử tối đa :quantity item còn trống của product trong 1 câu UPDATE
+     * Row lock của chính câu UPDATE đảm bảo 2 người mua không claim trùng item, không cần Redis lock
+     */
+    @Modifying(clearAutomatically = true)
+    @Query(value = "UPDATE warehouse SET locked = true, locked_by = :userId, locked_at = :now, " +
+            "reserved_until = :reservedUntil, reservation_token = :token " +
+            "WHERE product_id = :productId AND locked = false AND is_delete = false " +
+            "ORDER BY created_at ASC LIMIT :quantity", nativeQuery = true)
+    int claimAvailableItems(@Param("productId") Long productId,
+                            @Param("quantity") int quantity,
+                            @Param("userId") Long userId,
+                            @Param("now") LocalDateTime now,
+                            @Param("reservedUntil") LocalDateTime reservedUntil,
+                            @Param("token") String token);
+    
+    /**
+     * Đọc lại các item đã claim theo reservation token
+     */
+    List<Warehouse> findByReservationToken(String reservationToken);
+
     List<Warehouse> findByLockedTrueAndReservedUntilBefore(LocalDateTime now);
+    
+    /**
+     * Lấy 1 chunk reservation đã hết hạn (id, product_id, stall_id, shop_id) và khóa các dòng này
+     * SKIP LOCKED để nhiều node cùng sweep mà không chờ nhau
+     */
+    @Query(value = "SELECT id, product_id, stall_id, shop_id FROM warehouse " +
+            "WHERE locked = true AND is_delete = false AND reserved_until < :now " +
+            "ORDER BY reserved_until ASC LIMIT :limit FOR UPDATE SKIP LOCKED", nativeQuery = true)
+    List<Object[]> findExpiredReservationsForUpdate(@Param("now") LocalDateTime now, @Param("limit") int limit);
+    
+    /**
+     * Các item còn đang reserve (chưa giao) của 1 reservation token (id, product_id, stall_id, shop_id), khóa các dòng này
+     */
+    @Query(value = "SELECT id, product_id, stall_id, shop_id FROM warehouse " +
+            "WHERE reservation_token = :token AND locked = true AND is_delete = false FOR UPDATE", nativeQuery = true)
+    List<Object[]> findReservedByTokenForUpdate(@Param("token") String token);
+    
+    /**
+     * Release hàng loạt các reservation theo id trong 1 câu UPDATE
+     */
+    @Modifying(clearAutomatically = true)
+    @Query(value = "UPDATE warehouse SET locked = false, locked_by = NULL, locked_at = NULL, " +
+            "reserved_until = NULL, reservation_token = NULL WHERE id IN (:ids)", nativeQuery = true)
+    int releaseReservationsByIds(@Param("ids") List<Long> ids);
+
+    /**
+     * Giao hàng loạt các item đã reserve: 1 câu UPDATE cho cả order
+     */
+    @Modifying(flushAutomatically = true)
+    @Query(value = "UPDATE warehouse SET is_delete = true, deleted_by = 'SYSTEM' " +
+            "WHERE id IN (:ids) AND locked = true AND is_delete = false", nativeQuery = true)
+    int markReservedAsDeliveredByIds(@Param("ids") Collection<Long> ids);
     /**
      * Find expired warehouse reservations
      */
@@ -120,4 +175,35 @@ public interface WarehouseRepository extends JpaRepository<Warehouse, Long> {
      */
     @Query(value = "SELECT COUNT(*) FROM warehouse WHERE shop_id = :shopId AND locked = false AND is_delete = false", nativeQuery = true)
     long countAvailableItemsByShopId(@Param("shopId") Long shopId);
+    
+    /**
+     * Số item còn trống theo từng product/stall/shop - dùng để reconcile stock counter
+     */
+    @Query(value = "SELECT product_id, COUNT(*) FROM warehouse WHERE locked = false AND is_delete = false GROUP BY product_id", nativeQuery = true)
+    List<Object[]> countAvailableItemsGroupByProduct();
+    
+    @Query(value = "SELECT product_id, COUNT(*) FROM warehouse WHERE locked = false AND is_delete = false " +
+            "AND product_id IN (:productIds) GROUP BY product_id", nativeQuery = true)
+    List<Object[]> countAvailableItemsGroupByProductIn(@Param("productIds") Collection<Long> productIds);
+    
+    @Query(value = "SELECT stall_id, COUNT(*) FROM warehouse WHERE locked = false AND is_delete = false GROUP BY stall_id", nativeQuery = true)
+    List<Object[]> countAvailableItemsGroupByStall();
+    
+    @Query(value = "SELECT shop_id, COUNT(*) FROM warehouse WHERE locked = false AND is_delete = false GROUP BY shop_id", nativeQuery = true)
+    List<Object[]> countAvailableItemsGroupByShop();
+
+    // Item đang có theo khóa chống trùng (import TXT): id, item_key, is_delete, locked, product_id, stall_id, shop_id
+    @Query(value = "SELECT id, item_key, is_delete, locked, product_id, stall_id, shop_id FROM warehouse " +
+            "WHERE item_type = :itemType AND item_key IN (:itemKeys)", nativeQuery = true)
+    List<Object[]> findKeyStatesByItemTypeAndItemKeyIn(@Param("itemType") String itemType,
+                                                       @Param("itemKeys") Collection<String> itemKeys);
+
+    // Khôi phục item đã xóa mềm và chưa bị khóa
+    @Modifying(flushAutomatically = true)
+    @Query(value = "UPDATE warehouse SET is_delete = false, deleted_by = NULL " +
+            "WHERE id IN (:ids) AND is_delete = true AND locked = false", nativeQuery = true)
+    int restoreByIds(@Param("ids") Collection<Long> ids);
+
+    @Query(value = "SELECT COALESCE(MAX(id), 0) FROM warehouse", nativeQuery = true)
+    long findMaxId();
 }
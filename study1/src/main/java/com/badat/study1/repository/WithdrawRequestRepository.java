@@ -17,6 +17,12 @@ public interface WithdrawRequestRepository extends JpaRepository<WithdrawRequest
     List<WithdrawRequest> findByStatusOrderByCreatedAtDesc(WithdrawRequest.Status status);
     List<WithdrawRequest> findByShopIdAndStatus(Long shopId, WithdrawRequest.Status status);
     
+    /**
+     * Lấy id các yêu cầu PENDING của shop bằng locking read (đọc bản commit mới nhất)
+     */
+    @Query(value = "SELECT id FROM withdrawrequest WHERE shop_id = :shopId AND status = 'PENDING' FOR UPDATE", nativeQuery = true)
+    List<Long> findPendingIdsByShopIdForUpdate(@Param("shopId") Long shopId);
+    
     @Query("SELECT wr FROM WithdrawRequest wr WHERE wr.shopId = :shopId " +
            "AND (:startDate IS NULL OR DATE(wr.createdAt) >= :startDate) " +
            "AND (:endDate IS NULL OR DATE(wr.createdAt) <= :endDate) " +
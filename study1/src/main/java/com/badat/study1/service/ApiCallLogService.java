@@ -1,69 +1,64 @@
 package com.badat.study1.service;
 
-import com.badat.study1.model.ApiCallLog;
-import com.badat.study1.repository.ApiCallLogRepository;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
 
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
 
+/**
+ * Ghi API call log qua sink "api-call-log" của TelemetryBus - ApiCallLogFilter gọi trên request thread,
+ * mỗi request chỉ là 1 lần append vào buffer
+ */
 @Slf4j
 @Service
 @RequiredArgsConstructor
 public class ApiCallLogService {
     
-    private final ApiCallLogRepository apiCallLogRepository;
+    private static final String INSERT_API_CALL_LOG_SQL = "INSERT INTO api_call_log " +
+            "(user_id, endpoint, method, status_code, response_status, duration_ms, ip_address, user_agent, error_message, " +
+            "is_delete, created_by, created_at) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, false, 'SYSTEM', ?)";
+    
+    private final TelemetryBus telemetryBus;
     private final ObjectMapper objectMapper = new ObjectMapper();
     
+    private TelemetryBus.Sink<ApiCallEvent> sink;
+    
+    @PostConstruct
+    public void registerSink() {
+        // Request lỗi luôn được ghi kể cả khi sink có sample rate < 1
+        sink = telemetryBus.register("api-call-log", ApiCallEvent.class, INSERT_API_CALL_LOG_SQL, this::bind,
+                event -> !shouldSkipLogging(event.getEndpoint()), event -> event.getStatusCode() >= 400);
+    }
+    
     // New method with extracted data to avoid request recycling
-    @Async("apiLogExecutor")
     public void logApiCall(Long userId, String endpoint, String method, int statusCode, String ipAddress, String userAgent, long durationMs) {
         try {
-            // Skip logging for certain endpoints
-            if (shouldSkipLogging(endpoint)) {
-                return;
-            }
-            
-            log.debug("Logging API call: {} {} - UserId: {} - Status: {}", method, endpoint, userId, statusCode);
-            
-            // Determine response status
-            String responseStatus = determineResponseStatus(statusCode);
-            
-            // Extract error message if any
-            String errorMessage = statusCode >= 400 ? "HTTP " + statusCode : null;
-            
-            ApiCallLog apiLog = ApiCallLog.builder()
+            sink.publish(ApiCallEvent.builder()
                     .userId(userId)
                     .endpoint(endpoint)
                     .method(method)
                     .statusCode(statusCode)
-                    .requestParams(null) // Can't extract in async context
-                    .requestBody(null)   // Can't extract in async context
-                    .responseStatus(responseStatus)
-                    .durationMs((int) durationMs)
+                    .durationMs(durationMs)
                     .ipAddress(ipAddress)
                     .userAgent(userAgent)
-                    .errorMessage(errorMessage)
-                    .build();
-            
-            apiCallLogRepository.save(apiLog);
-            log.info("API call logged: {} {} - {}ms - Status: {}", method, endpoint, durationMs, statusCode);
-            
+                    .createdAt(LocalDateTime.now())
+                    .build());
         } catch (Exception e) {
             log.error("Error logging API call: {}", e.getMessage());
         }
     }
     
     // Legacy method for backward compatibility (deprecated)
-    @Async("apiLogExecutor")
     @Deprecated
     public void logApiCall(Long userId, HttpServletRequest request, HttpServletResponse response, long durationMs) {
         try {
@@ -81,6 +76,20 @@ public class ApiCallLogService {
         }
     }
     
+    private Object[] bind(ApiCallEvent event) {
+        int statusCode = event.getStatusCode();
+        return new Object[]{
+                event.getUserId(), truncate(event.getEndpoint(), 255), truncate(event.getMethod(), 10), statusCode,
+                determineResponseStatus(statusCode), (int) event.getDurationMs(), truncate(event.getIpAddress(), 45),
+                truncate(event.getUserAgent(), 500), statusCode >= 400 ? "HTTP " + statusCode : null,
+                Timestamp.valueOf(event.getCreatedAt())
+        };
+    }
+    
+    private String truncate(String value, int maxLength) {
+        return value != null && value.length() > maxLength ? value.substring(0, maxLength) : value;
+    }
+    
     private boolean shouldSkipLogging(String endpoint) {
         // Skip static resources
         if (endpoint.startsWith("/css/") || 
@@ -178,4 +187,22 @@ public class ApiCallLogService {
         
         return request.getRemoteAddr();
     }
+    
+    /**
+     * 1 dòng api_call_log trong buffer (cũng là định dạng 1 dòng của file spill)
+     */
+    @lombok.Data
+    @lombok.Builder
+    @lombok.NoArgsConstructor
+    @lombok.AllArgsConstructor
+    public static class ApiCallEvent {
+        private Long userId;
+        private String endpoint;
+        private String method;
+        private int statusCode;
+        private long durationMs;
+        private String ipAddress;
+        private String userAgent;
+        private LocalDateTime createdAt;
+    }
 }
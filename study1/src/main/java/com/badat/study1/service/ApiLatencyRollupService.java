@@ -0,0 +1,344 @@
+package com.badat.study1.service;
+
+import com.badat.study1.repository.ApiLatencyRollupRepository;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.integration.redis.util.RedisLockRegistry;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Rollup thời gian xử lý API theo phút và endpoint (route pattern, không phải URI thật)
+ * ApiCallLogFilter ghi vào bucket trong RAM cho mọi request (không bị sample như api_call_log),
+ * bucket của phút đã đóng được flush định kỳ vào api_latency_rollup và sau vài giờ gộp thành dòng 1 giờ.
+ * Thống kê đọc bảng rollup + bucket chưa flush, không phụ thuộc số dòng api_call_log
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class ApiLatencyRollupService {
+
+    private static final String OTHER_ENDPOINT = "[other]";
+    private static final String UNMATCHED_ENDPOINT = "[unmatched]";
+    private static final String COMPACT_LOCK_KEY = "api-rollup:compact";
+
+    private final ApiLatencyRollupStore apiLatencyRollupStore;
+    private final ApiLatencyRollupRepository apiLatencyRollupRepository;
+    private final RedisLockRegistry redisLockRegistry;
+
+    @Value("${api.rollup.enabled:true}")
+    private boolean enabled;
+
+    @Value("${api.rollup.max-endpoints-per-minute:1000}")
+    private int maxEndpointsPerMinute;
+
+    @Value("${api.rollup.compact-after-hours:3}")
+    private int compactAfterHours;
+
+    @Value("${api.rollup.retention-days:90}")
+    private int retentionDays;
+
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+    // Số endpoint đã có bucket trong từng phút, quá giới hạn thì dồn vào [other]
+    private final Map<LocalDateTime, AtomicInteger> endpointsPerMinute = new ConcurrentHashMap<>();
+
+    /**
+     * Ghi 1 request vào bucket của phút hiện tại
+     *
+     * @param route route pattern của handler (/product/{id}), null khi không có handler
+     */
+    public void record(String method, String route, int statusCode, long durationMs) {
+        if (!enabled) {
+            return;
+        }
+        LocalDateTime minute = LocalDateTime.now().truncatedTo(ChronoUnit.MINUTES);
+        String endpoint = route != null ? route : UNMATCHED_ENDPOINT;
+
+        Bucket bucket = buckets.get(key(minute, method, endpoint));
+        if (bucket == null) {
+            AtomicInteger endpointCount = endpointsPerMinute.computeIfAbsent(minute, m -> new AtomicInteger());
+            String bucketEndpoint = endpointCount.get() < maxEndpointsPerMinute ? endpoint : OTHER_ENDPOINT;
+            bucket = buckets.computeIfAbsent(key(minute, method, bucketEndpoint), k -> {
+                endpointCount.incrementAndGet();
+                return new Bucket(minute, method, bucketEndpoint);
+            });
+        }
+        bucket.record(statusCode, durationMs);
+    }
+
+    /**
+     * Flush các phút đã đóng ít nhất 1 phút (request đang dở của phút trước vẫn kịp ghi vào bucket)
+     */
+    @Scheduled(initialDelayString = "${api.rollup.flush-interval-ms:15000}",
+            fixedDelayString = "${api.rollup.flush-interval-ms:15000}")
+    public void flush() {
+        flushBefore(LocalDateTime.now().truncatedTo(ChronoUnit.MINUTES).minusMinutes(1));
+    }
+
+    @PreDestroy
+    public void flushAll() {
+        flushBefore(LocalDateTime.MAX);
+    }
+
+    private void flushBefore(LocalDateTime cutoff) {
+        List<Bucket> closed = new ArrayList<>();
+        buckets.forEach((key, bucket) -> {
+            if (bucket.getStart().isBefore(cutoff) && buckets.remove(key, bucket)) {
+                closed.add(bucket);
+            }
+        });
+        endpointsPerMinute.keySet().removeIf(minute -> minute.isBefore(cutoff));
+        if (closed.isEmpty()) {
+            return;
+        }
+
+        try {
+            apiLatencyRollupStore.insert(closed, 60);
+            log.debug("Flushed {} API latency buckets", closed.size());
+        } catch (Exception e) {
+            // Giữ lại để flush lần sau, dồn với bucket cùng key nếu có
+            log.error("Could not flush {} API latency buckets, retrying later: {}", closed.size(), e.getMessage());
+            closed.forEach(bucket -> buckets.merge(key(bucket.getStart(), bucket.getMethod(), bucket.getEndpoint()), bucket,
+                    (current, failed) -> {
+                        current.merge(failed);
+                        return current;
+                    }));
+        }
+    }
+
+    /**
+     * Gộp dòng 1 phút cũ hơn compact-after-hours thành dòng 1 giờ và xóa rollup quá retention-days
+     */
+    @Scheduled(cron = "0 5 * * * ?")
+    public void compact() {
+        Lock lock = redisLockRegistry.obtain(COMPACT_LOCK_KEY);
+        if (!lock.tryLock()) {
+            log.info("Another instance is compacting API latency rollups, skipping...");
+            return;
+        }
+
+        try {
+            LocalDateTime before = LocalDateTime.now().truncatedTo(ChronoUnit.HOURS).minusHours(compactAfterHours);
+            int hours = 0;
+            long rows = 0;
+            LocalDateTime oldest = apiLatencyRollupRepository.findOldestMinuteRollupBefore(before);
+            while (oldest != null) {
+                rows += apiLatencyRollupStore.compactHour(oldest.truncatedTo(ChronoUnit.HOURS));
+                hours++;
+                oldest = apiLatencyRollupRepository.findOldestMinuteRollupBefore(before);
+            }
+            int expired = apiLatencyRollupStore.deleteBefore(LocalDateTime.now().minusDays(retentionDays));
+            log.info("Compacted {} minute rollups into {} hours, deleted {} expired rollups", rows, hours, expired);
+        } catch (Exception e) {
+            log.error("Error compacting API latency rollups: {}", e.getMessage(), e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Thống kê từ fromDate (theo độ phân giải của dòng rollup: phút, hoặc giờ với dữ liệu đã gộp)
+     *
+     * @param top số endpoint trả về trong topEndpoints và slowEndpoints
+     */
+    public ApiStatistics getStatistics(LocalDateTime fromDate, int top) {
+        Map<String, Bucket> byEndpoint = new HashMap<>();
+        for (Object[] row : apiLatencyRollupRepository.findRollupsSince(fromDate)) {
+            String method = (String) row[0];
+            String endpoint = (String) row[1];
+            byEndpoint.computeIfAbsent(method + " " + endpoint, k -> new Bucket(fromDate, method, endpoint)).merge(row);
+        }
+        for (Bucket bucket : buckets.values()) {
+            if (!bucket.getStart().isBefore(fromDate)) {
+                byEndpoint.computeIfAbsent(bucket.getMethod() + " " + bucket.getEndpoint(),
+                        k -> new Bucket(fromDate, bucket.getMethod(), bucket.getEndpoint())).merge(bucket);
+            }
+        }
+
+        Bucket total = new Bucket(fromDate, "*", "*");
+        List<EndpointStats> endpoints = new ArrayList<>();
+        for (Bucket bucket : byEndpoint.values()) {
+            total.merge(bucket);
+            endpoints.add(bucket.toStats());
+        }
+        EndpointStats overall = total.toStats();
+
+        return ApiStatistics.builder()
+                .totalCalls(overall.getCount())
+                .errorCount(overall.getErrors())
+                .errorRate(Math.round(overall.getErrorRate()))
+                .avgResponseTime(Math.round(overall.getAvgMs()))
+                .p50Ms(overall.getP50Ms())
+                .p95Ms(overall.getP95Ms())
+                .p99Ms(overall.getP99Ms())
+                .maxMs(overall.getMaxMs())
+                .topEndpoints(endpoints.stream()
+                        .sorted(Comparator.comparingLong(EndpointStats::getCount).reversed())
+                        .limit(top)
+                        .toList())
+                .slowEndpoints(endpoints.stream()
+                        .sorted(Comparator.comparingLong(EndpointStats::getP99Ms).reversed())
+                        .limit(top)
+                        .toList())
+                .fromDate(fromDate)
+                .timestamp(Instant.now())
+                .build();
+    }
+
+    private static String key(LocalDateTime minute, String method, String endpoint) {
+        return minute + "|" + method + " " + endpoint;
+    }
+
+    /**
+     * Bucket của 1 endpoint trong 1 khoảng thời gian, ghi đồng thời không lock
+     */
+    public static class Bucket {
+        private final LocalDateTime start;
+        private final String method;
+        private final String endpoint;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder sumMs = new LongAdder();
+        private final AtomicLong maxMs = new AtomicLong();
+        private final LatencyHistogram histogram = new LatencyHistogram();
+
+        Bucket(LocalDateTime start, String method, String endpoint) {
+            this.start = start;
+            this.method = method;
+            this.endpoint = endpoint;
+        }
+
+        void record(int statusCode, long durationMs) {
+            count.increment();
+            if (statusCode >= 400) {
+                errors.increment();
+            }
+            sumMs.add(durationMs);
+            maxMs.accumulateAndGet(durationMs, Math::max);
+            histogram.record(durationMs);
+        }
+
+        void merge(Bucket other) {
+            count.add(other.getCount());
+            errors.add(other.getErrors());
+            sumMs.add(other.getSumMs());
+            maxMs.accumulateAndGet(other.getMaxMs(), Math::max);
+            histogram.merge(other.histogram);
+        }
+
+        /**
+         * Cộng 1 dòng rollup [method, endpoint, call_count, error_count, duration_sum_ms, duration_max_ms, histogram]
+         */
+        void merge(Object[] row) {
+            count.add(((Number) row[2]).longValue());
+            errors.add(((Number) row[3]).longValue());
+            sumMs.add(((Number) row[4]).longValue());
+            maxMs.accumulateAndGet(((Number) row[5]).longValue(), Math::max);
+            histogram.merge((String) row[6]);
+        }
+
+        EndpointStats toStats() {
+            long calls = getCount();
+            long maxValue = getMaxMs();
+            return EndpointStats.builder()
+                    .method(method)
+                    .endpoint(endpoint)
+                    .count(calls)
+                    .errors(getErrors())
+                    .errorRate(calls > 0 ? getErrors() * 100.0 / calls : 0)
+                    .avgMs(calls > 0 ? (double) getSumMs() / calls : 0)
+                    // Cận trên bucket có thể vượt giá trị lớn nhất thực tế
+                    .p50Ms(Math.min(histogram.percentile(0.50), maxValue))
+                    .p95Ms(Math.min(histogram.percentile(0.95), maxValue))
+                    .p99Ms(Math.min(histogram.percentile(0.99), maxValue))
+                    .maxMs(maxValue)
+                    .build();
+        }
+
+        public LocalDateTime getStart() {
+            return start;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public String getEndpoint() {
+            return endpoint;
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        public long getSumMs() {
+            return sumMs.sum();
+        }
+
+        public long getMaxMs() {
+            return maxMs.get();
+        }
+
+        public LatencyHistogram getHistogram() {
+            return histogram;
+        }
+    }
+
+    /**
+     * DTO thống kê 1 endpoint, thời gian tính bằng ms
+     */
+    @lombok.Data
+    @lombok.Builder
+    public static class EndpointStats {
+        private String method;
+        private String endpoint;
+        private long count;
+        private long errors;
+        private double errorRate;
+        private double avgMs;
+        private long p50Ms;
+        private long p95Ms;
+        private long p99Ms;
+        private long maxMs;
+    }
+
+    /**
+     * DTO cho /api/admin/api-calls/statistics
+     */
+    @lombok.Data
+    @lombok.Builder
+    public static class ApiStatistics {
+        private long totalCalls;
+        private long errorCount;
+        private long errorRate;
+        private long avgResponseTime;
+        private long p50Ms;
+        private long p95Ms;
+        private long p99Ms;
+        private long maxMs;
+        private List<EndpointStats> topEndpoints;
+        private List<EndpointStats> slowEndpoints;
+        private LocalDateTime fromDate;
+        private Instant timestamp;
+    }
+}
@@ -0,0 +1,66 @@
+package com.badat.study1.service;
+
+import com.badat.study1.repository.ApiLatencyRollupRepository;
+import lombok.RequiredArgsConstructor;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Ghi bảng api_latency_rollup: JDBC batch insert các bucket đã đóng và gộp dòng 1 phút thành 1 giờ
+ * (mỗi giờ 1 transaction: insert dòng giờ rồi xóa dòng phút)
+ */
+@Service
+@RequiredArgsConstructor
+public class ApiLatencyRollupStore {
+
+    private static final String INSERT_ROLLUP_SQL = "INSERT INTO api_latency_rollup " +
+            "(bucket_start, bucket_seconds, method, endpoint, call_count, error_count, duration_sum_ms, duration_max_ms, histogram) " +
+            "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private final ApiLatencyRollupRepository apiLatencyRollupRepository;
+    private final JdbcTemplate jdbcTemplate;
+
+    public void insert(Collection<ApiLatencyRollupService.Bucket> buckets, int bucketSeconds) {
+        List<Object[]> rows = buckets.stream()
+                .map(bucket -> new Object[]{Timestamp.valueOf(bucket.getStart()), bucketSeconds, bucket.getMethod(),
+                        bucket.getEndpoint(), bucket.getCount(), bucket.getErrors(), bucket.getSumMs(), bucket.getMaxMs(),
+                        bucket.getHistogram().encode()})
+                .toList();
+        if (!rows.isEmpty()) {
+            jdbcTemplate.batchUpdate(INSERT_ROLLUP_SQL, rows);
+        }
+    }
+
+    /**
+     * Gộp các dòng 1 phút của giờ bắt đầu từ hourStart thành 1 dòng / endpoint
+     *
+     * @return số dòng phút đã gộp
+     */
+    @Transactional
+    public int compactHour(LocalDateTime hourStart) {
+        LocalDateTime hourEnd = hourStart.plusHours(1);
+        Map<String, ApiLatencyRollupService.Bucket> merged = new LinkedHashMap<>();
+        for (Object[] row : apiLatencyRollupRepository.findMinuteRollupsBetween(hourStart, hourEnd)) {
+            String method = (String) row[0];
+            String endpoint = (String) row[1];
+            merged.computeIfAbsent(method + " " + endpoint,
+                            key -> new ApiLatencyRollupService.Bucket(hourStart, method, endpoint))
+                    .merge(row);
+        }
+        insert(merged.values(), 3600);
+        return apiLatencyRollupRepository.deleteMinuteRollupsBetween(hourStart, hourEnd);
+    }
+
+    @Transactional
+    public int deleteBefore(LocalDateTime before) {
+        return apiLatencyRollupRepository.deleteRollupsBefore(before);
+    }
+}
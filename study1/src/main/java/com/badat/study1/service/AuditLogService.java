@@ -4,6 +4,7 @@ import com.badat.study1.dto.response.AuditLogResponse;
 import com.badat.study1.model.AuditLog;
 import com.badat.study1.model.User;
 import com.badat.study1.repository.AuditLogRepository;
+import jakarta.annotation.PostConstruct;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.domain.Page;
@@ -11,31 +12,47 @@ import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.domain.Sort;
 import org.springframework.stereotype.Service;
-import org.springframework.scheduling.annotation.Async;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.math.BigDecimal;
+import java.sql.Timestamp;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
 
+/**
+ * Audit log: bản ghi DB đi qua sink "auditlog" của TelemetryBus (append vào buffer, insert theo JDBC batch),
+ * dòng file log com.badat.study1.audit vẫn ghi ngay trên thread gọi
+ */
 @Slf4j
 @Service
 @RequiredArgsConstructor
 public class AuditLogService {
 
+    private static final String INSERT_AUDIT_LOG_SQL = "INSERT INTO auditlog " +
+            "(user_id, action, category, details, ip_address, success, failure_reason, device_info, endpoint, method, " +
+            "is_delete, created_by, created_at) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, false, 'SYSTEM', ?)";
+
     private final AuditLogRepository auditLogRepository;
+    private final TelemetryBus telemetryBus;
     private final Logger fileLogger = LoggerFactory.getLogger("com.badat.study1.audit");
 
-    @Async("auditExecutor")
+    private TelemetryBus.Sink<AuditEvent> sink;
+
+    @PostConstruct
+    public void registerSink() {
+        // Audit log không được sample
+        sink = telemetryBus.register("auditlog", AuditEvent.class, INSERT_AUDIT_LOG_SQL, this::bind,
+                event -> true, event -> true);
+    }
+
     public void logRoleChange(User adminUser, User targetUser, User.Role oldRole, User.Role newRole, String reason, String endpoint, String method) {
         logRoleChange(adminUser, targetUser, oldRole, newRole, reason, endpoint, method, "127.0.0.1");
     }
     
-    @Async("auditExecutor")
     public void logRoleChange(User adminUser, User targetUser, User.Role oldRole, User.Role newRole, String reason, String endpoint, String method, String ipAddress) {
         try {
             AuditLog auditLog = AuditLog.builder()
@@ -53,7 +70,7 @@ public class AuditLogService {
                     .method(method)
                     .build();
             
-            auditLogRepository.save(auditLog);
+            publish(auditLog);
             
             // Log to file
             fileLogger.info("ROLE_CHANGE: Admin {} changed user {} role from {} to {}. Reason: {}", 
@@ -64,12 +81,10 @@ public class AuditLogService {
         }
     }
 
-    @Async("auditExecutor")
     public void logUserEdit(User adminUser, User targetUser, Map<String, String> changes, String endpoint, String method) {
         logUserEdit(adminUser, targetUser, changes, endpoint, method, "127.0.0.1");
     }
     
-    @Async("auditExecutor")
     public void logUserEdit(User adminUser, User targetUser, Map<String, String> changes, String endpoint, String method, String ipAddress) {
         try {
             StringBuilder details = new StringBuilder();
@@ -103,7 +118,7 @@ public class AuditLogService {
                     .method(method)
                     .build();
             
-            auditLogRepository.save(auditLog);
+            publish(auditLog);
             
             // Log to file
             fileLogger.info("USER_EDIT: Admin {} edited user {} information. Changes: {}", 
@@ -114,12 +129,10 @@ public class AuditLogService {
         }
     }
 
-    @Async("auditExecutor")
     public void logUserCreation(User adminUser, User newUser, String endpoint, String method) {
         logUserCreation(adminUser, newUser, endpoint, method, "127.0.0.1");
     }
     
-    @Async("auditExecutor")
     public void logUserCreation(User adminUser, User newUser, String endpoint, String method, String ipAddress) {
         try {
             AuditLog auditLog = AuditLog.builder()
@@ -136,7 +149,7 @@ public class AuditLogService {
                     .method(method)
                     .build();
             
-            auditLogRepository.save(auditLog);
+            publish(auditLog);
             
             // Log to file
             fileLogger.info("USER_CREATE: Admin {} created new user {} (Email: {})", 
@@ -148,7 +161,6 @@ public class AuditLogService {
     }
 
 
-    @Async("auditExecutor")
     public void logAccountLocked(User user, String ipAddress, String reason, String endpoint, String method) {
         try {
             AuditLog auditLog = AuditLog.builder()
@@ -163,7 +175,7 @@ public class AuditLogService {
                     .method(method)
                     .build();
             
-            auditLogRepository.save(auditLog);
+            publish(auditLog);
             fileLogger.info("ACCOUNT_LOCKED userId={} ip={} reason=\"{}\"", user.getId(), ipAddress, reason);
             log.info("Audit log created for account lock: user={}, ip={}, reason={}", 
                     user.getUsername(), ipAddress, reason);
@@ -172,7 +184,6 @@ public class AuditLogService {
         }
     }
 
-    @Async("auditExecutor")
     public void logAccountUnlocked(User user, String ipAddress, String endpoint, String method) {
         try {
             AuditLog auditLog = AuditLog.builder()
@@ -186,7 +197,7 @@ public class AuditLogService {
                     .method(method)
                     .build();
             
-            auditLogRepository.save(auditLog);
+            publish(auditLog);
             fileLogger.info("ACCOUNT_UNLOCKED userId={} ip={}", user.getId(), ipAddress);
             log.info("Audit log created for account unlock: user={}, ip={}", user.getUsername(), ipAddress);
         } catch (Exception e) {
@@ -195,7 +206,6 @@ public class AuditLogService {
     }
     
 
-    @Async("auditExecutor")
     public void logAction(User user, String action, String details, String ipAddress, boolean success, String failureReason, String deviceInfo, String endpoint, String method, AuditLog.Category category) {
         try {
             AuditLog auditLog = AuditLog.builder()
@@ -211,7 +221,7 @@ public class AuditLogService {
                     .method(method)
                     .build();
 
-            auditLogRepository.save(auditLog);
+            publish(auditLog);
             fileLogger.info("{} userId={} ip={} success={} details=\"{}\" reason={} ua=\"{}\" category={} endpoint={} method={}",
                     action, auditLog.getUserId(), ipAddress, success, details, failureReason, auditLog.getDeviceInfo(), category, endpoint, method);
         } catch (Exception e) {
@@ -392,7 +402,6 @@ public class AuditLogService {
         }
     }
 
-    @Async("auditExecutor")
     public void logWithdrawApproved(User admin, Long withdrawId, BigDecimal amount, String endpoint, String method) {
         try {
             AuditLog auditLog = AuditLog.builder()
@@ -409,7 +418,7 @@ public class AuditLogService {
                     .method(method)
                     .build();
             
-            auditLogRepository.save(auditLog);
+            publish(auditLog);
             fileLogger.info("WITHDRAW_APPROVED userId={} withdrawId={} amount={} endpoint={} method={}", 
                 admin.getId(), withdrawId, amount, endpoint, method);
             
@@ -418,7 +427,6 @@ public class AuditLogService {
         }
     }
 
-    @Async("auditExecutor")
     public void logWithdrawRejected(User admin, Long withdrawId, BigDecimal amount, String reason, String endpoint, String method) {
         try {
             AuditLog auditLog = AuditLog.builder()
@@ -435,7 +443,7 @@ public class AuditLogService {
                     .method(method)
                     .build();
             
-            auditLogRepository.save(auditLog);
+            publish(auditLog);
             fileLogger.info("WITHDRAW_REJECTED userId={} withdrawId={} amount={} reason=\"{}\" endpoint={} method={}", 
                 admin.getId(), withdrawId, amount, reason, endpoint, method);
             
@@ -444,7 +452,6 @@ public class AuditLogService {
         }
     }
 
-    @Async("auditExecutor")
     public void logOrderApproved(User admin, Long orderId, String orderCode, String endpoint, String method) {
         try {
             AuditLog auditLog = AuditLog.builder()
@@ -461,7 +468,7 @@ public class AuditLogService {
                     .method(method)
                     .build();
             
-            auditLogRepository.save(auditLog);
+            publish(auditLog);
             fileLogger.info("ORDER_APPROVED userId={} orderId={} orderCode={} endpoint={} method={}", 
                 admin.getId(), orderId, orderCode, endpoint, method);
             
@@ -470,7 +477,6 @@ public class AuditLogService {
         }
     }
 
-    @Async("auditExecutor")
     public void logOrderRejected(User admin, Long orderId, String orderCode, String reason, String endpoint, String method) {
         try {
             AuditLog auditLog = AuditLog.builder()
@@ -487,7 +493,7 @@ public class AuditLogService {
                     .method(method)
                     .build();
             
-            auditLogRepository.save(auditLog);
+            publish(auditLog);
             fileLogger.info("ORDER_REJECTED userId={} orderId={} orderCode={} reason=\"{}\" endpoint={} method={}", 
                 admin.getId(), orderId, orderCode, reason, endpoint, method);
             
@@ -496,7 +502,6 @@ public class AuditLogService {
         }
     }
 
-    @Async("auditExecutor")
     public void logFailedLoginAttempt(String username, String ipAddress, String reason, String endpoint, String method) {
         try {
             AuditLog auditLog = AuditLog.builder()
@@ -513,7 +518,7 @@ public class AuditLogService {
                     .method(method)
                     .build();
             
-            auditLogRepository.save(auditLog);
+            publish(auditLog);
             fileLogger.info("FAILED_LOGIN_ATTEMPT username=\"{}\" ip={} reason=\"{}\" endpoint={} method={}", 
                 username, ipAddress, reason, endpoint, method);
             
@@ -522,7 +527,6 @@ public class AuditLogService {
         }
     }
 
-    @Async("auditExecutor")
     public void logPasswordResetRequested(String email, String ipAddress, String endpoint, String method) {
         try {
             AuditLog auditLog = AuditLog.builder()
@@ -538,7 +542,7 @@ public class AuditLogService {
                     .method(method)
                     .build();
             
-            auditLogRepository.save(auditLog);
+            publish(auditLog);
             fileLogger.info("PASSWORD_RESET_REQUESTED email=\"{}\" ip={} endpoint={} method={}", 
                 email, ipAddress, endpoint, method);
             
@@ -546,5 +550,54 @@ public class AuditLogService {
             log.error("Error logging password reset request for email {}: {}", email, e.getMessage());
         }
     }
-    
+
+    private void publish(AuditLog auditLog) {
+        sink.publish(AuditEvent.builder()
+                .userId(auditLog.getUserId())
+                .action(auditLog.getAction())
+                .category(auditLog.getCategory())
+                .details(auditLog.getDetails())
+                .ipAddress(auditLog.getIpAddress())
+                .success(Boolean.TRUE.equals(auditLog.getSuccess()))
+                .failureReason(auditLog.getFailureReason())
+                .deviceInfo(auditLog.getDeviceInfo())
+                .endpoint(auditLog.getEndpoint())
+                .method(auditLog.getMethod())
+                .createdAt(LocalDateTime.now())
+                .build());
+    }
+
+    private Object[] bind(AuditEvent event) {
+        return new Object[]{
+                event.getUserId(), truncate(event.getAction(), 255), event.getCategory().name(), event.getDetails(),
+                truncate(event.getIpAddress(), 50), event.isSuccess(), event.getFailureReason(),
+                truncate(event.getDeviceInfo(), 500), truncate(event.getEndpoint(), 255), truncate(event.getMethod(), 10),
+                Timestamp.valueOf(event.getCreatedAt())
+        };
+    }
+
+    private String truncate(String value, int maxLength) {
+        return value != null && value.length() > maxLength ? value.substring(0, maxLength) : value;
+    }
+
+    /**
+     * 1 dòng auditlog trong buffer (cũng là định dạng 1 dòng của file spill)
+     */
+    @lombok.Data
+    @lombok.Builder
+    @lombok.NoArgsConstructor
+    @lombok.AllArgsConstructor
+    public static class AuditEvent {
+        private Long userId;
+        private String action;
+        private AuditLog.Category category;
+        private String details;
+        private String ipAddress;
+        private boolean success;
+        private String failureReason;
+        private String deviceInfo;
+        private String endpoint;
+        private String method;
+        private LocalDateTime createdAt;
+    }
 }
@@ -0,0 +1,449 @@
+package com.badat.study1.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.RecoverableDataAccessException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.CannotCreateTransactionException;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Ghi log vào 1 bảng qua ring buffer có giới hạn và 1 consumer thread
+ * Request thread chỉ append vào buffer; consumer gom batch (đủ batchSize dòng hoặc sau flushIntervalMs)
+ * rồi insert bằng 1 JDBC batch trong 1 transaction (batch lỗi không để lại dòng nào). Buffer đầy thì request thread chờ tối đa offerTimeoutMs (backpressure)
+ * rồi ghi ra file spill; batch lỗi do không kết nối được DB cũng được ghi ra file spill và consumer đọc lại
+ * file spill (NDJSON) khi DB ghi được trở lại. Batch lỗi vì lý do khác được ghi lại từng dòng, dòng vẫn lỗi
+ * được chuyển sang file dead letter <name>.dead.ndjson cạnh file spill (cùng định dạng, sửa xong có thể
+ * chép sang file spill để replay) để 1 dòng hỏng không chặn cả batch và file spill mãi mãi
+ */
+@Slf4j
+public class BatchingJdbcWriter<T> {
+
+    private final String name;
+    private final Class<T> eventType;
+    private final String insertSql;
+    private final Function<T, Object[]> binder;
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final ObjectMapper objectMapper;
+    private final Settings settings;
+
+    private final BlockingQueue<T> buffer;
+    private final Path spillFile;
+    private final Path deadLetterFile;
+    private final Object spillLock = new Object();
+    private Thread consumer;
+    private volatile boolean running;
+    private long lastReplayAt;
+
+    private final LongAdder appended = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder backpressured = new LongAdder();
+    private final LongAdder spilled = new LongAdder();
+    private final LongAdder replayed = new LongAdder();
+    private final LongAdder failedBatches = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder deadLettered = new LongAdder();
+    // Histogram thời gian 1 lần batch insert, bucket i = [2^i, 2^(i+1)) ms
+    private final AtomicLongArray flushLatencyBuckets = new AtomicLongArray(16);
+
+    public BatchingJdbcWriter(String name, Class<T> eventType, String insertSql, Function<T, Object[]> binder,
+                              JdbcTemplate jdbcTemplate, TransactionTemplate transactionTemplate,
+                              ObjectMapper objectMapper, Settings settings) {
+        this.name = name;
+        this.eventType = eventType;
+        this.insertSql = insertSql;
+        this.binder = binder;
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+        this.objectMapper = objectMapper;
+        this.settings = settings;
+        this.buffer = new ArrayBlockingQueue<>(settings.getCapacity());
+        this.spillFile = Paths.get(settings.getSpillDir()).toAbsolutePath().normalize().resolve(name + ".spill.ndjson");
+        this.deadLetterFile = spillFile.resolveSibling(name + ".dead.ndjson");
+    }
+
+    public void start() {
+        running = true;
+        consumer = new Thread(this::consume, name + "-writer");
+        consumer.setDaemon(true);
+        consumer.start();
+        log.info("Batching writer {} started with buffer capacity {}, batch size {}, flush interval {}ms",
+                name, settings.getCapacity(), settings.getBatchSize(), settings.getFlushIntervalMs());
+    }
+
+    /**
+     * Dừng consumer và ghi nốt các dòng còn trong buffer
+     */
+    public void stop() {
+        running = false;
+        if (consumer == null) {
+            return;
+        }
+        try {
+            consumer.join(settings.getShutdownTimeoutMs());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (consumer.isAlive()) {
+            consumer.interrupt();
+        }
+        // Consumer không kịp ghi thì chuyển phần còn lại ra file spill
+        List<T> remaining = new ArrayList<>();
+        buffer.drainTo(remaining);
+        if (!remaining.isEmpty()) {
+            spill(remaining);
+        }
+    }
+
+    /**
+     * Append 1 dòng - không ghi DB trên thread gọi
+     */
+    public void append(T event) {
+        appended.increment();
+        if (buffer.offer(event)) {
+            return;
+        }
+
+        backpressured.increment();
+        try {
+            if (buffer.offer(event, settings.getOfferTimeoutMs(), TimeUnit.MILLISECONDS)) {
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        spill(List.of(event));
+    }
+
+    private void consume() {
+        List<T> batch = new ArrayList<>(settings.getBatchSize());
+        while (running || !buffer.isEmpty()) {
+            try {
+                T first = buffer.poll(settings.getFlushIntervalMs(), TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    // Gom tiếp đến khi đủ batch hoặc hết flush interval tính từ dòng đầu tiên
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(settings.getFlushIntervalMs());
+                    while (batch.size() < settings.getBatchSize()) {
+                        buffer.drainTo(batch, settings.getBatchSize() - batch.size());
+                        long remainingNanos = deadline - System.nanoTime();
+                        if (batch.size() >= settings.getBatchSize() || remainingNanos <= 0 || !running) {
+                            break;
+                        }
+                        T next = buffer.poll(remainingNanos, TimeUnit.NANOSECONDS);
+                        if (next == null) {
+                            break;
+                        }
+                        batch.add(next);
+                    }
+                    flush(batch);
+                    batch.clear();
+                }
+                replaySpillIfDue();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (!batch.isEmpty()) {
+                    spill(batch);
+                }
+                return;
+            } catch (Exception e) {
+                log.error("Batching writer {} loop error: {}", name, e.getMessage(), e);
+            }
+        }
+    }
+
+    private void flush(List<T> batch) {
+        List<T> unwritten = write(batch);
+        if (!unwritten.isEmpty()) {
+            spill(unwritten);
+        }
+    }
+
+    /**
+     * Insert batch; batch lỗi không phải do kết nối thì ghi lại từng dòng, dòng vẫn lỗi thì dead letter
+     *
+     * @return các dòng chưa ghi vì không kết nối được DB (cần giữ lại trong file spill)
+     */
+    private List<T> write(List<T> batch) {
+        try {
+            insert(batch);
+            return List.of();
+        } catch (Exception e) {
+            failedBatches.increment();
+            if (isConnectivityError(e)) {
+                log.error("Batching writer {} could not reach the database for {} rows: {}", name, batch.size(), e.getMessage());
+                return batch;
+            }
+            log.warn("Batching writer {} failed to insert {} rows, retrying row by row: {}", name, batch.size(), e.getMessage());
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            T event = batch.get(i);
+            try {
+                insert(List.of(event));
+            } catch (Exception e) {
+                if (isConnectivityError(e)) {
+                    log.error("Batching writer {} lost the database while retrying rows: {}", name, e.getMessage());
+                    return new ArrayList<>(batch.subList(i, batch.size()));
+                }
+                deadLetter(event, e);
+            }
+        }
+        return List.of();
+    }
+
+    private void insert(List<T> batch) {
+        List<Object[]> args = new ArrayList<>(batch.size());
+        for (T event : batch) {
+            args.add(binder.apply(event));
+        }
+        long startNanos = System.nanoTime();
+        // JDBC batch chạy tiếp sau dòng lỗi - transaction để batch lỗi rollback hết trước khi ghi lại từng dòng
+        transactionTemplate.executeWithoutResult(status -> jdbcTemplate.batchUpdate(insertSql, args));
+        recordFlushLatency(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        written.add(batch.size());
+    }
+
+    /**
+     * Lỗi có thể hết khi DB ghi được trở lại (mất kết nối, timeout, deadlock) - các lỗi khác do chính dòng dữ liệu
+     */
+    private boolean isConnectivityError(Exception e) {
+        return e instanceof DataAccessResourceFailureException
+                || e instanceof CannotCreateTransactionException
+                || e instanceof TransientDataAccessException
+                || e instanceof RecoverableDataAccessException;
+    }
+
+    private void deadLetter(T event, Exception e) {
+        deadLettered.increment();
+        String row;
+        try {
+            row = objectMapper.writeValueAsString(event);
+        } catch (JsonProcessingException jsonError) {
+            dropped.increment();
+            log.error("Batching writer {} dropped row that can be neither inserted nor serialized: {} - {}", name, e.getMessage(), event);
+            return;
+        }
+        log.error("Batching writer {} moved row that cannot be inserted to {}: {} - {}", name, deadLetterFile, e.getMessage(), row);
+
+        synchronized (spillLock) {
+            try {
+                Files.createDirectories(deadLetterFile.getParent());
+                Files.write(deadLetterFile, List.of(row), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } catch (IOException ioError) {
+                dropped.increment();
+                log.error("Batching writer {} could not write dead letter to {}: {}", name, deadLetterFile, ioError.getMessage());
+            }
+        }
+    }
+
+    private void spill(List<T> events) {
+        synchronized (spillLock) {
+            try {
+                Files.createDirectories(spillFile.getParent());
+                try (BufferedWriter writer = Files.newBufferedWriter(spillFile, StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                    for (T event : events) {
+                        writer.write(objectMapper.writeValueAsString(event));
+                        writer.newLine();
+                    }
+                }
+                spilled.add(events.size());
+            } catch (IOException e) {
+                // Không còn chỗ nào để ghi - mất dòng
+                dropped.add(events.size());
+                log.error("Batching writer {} could not spill {} rows to {}: {}", name, events.size(), spillFile, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Đọc lại file spill theo batch; khi mất kết nối DB thì phần chưa ghi và phần chưa đọc được giữ lại trong file spill
+     */
+    private void replaySpillIfDue() throws IOException {
+        long now = System.currentTimeMillis();
+        if (now - lastReplayAt < settings.getReplayIntervalMs()) {
+            return;
+        }
+        lastReplayAt = now;
+
+        Path replayFile = spillFile.resolveSibling(spillFile.getFileName() + ".replay");
+        synchronized (spillLock) {
+            if (!Files.exists(replayFile)) {
+                if (!Files.exists(spillFile)) {
+                    return;
+                }
+                Files.move(spillFile, replayFile, StandardCopyOption.ATOMIC_MOVE);
+            }
+        }
+
+        List<String> pending = new ArrayList<>();
+        List<T> batch = new ArrayList<>(settings.getBatchSize());
+        List<String> batchLines = new ArrayList<>(settings.getBatchSize());
+        boolean failed = false;
+        try (BufferedReader reader = Files.newBufferedReader(replayFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                if (failed) {
+                    pending.add(line);
+                    continue;
+                }
+                try {
+                    batch.add(objectMapper.readValue(line, eventType));
+                } catch (JsonProcessingException e) {
+                    log.warn("Batching writer {} skipped unreadable spill line: {}", name, e.getMessage());
+                    continue;
+                }
+                batchLines.add(line);
+                if (batch.size() >= settings.getBatchSize()) {
+                    failed = !replay(batch, batchLines, pending);
+                }
+            }
+            if (!failed && !batch.isEmpty()) {
+                replay(batch, batchLines, pending);
+            }
+        }
+
+        synchronized (spillLock) {
+            if (!pending.isEmpty()) {
+                Files.write(spillFile, pending, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            Files.delete(replayFile);
+        }
+    }
+
+    private boolean replay(List<T> batch, List<String> batchLines, List<String> pending) {
+        long writtenBefore = written.sum();
+        List<T> unwritten = write(batch);
+        replayed.add(written.sum() - writtenBefore);
+        // Dòng chưa ghi luôn là phần cuối của batch
+        boolean ok = unwritten.isEmpty();
+        pending.addAll(batchLines.subList(batch.size() - unwritten.size(), batch.size()));
+        batch.clear();
+        batchLines.clear();
+        return ok;
+    }
+
+    private void recordFlushLatency(long latencyMs) {
+        int bucket = latencyMs <= 0 ? 0 : Math.min(63 - Long.numberOfLeadingZeros(latencyMs), flushLatencyBuckets.length() - 1);
+        flushLatencyBuckets.incrementAndGet(bucket);
+    }
+
+    /**
+     * Percentile xấp xỉ (cận trên của bucket) của thời gian batch insert
+     */
+    private long flushLatencyPercentileMs(double percentile) {
+        long total = 0;
+        for (int i = 0; i < flushLatencyBuckets.length(); i++) {
+            total += flushLatencyBuckets.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long threshold = (long) Math.ceil(total * percentile);
+        long cumulative = 0;
+        for (int i = 0; i < flushLatencyBuckets.length(); i++) {
+            cumulative += flushLatencyBuckets.get(i);
+            if (cumulative >= threshold) {
+                return 1L << (i + 1);
+            }
+        }
+        return 1L << flushLatencyBuckets.length();
+    }
+
+    /**
+     * Lấy snapshot metrics của writer
+     */
+    public WriterStats getStats() {
+        long spillBytes = 0;
+        long deadLetterBytes = 0;
+        try {
+            spillBytes = Files.exists(spillFile) ? Files.size(spillFile) : 0;
+            deadLetterBytes = Files.exists(deadLetterFile) ? Files.size(deadLetterFile) : 0;
+        } catch (IOException e) {
+            log.debug("Could not read spill file size of {}: {}", name, e.getMessage());
+        }
+        return WriterStats.builder()
+                .name(name)
+                .appended(appended.sum())
+                .written(written.sum())
+                .queued(buffer.size())
+                .backpressured(backpressured.sum())
+                .spilled(spilled.sum())
+                .replayed(replayed.sum())
+                .failedBatches(failedBatches.sum())
+                .dropped(dropped.sum())
+                .deadLettered(deadLettered.sum())
+                .p50FlushMs(flushLatencyPercentileMs(0.50))
+                .p99FlushMs(flushLatencyPercentileMs(0.99))
+                .spillFileBytes(spillBytes)
+                .deadLetterFileBytes(deadLetterBytes)
+                .timestamp(Instant.now())
+                .build();
+    }
+
+    /**
+     * Cấu hình của 1 writer
+     */
+    @lombok.Data
+    @lombok.Builder
+    public static class Settings {
+        private int capacity;
+        private int batchSize;
+        private long flushIntervalMs;
+        private long offerTimeoutMs;
+        private long replayIntervalMs;
+        private long shutdownTimeoutMs;
+        private String spillDir;
+    }
+
+    /**
+     * DTO cho metrics writer
+     */
+    @lombok.Data
+    @lombok.Builder
+    public static class WriterStats {
+        private String name;
+        private long appended;
+        private long written;
+        private int queued;
+        private long backpressured;
+        private long spilled;
+        private long replayed;
+        private long failedBatches;
+        private long dropped;
+        private long deadLettered;
+        private long p50FlushMs;
+        private long p99FlushMs;
+        private long spillFileBytes;
+        private long deadLetterFileBytes;
+        private Instant timestamp;
+    }
+}
@@ -0,0 +1,379 @@
+package com.badat.study1.service;
+
+import com.badat.study1.dto.response.ProductDTO;
+import com.badat.study1.repository.ProductRepository;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.integration.redis.util.RedisLockRegistry;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Cart store trên Redis: cart đang dùng nằm trong hash cart:{userId}:items (productId -> quantity),
+ * mọi thao tác thêm/sửa/xóa chỉ là 1 Lua script trên Redis, không chạm DB
+ * Cart thay đổi được đánh dấu trong ZSET cart:dirty và flusher ghi xuống cart/cart_item theo chu kỳ (write-behind).
+ * Cart không được dùng quá idle-timeout được flush rồi gỡ khỏi Redis, lần truy cập sau nạp lại từ DB
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class CartCacheService {
+
+    private static final String DIRTY_KEY = "cart:dirty";
+    private static final String ACTIVE_KEY = "cart:active";
+    private static final String FLUSH_LOCK_KEY = "cart:flush";
+    private static final String PRODUCT_KEY_PREFIX = "cart:product:";
+
+    // KEYS = items, meta, active; ARGV[1] = now, ARGV[2] = userId, ARGV[3] = '1' nếu cập nhật lần truy cập
+    // Trả về [cartId, updatedAt, version, productId1, qty1, ...] hoặc nil nếu cart chưa nạp vào Redis
+    private static final RedisScript<List> READ = new DefaultRedisScript<>(
+            "if redis.call('EXISTS', KEYS[2]) == 0 then return nil end " +
+            "if ARGV[3] == '1' then redis.call('ZADD', KEYS[3], ARGV[1], ARGV[2]) end " +
+            "local result = redis.call('HMGET', KEYS[2], 'cartId', 'updatedAt', 'version') " +
+            "local items = redis.call('HGETALL', KEYS[1]) " +
+            "for i = 1, #items do result[#result + 1] = items[i] end " +
+            "return result", List.class);
+
+    // KEYS = items, meta, active; ARGV[1] = now, ARGV[2] = userId, ARGV[3] = cartId, ARGV[4..] = productId, qty
+    // Chỉ nạp khi cart chưa có trong Redis nên nhiều request nạp cùng lúc không ghi đè thay đổi mới
+    private static final RedisScript<Long> HYDRATE = new DefaultRedisScript<>(
+            "if redis.call('EXISTS', KEYS[2]) == 1 then return 0 end " +
+            "redis.call('DEL', KEYS[1]) " +
+            "for i = 4, #ARGV, 2 do redis.call('HSET', KEYS[1], ARGV[i], ARGV[i + 1]) end " +
+            "redis.call('HSET', KEYS[2], 'cartId', ARGV[3], 'updatedAt', ARGV[1], 'version', 0) " +
+            "redis.call('ZADD', KEYS[3], ARGV[1], ARGV[2]) " +
+            "return 1", Long.class);
+
+    // KEYS = items, meta, dirty, active; ARGV[1] = op, ARGV[2] = productId, ARGV[3] = quantity, ARGV[4] = now, ARGV[5] = userId
+    // Trả về quantity mới, -1 nếu cart chưa nạp vào Redis, -2 nếu sản phẩm không có trong cart
+    private static final RedisScript<Long> MUTATE = new DefaultRedisScript<>(
+            "if redis.call('EXISTS', KEYS[2]) == 0 then return -1 end " +
+            "local result = 0 " +
+            "if ARGV[1] == 'add' then result = redis.call('HINCRBY', KEYS[1], ARGV[2], ARGV[3]) " +
+            "elseif ARGV[1] == 'set' then " +
+            "  if redis.call('HEXISTS', KEYS[1], ARGV[2]) == 0 then return -2 end " +
+            "  redis.call('HSET', KEYS[1], ARGV[2], ARGV[3]) result = tonumber(ARGV[3]) " +
+            "elseif ARGV[1] == 'remove' then " +
+            "  if redis.call('HDEL', KEYS[1], ARGV[2]) == 0 then return -2 end " +
+            "else redis.call('DEL', KEYS[1]) end " +
+            "redis.call('HINCRBY', KEYS[2], 'version', 1) " +
+            "redis.call('HSET', KEYS[2], 'updatedAt', ARGV[4]) " +
+            "redis.call('ZADD', KEYS[3], ARGV[4], ARGV[5]) " +
+            "redis.call('ZADD', KEYS[4], ARGV[4], ARGV[5]) " +
+            "return result", Long.class);
+
+    // KEYS = meta, dirty; ARGV[1] = version đã flush, ARGV[2] = userId, ARGV[3] = cartId
+    // Chỉ bỏ dirty nếu không có thay đổi mới trong lúc flush
+    private static final RedisScript<Long> MARK_FLUSHED = new DefaultRedisScript<>(
+            "if redis.call('EXISTS', KEYS[1]) == 0 then redis.call('ZREM', KEYS[2], ARGV[2]) return 1 end " +
+            "redis.call('HSET', KEYS[1], 'cartId', ARGV[3]) " +
+            "if redis.call('HGET', KEYS[1], 'version') == ARGV[1] then redis.call('ZREM', KEYS[2], ARGV[2]) return 1 end " +
+            "return 0", Long.class);
+
+    // KEYS = items, meta, dirty, active; ARGV[1] = userId, ARGV[2] = mốc idle
+    // Chỉ gỡ cart đã flush và không được dùng lại kể từ lúc quét
+    private static final RedisScript<Long> EVICT = new DefaultRedisScript<>(
+            "if redis.call('ZSCORE', KEYS[3], ARGV[1]) then return 0 end " +
+            "local last = redis.call('ZSCORE', KEYS[4], ARGV[1]) " +
+            "if last and tonumber(last) > tonumber(ARGV[2]) then return 0 end " +
+            "redis.call('DEL', KEYS[1], KEYS[2]) " +
+            "redis.call('ZREM', KEYS[4], ARGV[1]) " +
+            "return 1", Long.class);
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final CartPersistenceService cartPersistenceService;
+    private final ProductRepository productRepository;
+    private final RedisLockRegistry redisLockRegistry;
+    private final ObjectMapper objectMapper;
+
+    @Value("${cart.cache.idle-timeout-ms:1800000}")
+    private long idleTimeoutMs;
+
+    @Value("${cart.cache.flush-batch-size:200}")
+    private int flushBatchSize;
+
+    @Value("${cart.cache.product-ttl-seconds:60}")
+    private long productTtlSeconds;
+
+    /**
+     * Đọc cart của user từ Redis, nạp từ DB nếu cart chưa có trong Redis
+     */
+    public CachedCart getCart(Long userId) {
+        List<?> result = read(userId, true);
+        if (result == null) {
+            hydrate(userId);
+            result = read(userId, true);
+        }
+        return toCachedCart(result);
+    }
+
+    /**
+     * Cộng thêm quantity cho sản phẩm (thêm mới nếu chưa có), trả về quantity mới
+     */
+    public long addQuantity(Long userId, Long productId, int quantity) {
+        return mutate(userId, "add", productId, quantity);
+    }
+
+    /**
+     * Đặt quantity cho sản phẩm đã có trong cart
+     */
+    public long setQuantity(Long userId, Long productId, int quantity) {
+        return mutate(userId, "set", productId, quantity);
+    }
+
+    public void removeProduct(Long userId, Long productId) {
+        mutate(userId, "remove", productId, 0);
+    }
+
+    public void clear(Long userId) {
+        mutate(userId, "clear", 0L, 0);
+    }
+
+    /**
+     * Thông tin sản phẩm để hiển thị cart - cache ngắn hạn trong Redis, miss thì đọc DB 1 query cho tất cả
+     * Sản phẩm không còn trong DB không có trong kết quả
+     */
+    public Map<Long, ProductDTO> getProducts(Collection<Long> productIds) {
+        Map<Long, ProductDTO> products = new HashMap<>();
+        if (productIds.isEmpty()) {
+            return products;
+        }
+
+        List<Long> ids = new ArrayList<>(productIds);
+        List<String> cached = stringRedisTemplate.opsForValue()
+                .multiGet(ids.stream().map(id -> PRODUCT_KEY_PREFIX + id).toList());
+        List<Long> missing = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++) {
+            String json = cached != null ? cached.get(i) : null;
+            ProductDTO product = json != null ? readProduct(json) : null;
+            if (product != null) {
+                products.put(ids.get(i), product);
+            } else {
+                missing.add(ids.get(i));
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            productRepository.findAllById(missing).forEach(entity -> {
+                ProductDTO product = ProductDTO.fromEntity(entity);
+                products.put(product.getId(), product);
+                try {
+                    stringRedisTemplate.opsForValue().set(PRODUCT_KEY_PREFIX + product.getId(),
+                            objectMapper.writeValueAsString(product), Duration.ofSeconds(productTtlSeconds));
+                } catch (JsonProcessingException e) {
+                    log.warn("Failed to cache product {} for cart: {}", product.getId(), e.getMessage());
+                }
+            });
+        }
+        return products;
+    }
+
+    /**
+     * Write-behind: ghi các cart đã thay đổi xuống DB - chỉ 1 node chạy nhờ Redis lock
+     */
+    @Scheduled(fixedDelayString = "${cart.cache.flush-interval-ms:2000}")
+    public void flushDirtyCarts() {
+        Lock lock = redisLockRegistry.obtain(FLUSH_LOCK_KEY);
+        if (!lock.tryLock()) {
+            return;
+        }
+
+        try {
+            Set<String> dirty;
+            int flushed = 0;
+            do {
+                dirty = stringRedisTemplate.opsForZSet().range(DIRTY_KEY, 0, flushBatchSize - 1);
+                if (dirty == null || dirty.isEmpty()) {
+                    break;
+                }
+                int before = flushed;
+                for (String member : dirty) {
+                    if (flush(Long.valueOf(member))) {
+                        flushed++;
+                    }
+                }
+                // Không cart nào flush được (DB lỗi hoặc cart liên tục thay đổi) - để tick sau
+                if (flushed == before) {
+                    break;
+                }
+            } while (dirty.size() == flushBatchSize);
+
+            if (flushed > 0) {
+                log.debug("Flushed {} carts to database", flushed);
+            }
+        } catch (Exception e) {
+            log.warn("Failed to flush dirty carts: {}", e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gỡ các cart không dùng quá idle-timeout khỏi Redis (flush trước nếu còn thay đổi chưa ghi)
+     */
+    @Scheduled(fixedDelayString = "${cart.cache.evict-interval-ms:60000}")
+    public void evictIdleCarts() {
+        Lock lock = redisLockRegistry.obtain(FLUSH_LOCK_KEY);
+        if (!lock.tryLock()) {
+            return;
+        }
+
+        try {
+            long cutoff = System.currentTimeMillis() - idleTimeoutMs;
+            Set<String> idle = stringRedisTemplate.opsForZSet().rangeByScore(ACTIVE_KEY, 0, cutoff, 0, flushBatchSize);
+            if (idle == null || idle.isEmpty()) {
+                return;
+            }
+
+            int evicted = 0;
+            for (String member : idle) {
+                Long userId = Long.valueOf(member);
+                if (stringRedisTemplate.opsForZSet().score(DIRTY_KEY, member) != null) {
+                    flush(userId);
+                }
+                Long removed = stringRedisTemplate.execute(EVICT, List.of(itemsKey(userId), metaKey(userId), DIRTY_KEY, ACTIVE_KEY),
+                        member, String.valueOf(cutoff));
+                if (removed != null && removed == 1) {
+                    evicted++;
+                }
+            }
+            log.info("Evicted {} idle carts from Redis", evicted);
+        } catch (Exception e) {
+            log.warn("Failed to evict idle carts: {}", e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ghi cart của 1 user xuống DB, trả về true nếu cart đã sạch sau khi ghi
+     */
+    private boolean flush(Long userId) {
+        try {
+            List<?> snapshot = read(userId, false);
+            if (snapshot == null) {
+                // Cart không còn trong Redis (Redis bị xóa dữ liệu) - không còn gì để ghi
+                stringRedisTemplate.opsForZSet().remove(DIRTY_KEY, userId.toString());
+                return true;
+            }
+
+            CachedCart cart = toCachedCart(snapshot);
+            Long cartId = cartPersistenceService.persist(userId, cart.getQuantities());
+            Long clean = stringRedisTemplate.execute(MARK_FLUSHED, List.of(metaKey(userId), DIRTY_KEY),
+                    String.valueOf(cart.getVersion()), userId.toString(), cartId.toString());
+            return clean != null && clean == 1;
+        } catch (Exception e) {
+            log.warn("Failed to flush cart of user {}: {}", userId, e.getMessage());
+            return false;
+        }
+    }
+
+    private long mutate(Long userId, String op, Long productId, int quantity) {
+        for (int attempt = 0; attempt < 2; attempt++) {
+            String now = String.valueOf(System.currentTimeMillis());
+            Long result = stringRedisTemplate.execute(MUTATE,
+                    List.of(itemsKey(userId), metaKey(userId), DIRTY_KEY, ACTIVE_KEY),
+                    op, productId.toString(), String.valueOf(quantity), now, userId.toString());
+            if (result == null) {
+                throw new RuntimeException("Cart store unavailable");
+            }
+            if (result == -1) {
+                hydrate(userId);
+                continue;
+            }
+            if (result == -2) {
+                throw new IllegalArgumentException("Item not in cart");
+            }
+            return result;
+        }
+        throw new RuntimeException("Failed to load cart of user " + userId);
+    }
+
+    private void hydrate(Long userId) {
+        CartPersistenceService.CartSnapshot snapshot = cartPersistenceService.load(userId);
+        List<String> args = new ArrayList<>();
+        args.add(String.valueOf(System.currentTimeMillis()));
+        args.add(userId.toString());
+        args.add(snapshot.getCartId() != null ? snapshot.getCartId().toString() : "");
+        snapshot.getQuantities().forEach((productId, quantity) -> {
+            args.add(productId.toString());
+            args.add(String.valueOf(quantity));
+        });
+        stringRedisTemplate.execute(HYDRATE, List.of(itemsKey(userId), metaKey(userId), ACTIVE_KEY), args.toArray());
+    }
+
+    private List<?> read(Long userId, boolean touch) {
+        return stringRedisTemplate.execute(READ, List.of(itemsKey(userId), metaKey(userId), ACTIVE_KEY),
+                String.valueOf(System.currentTimeMillis()), userId.toString(), touch ? "1" : "0");
+    }
+
+    private CachedCart toCachedCart(List<?> result) {
+        if (result == null) {
+            throw new RuntimeException("Cart store unavailable");
+        }
+        String cartId = stringValue(result.get(0));
+        String updatedAt = stringValue(result.get(1));
+        String version = stringValue(result.get(2));
+
+        // Sắp theo productId để thứ tự hiển thị ổn định
+        Map<Long, Integer> quantities = new TreeMap<>();
+        for (int i = 3; i + 1 < result.size(); i += 2) {
+            quantities.put(Long.valueOf(result.get(i).toString()), Integer.valueOf(result.get(i + 1).toString()));
+        }
+
+        return CachedCart.builder()
+                .cartId(cartId == null || cartId.isEmpty() ? null : Long.valueOf(cartId))
+                .updatedAt(updatedAt == null ? null : Long.valueOf(updatedAt))
+                .version(version == null ? 0L : Long.parseLong(version))
+                .quantities(quantities)
+                .build();
+    }
+
+    private String stringValue(Object value) {
+        return value == null ? null : value.toString();
+    }
+
+    private ProductDTO readProduct(String json) {
+        try {
+            return objectMapper.readValue(json, ProductDTO.class);
+        } catch (JsonProcessingException e) {
+            return null;
+        }
+    }
+
+    private static String itemsKey(Long userId) {
+        return "cart:" + userId + ":items";
+    }
+
+    private static String metaKey(Long userId) {
+        return "cart:" + userId + ":meta";
+    }
+
+    /**
+     * Trạng thái cart trong Redis
+     */
+    @lombok.Data
+    @lombok.Builder
+    public static class CachedCart {
+        private Long cartId;
+        private Long updatedAt;
+        private long version;
+        private Map<Long, Integer> quantities;
+    }
+}
@@ -0,0 +1,86 @@
+package com.badat.study1.service;
+
+import com.badat.study1.model.Cart;
+import com.badat.study1.model.CartItem;
+import com.badat.study1.model.Product;
+import com.badat.study1.repository.CartRepository;
+import com.badat.study1.repository.ProductRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Phía DB của cart store: nạp cart/cart_item của user và ghi lại trạng thái cart từ Redis (write-behind)
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class CartPersistenceService {
+
+    private final CartRepository cartRepository;
+    private final ProductRepository productRepository;
+
+    /**
+     * Đọc cart của user từ DB: cartId (null nếu chưa có) và quantity theo productId
+     */
+    @Transactional(readOnly = true)
+    public CartSnapshot load(Long userId) {
+        Optional<Cart> cart = cartRepository.findByUserIdWithItems(userId);
+        Map<Long, Integer> quantities = new LinkedHashMap<>();
+        cart.ifPresent(c -> c.getItems().forEach(item -> quantities.put(item.getProduct().getId(), item.getQuantity())));
+        return new CartSnapshot(cart.map(Cart::getId).orElse(null), quantities);
+    }
+
+    /**
+     * Ghi trạng thái cart trong Redis xuống cart/cart_item: chỉ insert/update/delete các dòng thay đổi
+     * Sản phẩm đã bị xóa khỏi DB được bỏ qua. Trả về cartId (tạo cart nếu user chưa có)
+     */
+    @Transactional
+    public Long persist(Long userId, Map<Long, Integer> quantities) {
+        Cart cart = cartRepository.findByUserIdWithItems(userId)
+                .orElseGet(() -> Cart.builder().userId(userId).build());
+
+        Map<Long, Integer> pending = new HashMap<>(quantities);
+        Iterator<CartItem> iterator = cart.getItems().iterator();
+        while (iterator.hasNext()) {
+            CartItem item = iterator.next();
+            Integer quantity = pending.remove(item.getProduct().getId());
+            if (quantity == null) {
+                iterator.remove(); // orphanRemoval xóa cart_item
+            } else if (quantity != item.getQuantity()) {
+                item.setQuantity(quantity);
+            }
+        }
+
+        if (!pending.isEmpty()) {
+            Map<Long, Product> products = productRepository.findAllById(pending.keySet()).stream()
+                    .collect(Collectors.toMap(Product::getId, Function.identity()));
+            pending.forEach((productId, quantity) -> {
+                Product product = products.get(productId);
+                if (product == null) {
+                    log.warn("Skipping cart item of user {} for missing product {}", userId, productId);
+                    return;
+                }
+                cart.getItems().add(CartItem.builder().cart(cart).product(product).quantity(quantity).build());
+            });
+        }
+
+        return cartRepository.save(cart).getId();
+    }
+
+    @lombok.Data
+    @lombok.AllArgsConstructor
+    public static class CartSnapshot {
+        private Long cartId;
+        private Map<Long, Integer> quantities;
+    }
+}
@@ -0,0 +1,207 @@
+package com.badat.study1.service;
+
+import com.badat.study1.model.Product;
+import com.badat.study1.repository.ProductRepository;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Báo giá cart: giá, stall/shop/seller, commission và số hàng còn trống của mọi sản phẩm trong cart
+ * được tải bằng số query cố định (1 query product JOIN FETCH shop/stall + 1 HMGET stock counter,
+ * product chưa có counter thì thêm 1 query GROUP BY). Quote được dùng lại cho validate, enqueue
+ * (lưu vào cartData của PaymentQueue) và tạo order nên các bước sau không phải tra lại từng sản phẩm
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class CartQuoteService {
+
+    private final ProductRepository productRepository;
+    private final StockCounterService stockCounterService;
+
+    /**
+     * Lập quote cho cart theo quantity của từng productId (giữ thứ tự của map)
+     */
+    @Transactional(readOnly = true)
+    public CartQuote quote(Map<Long, Integer> quantities) {
+        Map<Long, Integer> requested = new LinkedHashMap<>();
+        quantities.forEach((productId, quantity) -> {
+            if (productId != null && quantity != null && quantity > 0) {
+                requested.merge(productId, quantity, Integer::sum);
+            }
+        });
+        if (requested.isEmpty()) {
+            return CartQuote.of(List.of());
+        }
+
+        Map<Long, Product> products = productRepository.findAllWithShopAndStallByIdIn(requested.keySet()).stream()
+                .filter(product -> !Boolean.TRUE.equals(product.getIsDelete()))
+                .collect(Collectors.toMap(Product::getId, Function.identity()));
+        Map<Long, Long> available = stockCounterService.getProductAvailable(products.keySet());
+
+        List<QuoteLine> lines = new ArrayList<>();
+        List<Long> missing = new ArrayList<>();
+        requested.forEach((productId, quantity) -> {
+            Product product = products.get(productId);
+            if (product == null) {
+                missing.add(productId);
+                return;
+            }
+            lines.add(QuoteLine.builder()
+                    .productId(productId)
+                    .name(product.getName())
+                    .quantity(quantity)
+                    .price(product.getPrice())
+                    .stallId(product.getStallId())
+                    .shopId(product.getShopId())
+                    .sellerId(product.getShop() != null ? product.getShop().getUserId() : null)
+                    .commissionRate(product.getStall() != null ? OrderService.commissionRateOf(product.getStall()) : null)
+                    .available(available.getOrDefault(productId, 0L))
+                    .build());
+        });
+
+        CartQuote quote = CartQuote.of(lines);
+        quote.setMissingProductIds(missing);
+        log.debug("Quoted {} products for cart, total {} VND", lines.size(), quote.getTotalAmount());
+        return quote;
+    }
+
+    /**
+     * Kết quả báo giá cart
+     */
+    @lombok.Data
+    @lombok.Builder
+    @lombok.NoArgsConstructor
+    @lombok.AllArgsConstructor
+    public static class CartQuote {
+        private List<QuoteLine> lines;
+        @lombok.Builder.Default
+        private List<Long> missingProductIds = new ArrayList<>();
+
+        public static CartQuote of(List<QuoteLine> lines) {
+            return CartQuote.builder().lines(new ArrayList<>(lines)).build();
+        }
+
+        /**
+         * Dựng quote từ cart item dạng map (cartData cũ, API nội bộ) - không truy vấn DB
+         */
+        public static CartQuote fromCartItems(List<Map<String, Object>> cartItems) {
+            List<QuoteLine> lines = new ArrayList<>();
+            for (Map<String, Object> cartItem : cartItems) {
+                Object productId = cartItem.get("productId");
+                Object quantity = cartItem.get("quantity");
+                Object price = cartItem.get("price");
+                Object stallId = cartItem.get("stallId");
+                if (productId == null || quantity == null || price == null || stallId == null) {
+                    throw new RuntimeException("Missing required fields in cart item");
+                }
+                lines.add(QuoteLine.builder()
+                        .productId(Long.valueOf(productId.toString()))
+                        .name(cartItem.get("name") != null ? cartItem.get("name").toString() : null)
+                        .quantity(Integer.valueOf(quantity.toString()))
+                        .price(new BigDecimal(price.toString()))
+                        .stallId(Long.valueOf(stallId.toString()))
+                        .shopId(longOrNull(cartItem.get("shopId")))
+                        .sellerId(longOrNull(cartItem.get("sellerId")))
+                        .commissionRate(cartItem.get("commissionRate") != null ? new BigDecimal(cartItem.get("commissionRate").toString()) : null)
+                        .warehouseId(longOrNull(cartItem.get("warehouseId")))
+                        .build());
+            }
+            return of(lines);
+        }
+
+        public BigDecimal getTotalAmount() {
+            return lines.stream().map(QuoteLine::getLineTotal).reduce(BigDecimal.ZERO, BigDecimal::add);
+        }
+
+        /**
+         * Tổng quantity theo productId - đầu vào của bước reserve kho
+         */
+        public Map<Long, Integer> productQuantities() {
+            Map<Long, Integer> quantities = new LinkedHashMap<>();
+            lines.forEach(line -> quantities.merge(line.getProductId(), line.getQuantity(), Integer::sum));
+            return quantities;
+        }
+
+        /**
+         * Các sản phẩm không đủ hàng theo số liệu lúc lập quote
+         */
+        public List<String> shortages() {
+            List<String> shortages = new ArrayList<>();
+            for (QuoteLine line : lines) {
+                if (line.getAvailable() != null && line.getAvailable() < line.getQuantity()) {
+                    shortages.add(line.getName() + " (cần " + line.getQuantity() + ", còn " + line.getAvailable() + ")");
+                }
+            }
+            return shortages;
+        }
+
+        /**
+         * Cart item dạng map cho CartPaymentInfo
+         */
+        public List<Map<String, Object>> toCartItems() {
+            List<Map<String, Object>> cartItems = new ArrayList<>();
+            for (QuoteLine line : lines) {
+                Map<String, Object> cartItem = new HashMap<>();
+                cartItem.put("productId", line.getProductId());
+                cartItem.put("name", line.getName());
+                cartItem.put("quantity", line.getQuantity());
+                cartItem.put("price", line.getPrice());
+                cartItem.put("stallId", line.getStallId());
+                cartItem.put("shopId", line.getShopId());
+                cartItem.put("sellerId", line.getSellerId());
+                cartItem.put("commissionRate", line.getCommissionRate());
+                cartItems.add(cartItem);
+            }
+            return cartItems;
+        }
+
+        private static Long longOrNull(Object value) {
+            return value != null ? Long.valueOf(value.toString()) : null;
+        }
+    }
+
+    /**
+     * 1 sản phẩm trong quote - đây cũng là định dạng cartData lưu trong PaymentQueue
+     * (tên field trùng với cart item cũ nên cartData cũ vẫn đọc được; field thiếu được tra lại khi tạo order)
+     */
+    @lombok.Data
+    @lombok.Builder
+    @lombok.NoArgsConstructor
+    @lombok.AllArgsConstructor
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class QuoteLine {
+        private Long productId;
+        private String name;
+        private Integer quantity;
+        private BigDecimal price;
+        private Long stallId;
+        private Long shopId;
+        private Long sellerId;
+        private BigDecimal commissionRate;
+        // Chỉ dùng lúc validate, không lưu vào cartData
+        @JsonIgnore
+        private Long available;
+        // Chỉ có ở cart item tạo order trực tiếp (không reserve kho), không lưu vào cartData
+        @JsonIgnore
+        private Long warehouseId;
+
+        @JsonIgnore
+        public BigDecimal getLineTotal() {
+            return price.multiply(BigDecimal.valueOf(quantity));
+        }
+    }
+}
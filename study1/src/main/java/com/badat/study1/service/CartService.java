@@ -1,31 +1,29 @@
 package com.badat.study1.service;
 
+import com.badat.study1.dto.response.CartDTO;
+import com.badat.study1.dto.response.CartItemDTO;
+import com.badat.study1.dto.response.ProductDTO;
 import com.badat.study1.model.*;
-import com.badat.study1.repository.CartItemRepository;
-import com.badat.study1.repository.CartRepository;
-import com.badat.study1.repository.ProductRepository;
-import com.badat.study1.repository.WarehouseRepository;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
 
 import java.math.BigDecimal;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 
 @Service
 @RequiredArgsConstructor
 @Slf4j
 public class CartService {
 
-    private final CartRepository cartRepository;
-    private final CartItemRepository cartItemRepository;
-    private final ProductRepository productRepository;
-    private final WarehouseRepository warehouseRepository;
+    private final CartCacheService cartCacheService;
+    private final CartQuoteService cartQuoteService;
     private final UserActivityLogService userActivityLogService;
 
     /**
@@ -45,227 +43,140 @@ public class CartService {
     }
 
     /**
-     * Lấy hoặc tạo giỏ hàng cho người dùng hiện tại.
-     * @param fetchItems Nếu true, sử dụng Fetch Join để tải đầy đủ CartItems và Product eagerly (cho hiển thị/trả về API).
-     * @return Giỏ hàng đã tải hoặc mới tạo.
+     * Giỏ hàng của người dùng hiện tại, đọc từ cart store trên Redis (nạp từ DB ở lần đầu)
      */
-    @Transactional
-    public Cart getOrCreateMyCart(boolean fetchItems) {
-        User user = getCurrentUser();
-        Optional<Cart> existing;
-
-        if (fetchItems) {
-            // Tải đầy đủ CartItem và Product cho việc hiển thị tối ưu (tránh N+1 problem)
-            existing = cartRepository.findByUserWithItems(user);
-        } else {
-            // Tải Cart cơ bản, không cần CartItem cho logic thêm/xóa/cập nhật
-            existing = cartRepository.findByUser(user);
-        }
-
-        if (existing.isPresent()) {
-            return existing.get();
-        }
-
-        // Tạo giỏ hàng mới (đảm bảo userId và user được set)
-        Cart cart = Cart.builder().user(user).userId(user.getId()).build();
-        return cartRepository.save(cart);
-    }
-
-    /**
-     * Overload cho các phương thức nội bộ không cần fetch items ngay lập tức (chỉ cần Cart object).
-     */
-    private Cart getOrCreateMyCart() {
-        return getOrCreateMyCart(false);
+    public CartDTO getMyCart() {
+        return toDto(getCurrentUser().getId());
     }
 
-    @Transactional
-    public Cart addProduct(Long productId, int quantity) {
+    public CartDTO addProduct(Long productId, int quantity) {
         if (quantity <= 0) {
             quantity = 1; // Đảm bảo số lượng luôn dương khi thêm
         }
 
-        Cart cart = getOrCreateMyCart();
-        Product product = productRepository.findById(productId)
-                .orElseThrow(() -> new IllegalArgumentException("Product not found"));
-
-        // Tìm CartItem hiện có
-        Optional<CartItem> existingItem = cartItemRepository.findByCartAndProduct(cart, product);
-
-        if (existingItem.isPresent()) {
-            // Cập nhật số lượng
-            CartItem item = existingItem.get();
-            item.setQuantity(item.getQuantity() + quantity);
-            cartItemRepository.save(item);
-        } else {
-            // Tạo CartItem mới
-            CartItem newItem = CartItem.builder()
-                    .cart(cart)
-                    .product(product)
-                    .quantity(quantity)
-                    .build();
-            // Thêm vào list trong Cart để Hibernate biết và quản lý mối quan hệ
-            cart.getItems().add(newItem);
-            cartItemRepository.save(newItem);
+        User user = getCurrentUser();
+        if (cartCacheService.getProducts(List.of(productId)).isEmpty()) {
+            throw new IllegalArgumentException("Product not found");
         }
+        cartCacheService.addQuantity(user.getId(), productId, quantity);
 
         // Log user activity
         try {
-            User user = getCurrentUser();
             userActivityLogService.logCartAction(user, "ADD_TO_CART", productId, quantity, null, "POST /api/cart/add", "POST", true, null);
         } catch (Exception e) {
             log.warn("Failed to log cart action: {}", e.getMessage());
         }
 
-        // Trả về Cart đã được tải đầy đủ (Fetch Join) cho phản hồi API
-        return getOrCreateMyCart(true);
+        return toDto(user.getId());
     }
 
-    @Transactional
-    public Cart updateQuantity(Long productId, int quantity) {
+    public CartDTO updateQuantity(Long productId, int quantity) {
         if (quantity <= 0) {
             // Nếu số lượng <= 0, coi như xóa sản phẩm
             return removeProduct(productId);
         }
 
-        Cart cart = getOrCreateMyCart();
-        Product product = productRepository.findById(productId)
-                .orElseThrow(() -> new IllegalArgumentException("Product not found"));
-        CartItem item = cartItemRepository.findByCartAndProduct(cart, product)
-                .orElseThrow(() -> new IllegalArgumentException("Item not in cart"));
-
-        item.setQuantity(quantity);
-        cartItemRepository.save(item);
+        User user = getCurrentUser();
+        cartCacheService.setQuantity(user.getId(), productId, quantity);
 
         // Log user activity
         try {
-            User user = getCurrentUser();
             userActivityLogService.logCartAction(user, "UPDATE_CART", productId, quantity, null, "PUT /api/cart/update", "PUT", true, null);
         } catch (Exception e) {
             log.warn("Failed to log cart action: {}", e.getMessage());
         }
 
-        // Trả về Cart đã được tải đầy đủ (Fetch Join)
-        return getOrCreateMyCart(true);
+        return toDto(user.getId());
     }
 
-    @Transactional
-    public Cart removeProduct(Long productId) {
-        Cart cart = getOrCreateMyCart();
-        Product product = productRepository.findById(productId)
-                .orElseThrow(() -> new IllegalArgumentException("Product not found"));
-        CartItem item = cartItemRepository.findByCartAndProduct(cart, product)
-                .orElseThrow(() -> new IllegalArgumentException("Item not in cart"));
-
-        // Xóa item khỏi list trong Cart trước khi xóa entity
-        if (cart.getItems() != null) {
-            cart.getItems().remove(item);
-        }
-        cartItemRepository.delete(item);
+    public CartDTO removeProduct(Long productId) {
+        User user = getCurrentUser();
+        cartCacheService.removeProduct(user.getId(), productId);
 
         // Log user activity
         try {
-            User user = getCurrentUser();
             userActivityLogService.logCartAction(user, "REMOVE_FROM_CART", productId, 0, null, "DELETE /api/cart/remove", "DELETE", true, null);
         } catch (Exception e) {
             log.warn("Failed to log cart action: {}", e.getMessage());
         }
 
-        // Trả về Cart đã được tải đầy đủ (Fetch Join)
-        return getOrCreateMyCart(true);
-    }
-
-    @Transactional(readOnly = true)
-    public Cart getMyCartWithItems() {
-        return getOrCreateMyCart(true);
+        return toDto(user.getId());
     }
 
     /**
      * Xóa tất cả sản phẩm khỏi giỏ hàng
      */
-    @Transactional
-    public Cart clearCart() {
-        Cart cart = getOrCreateMyCart(false);
-        
-        if (cart.getItems() != null && !cart.getItems().isEmpty()) {
-            cartItemRepository.deleteAll(cart.getItems());
-            cart.getItems().clear();
-            cartRepository.save(cart);
-            
+    public CartDTO clearCart() {
+        User user = getCurrentUser();
+        CartCacheService.CachedCart cart = cartCacheService.getCart(user.getId());
+
+        if (!cart.getQuantities().isEmpty()) {
+            cartCacheService.clear(user.getId());
+
             // Log user activity
             try {
-                User user = getCurrentUser();
                 userActivityLogService.logCartAction(user, "CLEAR_CART", null, 0, null, "DELETE /api/cart/clear", "DELETE", true, null);
             } catch (Exception e) {
                 log.warn("Failed to log cart action: {}", e.getMessage());
             }
         }
-        
-        return cart;
+
+        return toDto(user.getId());
     }
-    @Transactional(readOnly = true)
-    public CartPaymentInfo getCartPaymentInfo() {
-        Cart cart = getOrCreateMyCart(true);
-        
-        if (cart.getItems() == null || cart.getItems().isEmpty()) {
-            return CartPaymentInfo.builder()
-                    .cartId(cart.getId())
-                    .totalItems(0)
-                    .totalAmount(BigDecimal.ZERO)
-                    .cartItems(new java.util.ArrayList<>())
-                    .build();
-        }
-        
+
+    /**
+     * Dựng CartDTO từ cart store - sản phẩm lấy từ cache sản phẩm, không đọc cart/cart_item trong DB
+     */
+    private CartDTO toDto(Long userId) {
+        CartCacheService.CachedCart cart = cartCacheService.getCart(userId);
+        Map<Long, ProductDTO> products = cartCacheService.getProducts(cart.getQuantities().keySet());
+
+        List<CartItemDTO> items = new java.util.ArrayList<>();
         BigDecimal totalAmount = BigDecimal.ZERO;
-        List<Map<String, Object>> cartItems = new java.util.ArrayList<>();
-        
-        for (CartItem item : cart.getItems()) {
-            BigDecimal itemTotal = item.getProduct().getPrice().multiply(BigDecimal.valueOf(item.getQuantity()));
-            totalAmount = totalAmount.add(itemTotal);
-            
-            // Lấy warehouseId thực tế từ warehouse đầu tiên có sẵn
-            Long warehouseId = item.getProduct().getId(); // Default fallback
-            try {
-                Optional<Warehouse> warehouse = warehouseRepository.findFirstByProductIdAndLockedFalseAndIsDeleteFalse(item.getProduct().getId());
-                if (warehouse.isPresent()) {
-                    warehouseId = warehouse.get().getId();
-                }
-            } catch (Exception e) {
-                log.warn("Failed to get warehouse for product {}, using productId as fallback", item.getProduct().getId());
+        for (Map.Entry<Long, Integer> entry : cart.getQuantities().entrySet()) {
+            ProductDTO product = products.get(entry.getKey());
+            if (product == null) {
+                continue; // Sản phẩm đã bị xóa
             }
-            
-            Map<String, Object> cartItemData = new java.util.HashMap<>();
-            cartItemData.put("productId", item.getProduct().getId());
-            cartItemData.put("name", item.getProduct().getName());
-            cartItemData.put("quantity", item.getQuantity());
-            cartItemData.put("price", item.getProduct().getPrice());
-            cartItemData.put("warehouseId", warehouseId);
-            
-            // Lấy stallId an toàn
-            Long stallId = null;
-            try {
-                if (item.getProduct().getStall() != null) {
-                    stallId = item.getProduct().getStall().getId();
-                } else {
-                    stallId = item.getProduct().getStallId(); // Fallback
-                }
-            } catch (Exception e) {
-                log.warn("Failed to get stallId for product {}, using fallback", item.getProduct().getId());
-                stallId = item.getProduct().getStallId();
-            }
-            cartItemData.put("stallId", stallId);
-            
-            cartItemData.put("shopId", item.getProduct().getShopId());
-            cartItemData.put("sellerId", item.getProduct().getShop() != null ? item.getProduct().getShop().getUserId() : null);
-            
-            
-            cartItems.add(cartItemData);
+            items.add(CartItemDTO.builder()
+                    .cartId(cart.getCartId())
+                    .product(product)
+                    .quantity(entry.getValue())
+                    .build());
+            totalAmount = totalAmount.add(product.getPrice().multiply(BigDecimal.valueOf(entry.getValue())));
         }
+
+        LocalDateTime updatedAt = cart.getUpdatedAt() != null
+                ? LocalDateTime.ofInstant(Instant.ofEpochMilli(cart.getUpdatedAt()), ZoneId.systemDefault())
+                : null;
+        return CartDTO.builder()
+                .id(cart.getCartId())
+                .userId(userId)
+                .items(items)
+                .totalAmount(totalAmount)
+                .updatedAt(updatedAt)
+                .build();
+    }
+
+    /**
+     * Quantity theo productId của cart hiện tại (đọc từ cart store)
+     */
+    public Map<Long, Integer> getMyCartQuantities() {
+        return cartCacheService.getCart(getCurrentUser().getId()).getQuantities();
+    }
+
+    /**
+     * Thông tin thanh toán của cả cart - giá hiện tại trong DB qua quote, không dùng cache sản phẩm
+     */
+    public CartPaymentInfo getCartPaymentInfo() {
+        CartCacheService.CachedCart cached = cartCacheService.getCart(getCurrentUser().getId());
+        CartQuoteService.CartQuote quote = cartQuoteService.quote(cached.getQuantities());
         
         return CartPaymentInfo.builder()
-                .cartId(cart.getId())
-                .totalItems(cart.getItems().size())
-                .totalAmount(totalAmount)
-                .cartItems(cartItems)
+                .cartId(cached.getCartId())
+                .totalItems(quote.getLines().size())
+                .totalAmount(quote.getTotalAmount())
+                .cartItems(quote.toCartItems())
                 .build();
     }
 
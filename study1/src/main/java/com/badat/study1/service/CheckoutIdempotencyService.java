@@ -0,0 +1,196 @@
+package com.badat.study1.service;
+
+import com.badat.study1.dto.response.PaymentResponse;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Idempotency-Key cho checkout: kết quả đầu tiên (paymentId + status) được lưu trong Redis có TTL
+ * Client retry với cùng key nhận lại kết quả đó mà không chạm DB và không tạo payment thứ hai
+ * Key đang được xử lý giữ placeholder ngắn hạn, request trùng trong lúc đó bị từ chối thay vì chờ lock
+ * Placeholder được gia hạn định kỳ khi request còn chạy nên checkout chậm hơn TTL không bị request trùng chen vào
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class CheckoutIdempotencyService {
+
+    private static final String KEY_PREFIX = "checkout:idempotency:";
+    private static final int MAX_KEY_LENGTH = 128;
+
+    // Chỉ gia hạn khi key vẫn giữ đúng placeholder của request này - không kéo dài/rút ngắn kết quả đã lưu
+    private static final RedisScript<Long> REFRESH_IN_PROGRESS = new DefaultRedisScript<>(
+            "if redis.call('GET', KEYS[1]) == ARGV[1] then return redis.call('EXPIRE', KEYS[1], ARGV[2]) end return 0",
+            Long.class);
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final ObjectMapper objectMapper;
+
+    @Value("${payment.idempotency.ttl-seconds:86400}")
+    private long ttlSeconds;
+
+    @Value("${payment.idempotency.in-progress-ttl-seconds:60}")
+    private long inProgressTtlSeconds;
+
+    // Placeholder của các request đang chạy trên node này (redis key -> placeholder)
+    private final Map<String, String> inProgress = new ConcurrentHashMap<>();
+
+    /**
+     * Giữ key cho request checkout
+     * Trả về kết quả cũ nếu key đã có (retry), rỗng nếu request này được xử lý
+     */
+    public Optional<PaymentResponse> begin(Long userId, String idempotencyKey, Object request) {
+        validateKey(idempotencyKey);
+        String redisKey = redisKey(userId, idempotencyKey);
+        String fingerprint = fingerprint(request);
+
+        String placeholder = write(Outcome.builder().state(Outcome.State.IN_PROGRESS).fingerprint(fingerprint).build());
+        Boolean acquired = stringRedisTemplate.opsForValue()
+                .setIfAbsent(redisKey, placeholder, Duration.ofSeconds(inProgressTtlSeconds));
+        if (Boolean.TRUE.equals(acquired)) {
+            inProgress.put(redisKey, placeholder);
+            return Optional.empty();
+        }
+
+        String stored = stringRedisTemplate.opsForValue().get(redisKey);
+        if (stored == null) {
+            // Placeholder vừa hết hạn giữa SETNX và GET - thử giữ lại 1 lần
+            return begin(userId, idempotencyKey, request);
+        }
+
+        Outcome outcome = read(stored);
+        if (!fingerprint.equals(outcome.getFingerprint())) {
+            throw new RuntimeException("Idempotency-Key đã được dùng cho một yêu cầu thanh toán khác");
+        }
+        if (outcome.getState() == Outcome.State.IN_PROGRESS) {
+            return Optional.of(PaymentResponse.builder()
+                    .message("Yêu cầu thanh toán với Idempotency-Key này đang được xử lý")
+                    .success(false)
+                    .status(Outcome.State.IN_PROGRESS.name())
+                    .build());
+        }
+
+        log.info("Replaying checkout outcome for user {} key {}: payment {}", userId, idempotencyKey, outcome.getPaymentId());
+        return Optional.of(PaymentResponse.builder()
+                .message(outcome.getMessage())
+                .success(true)
+                .paymentId(outcome.getPaymentId())
+                .status(outcome.getStatus())
+                .build());
+    }
+
+    /**
+     * Lưu kết quả thành công của request đã giữ key
+     */
+    public void complete(Long userId, String idempotencyKey, Object request, PaymentResponse response) {
+        inProgress.remove(redisKey(userId, idempotencyKey));
+        String value = write(Outcome.builder()
+                .state(Outcome.State.COMPLETED)
+                .fingerprint(fingerprint(request))
+                .paymentId(response.getPaymentId())
+                .status(response.getStatus())
+                .message(response.getMessage())
+                .build());
+        stringRedisTemplate.opsForValue().set(redisKey(userId, idempotencyKey), value, Duration.ofSeconds(ttlSeconds));
+    }
+
+    /**
+     * Bỏ key khi request bị từ chối (hết hàng, thiếu tiền...) để client sửa rồi gửi lại cùng key
+     */
+    public void release(Long userId, String idempotencyKey) {
+        String redisKey = redisKey(userId, idempotencyKey);
+        String placeholder = inProgress.remove(redisKey);
+        if (placeholder == null || placeholder.equals(stringRedisTemplate.opsForValue().get(redisKey))) {
+            stringRedisTemplate.delete(redisKey);
+        }
+    }
+
+    /**
+     * Gia hạn placeholder của các request đang xử lý trên node này
+     * Node chết thì không còn ai gia hạn, placeholder tự hết hạn sau in-progress-ttl-seconds
+     */
+    @Scheduled(fixedDelayString = "${payment.idempotency.in-progress-refresh-ms:20000}")
+    public void refreshInProgress() {
+        String ttl = String.valueOf(inProgressTtlSeconds);
+        inProgress.forEach((redisKey, placeholder) -> {
+            try {
+                Long refreshed = stringRedisTemplate.execute(REFRESH_IN_PROGRESS, List.of(redisKey), placeholder, ttl);
+                if (refreshed == null || refreshed == 0) {
+                    // Key đã hết hạn hoặc bị request khác giữ - không gia hạn nữa
+                    inProgress.remove(redisKey, placeholder);
+                }
+            } catch (Exception e) {
+                log.warn("Failed to refresh in-progress checkout key {}: {}", redisKey, e.getMessage());
+            }
+        });
+    }
+
+    private void validateKey(String idempotencyKey) {
+        if (idempotencyKey.isBlank() || idempotencyKey.length() > MAX_KEY_LENGTH) {
+            throw new RuntimeException("Idempotency-Key không hợp lệ (tối đa " + MAX_KEY_LENGTH + " ký tự)");
+        }
+    }
+
+    private String redisKey(Long userId, String idempotencyKey) {
+        return KEY_PREFIX + userId + ":" + idempotencyKey;
+    }
+
+    /**
+     * Băm nội dung request để phát hiện cùng key nhưng khác giỏ hàng
+     */
+    private String fingerprint(Object request) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(objectMapper.writeValueAsBytes(request));
+            return HexFormat.of().formatHex(digest);
+        } catch (JsonProcessingException | NoSuchAlgorithmException e) {
+            throw new RuntimeException("Failed to fingerprint checkout request", e);
+        }
+    }
+
+    private String write(Outcome outcome) {
+        try {
+            return objectMapper.writeValueAsString(outcome);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException("Failed to serialize checkout outcome", e);
+        }
+    }
+
+    private Outcome read(String value) {
+        try {
+            return objectMapper.readValue(value, Outcome.class);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException("Failed to read checkout outcome", e);
+        }
+    }
+
+    @lombok.Data
+    @lombok.Builder
+    @lombok.NoArgsConstructor
+    @lombok.AllArgsConstructor
+    public static class Outcome {
+        public enum State { IN_PROGRESS, COMPLETED }
+
+        private State state;
+        private String fingerprint;
+        private Long paymentId;
+        private String status;
+        private String message;
+    }
+}
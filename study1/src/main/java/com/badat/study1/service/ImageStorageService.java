@@ -0,0 +1,182 @@
+package com.badat.study1.service;
+
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.imageio.ImageIO;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.regex.Pattern;
+
+/**
+ * Kho ảnh content-addressed trên filesystem: mỗi file được đặt tên theo SHA-256 của nội dung
+ * (thư mục con = 2 ký tự đầu của hash) nên cùng nội dung chỉ lưu 1 lần và URL theo hash không bao giờ đổi nội dung.
+ * Thumbnail được tạo lúc upload và lưu như 1 ảnh khác trong kho
+ */
+@Service
+@Slf4j
+public class ImageStorageService {
+
+    private static final Pattern HASH_PATTERN = Pattern.compile("[0-9a-f]{64}");
+
+    @Value("${image.storage.dir:data/images}")
+    private String storageDir;
+
+    @Value("${image.storage.thumbnail-size:320}")
+    private int thumbnailSize;
+
+    private Path root;
+
+    @PostConstruct
+    void init() throws IOException {
+        root = Paths.get(storageDir).toAbsolutePath().normalize();
+        Files.createDirectories(root);
+        log.info("Image store at {}", root);
+    }
+
+    /**
+     * Lưu ảnh gốc và thumbnail (ảnh nhỏ hơn kích thước thumbnail hoặc không đọc được thì thumbnail là ảnh gốc)
+     */
+    public StoredImage store(byte[] data) throws IOException {
+        if (data == null || data.length == 0) {
+            throw new IllegalArgumentException("Image data is empty");
+        }
+        String hash = put(data);
+        byte[] thumbnail = createThumbnail(data);
+        String thumbnailHash = thumbnail != null ? put(thumbnail) : hash;
+        return StoredImage.builder()
+                .hash(hash)
+                .thumbnailHash(thumbnailHash)
+                .contentType(detectContentType(data))
+                .size(data.length)
+                .build();
+    }
+
+    /**
+     * File của hash trong kho, null nếu hash không hợp lệ hoặc chưa có
+     */
+    public Path resolve(String hash) {
+        if (hash == null || !HASH_PATTERN.matcher(hash).matches()) {
+            return null;
+        }
+        Path path = pathOf(hash);
+        return Files.isRegularFile(path) ? path : null;
+    }
+
+    public String detectContentType(Path path) throws IOException {
+        try (InputStream in = Files.newInputStream(path)) {
+            return detectContentType(in.readNBytes(100));
+        }
+    }
+
+    public String detectContentType(byte[] data) {
+        if (data.length >= 3 && data[0] == (byte) 0xFF && data[1] == (byte) 0xD8 && data[2] == (byte) 0xFF) {
+            return "image/jpeg";
+        }
+        if (data.length >= 4 && data[0] == (byte) 0x89 && data[1] == (byte) 0x50 && data[2] == (byte) 0x4E && data[3] == (byte) 0x47) {
+            return "image/png";
+        }
+        if (data.length >= 4 && data[0] == (byte) 0x47 && data[1] == (byte) 0x49 && data[2] == (byte) 0x46 && data[3] == (byte) 0x38) {
+            return "image/gif";
+        }
+        if (data.length >= 12 && new String(data, 0, 4, StandardCharsets.US_ASCII).equals("RIFF")
+                && new String(data, 8, 4, StandardCharsets.US_ASCII).equals("WEBP")) {
+            return "image/webp";
+        }
+        String content = new String(data, 0, Math.min(100, data.length), StandardCharsets.UTF_8);
+        if (content.contains("<svg") || content.contains("<?xml")) {
+            return "image/svg+xml";
+        }
+        // Ảnh cũ không nhận dạng được vẫn được trình duyệt tự đoán
+        return "image/png";
+    }
+
+    private String put(byte[] data) throws IOException {
+        String hash = sha256(data);
+        Path target = pathOf(hash);
+        if (Files.exists(target)) {
+            return hash;
+        }
+
+        Files.createDirectories(target.getParent());
+        Path temp = Files.createTempFile(target.getParent(), hash, ".tmp");
+        try {
+            Files.write(temp, data);
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException e) {
+            // Request khác vừa ghi cùng nội dung
+            log.debug("Image {} already stored", hash);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return hash;
+    }
+
+    private byte[] createThumbnail(byte[] data) {
+        try {
+            BufferedImage source = ImageIO.read(new ByteArrayInputStream(data));
+            if (source == null || (source.getWidth() <= thumbnailSize && source.getHeight() <= thumbnailSize)) {
+                return null;
+            }
+
+            double scale = Math.min((double) thumbnailSize / source.getWidth(), (double) thumbnailSize / source.getHeight());
+            int width = Math.max(1, (int) Math.round(source.getWidth() * scale));
+            int height = Math.max(1, (int) Math.round(source.getHeight() * scale));
+            boolean alpha = source.getColorModel().hasAlpha();
+
+            BufferedImage thumbnail = new BufferedImage(width, height, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+            Graphics2D graphics = thumbnail.createGraphics();
+            try {
+                graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+                graphics.drawImage(source, 0, 0, width, height, null);
+            } finally {
+                graphics.dispose();
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ImageIO.write(thumbnail, alpha ? "png" : "jpg", out);
+            return out.toByteArray();
+        } catch (Exception e) {
+            log.warn("Could not create thumbnail, using original image: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    private Path pathOf(String hash) {
+        return root.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private String sha256(byte[] data) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    @lombok.Data
+    @lombok.Builder
+    public static class StoredImage {
+        private String hash;
+        private String thumbnailHash;
+        private String contentType;
+        private long size;
+    }
+}
@@ -0,0 +1,231 @@
+package com.badat.study1.service;
+
+import com.badat.study1.model.Warehouse;
+import com.badat.study1.repository.WarehouseRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Import item vào kho từ file TXT (mỗi dòng TYPE|data1|data2...)
+ * File được đọc từng dòng và xử lý theo batch: mỗi batch tra trùng bằng 1 query trên index (item_type, item_key)
+ * rồi insert nhiều dòng mỗi câu lệnh trong 1 transaction (InventoryImportWriter), nên chi phí tỉ lệ với số dòng
+ * chứ không phải số dòng x số item trong kho, và file không phải nằm trọn trong bộ nhớ
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class InventoryImportService {
+
+    private static final int MAX_KEY_LENGTH = 255;
+
+    private final InventoryImportWriter inventoryImportWriter;
+    private final WarehouseRepository warehouseRepository;
+
+    @Value("${inventory.import.batch-size:2000}")
+    private int batchSize;
+
+    @Value("${inventory.import.max-report-lines:2000}")
+    private int maxReportLines;
+
+    /**
+     * Import toàn bộ file vào product của target - dòng lỗi được bỏ qua và ghi vào báo cáo
+     */
+    public ImportResult importItems(InputStream in, ImportTarget target) throws IOException {
+        // Item có id lớn hơn mốc này là do lần import hiện tại thêm vào (để báo "trùng trong file")
+        long baselineId = warehouseRepository.findMaxId();
+        ImportResult result = new ImportResult(maxReportLines);
+        List<ImportLine> chunk = new ArrayList<>(batchSize);
+        Set<String> chunkKeys = new HashSet<>();
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String raw;
+            int lineNumber = 0;
+            while ((raw = reader.readLine()) != null) {
+                lineNumber++;
+                String line = (lineNumber == 1 ? raw.replace("﻿", "") : raw).trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+
+                ImportLine importLine = parse(lineNumber, line, target.getExpectedType());
+                if (importLine.getError() == null && !chunkKeys.add(importLine.getItemKey())) {
+                    importLine.setError(importLine.getDisplayKey() != null
+                            ? importLine.getItemType() + " với " + importLine.getDisplayKey() + " đã tồn tại trong file"
+                            : "Item trùng lặp trong file (" + importLine.getItemType() + ")");
+                }
+                chunk.add(importLine);
+
+                if (chunk.size() >= batchSize) {
+                    flush(chunk, target, baselineId, result);
+                    chunk.clear();
+                    chunkKeys.clear();
+                }
+            }
+            flush(chunk, target, baselineId, result);
+            result.setTotalLines(lineNumber);
+        }
+
+        log.info("Imported {} items into product {} ({} failed lines)", result.getSuccessCount(),
+                target.getProductId(), result.getFailureCount());
+        return result;
+    }
+
+    /**
+     * Khóa chống trùng của item: license key với loại KEY_LICENSE_*, còn lại là SHA-256 của cả dòng
+     * (key dài hơn cột item_key cũng được thay bằng SHA-256)
+     */
+    public static String itemKeyOf(Warehouse.ItemType itemType, String itemData) {
+        String key = licenseKeyOf(itemType, itemData.split("\\|"));
+        return key != null && key.length() <= MAX_KEY_LENGTH ? key : "sha256:" + sha256(key != null ? key : itemData);
+    }
+
+    private static String licenseKeyOf(Warehouse.ItemType itemType, String[] parts) {
+        boolean license = itemType == Warehouse.ItemType.KEY_LICENSE_BASIC || itemType == Warehouse.ItemType.KEY_LICENSE_PREMIUM;
+        return license && parts.length >= 2 ? parts[1] : null;
+    }
+
+    private ImportLine parse(int lineNumber, String line, Warehouse.ItemType expectedType) {
+        ImportLine importLine = ImportLine.builder().lineNumber(lineNumber).itemData(line).build();
+
+        String[] parts = line.split("\\|");
+        if (parts.length < 2) {
+            importLine.setError("Định dạng không hợp lệ (cần ít nhất 2 phần)");
+            return importLine;
+        }
+
+        String itemType = parts[0].toUpperCase();
+        Warehouse.ItemType type;
+        try {
+            type = Warehouse.ItemType.valueOf(itemType);
+        } catch (IllegalArgumentException e) {
+            importLine.setError("Loại sản phẩm không hợp lệ (" + itemType + ")");
+            return importLine;
+        }
+        if (type != expectedType) {
+            importLine.setError("Loại sản phẩm không khớp với gian hàng");
+            return importLine;
+        }
+
+        importLine.setItemType(type);
+        importLine.setDisplayKey(licenseKeyOf(type, parts));
+        importLine.setItemKey(itemKeyOf(type, line));
+        return importLine;
+    }
+
+    private void flush(List<ImportLine> chunk, ImportTarget target, long baselineId, ImportResult result) {
+        if (chunk.isEmpty()) {
+            return;
+        }
+        try {
+            try {
+                inventoryImportWriter.writeChunk(chunk, target, baselineId);
+            } catch (Exception e) {
+                // Thường do lần import khác vừa thêm cùng key - ghi lại 1 lần, lần này tra trùng thấy dòng đó
+                log.warn("Retrying import of lines {}-{}: {}", chunk.get(0).getLineNumber(),
+                        chunk.get(chunk.size() - 1).getLineNumber(), e.getMessage());
+                inventoryImportWriter.writeChunk(chunk, target, baselineId);
+            }
+        } catch (Exception e) {
+            // Batch lỗi đã rollback - các dòng chưa có lỗi riêng được báo lỗi xử lý
+            log.error("Error importing lines {}-{}: {}", chunk.get(0).getLineNumber(),
+                    chunk.get(chunk.size() - 1).getLineNumber(), e.getMessage(), e);
+            chunk.stream()
+                    .filter(line -> line.getError() == null)
+                    .forEach(line -> line.setError("Lỗi xử lý - " + e.getMessage()));
+        }
+        chunk.forEach(result::add);
+    }
+
+    private static String sha256(String value) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * Product/stall/shop/user nhận item import
+     */
+    @lombok.Data
+    @lombok.Builder
+    public static class ImportTarget {
+        private Long productId;
+        private Long stallId;
+        private Long shopId;
+        private Long userId;
+        private Warehouse.ItemType expectedType;
+    }
+
+    /**
+     * 1 dòng của file: error != null là dòng lỗi, message là kết quả của dòng hợp lệ
+     */
+    @lombok.Data
+    @lombok.Builder
+    public static class ImportLine {
+        private int lineNumber;
+        private String itemData;
+        private Warehouse.ItemType itemType;
+        private String itemKey;
+        private String displayKey;
+        private String error;
+        private String message;
+    }
+
+    /**
+     * Kết quả import - chi tiết theo dòng giữ tối đa maxReportLines dòng,
+     * hết chỗ thì chỉ giữ thêm dòng lỗi (tối đa maxReportLines dòng lỗi) để seller vẫn thấy dòng cần sửa
+     */
+    @lombok.Getter
+    public static class ImportResult {
+        private final int maxReportLines;
+        private final StringBuilder details = new StringBuilder();
+        @lombok.Setter
+        private int totalLines;
+        private int successCount;
+        private int failureCount;
+        private int reportedLines;
+        private int reportedFailures;
+
+        ImportResult(int maxReportLines) {
+            this.maxReportLines = maxReportLines;
+        }
+
+        void add(ImportLine line) {
+            boolean failed = line.getError() != null;
+            if (failed) {
+                failureCount++;
+            } else {
+                successCount++;
+            }
+            if (failed ? reportedFailures < maxReportLines : reportedLines < maxReportLines) {
+                details.append("Dòng ").append(line.getLineNumber()).append(": ")
+                        .append(failed ? line.getError() : line.getMessage()).append("\n");
+                reportedLines++;
+                if (failed) {
+                    reportedFailures++;
+                }
+            }
+        }
+
+        public String getResultDetails() {
+            int hidden = successCount + failureCount - reportedLines;
+            return hidden > 0 ? details + "... và " + hidden + " dòng khác\n" : details.toString();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.badat.study1.service;
+
+import com.badat.study1.model.Warehouse;
+import com.badat.study1.repository.WarehouseRepository;
+import lombok.RequiredArgsConstructor;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+/**
+ * Ghi 1 batch dòng import trong 1 transaction: 1 query tra trùng theo (item_type, item_key),
+ * 1 UPDATE khôi phục item đã xóa mềm và INSERT IGNORE nhiều dòng cho item mới
+ * (unique key (item_type, item_key) chặn trùng khi 2 lần import cùng thêm 1 key)
+ */
+@Service
+@RequiredArgsConstructor
+public class InventoryImportWriter {
+
+    private static final String INSERT_WAREHOUSE_SQL = "INSERT IGNORE INTO warehouse " +
+            "(item_type, item_data, item_key, product_id, shop_id, stall_id, user_id, created_at, is_delete, locked) VALUES ";
+    private static final String INSERT_WAREHOUSE_ROW = "(?, ?, ?, ?, ?, ?, ?, ?, false, false)";
+    private static final int INSERT_ROWS_PER_STATEMENT = 500;
+
+    private final WarehouseRepository warehouseRepository;
+    private final StockCounterService stockCounterService;
+    private final JdbcTemplate jdbcTemplate;
+
+    /**
+     * Ghi các dòng chưa có lỗi và điền message (thành công) hoặc error cho từng dòng
+     * Lần import khác vừa thêm cùng key thì INSERT IGNORE bỏ qua dòng đó: cả batch rollback
+     * để lần ghi lại tra trùng thấy dòng đã commit và báo lỗi đúng dòng
+     */
+    @Transactional
+    public void writeChunk(List<InventoryImportService.ImportLine> lines, InventoryImportService.ImportTarget target, long baselineId) {
+        Map<Warehouse.ItemType, List<InventoryImportService.ImportLine>> byType = lines.stream()
+                .filter(line -> line.getError() == null)
+                .collect(Collectors.groupingBy(InventoryImportService.ImportLine::getItemType));
+
+        List<Long> restoreIds = new ArrayList<>();
+        List<Object[]> inserts = new ArrayList<>();
+        Map<Long, Long> productCounts = new HashMap<>();
+        Map<Long, Long> stallCounts = new HashMap<>();
+        Map<Long, Long> shopCounts = new HashMap<>();
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+
+        for (var entry : byType.entrySet()) {
+            Map<String, Object[]> existing = findExisting(entry.getKey(), entry.getValue());
+
+            for (InventoryImportService.ImportLine line : entry.getValue()) {
+                String label = line.getDisplayKey() != null
+                        ? line.getItemType() + " với " + line.getDisplayKey()
+                        : line.getItemType().name();
+                Object[] state = existing.get(line.getItemKey());
+
+                if (state == null) {
+                    inserts.add(new Object[]{line.getItemType().name(), line.getItemData(), line.getItemKey(),
+                            target.getProductId(), target.getShopId(), target.getStallId(), target.getUserId(), now});
+                    count(productCounts, stallCounts, shopCounts, target.getProductId(), target.getStallId(), target.getShopId());
+                    line.setMessage("Thêm mới item (" + label + ")");
+                } else if (!isTrue(state[2])) {
+                    long id = ((Number) state[0]).longValue();
+                    boolean addedByThisImport = id > baselineId && Objects.equals(toLong(state[4]), target.getProductId());
+                    line.setError(addedByThisImport
+                            ? (line.getDisplayKey() != null ? label + " đã tồn tại trong file" : "Item trùng lặp trong file (" + label + ")")
+                            : "Item đã tồn tại trong hệ thống (" + label + ")");
+                } else if (isTrue(state[3])) {
+                    line.setError("Item đã bị khóa và không thể khôi phục (" + label + ")");
+                } else {
+                    restoreIds.add(((Number) state[0]).longValue());
+                    count(productCounts, stallCounts, shopCounts, toLong(state[4]), toLong(state[5]), toLong(state[6]));
+                    line.setMessage("Khôi phục item (" + label + ")");
+                }
+            }
+        }
+
+        if (!restoreIds.isEmpty()) {
+            warehouseRepository.restoreByIds(restoreIds);
+        }
+        if (!inserts.isEmpty() && insertIgnore(inserts) < inserts.size()) {
+            throw new RuntimeException("Một số item vừa được thêm bởi lần import khác");
+        }
+        stockCounterService.onItemsAdded(productCounts, stallCounts, shopCounts);
+    }
+
+    /**
+     * Item đang có theo key - unique key (item_type, item_key) nên mỗi key tối đa 1 dòng
+     */
+    private Map<String, Object[]> findExisting(Warehouse.ItemType itemType, List<InventoryImportService.ImportLine> lines) {
+        List<String> keys = lines.stream().map(InventoryImportService.ImportLine::getItemKey).toList();
+        Map<String, Object[]> existing = new HashMap<>();
+        for (Object[] row : warehouseRepository.findKeyStatesByItemTypeAndItemKeyIn(itemType.name(), keys)) {
+            existing.put((String) row[1], row);
+        }
+        return existing;
+    }
+
+    /**
+     * INSERT IGNORE tối đa INSERT_ROWS_PER_STATEMENT dòng mỗi câu lệnh, trả về số dòng thực sự được thêm
+     * (JDBC batch được driver ghi lại thành multi-row insert thì không trả số dòng của từng lệnh)
+     */
+    private int insertIgnore(List<Object[]> rows) {
+        int inserted = 0;
+        for (int from = 0; from < rows.size(); from += INSERT_ROWS_PER_STATEMENT) {
+            List<Object[]> part = rows.subList(from, Math.min(from + INSERT_ROWS_PER_STATEMENT, rows.size()));
+            String sql = INSERT_WAREHOUSE_SQL + String.join(", ", Collections.nCopies(part.size(), INSERT_WAREHOUSE_ROW));
+            inserted += jdbcTemplate.update(sql, part.stream().flatMap(Arrays::stream).toArray());
+        }
+        return inserted;
+    }
+
+    private void count(Map<Long, Long> productCounts, Map<Long, Long> stallCounts, Map<Long, Long> shopCounts,
+                       Long productId, Long stallId, Long shopId) {
+        productCounts.merge(productId, 1L, Long::sum);
+        stallCounts.merge(stallId, 1L, Long::sum);
+        shopCounts.merge(shopId, 1L, Long::sum);
+    }
+
+    private boolean isTrue(Object value) {
+        if (value instanceof Boolean bool) {
+            return bool;
+        }
+        return value instanceof Number number && number.intValue() != 0;
+    }
+
+    private Long toLong(Object value) {
+        return value != null ? ((Number) value).longValue() : null;
+    }
+}
@@ -0,0 +1,104 @@
+package com.badat.study1.service;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram thời gian xử lý (ms) kiểu log-linear như HdrHistogram: 0-15ms mỗi ms 1 bucket,
+ * từ 16ms mỗi khoảng [2^e, 2^(e+1)) chia 16 bucket nên sai số percentile tối đa ~6%
+ * Ghi lock-free từ nhiều thread, lưu DB dạng "index:count,..." chỉ gồm bucket khác 0
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKETS = 16;
+    private static final int SUB_BUCKET_BITS = 4;
+    // Đủ cho giá trị tới 2^32 ms, lớn hơn thì dồn vào bucket cuối
+    private static final int BUCKETS = SUB_BUCKETS + (32 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    public void record(long valueMs) {
+        counts.incrementAndGet(indexOf(valueMs));
+    }
+
+    public void merge(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long count = other.counts.get(i);
+            if (count != 0) {
+                counts.addAndGet(i, count);
+            }
+        }
+    }
+
+    /**
+     * Cộng histogram đã encode (đọc từ bảng rollup)
+     */
+    public void merge(String encoded) {
+        if (encoded == null || encoded.isEmpty()) {
+            return;
+        }
+        for (String entry : encoded.split(",")) {
+            int separator = entry.indexOf(':');
+            if (separator > 0) {
+                int index = Integer.parseInt(entry.substring(0, separator));
+                if (index >= 0 && index < BUCKETS) {
+                    counts.addAndGet(index, Long.parseLong(entry.substring(separator + 1)));
+                }
+            }
+        }
+    }
+
+    public String encode() {
+        StringBuilder encoded = new StringBuilder();
+        for (int i = 0; i < BUCKETS; i++) {
+            long count = counts.get(i);
+            if (count != 0) {
+                if (!encoded.isEmpty()) {
+                    encoded.append(',');
+                }
+                encoded.append(i).append(':').append(count);
+            }
+        }
+        return encoded.toString();
+    }
+
+    /**
+     * Percentile (0..1) tính theo cận trên của bucket, 0 khi histogram rỗng
+     */
+    public long percentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long threshold = Math.max(1, (long) Math.ceil(total * percentile));
+        long cumulative = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            cumulative += counts.get(i);
+            if (cumulative >= threshold) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    static int indexOf(long valueMs) {
+        if (valueMs < SUB_BUCKETS) {
+            return (int) Math.max(valueMs, 0);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(valueMs);
+        int subBucket = (int) (valueMs >>> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKETS;
+        return Math.min(SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket, BUCKETS - 1);
+    }
+
+    static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = (index - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+        int subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
@@ -1,100 +1,81 @@
 package com.badat.study1.service;
 
-import com.badat.study1.repository.ApiCallLogRepository;
-import com.badat.study1.repository.UserActivityLogRepository;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
 import java.time.LocalDateTime;
-
+import java.util.Map;
+
+/**
+ * Retention cho bảng log qua LogPartitionManager: khi khởi động chuyển bảng sang partition (nếu chưa),
+ * khi khởi động và mỗi đêm tạo trước partition, 2h sáng drop partition hết hạn (bảng không partition thì xóa theo chunk)
+ * Mọi việc giữ bằng lock của DB (LogPartitionManager.runWithDatabaseLock) thay vì Redis lock: ALTER và DELETE theo chunk
+ * có thể chạy lâu hơn thời hạn 30s của Redis lock
+ * - user_activity_log: giữ log.retention.user-activity-days (90) ngày
+ * - api_call_log: giữ log.retention.api-call-days (30) ngày
+ */
 @Slf4j
 @Service
 @RequiredArgsConstructor
 public class LogCleanupScheduler {
-    
-    private final UserActivityLogRepository userActivityLogRepository;
-    private final ApiCallLogRepository apiCallLogRepository;
-    
+
+    private static final String CLEANUP_LOCK_NAME = "log:cleanup";
+
+    private final LogPartitionManager logPartitionManager;
+
+    @Value("${log.retention.user-activity-days:90}")
+    private int userActivityRetentionDays;
+
+    @Value("${log.retention.api-call-days:30}")
+    private int apiCallRetentionDays;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void prepareOnStartup() {
+        retentionDaysByTable().keySet().forEach(logPartitionManager::convertToPartitioned);
+        preparePartitions();
+    }
+
+    /**
+     * Tạo trước partition cho các kỳ sắp tới, chạy lúc 1h sáng để luôn trước ngày mới vài kỳ
+     */
+    @Scheduled(cron = "0 0 1 * * ?")
+    public void preparePartitions() {
+        boolean ran = logPartitionManager.runWithDatabaseLock(CLEANUP_LOCK_NAME,
+                () -> retentionDaysByTable().keySet().forEach(logPartitionManager::preparePartitions));
+        if (!ran) {
+            log.info("Another instance is maintaining log partitions, skipping...");
+        }
+    }
+
     /**
      * Cleanup old logs daily at 2 AM
-     * - UserActivityLog: Keep 90 days
-     * - ApiCallLog: Keep 30 days
      */
     @Scheduled(cron = "0 0 2 * * ?")
     public void cleanupOldLogs() {
-        try {
+        boolean ran = logPartitionManager.runWithDatabaseLock(CLEANUP_LOCK_NAME, () -> {
             log.info("Starting log cleanup process...");
-            
-            // Calculate cutoff dates
-            LocalDateTime userActivityCutoff = LocalDateTime.now().minusDays(90);
-            LocalDateTime apiCallCutoff = LocalDateTime.now().minusDays(30);
-            
-            // Cleanup UserActivityLog (90 days retention)
-            long userActivityDeleted = userActivityLogRepository.countByCreatedAtBefore(userActivityCutoff);
-            if (userActivityDeleted > 0) {
-                userActivityLogRepository.deleteByCreatedAtBefore(userActivityCutoff);
-                log.info("Deleted {} old user activity logs (older than 90 days)", userActivityDeleted);
-            }
-            
-            // Cleanup ApiCallLog (30 days retention)
-            long apiCallDeleted = apiCallLogRepository.countByCreatedAtBefore(apiCallCutoff);
-            if (apiCallDeleted > 0) {
-                apiCallLogRepository.deleteByCreatedAtBefore(apiCallCutoff);
-                log.info("Deleted {} old API call logs (older than 30 days)", apiCallDeleted);
-            }
-            
+            retentionDaysByTable().forEach((table, days) -> {
+                try {
+                    logPartitionManager.purgeBefore(table, LocalDateTime.now().minusDays(days));
+                } catch (Exception e) {
+                    log.error("Error cleaning up {}: {}", table, e.getMessage(), e);
+                }
+            });
             log.info("Log cleanup process completed successfully");
-            
-        } catch (Exception e) {
-            log.error("Error during log cleanup process: {}", e.getMessage(), e);
+        });
+        if (!ran) {
+            log.info("Another instance is cleaning up logs, skipping...");
         }
     }
-    
-    /**
-     * Weekly cleanup for additional maintenance
-     * Runs every Sunday at 3 AM
-     */
-    @Scheduled(cron = "0 0 3 * * SUN")
-    public void weeklyMaintenance() {
-        try {
-            log.info("Starting weekly log maintenance...");
-            
-            // Additional cleanup for very old logs (1 year)
-            LocalDateTime oneYearAgo = LocalDateTime.now().minusYears(1);
-            
-            long veryOldUserLogs = userActivityLogRepository.countByCreatedAtBefore(oneYearAgo);
-            long veryOldApiLogs = apiCallLogRepository.countByCreatedAtBefore(oneYearAgo);
-            
-            if (veryOldUserLogs > 0) {
-                userActivityLogRepository.deleteByCreatedAtBefore(oneYearAgo);
-                log.info("Deleted {} very old user activity logs (older than 1 year)", veryOldUserLogs);
-            }
-            
-            if (veryOldApiLogs > 0) {
-                apiCallLogRepository.deleteByCreatedAtBefore(oneYearAgo);
-                log.info("Deleted {} very old API call logs (older than 1 year)", veryOldApiLogs);
-            }
-            
-            log.info("Weekly log maintenance completed");
-            
-        } catch (Exception e) {
-            log.error("Error during weekly log maintenance: {}", e.getMessage(), e);
-        }
+
+    private Map<String, Integer> retentionDaysByTable() {
+        return Map.of(
+                "user_activity_log", userActivityRetentionDays,
+                "api_call_log", apiCallRetentionDays);
     }
 }
-
-
-
-
-
-
-
-
-
-
-
-
-
-
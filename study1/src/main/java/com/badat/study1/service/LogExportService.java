@@ -0,0 +1,398 @@
+package com.badat.study1.service;
+
+import com.badat.study1.model.AuditLog;
+import com.badat.study1.model.UserActivityLog;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Export log (auditlog, api_call_log, user_activity_log) dạng CSV hoặc NDJSON, có thể gzip
+ * Đọc bằng JDBC cursor forward-only (MySQL: streaming từng dòng) và ghi thẳng ra response,
+ * nên bộ nhớ không phụ thuộc số dòng export
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class LogExportService {
+
+    private static final DateTimeFormatter CSV_TIME_FORMAT = DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm:ss");
+    private static final DateTimeFormatter FILE_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd-HH-mm-ss");
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final ObjectMapper objectMapper;
+
+    @Value("${log.export.fetch-size:1000}")
+    private int fetchSize;
+
+    public enum Format {
+        CSV, NDJSON;
+
+        public static Format of(String value) {
+            return value != null && value.equalsIgnoreCase("ndjson") ? NDJSON : CSV;
+        }
+    }
+
+    private enum ColumnType { TEXT, NUMBER, BOOLEAN, TIMESTAMP }
+
+    public ExportQuery auditLogs(String action, AuditLog.Category category, Boolean success,
+                                 LocalDateTime fromDate, LocalDateTime toDate) {
+        ExportQuery query = new ExportQuery("audit-logs", "auditlog", List.of(
+                new Column("ID", "id", "id", ColumnType.NUMBER),
+                new Column("Thời gian", "createdAt", "created_at", ColumnType.TIMESTAMP),
+                new Column("Hành động", "action", "action", ColumnType.TEXT),
+                new Column("Danh mục", "category", "category", ColumnType.TEXT),
+                new Column("Trạng thái", "success", "success", ColumnType.BOOLEAN),
+                new Column("User ID", "userId", "user_id", ColumnType.NUMBER),
+                new Column("IP Address", "ipAddress", "ip_address", ColumnType.TEXT),
+                new Column("Endpoint", "endpoint", "endpoint", ColumnType.TEXT),
+                new Column("Method", "method", "method", ColumnType.TEXT),
+                new Column("Chi tiết", "details", "details", ColumnType.TEXT),
+                new Column("Lý do lỗi", "failureReason", "failure_reason", ColumnType.TEXT)));
+        query.where("action = ?", action);
+        query.where("category = ?", category != null ? category.name() : null);
+        query.where("success = ?", success);
+        query.where("created_at >= ?", fromDate);
+        query.where("created_at <= ?", toDate);
+        return query;
+    }
+
+    public ExportQuery apiCallLogs(Long userId, String endpoint, String method, Integer statusCode,
+                                   LocalDateTime fromDate, LocalDateTime toDate) {
+        ExportQuery query = new ExportQuery("api-call-logs", "api_call_log", List.of(
+                new Column("ID", "id", "id", ColumnType.NUMBER),
+                new Column("Thời gian", "createdAt", "created_at", ColumnType.TIMESTAMP),
+                new Column("User ID", "userId", "user_id", ColumnType.NUMBER),
+                new Column("Method", "method", "method", ColumnType.TEXT),
+                new Column("Endpoint", "endpoint", "endpoint", ColumnType.TEXT),
+                new Column("Status", "statusCode", "status_code", ColumnType.NUMBER),
+                new Column("Thời gian xử lý (ms)", "durationMs", "duration_ms", ColumnType.NUMBER),
+                new Column("IP Address", "ipAddress", "ip_address", ColumnType.TEXT),
+                new Column("User Agent", "userAgent", "user_agent", ColumnType.TEXT),
+                new Column("Tham số", "requestParams", "request_params", ColumnType.TEXT),
+                new Column("Lỗi", "errorMessage", "error_message", ColumnType.TEXT)));
+        query.where("user_id = ?", userId);
+        query.where("endpoint LIKE ?", endpoint != null ? "%" + endpoint + "%" : null);
+        query.where("method = ?", method);
+        query.where("status_code = ?", statusCode);
+        query.where("created_at >= ?", fromDate);
+        query.where("created_at <= ?", toDate);
+        return query;
+    }
+
+    public ExportQuery activityLogs(Long userId, String action, UserActivityLog.Category category, Boolean success,
+                                    LocalDateTime fromDate, LocalDateTime toDate) {
+        ExportQuery query = new ExportQuery("activity-logs", "user_activity_log", List.of(
+                new Column("ID", "id", "id", ColumnType.NUMBER),
+                new Column("Thời gian", "createdAt", "created_at", ColumnType.TIMESTAMP),
+                new Column("User ID", "userId", "user_id", ColumnType.NUMBER),
+                new Column("Hành động", "action", "action", ColumnType.TEXT),
+                new Column("Danh mục", "category", "category", ColumnType.TEXT),
+                new Column("Trạng thái", "success", "success", ColumnType.BOOLEAN),
+                new Column("Entity", "entityType", "entity_type", ColumnType.TEXT),
+                new Column("Entity ID", "entityId", "entity_id", ColumnType.NUMBER),
+                new Column("Endpoint", "endpoint", "endpoint", ColumnType.TEXT),
+                new Column("Method", "method", "method", ColumnType.TEXT),
+                new Column("IP Address", "ipAddress", "ip_address", ColumnType.TEXT),
+                new Column("Chi tiết", "details", "details", ColumnType.TEXT),
+                new Column("Lý do lỗi", "failureReason", "failure_reason", ColumnType.TEXT)));
+        query.where("user_id = ?", userId);
+        query.where("action = ?", action);
+        query.where("category = ?", category != null ? category.name() : null);
+        query.where("success = ?", success);
+        query.where("created_at >= ?", fromDate);
+        query.where("created_at <= ?", toDate);
+        return query;
+    }
+
+    /**
+     * Response tải file: tên file theo loại log + thời điểm export, gzip thì thêm .gz
+     */
+    public ResponseEntity<StreamingResponseBody> export(ExportQuery query, Format format, boolean gzip) {
+        String fileName = query.filePrefix + "-" + LocalDateTime.now().format(FILE_TIME_FORMAT)
+                + (format == Format.NDJSON ? ".ndjson" : ".csv") + (gzip ? ".gz" : "");
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(gzip ? MediaType.parseMediaType("application/gzip")
+                : format == Format.NDJSON ? MediaType.parseMediaType("application/x-ndjson;charset=UTF-8")
+                : MediaType.parseMediaType("text/csv;charset=UTF-8"));
+        headers.setContentDisposition(ContentDisposition.attachment().filename(fileName).build());
+
+        return ResponseEntity.ok().headers(headers).body(outputStream -> write(query, format, gzip, outputStream));
+    }
+
+    /**
+     * Ghi toàn bộ dòng thỏa filter ra outputStream, mới nhất trước
+     */
+    public long write(ExportQuery query, Format format, boolean gzip, OutputStream outputStream) throws IOException {
+        OutputStream out = gzip ? new GZIPOutputStream(outputStream, BUFFER_SIZE) : outputStream;
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+        RowWriter rowWriter = format == Format.NDJSON ? new NdjsonRowWriter(query.columns, writer) : new CsvRowWriter(query.columns, writer);
+
+        long startTime = System.currentTimeMillis();
+        long[] rows = {0};
+        try {
+            rowWriter.start();
+            jdbcTemplate.query(connection -> {
+                PreparedStatement statement = connection.prepareStatement(query.toSql(),
+                        ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                // Connector/J chỉ stream từng dòng với fetch size Integer.MIN_VALUE, còn lại đọc cả result set vào RAM
+                boolean mysql = connection.getMetaData().getDatabaseProductName().toLowerCase(Locale.ROOT).contains("mysql");
+                statement.setFetchSize(mysql ? Integer.MIN_VALUE : fetchSize);
+                for (int i = 0; i < query.params.size(); i++) {
+                    statement.setObject(i + 1, query.params.get(i));
+                }
+                return statement;
+            }, (RowCallbackHandler) resultSet -> {
+                try {
+                    rowWriter.write(resultSet);
+                    rows[0]++;
+                } catch (IOException e) {
+                    // Client ngắt kết nối: dừng đọc, JdbcTemplate đóng statement
+                    throw new UncheckedIOException(e);
+                }
+            });
+            rowWriter.finish();
+            writer.flush();
+            if (out instanceof GZIPOutputStream gzipOut) {
+                gzipOut.finish();
+            }
+        } catch (UncheckedIOException e) {
+            log.warn("Export {} aborted after {} rows: {}", query.filePrefix, rows[0], e.getCause().getMessage());
+            throw e.getCause();
+        }
+        log.info("Exported {} rows of {} as {}{} in {}ms", rows[0], query.table, format, gzip ? " (gzip)" : "",
+                System.currentTimeMillis() - startTime);
+        return rows[0];
+    }
+
+    /**
+     * Câu SELECT cho 1 loại log: chỉ thêm điều kiện cho filter có giá trị để MySQL dùng được index created_at
+     */
+    public static class ExportQuery {
+        private final String filePrefix;
+        private final String table;
+        private final List<Column> columns;
+        private final List<String> conditions = new ArrayList<>();
+        private final List<Object> params = new ArrayList<>();
+
+        ExportQuery(String filePrefix, String table, List<Column> columns) {
+            this.filePrefix = filePrefix;
+            this.table = table;
+            this.columns = columns;
+        }
+
+        void where(String condition, Object value) {
+            if (value == null || (value instanceof String text && text.isBlank())) {
+                return;
+            }
+            conditions.add(condition);
+            params.add(value instanceof LocalDateTime dateTime ? Timestamp.valueOf(dateTime) : value);
+        }
+
+        String toSql() {
+            StringBuilder sql = new StringBuilder("SELECT ");
+            for (int i = 0; i < columns.size(); i++) {
+                sql.append(i > 0 ? ", " : "").append(columns.get(i).sqlColumn);
+            }
+            sql.append(" FROM ").append(table);
+            if (!conditions.isEmpty()) {
+                sql.append(" WHERE ").append(String.join(" AND ", conditions));
+            }
+            return sql.append(" ORDER BY created_at DESC, id DESC").toString();
+        }
+    }
+
+    private static class Column {
+        private final String header;
+        private final String field;
+        private final String sqlColumn;
+        private final ColumnType type;
+
+        Column(String header, String field, String sqlColumn, ColumnType type) {
+            this.header = header;
+            this.field = field;
+            this.sqlColumn = sqlColumn;
+            this.type = type;
+        }
+    }
+
+    private interface RowWriter {
+        void start() throws IOException;
+
+        void write(ResultSet resultSet) throws SQLException, IOException;
+
+        void finish() throws IOException;
+    }
+
+    /**
+     * CSV theo RFC 4180: ô có dấu phẩy, nháy kép hoặc xuống dòng thì bọc nháy kép
+     */
+    private static class CsvRowWriter implements RowWriter {
+        private final List<Column> columns;
+        private final Writer writer;
+
+        CsvRowWriter(List<Column> columns, Writer writer) {
+            this.columns = columns;
+            this.writer = writer;
+        }
+
+        @Override
+        public void start() throws IOException {
+            for (int i = 0; i < columns.size(); i++) {
+                if (i > 0) {
+                    writer.write(',');
+                }
+                writeCell(columns.get(i).header);
+            }
+            writer.write('\n');
+        }
+
+        @Override
+        public void write(ResultSet resultSet) throws SQLException, IOException {
+            for (int i = 0; i < columns.size(); i++) {
+                if (i > 0) {
+                    writer.write(',');
+                }
+                int index = i + 1;
+                switch (columns.get(i).type) {
+                    case NUMBER -> {
+                        long value = resultSet.getLong(index);
+                        if (!resultSet.wasNull()) {
+                            writer.write(Long.toString(value));
+                        }
+                    }
+                    case BOOLEAN -> {
+                        boolean value = resultSet.getBoolean(index);
+                        if (!resultSet.wasNull()) {
+                            writer.write(value ? "Thành công" : "Thất bại");
+                        }
+                    }
+                    case TIMESTAMP -> {
+                        Timestamp value = resultSet.getTimestamp(index);
+                        if (value != null) {
+                            writer.write(value.toLocalDateTime().format(CSV_TIME_FORMAT));
+                        }
+                    }
+                    default -> writeCell(resultSet.getString(index));
+                }
+            }
+            writer.write('\n');
+        }
+
+        @Override
+        public void finish() {
+        }
+
+        private void writeCell(String value) throws IOException {
+            if (value == null) {
+                return;
+            }
+            boolean quote = false;
+            for (int i = 0; i < value.length() && !quote; i++) {
+                char c = value.charAt(i);
+                quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+            }
+            if (!quote) {
+                writer.write(value);
+                return;
+            }
+            writer.write('"');
+            writer.write(value.replace("\"", "\"\""));
+            writer.write('"');
+        }
+    }
+
+    /**
+     * Mỗi dòng 1 JSON object, key theo tên field của entity, thời gian dạng ISO-8601
+     */
+    private class NdjsonRowWriter implements RowWriter {
+        private final List<Column> columns;
+        private final JsonGenerator generator;
+        private boolean empty = true;
+
+        NdjsonRowWriter(List<Column> columns, Writer writer) throws IOException {
+            this.columns = columns;
+            this.generator = objectMapper.getFactory().createGenerator(writer)
+                    .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            this.generator.setRootValueSeparator(new SerializedString("\n"));
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void write(ResultSet resultSet) throws SQLException, IOException {
+            generator.writeStartObject();
+            for (int i = 0; i < columns.size(); i++) {
+                Column column = columns.get(i);
+                int index = i + 1;
+                generator.writeFieldName(column.field);
+                switch (column.type) {
+                    case NUMBER -> {
+                        long value = resultSet.getLong(index);
+                        if (resultSet.wasNull()) {
+                            generator.writeNull();
+                        } else {
+                            generator.writeNumber(value);
+                        }
+                    }
+                    case BOOLEAN -> {
+                        boolean value = resultSet.getBoolean(index);
+                        if (resultSet.wasNull()) {
+                            generator.writeNull();
+                        } else {
+                            generator.writeBoolean(value);
+                        }
+                    }
+                    case TIMESTAMP -> {
+                        Timestamp value = resultSet.getTimestamp(index);
+                        generator.writeString(value != null ? value.toLocalDateTime().toString() : null);
+                    }
+                    default -> generator.writeString(resultSet.getString(index));
+                }
+            }
+            generator.writeEndObject();
+            empty = false;
+        }
+
+        @Override
+        public void finish() throws IOException {
+            if (!empty) {
+                generator.writeRaw('\n');
+            }
+            generator.flush();
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package com.badat.study1.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Partition theo thời gian cho các bảng log (MySQL PARTITION BY RANGE (TO_DAYS(created_at)))
+ * Mỗi partition là 1 ngày hoặc 1 tháng, partition pmax (MAXVALUE) luôn rỗng nhờ tạo trước
+ * log.partitioning.ahead kỳ; retention là DROP PARTITION các kỳ đã hết hạn.
+ * DB không hỗ trợ partition (H2 ở profile benchmark) hoặc bảng chưa được partition thì xóa bằng DELETE ... LIMIT theo chunk
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class LogPartitionManager {
+
+    private static final String MAX_PARTITION = "pmax";
+    private static final String HISTORY_PARTITION = "phistory";
+    private static final String CONVERSION_LOCK_PREFIX = "log-partition:convert:";
+    // TO_DAYS('1970-01-01') của MySQL
+    private static final long TO_DAYS_EPOCH_OFFSET = 719528;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    @Value("${log.partitioning.enabled:true}")
+    private boolean enabled;
+
+    @Value("${log.partitioning.granularity:DAY}")
+    private Granularity granularity;
+
+    @Value("${log.partitioning.ahead:7}")
+    private int ahead;
+
+    @Value("${log.retention.delete-batch-size:5000}")
+    private int deleteBatchSize;
+
+    private Boolean partitioningSupported;
+
+    // Thay cho GET_LOCK khi DB không có (H2 ở profile benchmark chỉ chạy 1 JVM nên lock trong JVM là đủ)
+    private final Map<String, ReentrantLock> localLocks = new ConcurrentHashMap<>();
+
+    public enum Granularity {
+        DAY, MONTH;
+
+        LocalDate periodStart(LocalDate date) {
+            return this == DAY ? date : date.withDayOfMonth(1);
+        }
+
+        LocalDate next(LocalDate periodStart) {
+            return this == DAY ? periodStart.plusDays(1) : periodStart.plusMonths(1);
+        }
+
+        String partitionName(LocalDate periodStart) {
+            return "p" + periodStart.format(DateTimeFormatter.ofPattern(this == DAY ? "yyyyMMdd" : "yyyyMM"));
+        }
+    }
+
+    /**
+     * Chuyển bảng thường sang partition (1 lần, khi khởi động) - ALTER chép lại cả bảng nên có thể chạy rất lâu,
+     * được giữ bằng lock của DB (xem runWithDatabaseLock)
+     */
+    public void convertToPartitioned(String table) {
+        if (!enabled || !isPartitioningSupported()) {
+            return;
+        }
+        try {
+            boolean ran = runWithDatabaseLock(CONVERSION_LOCK_PREFIX + table, () -> {
+                if (!isPartitioned(table)) {
+                    partitionTable(table);
+                }
+            });
+            if (!ran) {
+                log.info("Another instance is converting {} to partitions, skipping...", table);
+            }
+        } catch (Exception e) {
+            log.error("Could not convert {} to partitions: {}", table, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Chạy work khi giữ được lock tên lockName, không chờ nếu node khác đang giữ
+     * MySQL: GET_LOCK trên 1 connection riêng của pool - lock gắn với session nên không hết hạn giữa chừng
+     * như Redis lock (30s) và tự nhả khi node chết; work chạy trên connection khác, connection này chỉ giữ lock.
+     * DB không có GET_LOCK (H2) thì dùng lock trong JVM
+     *
+     * @return false nếu lock đang bị giữ (work không chạy)
+     */
+    public boolean runWithDatabaseLock(String lockName, Runnable work) {
+        if (!isPartitioningSupported()) {
+            ReentrantLock lock = localLocks.computeIfAbsent(lockName, name -> new ReentrantLock());
+            if (!lock.tryLock()) {
+                return false;
+            }
+            try {
+                work.run();
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        Boolean ran = jdbcTemplate.execute((ConnectionCallback<Boolean>) connection -> {
+            if (!tryDatabaseLock(connection, lockName)) {
+                return false;
+            }
+            try {
+                work.run();
+                return true;
+            } finally {
+                releaseDatabaseLock(connection, lockName);
+            }
+        });
+        return Boolean.TRUE.equals(ran);
+    }
+
+    /**
+     * Tạo trước partition cho các kỳ sắp tới - bảng chưa partition thì bỏ qua (xem convertToPartitioned)
+     */
+    public void preparePartitions(String table) {
+        if (!enabled || !isPartitioningSupported()) {
+            return;
+        }
+        try {
+            if (isPartitioned(table)) {
+                ensureFuturePartitions(table);
+            }
+        } catch (Exception e) {
+            log.error("Could not prepare partitions for {}: {}", table, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Xóa log cũ hơn cutoff: DROP PARTITION các partition đã hết hạn hoàn toàn,
+     * phần còn lại (partition đang chứa cutoff, hoặc bảng không partition) xóa theo chunk
+     *
+     * @return số partition đã drop
+     */
+    public int purgeBefore(String table, LocalDateTime cutoff) {
+        int dropped = 0;
+        if (enabled && isPartitioningSupported() && isPartitioned(table)) {
+            dropped = dropPartitionsBefore(table, cutoff);
+        }
+        long deleted = deleteInChunks(table, cutoff);
+        log.info("Purged {} before {}: {} partitions dropped, {} rows deleted in chunks", table, cutoff, dropped, deleted);
+        return dropped;
+    }
+
+    private boolean isPartitioningSupported() {
+        if (partitioningSupported == null) {
+            String product = jdbcTemplate.execute((ConnectionCallback<String>) connection ->
+                    connection.getMetaData().getDatabaseProductName());
+            partitioningSupported = product != null && product.toLowerCase(Locale.ROOT).matches(".*(mysql|mariadb).*");
+            if (!partitioningSupported) {
+                log.info("Database {} does not support range partitioning, log retention uses chunked deletes", product);
+            }
+        }
+        return partitioningSupported;
+    }
+
+    private boolean tryDatabaseLock(Connection connection, String lockName) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT GET_LOCK(?, 0)")) {
+            statement.setString(1, lockName);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() && resultSet.getInt(1) == 1;
+            }
+        }
+    }
+
+    private void releaseDatabaseLock(Connection connection, String lockName) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT RELEASE_LOCK(?)")) {
+            statement.setString(1, lockName);
+            statement.executeQuery().close();
+        }
+    }
+
+    private boolean isPartitioned(String table) {
+        Integer count = jdbcTemplate.queryForObject(
+                "SELECT COUNT(*) FROM INFORMATION_SCHEMA.PARTITIONS WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ? " +
+                        "AND PARTITION_NAME IS NOT NULL", Integer.class, table);
+        return count != null && count > 0;
+    }
+
+    /**
+     * Chuyển bảng thường sang partition: bỏ foreign key (InnoDB không cho partition bảng có FK),
+     * đưa created_at vào primary key, dữ liệu cũ nằm chung trong phistory
+     */
+    private void partitionTable(String table) {
+        log.info("Converting {} to {} range partitions, this rebuilds the table once", table, granularity);
+
+        List<String> foreignKeys = jdbcTemplate.queryForList(
+                "SELECT CONSTRAINT_NAME FROM INFORMATION_SCHEMA.TABLE_CONSTRAINTS WHERE TABLE_SCHEMA = DATABASE() " +
+                        "AND TABLE_NAME = ? AND CONSTRAINT_TYPE = 'FOREIGN KEY'", String.class, table);
+        for (String foreignKey : foreignKeys) {
+            jdbcTemplate.execute("ALTER TABLE " + table + " DROP FOREIGN KEY " + foreignKey);
+        }
+        jdbcTemplate.execute("ALTER TABLE " + table + " DROP PRIMARY KEY, ADD PRIMARY KEY (id, created_at)");
+
+        LocalDate current = granularity.periodStart(LocalDate.now());
+        List<String> definitions = new ArrayList<>();
+        definitions.add(partitionDefinition(HISTORY_PARTITION, current));
+        definitions.addAll(periodDefinitions(current, lastPeriodToCreate()));
+        definitions.add("PARTITION " + MAX_PARTITION + " VALUES LESS THAN MAXVALUE");
+
+        jdbcTemplate.execute("ALTER TABLE " + table + " PARTITION BY RANGE (TO_DAYS(created_at)) (" +
+                String.join(", ", definitions) + ")");
+        log.info("Table {} is now partitioned by {}", table, granularity);
+    }
+
+    /**
+     * Tách pmax để luôn có partition cho ahead kỳ tới (pmax rỗng nên REORGANIZE không phải chép dữ liệu)
+     */
+    private void ensureFuturePartitions(String table) {
+        long maxBound = jdbcTemplate.queryForList(
+                        "SELECT PARTITION_DESCRIPTION FROM INFORMATION_SCHEMA.PARTITIONS WHERE TABLE_SCHEMA = DATABASE() " +
+                                "AND TABLE_NAME = ? AND PARTITION_NAME IS NOT NULL", String.class, table).stream()
+                .filter(description -> description != null && description.matches("\\d+"))
+                .mapToLong(Long::parseLong)
+                .max()
+                .orElse(toDays(granularity.periodStart(LocalDate.now())));
+
+        LocalDate from = granularity.periodStart(fromToDays(maxBound));
+        List<String> definitions = periodDefinitions(from, lastPeriodToCreate());
+        if (definitions.isEmpty()) {
+            return;
+        }
+        definitions.add("PARTITION " + MAX_PARTITION + " VALUES LESS THAN MAXVALUE");
+        jdbcTemplate.execute("ALTER TABLE " + table + " REORGANIZE PARTITION " + MAX_PARTITION + " INTO (" +
+                String.join(", ", definitions) + ")");
+        log.info("Created {} future partitions for {}", definitions.size() - 1, table);
+    }
+
+    private int dropPartitionsBefore(String table, LocalDateTime cutoff) {
+        long cutoffDays = toDays(cutoff.toLocalDate());
+        List<String> expired = new ArrayList<>();
+        for (var row : jdbcTemplate.queryForList(
+                "SELECT PARTITION_NAME, PARTITION_DESCRIPTION FROM INFORMATION_SCHEMA.PARTITIONS WHERE TABLE_SCHEMA = DATABASE() " +
+                        "AND TABLE_NAME = ? AND PARTITION_NAME IS NOT NULL", table)) {
+            String description = (String) row.get("PARTITION_DESCRIPTION");
+            // Partition chỉ chứa dòng < bound nên bound <= ngày cutoff là đã hết hạn toàn bộ
+            if (description != null && description.matches("\\d+") && Long.parseLong(description) <= cutoffDays) {
+                expired.add((String) row.get("PARTITION_NAME"));
+            }
+        }
+        if (!expired.isEmpty()) {
+            jdbcTemplate.execute("ALTER TABLE " + table + " DROP PARTITION " + String.join(", ", expired));
+        }
+        return expired.size();
+    }
+
+    /**
+     * DELETE ... LIMIT lặp lại, mỗi câu 1 transaction ngắn (autocommit) để không giữ lock và undo log lớn
+     */
+    private long deleteInChunks(String table, LocalDateTime cutoff) {
+        long total = 0;
+        int deleted;
+        do {
+            deleted = jdbcTemplate.update("DELETE FROM " + table + " WHERE created_at < ? LIMIT " + deleteBatchSize, cutoff);
+            total += deleted;
+        } while (deleted >= deleteBatchSize);
+        return total;
+    }
+
+    private LocalDate lastPeriodToCreate() {
+        LocalDate period = granularity.periodStart(LocalDate.now());
+        for (int i = 0; i < ahead; i++) {
+            period = granularity.next(period);
+        }
+        return period;
+    }
+
+    /**
+     * Định nghĩa partition cho các kỳ từ from đến hết kỳ last
+     */
+    private List<String> periodDefinitions(LocalDate from, LocalDate last) {
+        List<String> definitions = new ArrayList<>();
+        for (LocalDate period = from; !period.isAfter(last); period = granularity.next(period)) {
+            definitions.add(partitionDefinition(granularity.partitionName(period), granularity.next(period)));
+        }
+        return definitions;
+    }
+
+    private String partitionDefinition(String name, LocalDate lessThan) {
+        return "PARTITION " + name + " VALUES LESS THAN (" + toDays(lessThan) + ")";
+    }
+
+    private long toDays(LocalDate date) {
+        return date.toEpochDay() + TO_DAYS_EPOCH_OFFSET;
+    }
+
+    private LocalDate fromToDays(long days) {
+        return LocalDate.ofEpochDay(days - TO_DAYS_EPOCH_OFFSET);
+    }
+}
@@ -2,15 +2,25 @@ package com.badat.study1.service;
 
 import com.badat.study1.model.*;
 import com.badat.study1.repository.OrderRepository;
+import com.badat.study1.repository.OrderItemKeyRepository;
 import com.badat.study1.repository.OrderItemRepository;
 import com.badat.study1.repository.StallRepository;
 import com.badat.study1.repository.ShopRepository;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
@@ -21,10 +31,21 @@ import java.util.Map;
 @Slf4j
 public class OrderService {
 
+    private static final String INSERT_ORDER_ITEM_SQL =
+            "INSERT INTO order_item (order_id, product_id, warehouse_id, quantity, unit_price, total_amount, commission_rate, " +
+            "commission_amount, seller_amount, seller_id, shop_id, stall_id, status, notes, is_delete, created_by, created_at, updated_at) " +
+            "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, false, 'SYSTEM', ?, ?)";
+
+    private static final String INSERT_ORDER_ITEM_KEY_SQL =
+            "INSERT INTO order_item_key (order_item_id, warehouse_id, created_at) VALUES (?, ?, ?)";
+
     private final OrderRepository orderRepository;
     private final OrderItemRepository orderItemRepository;
+    private final OrderItemKeyRepository orderItemKeyRepository;
     private final StallRepository stallRepository;
     private final ShopRepository shopRepository;
+    private final JdbcTemplate jdbcTemplate;
+    private final WarehouseLockService warehouseLockService;
 
     /**
      * Tạo order mới với nhiều sản phẩm từ cart
@@ -41,35 +62,152 @@ public class OrderService {
     @Transactional
     public Order createOrderFromCart(Long buyerId, List<Map<String, Object>> cartItems,
                                      String paymentMethod, String notes, String customOrderCode) {
+        return createOrderFromCart(buyerId, cartItems, List.of(), paymentMethod, notes, customOrderCode);
+    }
+
+    /**
+     * Tạo order từ cart với các warehouse item đã được reserve cho order này
+     */
+    @Transactional
+    public Order createOrderFromCart(Long buyerId, List<Map<String, Object>> cartItems, List<Warehouse> reservedItems,
+                                     String paymentMethod, String notes, String customOrderCode) {
+        return createOrderFromQuote(buyerId, CartQuoteService.CartQuote.fromCartItems(cartItems), reservedItems,
+                paymentMethod, notes, customOrderCode);
+    }
+
+    /**
+     * Tạo order từ quote và giao các warehouse item đã reserve trong cùng 1 transaction
+     * Nếu số item giao được khác số item đã reserve thì throw để rollback cả order
+     */
+    @Transactional
+    public Order createDeliveredOrderFromQuote(Long buyerId, CartQuoteService.CartQuote quote, List<Warehouse> reservedItems,
+                                               String paymentMethod, String notes, String customOrderCode) {
+        Order order = createOrderFromQuote(buyerId, quote, reservedItems, paymentMethod, notes, customOrderCode);
+        warehouseLockService.markReservedAsDelivered(reservedItems.stream().map(Warehouse::getId).toList());
+        return order;
+    }
+
+    /**
+     * Tạo order từ quote của cart với các warehouse item đã được reserve cho order này
+     * Giá, stall/shop/seller và commission lấy từ quote nên không phải tra lại; chỉ quote thiếu dữ liệu
+     * (cartData cũ) mới tra stall/shop. Mỗi sản phẩm thành 1 OrderItem mang quantity (tách theo seller
+     * của item nếu khác nhau), các key đã giao được ghi vào order_item_key bằng 1 JDBC batch insert
+     */
+    @Transactional
+    public Order createOrderFromQuote(Long buyerId, CartQuoteService.CartQuote quote, List<Warehouse> reservedItems,
+                                      String paymentMethod, String notes, String customOrderCode) {
 
-        log.info("Creating order from cart for buyer: {} with {} items", buyerId, cartItems.size());
+        log.info("Creating order from cart for buyer: {} with {} items", buyerId, quote.getLines().size());
 
         // Tạo order code unique hoặc sử dụng customOrderCode
         String orderCode = customOrderCode != null ? customOrderCode : generateOrderCode();
 
-        // Lấy thông tin shop, stall, seller từ cart item đầu tiên
-        Map<String, Object> firstCartItem = cartItems.get(0);
-        Long stallId = Long.valueOf(firstCartItem.get("stallId").toString());
+        // Lấy thông tin shop, stall, seller từ dòng đầu tiên của quote
+        CartQuoteService.QuoteLine firstLine = quote.getLines().get(0);
+        Long stallId = firstLine.getStallId();
+        Long shopId = firstLine.getShopId();
+        Long sellerId = firstLine.getSellerId();
+
+        // Commission rate theo stall - mỗi stall chỉ tra 1 lần cho cả order
+        Map<Long, BigDecimal> commissionRates = new HashMap<>();
+        for (CartQuoteService.QuoteLine line : quote.getLines()) {
+            if (line.getCommissionRate() != null) {
+                commissionRates.putIfAbsent(line.getStallId(), line.getCommissionRate());
+            }
+        }
 
-        // Lấy thông tin stall để lấy shopId
-        Stall stall = stallRepository.findById(stallId)
-                .orElseThrow(() -> new RuntimeException("Stall not found: " + stallId));
+        if (shopId == null || sellerId == null) {
+            Stall stall = stallRepository.findById(stallId)
+                    .orElseThrow(() -> new RuntimeException("Stall not found: " + stallId));
+            Shop shop = shopRepository.findById(stall.getShopId())
+                    .orElseThrow(() -> new RuntimeException("Shop not found: " + stall.getShopId()));
+            shopId = shop.getId();
+            sellerId = shop.getUserId();
+            commissionRates.putIfAbsent(stallId, commissionRateOf(stall));
+        }
 
-        // Lấy sellerId từ shopId
-        Shop shop = shopRepository.findById(stall.getShopId())
-                .orElseThrow(() -> new RuntimeException("Shop not found: " + stall.getShopId()));
-        Long sellerId = shop.getUserId();
+        // Warehouse item đã reserve, gom theo product để gán lần lượt cho từng đơn vị quantity
+        Map<Long, Deque<Warehouse>> reservedByProduct = new HashMap<>();
+        for (Warehouse item : reservedItems) {
+            reservedByProduct.computeIfAbsent(item.getProduct().getId(), id -> new ArrayDeque<>()).add(item);
+        }
 
-        // Tạo Order chính
+        // Tính toàn bộ dòng order trong bộ nhớ trước, order chỉ cần insert 1 lần với tổng tiền cuối cùng
+        List<OrderItem> orderItems = new ArrayList<>();
+        List<List<Long>> deliveredKeys = new ArrayList<>();
+        BigDecimal totalAmount = BigDecimal.ZERO;
+        BigDecimal totalCommissionAmount = BigDecimal.ZERO;
+        BigDecimal totalSellerAmount = BigDecimal.ZERO;
+
+        for (CartQuoteService.QuoteLine line : quote.getLines()) {
+            try {
+                Long productId = line.getProductId();
+                Integer quantity = line.getQuantity();
+                BigDecimal unitPrice = line.getPrice();
+                Long itemStallId = line.getStallId();
+                Long itemShopId = line.getShopId() != null ? line.getShopId() : shopId;
+                Long itemSellerId = line.getSellerId() != null ? line.getSellerId() : sellerId;
+
+                BigDecimal commissionRate = commissionRates.computeIfAbsent(itemStallId, this::getCommissionRate);
+                BigDecimal itemCommissionAmount = unitPrice.multiply(commissionRate).divide(BigDecimal.valueOf(100));
+                BigDecimal itemSellerAmount = unitPrice.subtract(itemCommissionAmount);
+                Deque<Warehouse> productItems = reservedByProduct.getOrDefault(productId, new ArrayDeque<>());
+
+                // Gán key cho từng đơn vị quantity, gom theo seller của key: mỗi seller 1 dòng order
+                Map<Long, List<Long>> keysBySeller = new LinkedHashMap<>();
+                int unassigned = 0;
+                for (int i = 0; i < quantity; i++) {
+                    Warehouse assigned = productItems.poll();
+                    if (assigned == null) {
+                        unassigned++;
+                        continue;
+                    }
+                    Long keySellerId = assigned.getUser() != null ? assigned.getUser().getId() : itemSellerId;
+                    keysBySeller.computeIfAbsent(keySellerId, id -> new ArrayList<>()).add(assigned.getId());
+                }
+
+                for (Map.Entry<Long, List<Long>> entry : keysBySeller.entrySet()) {
+                    List<Long> keyIds = entry.getValue();
+                    orderItems.add(buildOrderLine(productId, keyIds.get(0), keyIds.size(), unitPrice, commissionRate,
+                            itemCommissionAmount, itemSellerAmount, entry.getKey(), itemShopId, itemStallId));
+                    deliveredKeys.add(keyIds);
+                }
+                // Không có item đã reserve (tạo order trực tiếp từ cart item): dùng warehouseId trong cart item,
+                // không có dòng order_item_key
+                if (unassigned > 0) {
+                    if (line.getWarehouseId() == null) {
+                        throw new RuntimeException("No reserved warehouse items for product " + productId);
+                    }
+                    orderItems.add(buildOrderLine(productId, line.getWarehouseId(), unassigned, unitPrice, commissionRate,
+                            itemCommissionAmount, itemSellerAmount, itemSellerId, itemShopId, itemStallId));
+                    deliveredKeys.add(List.of());
+                }
+
+                // Cộng dồn vào tổng của Order
+                BigDecimal units = BigDecimal.valueOf(quantity);
+                totalAmount = totalAmount.add(unitPrice.multiply(units));
+                totalCommissionAmount = totalCommissionAmount.add(itemCommissionAmount.multiply(units));
+                totalSellerAmount = totalSellerAmount.add(itemSellerAmount.multiply(units));
+
+                log.info("Prepared order line(s) for product: {} with {} keys, total amount: {}",
+                        productId, quantity, unitPrice.multiply(units));
+
+            } catch (Exception e) {
+                log.error("Failed to create order item for quote line: {}", line, e);
+                throw new RuntimeException("Failed to create order item: " + e.getMessage());
+            }
+        }
+
+        // Tạo Order chính với tổng tiền đã tính
         Order order = Order.builder()
                 .buyerId(buyerId)
-                .shopId(stall.getShopId())
+                .shopId(shopId)
                 .stallId(stallId)
                 .sellerId(sellerId)
-                .totalAmount(BigDecimal.ZERO)
-                .totalCommissionAmount(BigDecimal.ZERO)
-                .totalSellerAmount(BigDecimal.ZERO)
-                .status(Order.Status.PENDING)
+                .totalAmount(totalAmount)
+                .totalCommissionAmount(totalCommissionAmount)
+                .totalSellerAmount(totalSellerAmount)
+                .status(Order.Status.COMPLETED)
                 .paymentMethod(paymentMethod)
                 .orderCode(orderCode)
                 .notes(notes)
@@ -77,95 +215,106 @@ public class OrderService {
 
         Order savedOrder = orderRepository.save(order);
 
-        // Tạo OrderItem cho từng sản phẩm trong cart
-        BigDecimal totalAmount = BigDecimal.ZERO;
-        BigDecimal totalCommissionAmount = BigDecimal.ZERO;
-        BigDecimal totalSellerAmount = BigDecimal.ZERO;
+        // Số dòng order chỉ bằng số sản phẩm (x seller), không còn tỉ lệ với quantity
+        insertOrderItems(savedOrder.getId(), orderItems);
+        insertDeliveredKeys(orderItems, deliveredKeys);
 
-        for (Map<String, Object> cartItem : cartItems) {
-            try {
-                // Validate và lấy các giá trị từ cartItem
-                Object productIdObj = cartItem.get("productId");
-                Object warehouseIdObj = cartItem.get("warehouseId");
-                Object quantityObj = cartItem.get("quantity");
-                Object priceObj = cartItem.get("price");
-                Object stallIdObj = cartItem.get("stallId");
-
-                if (productIdObj == null || warehouseIdObj == null || quantityObj == null ||
-                        priceObj == null || stallIdObj == null) {
-                    log.error("Missing required fields in cart item: {}", cartItem);
-                    throw new RuntimeException("Missing required fields in cart item");
-                }
+        log.info("Order created successfully: {} with {} lines, total amount: {} VND, commission: {} VND",
+                savedOrder.getId(), orderItems.size(), totalAmount, totalCommissionAmount);
 
-                Long productId = Long.valueOf(productIdObj.toString());
-                Long warehouseId = Long.valueOf(warehouseIdObj.toString());
-                Integer quantity = Integer.valueOf(quantityObj.toString());
-                BigDecimal unitPrice = new BigDecimal(priceObj.toString());
-                Long itemStallId = Long.valueOf(stallIdObj.toString());
+        return savedOrder;
+    }
 
-                // Lấy thông tin stall để tính commission
-                BigDecimal commissionRate = getCommissionRate(itemStallId);
+    private OrderItem buildOrderLine(Long productId, Long warehouseId, int quantity, BigDecimal unitPrice,
+                                     BigDecimal commissionRate, BigDecimal unitCommissionAmount, BigDecimal unitSellerAmount,
+                                     Long sellerId, Long shopId, Long stallId) {
+        BigDecimal units = BigDecimal.valueOf(quantity);
+        return OrderItem.builder()
+                .productId(productId)
+                .warehouseId(warehouseId) // Key đầu tiên của dòng, danh sách đầy đủ nằm ở order_item_key
+                .quantity(quantity)
+                .unitPrice(unitPrice)
+                .totalAmount(unitPrice.multiply(units))
+                .commissionRate(commissionRate)
+                .commissionAmount(unitCommissionAmount.multiply(units))
+                .sellerAmount(unitSellerAmount.multiply(units))
+                .sellerId(sellerId)
+                .shopId(shopId)
+                .stallId(stallId)
+                .status(OrderItem.Status.PENDING)
+                .notes("Order line from cart - " + quantity + " key(s)")
+                .build();
+    }
 
-                // Tạo nhiều OrderItem riêng biệt cho mỗi quantity
-                for (int i = 0; i < quantity; i++) {
-                    // Tính toán các số tiền cho từng OrderItem (quantity = 1)
-                    BigDecimal itemTotalAmount = unitPrice; // Mỗi item có quantity = 1
-                    BigDecimal itemCommissionAmount = itemTotalAmount.multiply(commissionRate).divide(BigDecimal.valueOf(100));
-                    BigDecimal itemSellerAmount = itemTotalAmount.subtract(itemCommissionAmount);
-
-                    // Lấy sellerId từ warehouse (tạm thời set 0, sẽ được cập nhật sau)
-                    Long itemSellerId = 0L; // Sẽ được cập nhật trong PaymentQueueService
-
-                    // Tạo OrderItem với quantity = 1
-                    OrderItem orderItem = OrderItem.builder()
-                            .orderId(savedOrder.getId())
-                            .productId(productId)
-                            .warehouseId(warehouseId) // Sẽ được cập nhật với warehouseId thực tế
-                            .quantity(1) // Mỗi OrderItem có quantity = 1
-                            .unitPrice(unitPrice)
-                            .totalAmount(itemTotalAmount)
-                            .commissionRate(commissionRate)
-                            .commissionAmount(itemCommissionAmount)
-                            .sellerAmount(itemSellerAmount)
-                            .sellerId(itemSellerId) // Sẽ được cập nhật trong PaymentQueueService
-                            .shopId(stall.getShopId()) // Thêm shop_id
-                            .stallId(stallId) // Thêm stall_id
-                            .status(OrderItem.Status.PENDING)
-                            .notes("Order item from cart - item " + (i + 1) + " of " + quantity)
-                            .build();
-
-                    orderItemRepository.save(orderItem);
-
-                    // Cộng dồn vào tổng của Order
-                    totalAmount = totalAmount.add(itemTotalAmount);
-                    totalCommissionAmount = totalCommissionAmount.add(itemCommissionAmount);
-                    totalSellerAmount = totalSellerAmount.add(itemSellerAmount);
-
-                    log.info("Created order item {} for product: {}, warehouseId: {}, amount: {}",
-                            i + 1, productId, warehouseId, itemTotalAmount);
-                }
+    /**
+     * Ghi toàn bộ OrderItem của order bằng 1 JDBC batch insert
+     * OrderItem dùng IDENTITY nên Hibernate không batch được - ghi thẳng qua JDBC, id do DB sinh theo thứ tự insert
+     * nên đọc lại id theo order_id tăng dần và gán lại cho từng dòng (order_item_key cần id này)
+     */
+    private void insertOrderItems(Long orderId, List<OrderItem> orderItems) {
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+        List<Object[]> args = new ArrayList<>(orderItems.size());
+        for (OrderItem item : orderItems) {
+            args.add(new Object[]{
+                    orderId, item.getProductId(), item.getWarehouseId(), item.getQuantity(), item.getUnitPrice(),
+                    item.getTotalAmount(), item.getCommissionRate(), item.getCommissionAmount(), item.getSellerAmount(),
+                    item.getSellerId(), item.getShopId(), item.getStallId(), item.getStatus().name(), item.getNotes(),
+                    now, now
+            });
+        }
+        jdbcTemplate.batchUpdate(INSERT_ORDER_ITEM_SQL, args);
 
-                log.info("Created {} order items for product: {} with total amount: {}",
-                        quantity, productId, unitPrice.multiply(BigDecimal.valueOf(quantity)));
+        List<Long> ids = jdbcTemplate.queryForList("SELECT id FROM order_item WHERE order_id = ? ORDER BY id", Long.class, orderId);
+        if (ids.size() != orderItems.size()) {
+            throw new RuntimeException("Inserted " + ids.size() + " of " + orderItems.size() + " order items for order " + orderId);
+        }
+        for (int i = 0; i < orderItems.size(); i++) {
+            OrderItem item = orderItems.get(i);
+            item.setId(ids.get(i));
+            item.setOrderId(orderId);
+        }
+    }
 
-            } catch (Exception e) {
-                log.error("Failed to create order item for cart item: {}", cartItem, e);
-                throw new RuntimeException("Failed to create order item: " + e.getMessage());
+    /**
+     * Ghi các key đã giao của từng dòng order bằng 1 JDBC batch insert
+     * deliveredKeys song song với orderItems theo thứ tự
+     */
+    private void insertDeliveredKeys(List<OrderItem> orderItems, List<List<Long>> deliveredKeys) {
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+        List<Object[]> args = new ArrayList<>();
+        for (int i = 0; i < orderItems.size(); i++) {
+            Long orderItemId = orderItems.get(i).getId();
+            for (Long warehouseId : deliveredKeys.get(i)) {
+                args.add(new Object[]{orderItemId, warehouseId, now});
             }
         }
 
-        // Cập nhật tổng tiền của Order
-        savedOrder.setTotalAmount(totalAmount);
-        savedOrder.setTotalCommissionAmount(totalCommissionAmount);
-        savedOrder.setTotalSellerAmount(totalSellerAmount);
-        savedOrder.setStatus(Order.Status.COMPLETED);
-
-        Order finalOrder = orderRepository.save(savedOrder);
+        if (!args.isEmpty()) {
+            jdbcTemplate.batchUpdate(INSERT_ORDER_ITEM_KEY_SQL, args);
+        }
+    }
 
-        log.info("Order created successfully: {} with total amount: {} VND, commission: {} VND",
-                finalOrder.getId(), totalAmount, totalCommissionAmount);
+    /**
+     * Danh sách key đã giao theo từng OrderItem, lấy bằng 1 query cho mọi dòng
+     * Dòng cũ (mỗi OrderItem 1 key, không có order_item_key) trả về warehouse của chính OrderItem
+     */
+    @Transactional(readOnly = true)
+    public Map<Long, List<Warehouse>> getDeliveredKeys(Collection<OrderItem> orderItems) {
+        Map<Long, List<Warehouse>> keysByItem = new HashMap<>();
+        if (orderItems.isEmpty()) {
+            return keysByItem;
+        }
 
-        return finalOrder;
+        List<Long> orderItemIds = orderItems.stream().map(OrderItem::getId).toList();
+        for (OrderItemKey key : orderItemKeyRepository.findWithWarehouseByOrderItemIdIn(orderItemIds)) {
+            keysByItem.computeIfAbsent(key.getOrderItemId(), id -> new ArrayList<>()).add(key.getWarehouse());
+        }
+        for (OrderItem item : orderItems) {
+            if (!keysByItem.containsKey(item.getId()) && item.getWarehouse() != null) {
+                keysByItem.put(item.getId(), List.of(item.getWarehouse()));
+            }
+        }
+        return keysByItem;
     }
 
     /**
@@ -358,14 +507,7 @@ public class OrderService {
         try {
             Stall stall = stallRepository.findById(stallId)
                     .orElseThrow(() -> new RuntimeException("Stall not found: " + stallId));
-
-            // Nếu stall có discount_percentage, sử dụng làm commission rate
-            if (stall.getDiscountPercentage() != null) {
-                return BigDecimal.valueOf(stall.getDiscountPercentage());
-            }
-
-            // Mặc định commission rate là 5%
-            return BigDecimal.valueOf(5.0);
+            return commissionRateOf(stall);
 
         } catch (Exception e) {
             log.warn("Failed to get commission rate for stall {}, using default 5%", stallId);
@@ -373,6 +515,19 @@ public class OrderService {
         }
     }
 
+    /**
+     * Commission rate của stall đã load
+     */
+    static BigDecimal commissionRateOf(Stall stall) {
+        // Nếu stall có discount_percentage, sử dụng làm commission rate
+        if (stall.getDiscountPercentage() != null) {
+            return BigDecimal.valueOf(stall.getDiscountPercentage());
+        }
+
+        // Mặc định commission rate là 5%
+        return BigDecimal.valueOf(5.0);
+    }
+
     /**
      * Tạo order code unique
      */
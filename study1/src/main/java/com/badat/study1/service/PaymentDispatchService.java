@@ -0,0 +1,195 @@
+package com.badat.study1.service;
+
+import com.badat.study1.model.PaymentQueue;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pipeline dispatch payment theo event
+ * Payment ID được đẩy vào ring buffer có giới hạn (mỗi shard một buffer) sau khi transaction enqueue commit,
+ * consumer của từng shard claim rồi chuyển sang product lane để xử lý.
+ * Cron sweep trong PaymentQueueService chỉ còn là lưới an toàn cho các payment bị rớt khỏi buffer
+ * (buffer đầy, node restart, lease hết hạn)
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class PaymentDispatchService {
+
+    private final PaymentQueueService paymentQueueService;
+    private final PaymentQueueClaimService paymentQueueClaimService;
+
+    @Value("${payment.dispatch.shards:8}")
+    private int shardCount;
+
+    @Value("${payment.dispatch.buffer-capacity:1024}")
+    private int bufferCapacity;
+
+    private List<BlockingQueue<DispatchTask>> buffers;
+    private List<Thread> consumers;
+    private volatile boolean running;
+
+    // Metrics dispatch
+    private final LongAdder dispatched = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder processed = new LongAdder();
+    // Histogram thời gian từ lúc dispatch đến khi xử lý xong, bucket i = [2^i, 2^(i+1)) ms
+    private final AtomicLongArray latencyBuckets = new AtomicLongArray(20);
+
+    @PostConstruct
+    public void start() {
+        buffers = new ArrayList<>(shardCount);
+        consumers = new ArrayList<>(shardCount);
+        running = true;
+
+        for (int i = 0; i < shardCount; i++) {
+            BlockingQueue<DispatchTask> buffer = new ArrayBlockingQueue<>(bufferCapacity);
+            buffers.add(buffer);
+
+            Thread consumer = new Thread(() -> consume(buffer), "payment-dispatch-" + i);
+            consumer.setDaemon(true);
+            consumer.start();
+            consumers.add(consumer);
+        }
+
+        log.info("Payment dispatcher started with {} shards, buffer capacity {} per shard", shardCount, bufferCapacity);
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        consumers.forEach(Thread::interrupt);
+    }
+
+    /**
+     * Đẩy payment vào buffer của shard tương ứng - không block request thread
+     * Trả về false nếu buffer đầy, khi đó payment sẽ được cron sweep xử lý
+     */
+    public boolean dispatch(Long paymentId, Long userId) {
+        // Shard theo user chỉ để chia đều tải giữa các consumer: consumer chỉ claim rồi đưa payment vào product lane,
+        // nên payment của cùng 1 user không được xử lý tuần tự - tranh chấp số dư được chặn bằng debit có điều kiện
+        int shard = (int) Math.floorMod(userId != null ? userId : paymentId, (long) shardCount);
+
+        if (buffers.get(shard).offer(new DispatchTask(paymentId, System.nanoTime()))) {
+            dispatched.increment();
+            return true;
+        }
+
+        rejected.increment();
+        log.warn("Dispatch buffer of shard {} is full, payment {} will be picked up by the safety sweep", shard, paymentId);
+        return false;
+    }
+
+    /**
+     * Consumer loop của một shard
+     */
+    private void consume(BlockingQueue<DispatchTask> buffer) {
+        String workerId = paymentQueueService.getNodeId() + "-" + Thread.currentThread().getName();
+
+        while (running) {
+            DispatchTask task;
+            try {
+                task = buffer.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            try {
+                // Claim bằng conditional update - nếu worker khác đã claim thì bỏ qua, không cần re-check status
+                PaymentQueue payment = paymentQueueClaimService.claimPayment(task.paymentId(), workerId);
+                if (payment == null) {
+                    skipped.increment();
+                    continue;
+                }
+
+                // Xử lý trên lane của sản phẩm, consumer quay lại claim payment tiếp theo ngay
+                paymentQueueService.submitToProductLane(payment).whenComplete((ignored, error) -> {
+                    processed.increment();
+                    recordLatency(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - task.enqueuedAtNanos()));
+                });
+            } catch (Exception e) {
+                log.error("Error dispatching payment {}: {}", task.paymentId(), e.getMessage());
+            }
+        }
+    }
+
+    private void recordLatency(long latencyMs) {
+        int bucket = latencyMs <= 0 ? 0 : Math.min(63 - Long.numberOfLeadingZeros(latencyMs), latencyBuckets.length() - 1);
+        latencyBuckets.incrementAndGet(bucket);
+    }
+
+    /**
+     * Percentile xấp xỉ (cận trên của bucket) của thời gian dispatch → xử lý xong
+     */
+    private long latencyPercentileMs(double percentile) {
+        long total = 0;
+        for (int i = 0; i < latencyBuckets.length(); i++) {
+            total += latencyBuckets.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long threshold = (long) Math.ceil(total * percentile);
+        long cumulative = 0;
+        for (int i = 0; i < latencyBuckets.length(); i++) {
+            cumulative += latencyBuckets.get(i);
+            if (cumulative >= threshold) {
+                return 1L << (i + 1);
+            }
+        }
+        return 1L << latencyBuckets.length();
+    }
+
+    /**
+     * Lấy snapshot metrics dispatch
+     */
+    public DispatchStats getDispatchStats() {
+        int buffered = buffers.stream().mapToInt(BlockingQueue::size).sum();
+
+        return DispatchStats.builder()
+                .dispatched(dispatched.sum())
+                .rejected(rejected.sum())
+                .skipped(skipped.sum())
+                .processed(processed.sum())
+                .buffered(buffered)
+                .p50LatencyMs(latencyPercentileMs(0.50))
+                .p99LatencyMs(latencyPercentileMs(0.99))
+                .timestamp(Instant.now())
+                .build();
+    }
+
+    private record DispatchTask(Long paymentId, long enqueuedAtNanos) {
+    }
+
+    /**
+     * DTO cho dispatch stats
+     */
+    @lombok.Data
+    @lombok.Builder
+    public static class DispatchStats {
+        private long dispatched;
+        private long rejected;
+        private long skipped;
+        private long processed;
+        private int buffered;
+        private long p50LatencyMs;
+        private long p99LatencyMs;
+        private Instant timestamp;
+    }
+}
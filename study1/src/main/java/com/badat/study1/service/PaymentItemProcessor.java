@@ -0,0 +1,103 @@
+package com.badat.study1.service;
+
+import com.badat.study1.model.Order;
+import com.badat.study1.model.PaymentQueue;
+import com.badat.study1.model.Warehouse;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Xử lý 1 payment đã claim trong 1 transaction: reserve kho, hold tiền, tạo order, giao item và COMPLETED
+ * Tách khỏi PaymentQueueService để @Transactional đi qua proxy; lỗi ở bất kỳ bước nào rollback toàn bộ
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class PaymentItemProcessor {
+
+    private static final TypeReference<List<CartQuoteService.QuoteLine>> QUOTE_LINES_TYPE = new TypeReference<>() {};
+
+    private final PaymentQueueClaimService paymentQueueClaimService;
+    private final WarehouseLockService warehouseLockService;
+    private final WalletHoldService walletHoldService;
+    private final OrderService orderService;
+    private final ObjectMapper objectMapper;
+
+    /**
+     * Câu lệnh đầu tiên gia hạn lease có điều kiện lease owner: vừa là fencing (payment đã bị claim lại thì không làm gì)
+     * vừa khóa dòng payment_queue đến khi commit. COMPLETED cũng ghi có điều kiện, 0 dòng thì rollback
+     *
+     * @return false nếu worker không còn giữ lease của payment
+     */
+    @Transactional
+    public boolean process(PaymentQueue payment, String orderId, String reservationToken) {
+        String workerId = payment.getLeaseOwner();
+        if (workerId == null || !paymentQueueClaimService.holdLease(payment.getId(), workerId)) {
+            log.warn("Payment {} is no longer leased by {}, skipping", payment.getId(), workerId);
+            return false;
+        }
+
+        log.info("Processing payment item: {} for user: {}", payment.getId(), payment.getUserId());
+
+        CartQuoteService.CartQuote quote = parseQuote(payment.getCartData());
+        log.info("Parsed {} quote lines for payment {}", quote.getLines().size(), payment.getId());
+
+        // 1. Reserve kho trước khi hold tiền để không hold tiền mà không có hàng
+        Map<Long, Integer> productQuantities = quote.productQuantities();
+        List<Warehouse> lockedItems = warehouseLockService.reserveWarehouseItemsWithTimeout(productQuantities, payment.getUserId(), 5, reservationToken); // 5 phút timeout
+
+        int totalRequiredQuantity = productQuantities.values().stream().mapToInt(Integer::intValue).sum();
+        if (lockedItems.size() < totalRequiredQuantity) {
+            throw new RuntimeException("Không thể khóa đủ số lượng hàng trong kho - có thể đã có người khác mua trước");
+        }
+
+        // 2. Hold tiền sau khi đã lock được hàng
+        walletHoldService.holdMoney(payment.getUserId(), payment.getTotalAmount(), orderId);
+
+        // 3. Tạo order với tất cả item
+        createOrderWithItems(payment.getUserId(), quote, lockedItems, orderId);
+
+        // 4. COMPLETED và trả lease - chỉ khi vẫn giữ lease
+        if (!paymentQueueClaimService.finishPayment(payment.getId(), workerId, PaymentQueue.Status.COMPLETED, null)) {
+            throw new RuntimeException("Lease of payment " + payment.getId() + " was taken over by another worker");
+        }
+        payment.setStatus(PaymentQueue.Status.COMPLETED);
+        payment.setLeaseExpiresAt(null);
+
+        log.info("Payment processed successfully: {} - Money held, buyer can receive items immediately", payment.getId());
+        return true;
+    }
+
+    /**
+     * Tạo order với nhiều items từ cart
+     */
+    private void createOrderWithItems(Long userId, CartQuoteService.CartQuote quote, List<Warehouse> lockedItems, String orderId) {
+        log.info("Creating order with items for user: {} with {} quote lines and {} locked warehouse items",
+                userId, quote.getLines().size(), lockedItems.size());
+
+        // Order + OrderItem và giao warehouse item trong 1 transaction của OrderService - giao thiếu thì rollback cả order
+        Order order = orderService.createDeliveredOrderFromQuote(userId, quote, lockedItems, "WALLET", "Order from cart payment", orderId);
+
+        log.info("Successfully created order {} with {} items for user: {}", order.getId(), quote.getLines().size(), userId);
+    }
+
+    /**
+     * Parse cartData (các dòng quote) từ JSON - cartData cũ dạng cart item map cũng đọc được
+     * vì cùng tên field, field thiếu (shop, seller, commission) được tra lại khi tạo order
+     */
+    public CartQuoteService.CartQuote parseQuote(String cartDataJson) {
+        try {
+            return CartQuoteService.CartQuote.of(objectMapper.readValue(cartDataJson, QUOTE_LINES_TYPE));
+        } catch (Exception e) {
+            log.error("Failed to parse cart data: {}", e.getMessage());
+            throw new RuntimeException("Failed to parse cart data", e);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.badat.study1.service;
+
+import com.badat.study1.model.PaymentQueue;
+import com.badat.study1.repository.PaymentQueueRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Service claim payment từ payment_queue cho các worker
+ * Mỗi worker claim một batch nhỏ bằng SELECT ... FOR UPDATE SKIP LOCKED + gán lease,
+ * nhờ vậy nhiều worker trên nhiều node cùng xử lý queue mà không xử lý trùng
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class PaymentQueueClaimService {
+
+    private final PaymentQueueRepository paymentQueueRepository;
+
+    @Value("${payment.queue.lease-timeout-seconds:60}")
+    private long leaseTimeoutSeconds;
+
+    // Metrics claim và throughput
+    private final LongAdder claimAttempts = new LongAdder();
+    private final LongAdder emptyClaims = new LongAdder();
+    private final LongAdder claimedPayments = new LongAdder();
+    private final LongAdder completedPayments = new LongAdder();
+    private final LongAdder failedPayments = new LongAdder();
+    private final LongAdder processingTimeMs = new LongAdder();
+
+    /**
+     * Claim tối đa batchSize payment cho worker - lock dòng và gán lease trong cùng 1 transaction
+     */
+    @Transactional
+    public List<PaymentQueue> claimBatch(String workerId, int batchSize) {
+        claimAttempts.increment();
+
+        Instant now = Instant.now();
+        List<Long> ids = paymentQueueRepository.findClaimableIdsForUpdate(now, batchSize);
+        if (ids.isEmpty()) {
+            emptyClaims.increment();
+            return List.of();
+        }
+
+        int claimed = paymentQueueRepository.claimByIds(ids, PaymentQueue.Status.PROCESSING, workerId,
+                now.plusSeconds(leaseTimeoutSeconds), now);
+        claimedPayments.add(claimed);
+
+        log.info("Worker {} claimed {} payments", workerId, claimed);
+
+        return paymentQueueRepository.findAllById(ids).stream()
+                .filter(payment -> workerId.equals(payment.getLeaseOwner()))
+                .sorted(Comparator.comparing(PaymentQueue::getCreatedAt))
+                .toList();
+    }
+
+    /**
+     * Claim một payment cụ thể (dùng cho trigger path) - chỉ thành công nếu payment vẫn đang PENDING
+     */
+    @Transactional
+    public PaymentQueue claimPayment(Long paymentId, String workerId) {
+        claimAttempts.increment();
+
+        Instant now = Instant.now();
+        int claimed = paymentQueueRepository.claimById(paymentId, PaymentQueue.Status.PENDING,
+                PaymentQueue.Status.PROCESSING, workerId, now.plusSeconds(leaseTimeoutSeconds), now);
+        if (claimed == 0) {
+            emptyClaims.increment();
+            return null;
+        }
+
+        claimedPayments.increment();
+        return paymentQueueRepository.findById(paymentId).orElse(null);
+    }
+
+    /**
+     * Gia hạn lease của các payment worker đang giữ (đang xử lý hoặc còn chờ trong lane)
+     *
+     * @return số payment còn thuộc worker
+     */
+    @Transactional
+    public int renewLeases(Collection<Long> paymentIds, String workerId) {
+        if (paymentIds.isEmpty()) {
+            return 0;
+        }
+        return paymentQueueRepository.renewLeases(paymentIds, workerId, PaymentQueue.Status.PROCESSING, nextLeaseExpiry());
+    }
+
+    /**
+     * Gia hạn lease trong transaction đang chạy: câu UPDATE giữ row lock dòng payment đến khi transaction kết thúc
+     * nên sweep (SKIP LOCKED) không claim lại được payment đang xử lý
+     */
+    @Transactional(propagation = Propagation.MANDATORY)
+    public boolean holdLease(Long paymentId, String workerId) {
+        return paymentQueueRepository.renewLeases(List.of(paymentId), workerId, PaymentQueue.Status.PROCESSING,
+                nextLeaseExpiry()) > 0;
+    }
+
+    /**
+     * Chuyển payment PROCESSING sang trạng thái cuối nếu worker vẫn giữ lease
+     *
+     * @return false nếu payment đã bị worker khác claim lại
+     */
+    @Transactional
+    public boolean finishPayment(Long paymentId, String workerId, PaymentQueue.Status status, String errorMessage) {
+        return paymentQueueRepository.finishLeased(paymentId, workerId, PaymentQueue.Status.PROCESSING, status, errorMessage) > 0;
+    }
+
+    private Instant nextLeaseExpiry() {
+        return Instant.now().plusSeconds(leaseTimeoutSeconds);
+    }
+
+    /**
+     * Ghi nhận kết quả xử lý một payment đã claim
+     */
+    public void recordProcessed(PaymentQueue.Status finalStatus, long durationMs) {
+        if (finalStatus == PaymentQueue.Status.COMPLETED) {
+            completedPayments.increment();
+        } else {
+            failedPayments.increment();
+        }
+        processingTimeMs.add(durationMs);
+    }
+
+    /**
+     * Lấy snapshot metrics claim/throughput
+     */
+    public ClaimStats getClaimStats() {
+        long completed = completedPayments.sum();
+        long failed = failedPayments.sum();
+        long processed = completed + failed;
+
+        return ClaimStats.builder()
+                .claimAttempts(claimAttempts.sum())
+                .emptyClaims(emptyClaims.sum())
+                .claimedPayments(claimedPayments.sum())
+                .completedPayments(completed)
+                .failedPayments(failed)
+                .averageProcessingMs(processed == 0 ? 0.0 : (double) processingTimeMs.sum() / processed)
+                .timestamp(Instant.now())
+                .build();
+    }
+
+    /**
+     * DTO cho claim stats
+     */
+    @lombok.Data
+    @lombok.Builder
+    public static class ClaimStats {
+        private long claimAttempts;
+        private long emptyClaims;
+        private long claimedPayments;
+        private long completedPayments;
+        private long failedPayments;
+        private double averageProcessingMs;
+        private Instant timestamp;
+    }
+}
@@ -1,28 +1,33 @@
 package com.badat.study1.service;
 
 import com.badat.study1.model.PaymentQueue;
-import com.badat.study1.model.Warehouse;
-import com.badat.study1.model.Order;
-import com.badat.study1.model.OrderItem;
+import com.badat.study1.model.WalletHold;
 import com.badat.study1.repository.PaymentQueueRepository;
-import com.badat.study1.repository.OrderItemRepository;
 import com.badat.study1.event.PaymentEvent;
-import org.springframework.integration.redis.util.RedisLockRegistry;
+import com.badat.study1.util.ShardedExecutor;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.lang.management.ManagementFactory;
 import java.math.BigDecimal;
-import java.time.Instant;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
-import java.util.concurrent.locks.Lock;
 
 @Service
 @RequiredArgsConstructor
@@ -32,125 +37,93 @@ public class PaymentQueueService {
     private final PaymentQueueRepository paymentQueueRepository;
     private final WalletHoldService walletHoldService;
     private final WarehouseLockService warehouseLockService;
-    private final OrderService orderService;
-    private final OrderItemRepository orderItemRepository;
     private final ObjectMapper objectMapper;
-    private final RedisLockRegistry redisLockRegistry;
     private final ApplicationEventPublisher eventPublisher;
+    private final PaymentQueueClaimService paymentQueueClaimService;
+    private final PaymentItemProcessor paymentItemProcessor;
+    
+    @Value("${payment.queue.worker-count:4}")
+    private int workerCount;
+    
+    @Value("${payment.queue.batch-size:20}")
+    private int batchSize;
+    
+    @Value("${payment.lanes.product-lanes:16}")
+    private int productLaneCount;
+    
+    private final String nodeId = ManagementFactory.getRuntimeMXBean().getName();
+    
+    private ExecutorService workerExecutor;
+    private AtomicBoolean[] workerRunning;
+    // Lane theo product - payment cùng sản phẩm xử lý tuần tự, khác sản phẩm chạy song song
+    private ShardedExecutor productLanes;
+    // Payment đã claim, còn chờ trong lane (paymentId -> lease owner) - lease được gia hạn định kỳ
+    private final Map<Long, String> queuedLeases = new ConcurrentHashMap<>();
+    
+    @PostConstruct
+    public void initWorkers() {
+        workerExecutor = Executors.newFixedThreadPool(workerCount);
+        workerRunning = new AtomicBoolean[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workerRunning[i] = new AtomicBoolean(false);
+        }
+        productLanes = new ShardedExecutor("payment-product", productLaneCount);
+        log.info("Payment queue workers configured - node: {}, workers: {}, batch size: {}", nodeId, workerCount, batchSize);
+    }
     
     /**
-     * Thêm payment request vào queue với validation stock trước và user-level lock
+     * Thêm payment request vào queue với validation stock trước
+     * Không khóa theo user: các checkout không xung đột của cùng user chạy song song, tranh chấp thật
+     * (kho, số dư) được chặn ở bước reserve kho và hold tiền có điều kiện. Double-submit do retry
+     * được chặn bằng Idempotency-Key ở CheckoutIdempotencyService
      */
     @Transactional
-    public Long enqueuePayment(Long userId, List<Map<String, Object>> cartItems, BigDecimal totalAmount) {
+    public Long enqueuePayment(Long userId, CartQuoteService.CartQuote quote) {
+        BigDecimal totalAmount = quote.getTotalAmount();
         log.info("Enqueuing payment for user {}: {} VND", userId, totalAmount);
         
-        // User-level lock để tránh multiple concurrent payments từ cùng 1 user
-        String userPaymentLockKey = "user:payment:lock:" + userId;
-        Lock userPaymentLock = redisLockRegistry.obtain(userPaymentLockKey);
-        
         try {
-            if (userPaymentLock.tryLock(5, java.util.concurrent.TimeUnit.SECONDS)) {
-                log.info("Acquired user payment lock for user: {}", userId);
+            // 1. VALIDATE STOCK TRƯỚC KHI ENQUEUE (số hàng trống đã có trong quote)
+            validateStockAvailability(quote);
+            
+            // 2. Kiểm tra số dư ví
+            validateUserBalance(userId, totalAmount);
+            
+            // cartData = các dòng quote (giá, stall/shop/seller, commission) để worker tạo order không phải tra lại
+            String cartData = objectMapper.writeValueAsString(quote.getLines());
+            
+            PaymentQueue paymentQueue = PaymentQueue.builder()
+                .userId(userId)
+                .cartData(cartData)
+                .totalAmount(totalAmount)
+                .status(PaymentQueue.Status.PENDING)
+                .build();
                 
-                try {
-                    // 1. Kiểm tra xem user có payment đang pending không
-                    List<PaymentQueue> pendingPayments = paymentQueueRepository
-                        .findByUserIdAndStatusOrderByCreatedAtDesc(userId, PaymentQueue.Status.PENDING);
-                    
-                    if (!pendingPayments.isEmpty()) {
-                        log.warn("User {} already has {} pending payments. Rejecting new payment request.", 
-                            userId, pendingPayments.size());
-                        throw new RuntimeException("Bạn đã có thanh toán đang chờ xử lý. Vui lòng đợi hoàn tất trước khi tạo thanh toán mới.");
-                    }
-                    
-                    // 2. VALIDATE STOCK TRƯỚC KHI ENQUEUE
-                    validateStockAvailability(cartItems);
-                    
-                    // 3. Kiểm tra số dư ví
-                    validateUserBalance(userId, totalAmount);
-                    
-                    String cartData = objectMapper.writeValueAsString(cartItems);
-                    
-                    PaymentQueue paymentQueue = PaymentQueue.builder()
-                        .userId(userId)
-                        .cartData(cartData)
-                        .totalAmount(totalAmount)
-                        .status(PaymentQueue.Status.PENDING)
-                        .build();
-                        
-                    paymentQueueRepository.save(paymentQueue);
-                    
-                    // Publish event để trigger xử lý ngay lập tức
-                    eventPublisher.publishEvent(PaymentEvent.paymentCreated(this, paymentQueue.getId(), userId));
-                    
-                    log.info("Payment queued successfully with ID: {} for user: {}", paymentQueue.getId(), userId);
-                    return paymentQueue.getId();
-                    
-                } catch (JsonProcessingException e) {
-                    log.error("Failed to serialize cart data", e);
-                    throw new RuntimeException("Failed to serialize cart data", e);
-                }
-            } else {
-                log.warn("Failed to acquire user payment lock for user: {} - another payment is in progress", userId);
-                throw new RuntimeException("Bạn đang có thanh toán đang được xử lý. Vui lòng đợi hoàn tất trước khi tạo thanh toán mới.");
-            }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            throw new RuntimeException("Bị gián đoạn khi tạo thanh toán", e);
-        } finally {
-            userPaymentLock.unlock();
-            log.info("Released user payment lock for user: {}", userId);
+            paymentQueueRepository.save(paymentQueue);
+            
+            // Publish event để trigger xử lý ngay lập tức
+            eventPublisher.publishEvent(PaymentEvent.paymentCreated(this, paymentQueue.getId(), userId));
+            
+            log.info("Payment queued successfully with ID: {} for user: {}", paymentQueue.getId(), userId);
+            return paymentQueue.getId();
+            
+        } catch (JsonProcessingException e) {
+            log.error("Failed to serialize cart data", e);
+            throw new RuntimeException("Failed to serialize cart data", e);
         }
     }
     
     /**
-     * Validate stock availability trước khi enqueue payment với Redis lock
+     * Validate stock availability trước khi enqueue payment
      */
-    private void validateStockAvailability(List<Map<String, Object>> cartItems) {
-        log.info("Validating stock availability for {} cart items", cartItems.size());
-        
-        // Tạo map để group theo productId và tính tổng quantity
-        Map<Long, Integer> productQuantities = new java.util.HashMap<>();
-        for (Map<String, Object> cartItem : cartItems) {
-            Long productId = Long.valueOf(cartItem.get("productId").toString());
-            Integer quantity = Integer.valueOf(cartItem.get("quantity").toString());
-            productQuantities.put(productId, productQuantities.getOrDefault(productId, 0) + quantity);
-        }
+    private void validateStockAvailability(CartQuoteService.CartQuote quote) {
+        log.info("Validating stock availability for {} quoted products", quote.getLines().size());
         
-        // Validate từng product với Redis lock
-        for (Map.Entry<Long, Integer> entry : productQuantities.entrySet()) {
-            Long productId = entry.getKey();
-            Integer requiredQuantity = entry.getValue();
-            
-            String lockKey = "stock:validate:" + productId;
-            Lock lock = redisLockRegistry.obtain(lockKey);
-            
-            try {
-                if (lock.tryLock(3, java.util.concurrent.TimeUnit.SECONDS)) {
-                    log.info("Acquired stock validation lock for product: {}", productId);
-                    
-                    // Kiểm tra số lượng có sẵn trong lock
-                    long availableCount = warehouseLockService.getAvailableStockCount(productId);
-                    
-                    if (availableCount < requiredQuantity) {
-                        log.warn("Insufficient stock for product {}. Required: {}, Available: {}", 
-                            productId, requiredQuantity, availableCount);
-                        throw new RuntimeException("Không đủ hàng cho sản phẩm ID: " + productId + 
-                            " (cần " + requiredQuantity + ", chỉ có " + availableCount + ")");
-                    }
-                    
-                    log.info("Stock validation passed for product {}: {} available", productId, availableCount);
-                } else {
-                    log.warn("Failed to acquire stock validation lock for product: {}", productId);
-                    throw new RuntimeException("Không thể kiểm tra hàng cho sản phẩm: " + productId);
-                }
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                throw new RuntimeException("Bị gián đoạn khi kiểm tra hàng cho sản phẩm: " + productId, e);
-            } finally {
-                lock.unlock();
-            }
+        // Kiểm tra chính xác nằm ở bước claim kho
+        List<String> shortages = quote.shortages();
+        if (!shortages.isEmpty()) {
+            log.warn("Insufficient stock: {}", shortages);
+            throw new RuntimeException("Không đủ hàng: " + String.join(", ", shortages));
         }
         
         log.info("All stock validations passed");
@@ -166,10 +139,10 @@ public class PaymentQueueService {
         try {
             // Tạm thời hold 0 VND để check balance (sẽ được release ngay)
             String tempOrderId = "TEMP_CHECK_" + userId + "_" + System.currentTimeMillis();
-            walletHoldService.holdMoney(userId, BigDecimal.ZERO, tempOrderId);
+            WalletHold probe = walletHoldService.holdMoney(userId, BigDecimal.ZERO, tempOrderId);
             
-            // Release ngay lập tức
-            walletHoldService.releaseHold(userId, tempOrderId);
+            // Release ngay lập tức - theo id của hold vừa tạo
+            walletHoldService.releaseHold(probe.getId());
             
             log.info("Balance validation passed for user {}", userId);
         } catch (Exception e) {
@@ -179,300 +152,183 @@ public class PaymentQueueService {
     }
     
     /**
-     * Cron job xử lý payment queue mỗi 1 giây - với distributed lock để tránh race condition
-     * Kết hợp với trigger system để tăng tốc xử lý
+     * Safety sweep tần suất thấp - payment mới được xử lý qua PaymentDispatchService ngay sau commit,
+     * sweep chỉ nhặt các payment bị rớt (buffer đầy, node restart, lease hết hạn)
+     * Mỗi worker tự claim batch bằng SKIP LOCKED nên N worker trên M node xử lý song song mà không trùng
      */
-    @Scheduled(fixedRate = 1000) // Mỗi 1 giây - tăng tần suất
+    @Scheduled(fixedDelayString = "${payment.queue.sweep-interval-ms:30000}")
     public void processPaymentQueue() {
-        String lockKey = "payment-queue:process";
-        Lock lock = redisLockRegistry.obtain(lockKey);
-        
-        try {
-            if (lock.tryLock(5, java.util.concurrent.TimeUnit.SECONDS)) {
-                log.info("Processing payment queue with distributed lock...");
-                
-                try {
-                    List<PaymentQueue> pendingPayments = paymentQueueRepository
-                        .findByStatusOrderByCreatedAtAsc(PaymentQueue.Status.PENDING);
-                        
-                    log.info("Found {} pending payments", pendingPayments.size());
-                    
-                    // Xử lý batch payments để tăng tốc độ
-                    processBatchPayments(pendingPayments);
-                } catch (Exception e) {
-                    log.error("Error in payment queue processing: {}", e.getMessage());
-                }
-            } else {
-                log.info("Another instance is processing payment queue, skipping...");
+        for (int i = 0; i < workerCount; i++) {
+            if (!workerRunning[i].compareAndSet(false, true)) {
+                continue; // Worker này vẫn đang drain queue
+            }
+            final int workerIndex = i;
+            try {
+                workerExecutor.execute(() -> {
+                    try {
+                        drainQueue(nodeId + "-w" + workerIndex);
+                    } finally {
+                        workerRunning[workerIndex].set(false);
+                    }
+                });
+            } catch (Exception e) {
+                workerRunning[i].set(false);
+                log.error("Failed to start payment worker {}: {}", i, e.getMessage());
             }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            log.error("Interrupted while waiting for payment queue lock", e);
-        } finally {
-            lock.unlock();
         }
     }
     
     /**
-     * Xử lý một payment item - chỉ hold tiền sau khi thành công
+     * Worker loop - claim batch và xử lý cho đến khi queue trống
      */
-    @Transactional
-    public void processPaymentItem(PaymentQueue payment) {
-        log.info("Processing payment item: {} for user: {}", payment.getId(), payment.getUserId());
-        
-        // Distributed lock cho payment item để tránh double processing
-        String paymentLockKey = "payment:process:" + payment.getId();
-        Lock paymentLock = redisLockRegistry.obtain(paymentLockKey);
-        
-        String orderId = null;
-        try {
-            if (paymentLock.tryLock(3, java.util.concurrent.TimeUnit.SECONDS)) {
-                log.info("Acquired lock for payment: {}", payment.getId());
-                
-                try {
-                    // 1. Mark as processing
-                    payment.setStatus(PaymentQueue.Status.PROCESSING);
-                    payment.setProcessedAt(Instant.now());
-                    paymentQueueRepository.save(payment);
+    private void drainQueue(String workerId) {
+        while (!Thread.currentThread().isInterrupted()) {
+            List<PaymentQueue> claimed;
+            try {
+                claimed = paymentQueueClaimService.claimBatch(workerId, batchSize);
+            } catch (Exception e) {
+                log.error("Worker {} failed to claim payments: {}", workerId, e.getMessage());
+                return;
+            }
             
-                    // 2. Parse cart data
-                    List<Map<String, Object>> cartItems = parseCartData(payment.getCartData());
-                    log.info("Parsed {} cart items for payment {}", cartItems.size(), payment.getId());
-
-                    // 3. Generate order id
-                    orderId = "ORDER_" + payment.getUserId() + "_" + System.currentTimeMillis();
-                    
-                    // 4. LOCK WAREHOUSE ITEMS TRƯỚC (Reserve inventory trước khi hold money)
-                    Map<Long, Integer> productQuantities = new java.util.HashMap<>();
-                    for (Map<String, Object> cartItem : cartItems) {
-                        Long productId = Long.valueOf(cartItem.get("productId").toString());
-                        Integer quantity = Integer.valueOf(cartItem.get("quantity").toString());
-                        productQuantities.put(productId, productQuantities.getOrDefault(productId, 0) + quantity);
-                    }
-
-                    // Reserve warehouse items với timeout TRƯỚC khi hold money để tránh hold tiền mà không có hàng
-                    List<Warehouse> lockedItems = warehouseLockService.reserveWarehouseItemsWithTimeout(productQuantities, payment.getUserId(), 5); // 5 phút timeout
-                    
-                    // 5. HOLD MONEY SAU KHI ĐÃ LOCK ĐƯỢC HÀNG
-                    walletHoldService.holdMoney(payment.getUserId(), payment.getTotalAmount(), orderId);
-                    
-                    // 6. Kiểm tra lại sau khi lock - tính tổng số lượng cần thiết
-                    int totalRequiredQuantity = productQuantities.values().stream().mapToInt(Integer::intValue).sum();
-                    if (lockedItems.isEmpty() || lockedItems.size() < totalRequiredQuantity) {
-                        log.warn("Failed to lock enough warehouse items for user: {} (required: {}, locked: {}), unlocking warehouse items", 
-                            payment.getUserId(), totalRequiredQuantity, lockedItems.size());
-                        // Unlock warehouse items vì chưa hold money
-                        try {
-                            for (Warehouse item : lockedItems) {
-                                warehouseLockService.unlockWarehouseItem(item.getId());
-                            }
-                        } catch (Exception unlockError) {
-                            log.error("Failed to unlock warehouse items during lock failure: {}", unlockError.getMessage());
-                        }
-                        throw new RuntimeException("Không thể khóa đủ số lượng hàng trong kho - có thể đã có người khác mua trước");
-                    }
-
-                    // 5. Create order with multiple items
-                    createOrderWithItems(payment.getUserId(), cartItems, lockedItems, orderId);
-
-                    // 6. Mark as completed
-                    payment.setStatus(PaymentQueue.Status.COMPLETED);
-                    paymentQueueRepository.save(payment);
-                    
-                    log.info("Payment processed successfully: {} - Money held, buyer can receive items immediately", payment.getId());
-                    
-                } catch (Exception e) {
-                    log.error("Error processing payment {}: {}", payment.getId(), e.getMessage());
-                    
-                    // Nếu lỗi → unlock warehouse và hoàn tiền nếu đã hold
-                    try {
-                        handlePaymentError(payment, orderId, e.getMessage());
-                        markPaymentAsFailed(payment.getId(), "Payment failed - reverted changes");
-                        log.info("Payment failed for payment {} - reverted holds and locks where applicable", payment.getId());
-                    } catch (Exception errorHandlingException) {
-                        log.error("Failed to handle payment error for payment {}: {}", payment.getId(), errorHandlingException.getMessage());
-                        markPaymentAsFailed(payment.getId(), "Payment failed - error handling failed");
-                    }
-                }
-            } else {
-                log.warn("Could not acquire lock for payment: {}, another instance might be processing", payment.getId());
+            if (claimed.isEmpty()) {
+                return;
             }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            log.error("Interrupted while waiting for payment lock: {}", payment.getId(), e);
-        } finally {
-            paymentLock.unlock();
+            
+            // Đưa vào product lane và chờ batch xong rồi mới claim tiếp
+            List<CompletableFuture<Void>> futures = claimed.stream()
+                .map(this::submitToProductLane)
+                .toList();
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
         }
     }
     
     /**
-     * Tạo order với nhiều items từ cart
+     * Submit payment đã claim vào lane của sản phẩm
      */
-    @Transactional
-    private void createOrderWithItems(Long userId, List<Map<String, Object>> cartItems, List<Warehouse> lockedItems, String orderId) {
-        log.info("Creating order with items for user: {} with {} cart items and {} locked warehouse items", 
-                userId, cartItems.size(), lockedItems.size());
-        
-        // Tạo Order chính với tất cả OrderItem
-        Order order = orderService.createOrderFromCart(userId, cartItems, "WALLET", "Order from cart payment", orderId);
-        
-        // Cập nhật warehouseId thực tế cho các OrderItem
-        updateOrderItemsWithActualWarehouseIds(order, lockedItems);
-        
-        // Mark tất cả warehouse items as delivered
-        for (Warehouse lockedItem : lockedItems) {
-            warehouseLockService.markAsDelivered(lockedItem.getId());
-        }
-        
-        log.info("Successfully created order {} with {} items for user: {}", order.getId(), cartItems.size(), userId);
+    public CompletableFuture<Void> submitToProductLane(PaymentQueue payment) {
+        queuedLeases.put(payment.getId(), payment.getLeaseOwner());
+        return productLanes.submitAll(resolveLaneKeys(payment), () -> processClaimedPayment(payment));
     }
     
     /**
-     * Cập nhật warehouseId thực tế cho các OrderItem
+     * Lane key của payment = mọi productId trong cart, để payment tuần tự với mọi payment chạm chung
+     * bất kỳ sản phẩm nào (cart {1,5} và {2,5} không chạy song song); nếu không đọc được cart thì rơi về lane theo user
      */
-    @Transactional
-    private void updateOrderItemsWithActualWarehouseIds(Order order, List<Warehouse> lockedItems) {
-        log.info("Updating OrderItems with actual warehouse IDs for order: {}", order.getId());
-        
-        // Group locked items by productId
-        Map<Long, List<Warehouse>> lockedItemsByProduct = lockedItems.stream()
-                .collect(Collectors.groupingBy(warehouse -> warehouse.getProduct().getId()));
-        
-        // Get all OrderItems for this order
-        List<OrderItem> orderItems = orderItemRepository.findByOrderIdOrderByCreatedAtAsc(order.getId());
-        
-        int warehouseIndex = 0;
-        for (OrderItem orderItem : orderItems) {
-            Long productId = orderItem.getProductId();
-            List<Warehouse> productWarehouses = lockedItemsByProduct.get(productId);
-            
-            if (productWarehouses != null && !productWarehouses.isEmpty()) {
-                // Gán warehouseId thực tế cho OrderItem
-                Warehouse actualWarehouse = productWarehouses.get(warehouseIndex % productWarehouses.size());
-                orderItem.setWarehouseId(actualWarehouse.getId());
-                
-                // Set sellerId từ warehouse
-                if (actualWarehouse.getUser() != null) {
-                    orderItem.setSellerId(actualWarehouse.getUser().getId());
-                    log.info("Updated OrderItem {} with warehouseId: {} and sellerId: {} (productId: {})", 
-                            orderItem.getId(), actualWarehouse.getId(), actualWarehouse.getUser().getId(), productId);
-                } else {
-                    log.warn("Warehouse {} has no user, cannot set sellerId for OrderItem {}", 
-                            actualWarehouse.getId(), orderItem.getId());
-                }
-                
-                warehouseIndex++;
-            }
+    private List<Long> resolveLaneKeys(PaymentQueue payment) {
+        try {
+            List<Long> productIds = parseQuote(payment.getCartData()).getLines().stream()
+                .map(CartQuoteService.QuoteLine::getProductId)
+                .distinct()
+                .toList();
+            return productIds.isEmpty() ? List.of(payment.getUserId()) : productIds;
+        } catch (Exception e) {
+            return List.of(payment.getUserId());
         }
-        
-        // Save updated OrderItems
-        orderItemRepository.saveAll(orderItems);
-        log.info("Updated {} OrderItems with actual warehouse IDs", orderItems.size());
     }
     
     /**
-     * Xử lý lỗi payment - hoàn tiền và unlock warehouse
+     * Metrics độ sâu và latency của các product lane
      */
-    @Transactional
-    private void handlePaymentError(PaymentQueue payment, String orderId, String errorMessage) {
-        log.info("Handling payment error for payment {}: {}", payment.getId(), errorMessage);
-        
+    public List<ShardedExecutor.LaneStats> getProductLaneStats() {
+        return productLanes.getLaneStats();
+    }
+    
+    /**
+     * Xử lý payment đã được claim và ghi nhận metrics
+     * Toàn bộ reserve/hold/order/COMPLETED chạy trong 1 transaction của PaymentItemProcessor; nếu lỗi thì
+     * transaction đó đã rollback, ở đây chỉ dọn phần còn sót và chuyển FAILED có điều kiện lease owner
+     */
+    public void processClaimedPayment(PaymentQueue payment) {
+        queuedLeases.remove(payment.getId());
+        long startTime = System.currentTimeMillis();
+        // Mã order theo id payment: duy nhất kể cả khi 1 user có nhiều checkout chạy song song trên các lane
+        String orderId = "ORDER_" + payment.getUserId() + "_" + payment.getId();
+        String reservationToken = UUID.randomUUID().toString();
         try {
-            // Parse cart data để unlock warehouse
-            List<Map<String, Object>> cartItems = parseCartData(payment.getCartData());
-            
-            // Unlock tất cả warehouse items đã lock
-            for (Map<String, Object> cartItem : cartItems) {
-                try {
-                    Long productId = Long.valueOf(cartItem.get("productId").toString());
-                    warehouseLockService.unlockWarehouseItems(List.of(productId));
-                    log.info("Unlocked warehouse items for product: {}", productId);
-                } catch (Exception unlockError) {
-                    log.error("Failed to unlock warehouse for product {}: {}", 
-                        cartItem.get("productId"), unlockError.getMessage());
-                }
+            if (!paymentItemProcessor.process(payment, orderId, reservationToken)) {
+                return; // Lease đã thuộc worker khác
             }
+        } catch (Exception e) {
+            log.error("Error processing payment {}: {}", payment.getId(), e.getMessage());
             
-            // Hoàn tiền về ví user - sử dụng method mới với user-level lock
+            // Nếu lỗi → unlock warehouse và hoàn tiền nếu đã hold
+            String errorMessage = "Payment failed - reverted changes";
             try {
-                walletHoldService.releaseHold(payment.getUserId(), orderId);
-                log.info("Released holds for user {} with orderId {}", payment.getUserId(), orderId);
-            } catch (Exception refundError) {
-                log.error("Failed to refund money for payment {}: {}", payment.getId(), refundError.getMessage());
-                // Không throw exception để không block việc unlock warehouse
+                handlePaymentError(payment, reservationToken, e.getMessage());
+            } catch (Exception errorHandlingException) {
+                log.error("Failed to handle payment error for payment {}: {}", payment.getId(), errorHandlingException.getMessage());
+                errorMessage = "Payment failed - error handling failed";
             }
-            
-            log.info("Successfully handled payment error {}: unlocked warehouse and attempted refund", payment.getId());
-            
-        } catch (Exception e) {
-            log.error("Failed to handle payment error {}: {}", payment.getId(), e.getMessage(), e);
-            throw e;
+            markPaymentAsFailed(payment, errorMessage);
         }
+        paymentQueueClaimService.recordProcessed(payment.getStatus(), System.currentTimeMillis() - startTime);
     }
     
     /**
-     * Xử lý lỗi payment mà KHÔNG có tiền hold - chỉ unlock warehouse
+     * Gia hạn lease của các payment đã claim nhưng còn chờ trong product lane
+     * Payment đang xử lý không cần gia hạn ở đây: transaction xử lý giữ row lock dòng payment nên sweep không claim lại được
      */
-    @Transactional
-    private void handlePaymentErrorWithoutHold(PaymentQueue payment, String errorMessage) {
-        log.info("Handling payment error without hold for payment {}: {}", payment.getId(), errorMessage);
-        
-        try {
-            // Parse cart data để unlock warehouse
-            List<Map<String, Object>> cartItems = parseCartData(payment.getCartData());
-            
-            // Unlock warehouse items
-            for (Map<String, Object> cartItem : cartItems) {
-                try {
-                    Long productId = Long.valueOf(cartItem.get("productId").toString());
-                    warehouseLockService.unlockWarehouseItems(List.of(productId));
-                    log.info("Unlocked warehouse for product {}", productId);
-                } catch (Exception unlockError) {
-                    log.error("Failed to unlock warehouse for product {}: {}", 
-                        cartItem.get("productId"), unlockError.getMessage());
+    @Scheduled(fixedDelayString = "${payment.queue.lease-renew-interval-ms:20000}")
+    public void renewQueuedLeases() {
+        Map<String, List<Long>> idsByOwner = queuedLeases.entrySet().stream()
+            .collect(Collectors.groupingBy(Map.Entry::getValue, Collectors.mapping(Map.Entry::getKey, Collectors.toList())));
+        idsByOwner.forEach((owner, ids) -> {
+            try {
+                int renewed = paymentQueueClaimService.renewLeases(ids, owner);
+                if (renewed < ids.size()) {
+                    log.warn("Renewed {} of {} queued payment leases for {}", renewed, ids.size(), owner);
                 }
+            } catch (Exception e) {
+                log.error("Failed to renew payment leases for {}: {}", owner, e.getMessage());
             }
-            
-            log.info("Successfully handled payment error without hold {}: unlocked warehouse", payment.getId());
-            
-        } catch (Exception e) {
-            log.error("Failed to handle payment error without hold {}: {}", payment.getId(), e.getMessage(), e);
-            throw e;
-        }
+        });
+    }
+    
+    /**
+     * ID của node hiện tại để gán lease owner
+     */
+    public String getNodeId() {
+        return nodeId;
     }
     
     /**
-     * Mark payment as failed
+     * Xử lý lỗi payment - trả lại kho các item của lần reserve này (theo token riêng của lần xử lý, idempotent)
+     * Không hoàn tiền ở đây: hold được tạo trong cùng transaction với order và COMPLETED nên đã rollback cùng
+     * transaction; nếu transaction đó đã commit thì payment đã COMPLETED và hold không được hoàn
      */
-    private void markPaymentAsFailed(Long paymentId, String errorMessage) {
+    private void handlePaymentError(PaymentQueue payment, String reservationToken, String errorMessage) {
+        log.info("Handling payment error for payment {}: {}", payment.getId(), errorMessage);
+        
         try {
-            PaymentQueue payment = paymentQueueRepository.findById(paymentId)
-                .orElseThrow(() -> new RuntimeException("Payment not found: " + paymentId));
-                
-            payment.setStatus(PaymentQueue.Status.FAILED);
-            payment.setErrorMessage(errorMessage);
-            paymentQueueRepository.save(payment);
-            
-            log.info("Payment marked as failed: {} - {}", paymentId, errorMessage);
-            
-        } catch (Exception e) {
-            log.error("Failed to mark payment as failed: {}", paymentId, e);
+            // Release đúng các item đã reserve theo token, stock counter được cộng lại sau commit
+            int released = warehouseLockService.releaseReservation(reservationToken);
+            log.info("Released {} reserved warehouse items for payment {}", released, payment.getId());
+        } catch (Exception unlockError) {
+            log.error("Failed to release reservation for payment {}: {}", payment.getId(), unlockError.getMessage());
+            throw new RuntimeException("Failed to revert payment " + payment.getId(), unlockError);
         }
     }
     
     /**
-     * Parse cart data từ JSON
+     * Mark payment as failed - chỉ khi worker vẫn giữ lease, không ghi đè kết quả của worker khác
      */
-    private List<Map<String, Object>> parseCartData(String cartDataJson) {
+    private void markPaymentAsFailed(PaymentQueue payment, String errorMessage) {
         try {
-            return objectMapper.readValue(
-                cartDataJson, 
-                objectMapper.getTypeFactory().constructCollectionType(List.class, Map.class)
-            );
+            if (paymentQueueClaimService.finishPayment(payment.getId(), payment.getLeaseOwner(), PaymentQueue.Status.FAILED, errorMessage)) {
+                log.info("Payment marked as failed: {} - {}", payment.getId(), errorMessage);
+            } else {
+                log.warn("Payment {} is no longer leased by {}, not marking as failed", payment.getId(), payment.getLeaseOwner());
+            }
         } catch (Exception e) {
-            log.error("Failed to parse cart data: {}", e.getMessage());
-            throw new RuntimeException("Failed to parse cart data", e);
+            log.error("Failed to mark payment as failed: {}", payment.getId(), e);
         }
+        payment.setStatus(PaymentQueue.Status.FAILED);
+        payment.setLeaseExpiresAt(null);
+    }
+    
+    private CartQuoteService.CartQuote parseQuote(String cartDataJson) {
+        return paymentItemProcessor.parseQuote(cartDataJson);
     }
     
     /**
@@ -490,52 +346,9 @@ public class PaymentQueueService {
         return paymentQueueRepository.findByUserIdAndStatus(userId, PaymentQueue.Status.PENDING);
     }
     
-    /**
-     * Xử lý batch payments với parallel processing
-     */
-    private void processBatchPayments(List<PaymentQueue> pendingPayments) {
-        if (pendingPayments.isEmpty()) {
-            return;
-        }
-        
-        // Chia thành các batch nhỏ để xử lý parallel
-        int batchSize = 20; // Xử lý 20 payments/lần
-        int totalBatches = (int) Math.ceil((double) pendingPayments.size() / batchSize);
-        
-        log.info("Processing {} payments in {} batches of size {}", 
-                pendingPayments.size(), totalBatches, batchSize);
-        
-        for (int i = 0; i < pendingPayments.size(); i += batchSize) {
-            int endIndex = Math.min(i + batchSize, pendingPayments.size());
-            List<PaymentQueue> batch = pendingPayments.subList(i, endIndex);
-            
-            // Xử lý batch này
-            processSingleBatch(batch);
-        }
-    }
-    
-    /**
-     * Xử lý một batch payments
-     */
-    private void processSingleBatch(List<PaymentQueue> batch) {
-        log.info("Processing batch of {} payments", batch.size());
-        
-        for (PaymentQueue payment : batch) {
-            try {
-                // Kiểm tra lại status trước khi xử lý để tránh double processing
-                PaymentQueue currentPayment = paymentQueueRepository.findById(payment.getId()).orElse(null);
-                if (currentPayment == null || currentPayment.getStatus() != PaymentQueue.Status.PENDING) {
-                    log.info("Payment {} already processed or deleted, skipping", payment.getId());
-                    continue;
-                }
-                
-                processPaymentItem(payment);
-                
-            } catch (Exception e) {
-                log.error("Failed to process payment {}: {}", payment.getId(), e.getMessage());
-                // Error handling đã được xử lý trong processPaymentItem
-            }
-        }
+    @PreDestroy
+    public void shutdownWorkers() {
+        workerExecutor.shutdown();
+        productLanes.shutdown();
     }
-    
 }
@@ -8,10 +8,8 @@ import com.badat.study1.model.PaymentQueue;
 import com.badat.study1.model.User;
 import com.badat.study1.model.Wallet;
 import com.badat.study1.model.WalletHistory;
-import com.badat.study1.model.Warehouse;
 import com.badat.study1.repository.WalletHistoryRepository;
 import com.badat.study1.repository.WalletRepository;
-import com.badat.study1.repository.WarehouseRepository;
 import com.badat.study1.util.VNPayUtil;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -22,8 +20,7 @@ import org.springframework.transaction.annotation.Transactional;
 
 import jakarta.servlet.http.HttpServletRequest;
 import java.math.BigDecimal;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -36,10 +33,12 @@ public class PaymentService {
     private final VNPayUtil vnPayUtil;
     private final WalletRepository walletRepository;
     private final WalletHistoryService walletHistoryService;
+    private final WalletBalanceService walletBalanceService;
     private final WalletHistoryRepository walletHistoryRepository;
     private final PaymentQueueService paymentQueueService;
-    private final WarehouseRepository warehouseRepository;
     private final CartService cartService;
+    private final CartQuoteService cartQuoteService;
+    private final CheckoutIdempotencyService checkoutIdempotencyService;
     
     public PaymentResponse createPaymentUrl(PaymentRequest request) {
         return createPaymentUrl(request, null);
@@ -128,12 +127,8 @@ public class PaymentService {
             Wallet wallet = walletRepository.findByUserId(userId)
                     .orElseThrow(() -> new RuntimeException("Wallet not found for user: " + userId));
             
-            // Add amount to wallet balance
-            BigDecimal currentBalance = wallet.getBalance();
-            BigDecimal newBalance = currentBalance.add(BigDecimal.valueOf(amount));
-            wallet.setBalance(newBalance);
-            
-            walletRepository.save(wallet);
+            // Add amount to wallet balance - cộng trực tiếp trong DB, không read-modify-write
+            walletBalanceService.credit(userId, BigDecimal.valueOf(amount));
 
             // Save wallet history in a separate transaction to avoid rollback coupling
             try {
@@ -154,7 +149,7 @@ public class PaymentService {
                 historyEx.printStackTrace();
             }
             
-            System.out.println("Payment processed successfully. New balance: " + newBalance);
+            log.debug("Payment processed successfully for user {}: +{} VND", userId, amount);
             return true;
             
         } catch (Exception e) {
@@ -207,6 +202,38 @@ public class PaymentService {
         }
     }
     
+    /**
+     * Xử lý thanh toán giỏ hàng với Idempotency-Key
+     * Retry cùng key trả lại kết quả đầu tiên từ Redis, không tạo payment mới và không chạm DB
+     */
+    public PaymentResponse processCartPayment(CartPaymentRequest request, String idempotencyKey) {
+        if (idempotencyKey == null) {
+            return processCartPayment(request);
+        }
+
+        User user = (User) SecurityContextHolder.getContext().getAuthentication().getPrincipal();
+        Optional<PaymentResponse> previous;
+        try {
+            previous = checkoutIdempotencyService.begin(user.getId(), idempotencyKey, request);
+        } catch (Exception e) {
+            return PaymentResponse.builder()
+                .message(e.getMessage())
+                .success(false)
+                .build();
+        }
+        if (previous.isPresent()) {
+            return previous.get();
+        }
+
+        PaymentResponse response = processCartPayment(request);
+        if (response.isSuccess()) {
+            checkoutIdempotencyService.complete(user.getId(), idempotencyKey, request, response);
+        } else {
+            checkoutIdempotencyService.release(user.getId(), idempotencyKey);
+        }
+        return response;
+    }
+
     /**
      * Xử lý thanh toán giỏ hàng với queue system
      */
@@ -215,53 +242,32 @@ public class PaymentService {
             Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
             User user = (User) authentication.getPrincipal();
             
-            // Sử dụng cart items từ request (chỉ những items được chọn)
-            CartService.CartPaymentInfo cartInfo;
+            // Quantity theo productId: từ items được chọn trong request, nếu không có thì lấy cả cart
+            // Giá, stall/seller và tồn kho được tra lại 1 lần trong quote - không tin giá do client gửi lên
+            Map<Long, Integer> quantities = new LinkedHashMap<>();
             if (request.getCartItems() != null && !request.getCartItems().isEmpty()) {
                 log.info("Processing {} selected cart items from request", request.getCartItems().size());
-                
-                // Sử dụng items được chọn từ request và tìm warehouseId thực tế
-                BigDecimal totalAmount = BigDecimal.ZERO;
-                List<Map<String, Object>> processedCartItems = new ArrayList<>();
-                
                 for (Map<String, Object> item : request.getCartItems()) {
-                    BigDecimal price = new BigDecimal(item.get("price").toString());
-                    Integer quantity = Integer.valueOf(item.get("quantity").toString());
-                    totalAmount = totalAmount.add(price.multiply(BigDecimal.valueOf(quantity)));
-                    
-                    // Tìm warehouseId thực tế cho product
                     Long productId = Long.valueOf(item.get("productId").toString());
-                    Long actualWarehouseId = productId; // Default fallback
-                    
-                    try {
-                        // Tìm warehouse đầu tiên có sẵn cho product này
-                        Optional<Warehouse> warehouse = warehouseRepository.findFirstByProductIdAndLockedFalseAndIsDeleteFalse(productId);
-                        if (warehouse.isPresent()) {
-                            actualWarehouseId = warehouse.get().getId();
-                        }
-                    } catch (Exception e) {
-                        log.warn("Failed to get warehouse for product {}, using productId as fallback", productId);
-                    }
-                    
-                    // Tạo cart item với warehouseId thực tế
-                    Map<String, Object> processedItem = new HashMap<>(item);
-                    processedItem.put("warehouseId", actualWarehouseId);
-                    processedCartItems.add(processedItem);
+                    Integer quantity = Integer.valueOf(item.get("quantity").toString());
+                    quantities.merge(productId, quantity, Integer::sum);
                 }
-                
-                cartInfo = CartService.CartPaymentInfo.builder()
-                    .cartId(0L) // Không cần cartId cho payment
-                    .totalItems(processedCartItems.size())
-                    .totalAmount(totalAmount)
-                    .cartItems(processedCartItems)
-                    .build();
             } else {
                 // Fallback: lấy tất cả cart items nếu request không có items
-                cartInfo = cartService.getCartPaymentInfo();
+                quantities = cartService.getMyCartQuantities();
             }
-            
+
+            CartQuoteService.CartQuote quote = cartQuoteService.quote(quantities);
+
+            if (!quote.getMissingProductIds().isEmpty()) {
+                return PaymentResponse.builder()
+                    .message("Sản phẩm không còn tồn tại: " + quote.getMissingProductIds())
+                    .success(false)
+                    .build();
+            }
+
             // Validate cart items
-            if (cartInfo.getCartItems() == null || cartInfo.getCartItems().isEmpty()) {
+            if (quote.getLines().isEmpty()) {
                 return PaymentResponse.builder()
                     .message("Cart is empty")
                     .success(false)
@@ -269,7 +275,8 @@ public class PaymentService {
             }
             
             // Validate total amount
-            if (cartInfo.getTotalAmount() == null || cartInfo.getTotalAmount().compareTo(BigDecimal.ZERO) <= 0) {
+            BigDecimal totalAmount = quote.getTotalAmount();
+            if (totalAmount.compareTo(BigDecimal.ZERO) <= 0) {
                 return PaymentResponse.builder()
                     .message("Invalid total amount")
                     .success(false)
@@ -279,15 +286,15 @@ public class PaymentService {
             // Fast-fail: Check wallet balance BEFORE enqueueing payment
             Wallet wallet = walletRepository.findByUserId(user.getId())
                 .orElseThrow(() -> new RuntimeException("Wallet not found for user: " + user.getId()));
-            if (wallet.getBalance() == null || wallet.getBalance().compareTo(cartInfo.getTotalAmount()) < 0) {
+            if (wallet.getBalance() == null || wallet.getBalance().compareTo(totalAmount) < 0) {
                 return PaymentResponse.builder()
                     .message("Số dư ví không đủ để thanh toán")
                     .success(false)
                     .build();
             }
             
-            // Fast-fail: Check stock availability BEFORE enqueueing payment
-            List<String> outOfStockProducts = checkStockAvailability(cartInfo.getCartItems());
+            // Fast-fail: Check stock availability BEFORE enqueueing payment (số liệu đã có trong quote)
+            List<String> outOfStockProducts = quote.shortages();
             if (!outOfStockProducts.isEmpty()) {
                 return PaymentResponse.builder()
                     .message("Sản phẩm hết hàng: " + String.join(", ", outOfStockProducts))
@@ -296,16 +303,13 @@ public class PaymentService {
             }
             
             // Enqueue payment for processing
-            Long paymentId = paymentQueueService.enqueuePayment(
-                user.getId(), 
-                cartInfo.getCartItems(), 
-                cartInfo.getTotalAmount()
-            );
+            Long paymentId = paymentQueueService.enqueuePayment(user.getId(), quote);
             
             return PaymentResponse.builder()
                 .message("Payment queued for processing")
                 .success(true)
                 .paymentId(paymentId)
+                .status(PaymentQueue.Status.PENDING.name())
                 .build();
                 
         } catch (Exception e) {
@@ -330,31 +334,4 @@ public class PaymentService {
                 .build();
         }
     }
-    
-    /**
-     * Kiểm tra tình trạng tồn kho cho các sản phẩm trong giỏ hàng
-     */
-    private List<String> checkStockAvailability(List<Map<String, Object>> cartItems) {
-        List<String> outOfStockProducts = new ArrayList<>();
-        
-        for (Map<String, Object> cartItem : cartItems) {
-            try {
-                Long productId = Long.valueOf(cartItem.get("productId").toString());
-                Integer requestedQuantity = Integer.valueOf(cartItem.get("quantity").toString());
-                String productName = cartItem.get("name").toString();
-                
-                // Đếm số lượng warehouse items có sẵn cho sản phẩm này
-                long availableStock = warehouseRepository.countByProductIdAndLockedFalseAndIsDeleteFalse(productId);
-                
-                if (availableStock < requestedQuantity) {
-                    outOfStockProducts.add(productName + " (cần " + requestedQuantity + ", còn " + availableStock + ")");
-                }
-                
-            } catch (Exception e) {
-                outOfStockProducts.add("Lỗi kiểm tra tồn kho cho sản phẩm: " + cartItem.get("name"));
-            }
-        }
-        
-        return outOfStockProducts;
-    }
 }
\ No newline at end of file
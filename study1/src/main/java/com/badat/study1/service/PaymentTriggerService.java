@@ -4,16 +4,17 @@ import com.badat.study1.model.PaymentQueue;
 import com.badat.study1.model.WalletHold;
 import com.badat.study1.repository.PaymentQueueRepository;
 import com.badat.study1.repository.WalletHoldRepository;
+import com.badat.study1.util.ShardedExecutor;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.time.Instant;
 import java.util.List;
-import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 /**
  * Service để trigger xử lý payment ngay lập tức khi có payment mới
@@ -26,16 +27,24 @@ public class PaymentTriggerService {
     
     private final PaymentQueueRepository paymentQueueRepository;
     private final WalletHoldRepository walletHoldRepository;
-    private final PaymentQueueService paymentQueueService;
+    private final PaymentDispatchService paymentDispatchService;
     private final WalletHoldService walletHoldService;
+    private final WalletSettlementService walletSettlementService;
     
-    // Thread pool cho parallel processing
-    private final ExecutorService executorService = Executors.newFixedThreadPool(50);
+    @Value("${payment.lanes.wallet-lanes:8}")
+    private int walletLaneCount;
+    
+    // Lane theo user cho bước wallet - hold của cùng 1 user chạy tuần tự, khác user chạy song song
+    private ShardedExecutor walletLanes;
+    
+    @PostConstruct
+    public void initLanes() {
+        walletLanes = new ShardedExecutor("wallet-hold", walletLaneCount);
+    }
     
     /**
-     * Trigger xử lý payment ngay lập tức khi có payment mới
+     * Trigger xử lý payment ngay lập tức - đưa vào cùng dispatch pipeline với payment created event
      */
-    @Transactional
     public void triggerPaymentProcessing(Long paymentId) {
         log.info("Triggering immediate payment processing for payment: {}", paymentId);
         
@@ -48,15 +57,7 @@ public class PaymentTriggerService {
                 return;
             }
             
-            // Xử lý ngay lập tức với parallel processing
-            CompletableFuture.runAsync(() -> {
-                try {
-                    paymentQueueService.processPaymentItem(payment);
-                    log.info("Triggered payment processing completed for payment: {}", paymentId);
-                } catch (Exception e) {
-                    log.error("Error in triggered payment processing for payment {}: {}", paymentId, e.getMessage());
-                }
-            }, executorService);
+            paymentDispatchService.dispatch(paymentId, payment.getUserId());
             
         } catch (Exception e) {
             log.error("Failed to trigger payment processing for payment {}: {}", paymentId, e.getMessage());
@@ -83,14 +84,14 @@ public class PaymentTriggerService {
             if (hold.getExpiresAt().isBefore(Instant.now())) {
                 log.info("Hold {} has expired, processing immediately", holdId);
                 
-                CompletableFuture.runAsync(() -> {
+                walletLanes.submit(hold.getUserId(), () -> {
                     try {
-                        walletHoldService.completeHold(holdId);
+                        walletHoldService.processExpiredHold(holdId);
                         log.info("Triggered hold processing completed for hold: {}", holdId);
                     } catch (Exception e) {
                         log.error("Error in triggered hold processing for hold {}: {}", holdId, e.getMessage());
                     }
-                }, executorService);
+                });
             }
             
         } catch (Exception e) {
@@ -99,78 +100,65 @@ public class PaymentTriggerService {
     }
     
     /**
-     * Batch trigger cho nhiều payments cùng lúc
+     * Settle một batch hold đã hết hạn qua settlement engine
+     * Hold không có order được hoàn tiền về buyer trên wallet lane; nếu cả batch lỗi thì xử lý lại từng hold như cũ
      */
-    @Transactional
-    public void triggerBatchPaymentProcessing(List<Long> paymentIds) {
-        log.info("Triggering batch payment processing for {} payments", paymentIds.size());
+    public void triggerExpiredHoldSettlement(List<Long> holdIds) {
+        log.info("Triggering settlement for {} expired holds", holdIds.size());
         
-        // Chia thành các batch nhỏ để xử lý parallel
-        int batchSize = 10;
-        for (int i = 0; i < paymentIds.size(); i += batchSize) {
-            List<Long> batch = paymentIds.subList(i, Math.min(i + batchSize, paymentIds.size()));
+        try {
+            WalletSettlementService.SettlementResult result = walletSettlementService.settleExpiredHolds(holdIds);
             
-            CompletableFuture.runAsync(() -> {
-                for (Long paymentId : batch) {
-                    try {
-                        triggerPaymentProcessing(paymentId);
-                    } catch (Exception e) {
-                        log.error("Error in batch payment processing for payment {}: {}", paymentId, e.getMessage());
-                    }
-                }
-            }, executorService);
+            for (WalletHold hold : result.unmatchedHolds()) {
+                submitExpiredHold(hold.getUserId(), hold.getId());
+            }
+        } catch (Exception e) {
+            log.error("Batch settlement failed for holds {}, falling back to per-hold processing: {}", holdIds, e.getMessage());
+            // Không có userId ở đây nên dùng holdId làm lane key - không còn lock theo user, nhưng processExpiredHold
+            // chuyển hold khỏi PENDING bằng update có điều kiện nên hold đã được batch settle sẽ bị bỏ qua
+            for (Long holdId : holdIds) {
+                submitExpiredHold(holdId, holdId);
+            }
         }
     }
     
+    private void submitExpiredHold(Long laneKey, Long holdId) {
+        walletLanes.submit(laneKey, () -> {
+            try {
+                walletHoldService.processExpiredHold(holdId);
+            } catch (Exception e) {
+                log.error("Error processing expired hold {}: {}", holdId, e.getMessage());
+            }
+        });
+    }
+    
     /**
-     * Trigger dựa trên số lượng payments trong queue
+     * Batch trigger cho nhiều payments cùng lúc - dispatch chỉ là append vào buffer nên chạy tuần tự là đủ
      */
-    @Transactional
-    public void triggerBasedOnQueueSize() {
-        try {
-            long pendingCount = paymentQueueRepository.countByStatus(PaymentQueue.Status.PENDING);
-            long expiredHoldsCount = walletHoldRepository.countByStatusAndExpiresAtBefore(
-                WalletHold.Status.PENDING, Instant.now());
-            
-            log.info("Queue status - Pending payments: {}, Expired holds: {}", pendingCount, expiredHoldsCount);
-            
-            // Nếu có quá nhiều pending payments, trigger xử lý ngay
-            if (pendingCount > 100) {
-                log.info("High pending payments count: {}, triggering batch processing", pendingCount);
-                
-                List<PaymentQueue> pendingPayments = paymentQueueRepository
-                    .findByStatusOrderByCreatedAtAsc(PaymentQueue.Status.PENDING);
-                
-                // Lấy 50 payments đầu tiên để xử lý
-                List<Long> paymentIds = pendingPayments.stream()
-                    .limit(50)
-                    .map(PaymentQueue::getId)
-                    .toList();
-                
-                triggerBatchPaymentProcessing(paymentIds);
-            }
-            
-            // Nếu có expired holds, trigger xử lý ngay
-            if (expiredHoldsCount > 0) {
-                log.info("Found {} expired holds, triggering processing", expiredHoldsCount);
-                
-                List<WalletHold> expiredHolds = walletHoldRepository
-                    .findByStatusAndExpiresAtBefore(WalletHold.Status.PENDING, Instant.now());
-                
-                for (WalletHold hold : expiredHolds) {
-                    triggerWalletHoldProcessing(hold.getId());
-                }
+    public void triggerBatchPaymentProcessing(List<Long> paymentIds) {
+        log.info("Triggering batch payment processing for {} payments", paymentIds.size());
+        
+        for (Long paymentId : paymentIds) {
+            try {
+                triggerPaymentProcessing(paymentId);
+            } catch (Exception e) {
+                log.error("Error in batch payment processing for payment {}: {}", paymentId, e.getMessage());
             }
-            
-        } catch (Exception e) {
-            log.error("Error in queue-based triggering: {}", e.getMessage());
         }
     }
     
     /**
-     * Shutdown executor service
+     * Metrics độ sâu và latency của các wallet lane
+     */
+    public List<ShardedExecutor.LaneStats> getWalletLaneStats() {
+        return walletLanes.getLaneStats();
+    }
+    
+    /**
+     * Shutdown wallet lanes
      */
+    @PreDestroy
     public void shutdown() {
-        executorService.shutdown();
+        walletLanes.shutdown();
     }
 }
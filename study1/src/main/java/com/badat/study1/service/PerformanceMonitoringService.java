@@ -4,6 +4,7 @@ import com.badat.study1.model.PaymentQueue;
 import com.badat.study1.model.WalletHold;
 import com.badat.study1.repository.PaymentQueueRepository;
 import com.badat.study1.repository.WalletHoldRepository;
+import com.badat.study1.util.ShardedExecutor;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.scheduling.annotation.Scheduled;
@@ -23,6 +24,15 @@ public class PerformanceMonitoringService {
     
     private final PaymentQueueRepository paymentQueueRepository;
     private final WalletHoldRepository walletHoldRepository;
+    private final PaymentQueueClaimService paymentQueueClaimService;
+    private final PaymentDispatchService paymentDispatchService;
+    private final PaymentQueueService paymentQueueService;
+    private final PaymentTriggerService paymentTriggerService;
+    private final WalletHoldExpiryScheduler walletHoldExpiryScheduler;
+    private final WalletSettlementService walletSettlementService;
+    
+    // Số payment worker đã xử lý ở lần monitor trước - để tính throughput
+    private long lastWorkerProcessed = 0;
     
     /**
      * Monitor performance mỗi 30 giây
@@ -38,8 +48,7 @@ public class PerformanceMonitoringService {
             
             // Đếm pending holds
             long pendingHolds = walletHoldRepository.countByStatus(WalletHold.Status.PENDING);
-            long expiredHolds = walletHoldRepository.countByStatusAndExpiresAtBefore(
-                WalletHold.Status.PENDING, Instant.now());
+            long expiredHolds = walletHoldExpiryScheduler.getOverdueCount();
             
             // Tính processing rate (payments/minute)
             long totalProcessed = completedPayments + failedPayments;
@@ -52,6 +61,35 @@ public class PerformanceMonitoringService {
             log.info("Processing Rate: {:.2f} payments/minute", processingRate);
             log.info("Total Processed: {}", totalProcessed);
             
+            // Metrics của claim-based workers trên node này
+            PaymentQueueClaimService.ClaimStats claimStats = paymentQueueClaimService.getClaimStats();
+            log.info("Queue workers - Claim attempts: {}, Empty claims: {}, Claimed: {}, Completed: {}, Failed: {}, Avg processing: {} ms",
+                    claimStats.getClaimAttempts(), claimStats.getEmptyClaims(), claimStats.getClaimedPayments(),
+                    claimStats.getCompletedPayments(), claimStats.getFailedPayments(),
+                    String.format("%.1f", claimStats.getAverageProcessingMs()));
+            long workerProcessed = claimStats.getCompletedPayments() + claimStats.getFailedPayments();
+            log.info("Queue worker throughput: {} payments/30s", workerProcessed - lastWorkerProcessed);
+            lastWorkerProcessed = workerProcessed;
+            
+            PaymentDispatchService.DispatchStats dispatchStats = paymentDispatchService.getDispatchStats();
+            log.info("Dispatch - Dispatched: {}, Rejected: {}, Skipped: {}, Processed: {}, Buffered: {}, p50: {} ms, p99: {} ms",
+                    dispatchStats.getDispatched(), dispatchStats.getRejected(), dispatchStats.getSkipped(),
+                    dispatchStats.getProcessed(), dispatchStats.getBuffered(),
+                    dispatchStats.getP50LatencyMs(), dispatchStats.getP99LatencyMs());
+            
+            logLaneStats("Product", paymentQueueService.getProductLaneStats());
+            logLaneStats("Wallet", paymentTriggerService.getWalletLaneStats());
+            
+            // Lịch hết hạn wallet hold
+            WalletHoldExpiryScheduler.ExpiryStats expiryStats = walletHoldExpiryScheduler.getExpiryStats();
+            log.info("Hold expiry - Scheduled: {}, Overdue: {}, Registered: {}, Fired: {}",
+                    expiryStats.getScheduledHolds(), expiryStats.getOverdueHolds(),
+                    expiryStats.getScheduled(), expiryStats.getFired());
+            WalletSettlementService.SettlementStats settlementStats = walletSettlementService.getSettlementStats();
+            log.info("Settlement - Batches: {}, Holds: {}, Wallet updates: {}, History rows: {}",
+                    settlementStats.getBatches(), settlementStats.getSettledHolds(),
+                    settlementStats.getWalletUpdates(), settlementStats.getHistoryRows());
+            
             // Cảnh báo nếu có quá nhiều pending
             if (pendingPayments > 1000) {
                 log.warn("HIGH PENDING PAYMENTS: {} - System may be overloaded!", pendingPayments);
@@ -71,6 +109,19 @@ public class PerformanceMonitoringService {
         }
     }
     
+    /**
+     * Log lane metrics - chỉ log các lane đã từng nhận việc
+     */
+    private void logLaneStats(String label, List<ShardedExecutor.LaneStats> lanes) {
+        for (ShardedExecutor.LaneStats lane : lanes) {
+            if (lane.getSubmitted() > 0) {
+                log.info("{} lane {} - Depth: {}, Completed: {}, Avg latency: {} ms, Max latency: {} ms",
+                        label, lane.getLane(), lane.getDepth(), lane.getCompleted(),
+                        String.format("%.1f", lane.getAverageLatencyMs()), lane.getMaxLatencyMs());
+            }
+        }
+    }
+    
     /**
      * Tính processing rate dựa trên payments được xử lý trong 1 phút gần nhất
      */
@@ -106,8 +157,7 @@ public class PerformanceMonitoringService {
             long failedPayments = paymentQueueRepository.countByStatus(PaymentQueue.Status.FAILED);
             
             long pendingHolds = walletHoldRepository.countByStatus(WalletHold.Status.PENDING);
-            long expiredHolds = walletHoldRepository.countByStatusAndExpiresAtBefore(
-                WalletHold.Status.PENDING, Instant.now());
+            long expiredHolds = walletHoldExpiryScheduler.getOverdueCount();
             
             double processingRate = calculateProcessingRate();
             
@@ -0,0 +1,84 @@
+package com.badat.study1.service;
+
+import com.badat.study1.model.RatingSummary;
+import com.badat.study1.repository.RatingSummaryRepository;
+import com.badat.study1.repository.ReviewRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.integration.redis.util.RedisLockRegistry;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Backfill tổng hợp rating: tính lại toàn bộ rating_summary từ bảng review theo batch
+ * (mỗi batch 1 transaction). Chạy khi khởi động để dựng bảng lần đầu và định kỳ để sửa
+ * review được tạo/xóa ngoài ứng dụng (ứng dụng chỉ ghi số chưa đọc qua ReviewService)
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class RatingSummaryBackfillScheduler {
+
+    private static final String BACKFILL_LOCK_KEY = "rating-summary:backfill";
+
+    private final RatingSummaryService ratingSummaryService;
+    private final RatingSummaryRepository ratingSummaryRepository;
+    private final ReviewRepository reviewRepository;
+    private final RedisLockRegistry redisLockRegistry;
+
+    @Value("${rating.summary.backfill-batch-size:500}")
+    private int backfillBatchSize;
+
+    @Value("${rating.summary.backfill-on-startup:true}")
+    private boolean backfillOnStartup;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void backfillOnStartup() {
+        if (backfillOnStartup) {
+            backfill();
+        }
+    }
+
+    /**
+     * Tính lại tổng hợp của mọi stall/product/shop có review hoặc đang có dòng tổng hợp
+     */
+    @Scheduled(initialDelayString = "${rating.summary.backfill-interval-ms:86400000}",
+            fixedDelayString = "${rating.summary.backfill-interval-ms:86400000}")
+    public void backfill() {
+        Lock lock = redisLockRegistry.obtain(BACKFILL_LOCK_KEY);
+        if (!lock.tryLock()) {
+            log.info("Another instance is backfilling rating summaries, skipping...");
+            return;
+        }
+
+        try {
+            for (RatingSummary.Scope scope : RatingSummary.Scope.values()) {
+                Set<Long> targetIds = new LinkedHashSet<>(switch (scope) {
+                    case STALL -> reviewRepository.findReviewedStallIds();
+                    case PRODUCT -> reviewRepository.findReviewedProductIds();
+                    case SHOP -> reviewRepository.findReviewedShopIds();
+                });
+                targetIds.addAll(ratingSummaryRepository.findTargetIdsByScope(scope));
+
+                List<Long> ids = new ArrayList<>(targetIds);
+                for (int from = 0; from < ids.size(); from += backfillBatchSize) {
+                    ratingSummaryService.rebuild(scope, ids.subList(from, Math.min(from + backfillBatchSize, ids.size())));
+                }
+                log.info("Rating summaries backfilled for {} {} targets", ids.size(), scope);
+            }
+        } catch (Exception e) {
+            log.error("Error backfilling rating summaries: {}", e.getMessage(), e);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.badat.study1.service;
+
+import com.badat.study1.model.RatingSummary;
+import com.badat.study1.repository.RatingSummaryRepository;
+import com.badat.study1.repository.ReviewRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tổng hợp rating của stall/product/shop (bảng rating_summary)
+ * Seller đọc/trả lời review trừ số chưa đọc bằng upsert nguyên tử trong cùng transaction với review,
+ * backfill (RatingSummaryBackfillScheduler) tính lại giá trị tuyệt đối từ bảng review theo batch
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class RatingSummaryService {
+
+    private final RatingSummaryRepository ratingSummaryRepository;
+    private final ReviewRepository reviewRepository;
+    private final StallCardService stallCardService;
+
+    public RatingSummary getSummary(RatingSummary.Scope scope, Long targetId) {
+        return ratingSummaryRepository.findByScopeAndTargetId(scope, targetId)
+                .orElseGet(() -> RatingSummary.empty(scope, targetId));
+    }
+
+    /**
+     * Tổng hợp của nhiều đối tượng bằng 1 query, đối tượng chưa có review nhận tổng hợp rỗng
+     */
+    public Map<Long, RatingSummary> getSummaries(RatingSummary.Scope scope, Collection<Long> targetIds) {
+        Map<Long, RatingSummary> summaries = new HashMap<>();
+        if (targetIds.isEmpty()) {
+            return summaries;
+        }
+        ratingSummaryRepository.findByScopeAndTargetIdIn(scope, targetIds)
+                .forEach(summary -> summaries.put(summary.getTargetId(), summary));
+        targetIds.forEach(targetId -> summaries.computeIfAbsent(targetId, id -> RatingSummary.empty(scope, id)));
+        return summaries;
+    }
+
+    /**
+     * Trừ số review chưa đọc sau khi seller đọc review của 1 stall
+     *
+     * @param unreadByProduct số review vừa được đánh dấu đã đọc theo productId
+     */
+    @Transactional(propagation = Propagation.MANDATORY)
+    public void onReviewsRead(Long stallId, Long shopId, Map<Long, Integer> unreadByProduct) {
+        int total = unreadByProduct.values().stream().mapToInt(Integer::intValue).sum();
+        if (total == 0) {
+            return;
+        }
+        applyUnread(RatingSummary.Scope.STALL, stallId, -total);
+        applyUnread(RatingSummary.Scope.SHOP, shopId, -total);
+        unreadByProduct.forEach((productId, count) -> applyUnread(RatingSummary.Scope.PRODUCT, productId, -count));
+    }
+
+    /**
+     * Ghi đè tổng hợp của các đối tượng bằng số liệu tính lại từ bảng review (1 query GROUP BY mỗi batch);
+     * đối tượng không còn review thì xóa dòng tổng hợp
+     * Dòng tổng hợp bị khóa FOR UPDATE trước khi đọc review: delta đồng thời hoặc đã commit trước
+     * (và nằm trong số liệu GROUP BY), hoặc chờ rebuild commit rồi mới cộng vào - không bị ghi đè mất
+     */
+    @Transactional
+    public void rebuild(RatingSummary.Scope scope, Collection<Long> targetIds) {
+        if (targetIds.isEmpty()) {
+            return;
+        }
+
+        Map<Long, RatingSummary> existing = new HashMap<>();
+        ratingSummaryRepository.lockByScopeAndTargetIdIn(scope.name(), targetIds)
+                .forEach(summary -> existing.put(summary.getTargetId(), summary));
+
+        List<Object[]> rows = switch (scope) {
+            case STALL -> reviewRepository.summarizeByStallIdIn(targetIds);
+            case PRODUCT -> reviewRepository.summarizeByProductIdIn(targetIds);
+            case SHOP -> reviewRepository.summarizeByShopIdIn(targetIds);
+        };
+
+        Instant now = Instant.now();
+        List<RatingSummary> updated = new ArrayList<>();
+        for (Object[] row : rows) {
+            Long targetId = ((Number) row[0]).longValue();
+            RatingSummary summary = existing.remove(targetId);
+            if (summary == null) {
+                summary = RatingSummary.empty(scope, targetId);
+            }
+            summary.setReviewCount(intAt(row, 1));
+            summary.setRatingSum(((Number) row[2]).longValue());
+            summary.setStar1(intAt(row, 3));
+            summary.setStar2(intAt(row, 4));
+            summary.setStar3(intAt(row, 5));
+            summary.setStar4(intAt(row, 6));
+            summary.setStar5(intAt(row, 7));
+            summary.setUnreadCount(intAt(row, 8));
+            summary.setUpdatedAt(now);
+            updated.add(summary);
+        }
+
+        ratingSummaryRepository.saveAll(updated);
+        if (!existing.isEmpty()) {
+            ratingSummaryRepository.deleteAllInBatch(existing.values());
+        }
+        if (scope == RatingSummary.Scope.STALL) {
+            // Rating trên thẻ gian hàng đọc từ tổng hợp của stall
+            stallCardService.markStallsDirty(targetIds);
+        }
+        log.debug("Rebuilt {} {} rating summaries, removed {}", updated.size(), scope, existing.size());
+    }
+
+    private void applyUnread(RatingSummary.Scope scope, Long targetId, int unread) {
+        ratingSummaryRepository.applyDelta(scope.name(), targetId, 0, 0L, 0, 0, 0, 0, 0, unread);
+    }
+
+    private int intAt(Object[] row, int index) {
+        return row[index] != null ? ((Number) row[index]).intValue() : 0;
+    }
+}
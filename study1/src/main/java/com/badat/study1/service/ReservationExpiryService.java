@@ -0,0 +1,59 @@
+package com.badat.study1.service;
+
+import com.badat.study1.event.WarehouseReleaseEvent;
+import com.badat.study1.repository.WarehouseRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Service release reservation hết hạn theo từng chunk
+ * Mỗi chunk chạy trong 1 transaction ngắn: khóa tối đa batchSize dòng hết hạn (SKIP LOCKED)
+ * rồi release bằng 1 câu UPDATE, thay vì load từng entity và saveAll trong 1 transaction lớn
+ * Stock counter được cộng lại qua WarehouseReleaseEvent sau khi chunk commit
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class ReservationExpiryService {
+
+    private final WarehouseRepository warehouseRepository;
+    private final ApplicationEventPublisher eventPublisher;
+
+    /**
+     * Release 1 chunk reservation hết hạn trước thời điểm now - trả về số item đã release
+     */
+    @Transactional
+    public int releaseExpiredChunk(LocalDateTime now, int batchSize) {
+        List<Object[]> rows = warehouseRepository.findExpiredReservationsForUpdate(now, batchSize);
+        if (rows.isEmpty()) {
+            return 0;
+        }
+
+        List<Long> ids = new ArrayList<>(rows.size());
+        Map<Long, Long> productCounts = new HashMap<>();
+        Map<Long, Long> stallCounts = new HashMap<>();
+        Map<Long, Long> shopCounts = new HashMap<>();
+        for (Object[] row : rows) {
+            ids.add(((Number) row[0]).longValue());
+            productCounts.merge(((Number) row[1]).longValue(), 1L, Long::sum);
+            stallCounts.merge(((Number) row[2]).longValue(), 1L, Long::sum);
+            shopCounts.merge(((Number) row[3]).longValue(), 1L, Long::sum);
+        }
+
+        int released = warehouseRepository.releaseReservationsByIds(ids);
+
+        // Listener của event (StockCounterService) chỉ chạy sau khi chunk commit, rollback thì không cộng counter
+        eventPublisher.publishEvent(WarehouseReleaseEvent.reservationsExpired(this, productCounts, stallCounts, shopCounts, released));
+
+        return released;
+    }
+}
@@ -0,0 +1,67 @@
+package com.badat.study1.service;
+
+import com.badat.study1.model.Review;
+import com.badat.study1.repository.ReviewRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Các thao tác seller ghi lên review (trả lời, đánh dấu đã đọc) - mỗi thao tác cập nhật số chưa đọc
+ * của tổng hợp rating (RatingSummaryService) trong cùng transaction nên số liệu hiển thị luôn khớp với review đã commit
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class ReviewService {
+
+    private final ReviewRepository reviewRepository;
+    private final RatingSummaryService ratingSummaryService;
+
+    /**
+     * Lưu trả lời của seller - review được trả lời coi như đã đọc
+     */
+    @Transactional
+    public Review replyToReview(Review review, String replyContent) {
+        review.setReplyContent(replyContent);
+        review.setReplyAt(LocalDateTime.now());
+        boolean wasUnread = !Boolean.TRUE.equals(review.getIsRead());
+        review.setIsRead(true);
+        Review saved = reviewRepository.save(review);
+        if (wasUnread && !Boolean.TRUE.equals(review.getIsDelete())) {
+            ratingSummaryService.onReviewsRead(review.getStallId(), review.getShopId(), Map.of(review.getProductId(), 1));
+        }
+        return saved;
+    }
+
+    /**
+     * Đánh dấu đã đọc mọi review chưa đọc của stall bằng 1 câu UPDATE
+     *
+     * @return số review vừa được đánh dấu
+     */
+    @Transactional
+    public int markStallReviewsRead(Long stallId, Long shopId) {
+        List<Object[]> unread = reviewRepository.lockUnreadByStallId(stallId);
+        if (unread.isEmpty()) {
+            return 0;
+        }
+
+        List<Long> ids = new ArrayList<>();
+        Map<Long, Integer> unreadByProduct = new HashMap<>();
+        for (Object[] row : unread) {
+            ids.add(((Number) row[0]).longValue());
+            unreadByProduct.merge(((Number) row[1]).longValue(), 1, Integer::sum);
+        }
+        int marked = reviewRepository.markReadByIds(ids);
+        ratingSummaryService.onReviewsRead(stallId, shopId, unreadByProduct);
+        log.debug("Marked {} reviews of stall {} as read", marked, stallId);
+        return marked;
+    }
+}
@@ -1,17 +1,36 @@
 package com.badat.study1.service;
 
 import com.badat.study1.model.SecurityEvent;
-import com.badat.study1.repository.SecurityEventRepository;
+import jakarta.annotation.PostConstruct;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+
+/**
+ * Ghi security event qua sink "security-events" của TelemetryBus - đường login chỉ append vào buffer,
+ * không insert đồng bộ
+ */
 @Slf4j
 @Service
 @RequiredArgsConstructor
 public class SecurityEventService {
     
-    private final SecurityEventRepository securityEventRepository;
+    private static final String INSERT_SECURITY_EVENT_SQL = "INSERT INTO security_events " +
+            "(event_type, ip_address, email, username, details, user_agent, created_at) VALUES (?, ?, ?, ?, ?, ?, ?)";
+    
+    private final TelemetryBus telemetryBus;
+    
+    private TelemetryBus.Sink<SecurityEventRecord> sink;
+    
+    @PostConstruct
+    public void registerSink() {
+        // Security event không được sample
+        sink = telemetryBus.register("security-events", SecurityEventRecord.class, INSERT_SECURITY_EVENT_SQL, this::bind,
+                event -> true, event -> true);
+    }
     
     public void logSecurityEvent(SecurityEvent.EventType eventType, String ipAddress, String details) {
         logSecurityEvent(eventType, ipAddress, null, null, details, null);
@@ -23,16 +42,15 @@ public class SecurityEventService {
     
     public void logSecurityEvent(SecurityEvent.EventType eventType, String ipAddress, String email, String username, String details, String userAgent) {
         try {
-            SecurityEvent securityEvent = SecurityEvent.builder()
+            sink.publish(SecurityEventRecord.builder()
                     .eventType(eventType)
                     .ipAddress(ipAddress)
                     .email(email)
                     .username(username)
                     .details(details)
                     .userAgent(userAgent)
-                    .build();
-            
-            securityEventRepository.save(securityEvent);
+                    .createdAt(LocalDateTime.now())
+                    .build());
             
             log.info("Security event logged: {} from IP: {} - {}", eventType, ipAddress, details);
         } catch (Exception e) {
@@ -94,4 +112,33 @@ public class SecurityEventService {
         logSecurityEvent(SecurityEvent.EventType.SECURITY_ALERT, ipAddress, null, null, 
                 "SECURITY ALERT: " + details, null);
     }
+    
+    private Object[] bind(SecurityEventRecord event) {
+        return new Object[]{
+                event.getEventType().name(), truncate(event.getIpAddress(), 45), truncate(event.getEmail(), 255),
+                truncate(event.getUsername(), 100), event.getDetails(), truncate(event.getUserAgent(), 500),
+                Timestamp.valueOf(event.getCreatedAt())
+        };
+    }
+    
+    private String truncate(String value, int maxLength) {
+        return value != null && value.length() > maxLength ? value.substring(0, maxLength) : value;
+    }
+    
+    /**
+     * 1 dòng security_events trong buffer (cũng là định dạng 1 dòng của file spill)
+     */
+    @lombok.Data
+    @lombok.Builder
+    @lombok.NoArgsConstructor
+    @lombok.AllArgsConstructor
+    public static class SecurityEventRecord {
+        private SecurityEvent.EventType eventType;
+        private String ipAddress;
+        private String email;
+        private String username;
+        private String details;
+        private String userAgent;
+        private LocalDateTime createdAt;
+    }
 }
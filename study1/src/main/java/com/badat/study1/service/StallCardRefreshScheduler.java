@@ -0,0 +1,96 @@
+package com.badat.study1.service;
+
+import com.badat.study1.repository.StallRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.integration.redis.util.RedisLockRegistry;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Job nền của stall_card: mỗi tick lấy các stall dirty từ Redis set theo batch và tính lại thẻ
+ * (mỗi batch 1 transaction). Khi khởi động và định kỳ thì tính lại toàn bộ để dựng bảng lần đầu
+ * và sửa các thay đổi đi vòng qua entity (bulk SQL)
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class StallCardRefreshScheduler {
+
+    private static final String REFRESH_LOCK_KEY = "stall-card:refresh";
+
+    private final StallCardService stallCardService;
+    private final StallRepository stallRepository;
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisLockRegistry redisLockRegistry;
+
+    @Value("${stall.card.refresh-batch-size:200}")
+    private int refreshBatchSize;
+
+    /**
+     * Tính lại các thẻ đang dirty
+     */
+    @Scheduled(fixedDelayString = "${stall.card.refresh-interval-ms:2000}")
+    public void refreshDirtyCards() {
+        Lock lock = redisLockRegistry.obtain(REFRESH_LOCK_KEY);
+        if (!lock.tryLock()) {
+            return;
+        }
+
+        try {
+            List<String> dirty = stringRedisTemplate.opsForSet().pop(StallCardService.DIRTY_KEY, refreshBatchSize);
+            while (dirty != null && !dirty.isEmpty()) {
+                try {
+                    stallCardService.refresh(dirty.stream().map(Long::valueOf).toList());
+                } catch (Exception e) {
+                    // Trả lại set để tick sau thử lại
+                    stringRedisTemplate.opsForSet().add(StallCardService.DIRTY_KEY, dirty.toArray(String[]::new));
+                    throw e;
+                }
+                dirty = stringRedisTemplate.opsForSet().pop(StallCardService.DIRTY_KEY, refreshBatchSize);
+            }
+        } catch (Exception e) {
+            log.error("Error refreshing stall cards: {}", e.getMessage(), e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void rebuildOnStartup() {
+        reconcile();
+    }
+
+    /**
+     * Tính lại toàn bộ thẻ theo batch
+     */
+    @Scheduled(initialDelayString = "${stall.card.reconcile-interval-ms:3600000}",
+            fixedDelayString = "${stall.card.reconcile-interval-ms:3600000}")
+    public void reconcile() {
+        Lock lock = redisLockRegistry.obtain(REFRESH_LOCK_KEY);
+        if (!lock.tryLock()) {
+            log.info("Another instance is refreshing stall cards, skipping reconcile...");
+            return;
+        }
+
+        try {
+            List<Long> stallIds = stallRepository.findAllIds();
+            for (int from = 0; from < stallIds.size(); from += refreshBatchSize) {
+                stallCardService.refresh(stallIds.subList(from, Math.min(from + refreshBatchSize, stallIds.size())));
+            }
+            int removed = stallCardService.removeOrphanedCards(stallIds);
+            log.info("Stall cards reconciled for {} stalls, removed {} orphaned cards", stallIds.size(), removed);
+        } catch (Exception e) {
+            log.error("Error reconciling stall cards: {}", e.getMessage(), e);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package com.badat.study1.service;
+
+import com.badat.study1.model.RatingSummary;
+import com.badat.study1.model.StallCard;
+import com.badat.study1.model.StallCardToken;
+import com.badat.study1.repository.ProductRepository;
+import com.badat.study1.repository.RatingSummaryRepository;
+import com.badat.study1.repository.StallCardRepository;
+import com.badat.study1.repository.StallCardTokenRepository;
+import com.badat.study1.repository.StallRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.math.BigDecimal;
+import java.text.Normalizer;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Duy trì bảng stall_card cho trang chủ
+ * Thay đổi product/review/stall/shop và delta tồn kho (StockCounterService) đánh dấu stall "dirty" trong Redis set
+ * sau khi commit, StallCardRefreshScheduler tính lại các stall dirty theo batch bằng 2 query + 1 query rating_summary
+ * và 1 lần HMGET stock counter (số query không phụ thuộc số stall trong batch)
+ * Cùng lúc đó ghi lại chỉ mục keyword stall_card_token (tiền tố từng từ trong tên stall + tên product)
+ * cho các stall có tên thay đổi
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class StallCardService {
+
+    static final String DIRTY_KEY = "stall-card:dirty";
+    private static final String HOMEPAGE_STATUS = "OPEN";
+    private static final Pattern WORD_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+    private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{M}+");
+
+    private final StallCardRepository stallCardRepository;
+    private final StallCardTokenRepository stallCardTokenRepository;
+    private final StallRepository stallRepository;
+    private final ProductRepository productRepository;
+    private final RatingSummaryRepository ratingSummaryRepository;
+    private final StockCounterService stockCounterService;
+    private final StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * Top 8 thẻ gian hàng đang mở theo số sản phẩm
+     */
+    public List<StallCard> getHomepageCards() {
+        return stallCardRepository.findTop8ByStatusOrderByProductCountDesc(HOMEPAGE_STATUS);
+    }
+
+    /**
+     * Đánh dấu stall cần tính lại thẻ - chạy sau khi transaction hiện tại commit
+     */
+    public void markStallsDirty(Collection<Long> stallIds) {
+        if (stallIds.isEmpty()) {
+            return;
+        }
+        String[] members = stallIds.stream().map(String::valueOf).distinct().toArray(String[]::new);
+        runAfterCommit(() -> stringRedisTemplate.opsForSet().add(DIRTY_KEY, members));
+    }
+
+    /**
+     * Đánh dấu mọi stall của shop (đổi tên shop)
+     * Tra stall sau khi commit vì được gọi từ entity listener, lúc đó không được chạy query
+     */
+    public void markShopDirty(Long shopId) {
+        runAfterCommit(() -> {
+            String[] members = stallRepository.findIdsByShopId(shopId).stream().map(String::valueOf).toArray(String[]::new);
+            if (members.length > 0) {
+                stringRedisTemplate.opsForSet().add(DIRTY_KEY, members);
+            }
+        });
+    }
+
+    /**
+     * Tính lại thẻ của các stall trong 1 transaction: stall đã xóa thì bỏ thẻ
+     */
+    @Transactional
+    public void refresh(Collection<Long> stallIds) {
+        if (stallIds.isEmpty()) {
+            return;
+        }
+
+        // Nạp sẵn thẻ cũ vào persistence context để saveAll merge không SELECT lại từng thẻ
+        stallCardRepository.findAllById(stallIds);
+
+        // Số item còn trống lấy từ stock counter (cập nhật khi reserve/release/giao hàng/upload), không từ product.quantity
+        List<Object[]> productRows = productRepository.findCardProductsByStallIdIn(stallIds);
+        Map<Long, Long> available = stockCounterService.getProductAvailable(
+                productRows.stream().map(row -> ((Number) row[0]).longValue()).toList());
+        Map<Long, ProductStats> productStats = new HashMap<>();
+        Map<Long, Set<String>> tokens = new HashMap<>();
+        for (Object[] row : productRows) {
+            Long stallId = ((Number) row[1]).longValue();
+            productStats.computeIfAbsent(stallId, id -> new ProductStats())
+                    .add(available.getOrDefault(((Number) row[0]).longValue(), 0L), toBigDecimal(row[2]));
+            addIndexTokens(tokens.computeIfAbsent(stallId, id -> new HashSet<>()), (String) row[3]);
+        }
+        Map<Long, RatingSummary> ratingStats = new HashMap<>();
+        for (RatingSummary summary : ratingSummaryRepository.findByScopeAndTargetIdIn(RatingSummary.Scope.STALL, stallIds)) {
+            ratingStats.put(summary.getTargetId(), summary);
+        }
+
+        Instant now = Instant.now();
+        List<StallCard> cards = new ArrayList<>();
+        Set<Long> removed = new HashSet<>(stallIds);
+        for (Object[] source : stallRepository.findCardSourcesByIdIn(stallIds)) {
+            Long stallId = ((Number) source[0]).longValue();
+            removed.remove(stallId);
+            addIndexTokens(tokens.computeIfAbsent(stallId, id -> new HashSet<>()), (String) source[2]);
+
+            ProductStats products = productStats.getOrDefault(stallId, new ProductStats());
+            RatingSummary ratings = ratingStats.getOrDefault(stallId, RatingSummary.empty(RatingSummary.Scope.STALL, stallId));
+            cards.add(StallCard.builder()
+                    .stallId(stallId)
+                    .shopId(((Number) source[1]).longValue())
+                    .stallName((String) source[2])
+                    .stallCategory((String) source[3])
+                    .businessType((String) source[7])
+                    .status((String) source[4])
+                    .imageUrl(source[5] != null ? "/media/" + source[5] : null)
+                    .shopName(source[6] != null ? (String) source[6] : "Unknown Shop")
+                    .productTotal(products.total)
+                    .productCount((int) products.stock)
+                    .minPrice(products.minPrice)
+                    .maxPrice(products.maxPrice)
+                    .reviewCount(ratings.getReviewCount())
+                    .ratingSum(ratings.getRatingSum())
+                    .averageRating(ratings.getAverageRating())
+                    // Làm tròn mili giây để khớp với cursor "mới nhất" của trang tìm kiếm
+                    .createdAt(toInstant(source[8]).truncatedTo(ChronoUnit.MILLIS))
+                    .updatedAt(now)
+                    .build());
+        }
+
+        stallCardRepository.saveAll(cards);
+        if (!removed.isEmpty()) {
+            stallCardRepository.deleteAllByIdInBatch(removed);
+        }
+        syncTokens(stallIds, tokens);
+        log.debug("Refreshed {} stall cards, removed {}", cards.size(), removed.size());
+    }
+
+    /**
+     * Bỏ thẻ của stall không còn trong DB
+     */
+    @Transactional
+    public int removeOrphanedCards(Collection<Long> existingStallIds) {
+        Set<Long> existing = new HashSet<>(existingStallIds);
+        List<Long> orphaned = stallCardRepository.findAll().stream()
+                .map(StallCard::getStallId)
+                .filter(id -> !existing.contains(id))
+                .toList();
+        if (!orphaned.isEmpty()) {
+            stallCardRepository.deleteAllByIdInBatch(orphaned);
+            stallCardTokenRepository.deleteByStallIdIn(orphaned);
+        }
+        return orphaned.size();
+    }
+
+    /**
+     * Token của keyword tìm kiếm: các từ (chữ/số, lower-case, bỏ dấu) cắt ở MAX_LENGTH, bỏ trùng
+     * Stall khớp khi có đủ mọi token - tức mỗi từ của keyword là tiền tố của 1 từ trong tên stall/product
+     * Bỏ dấu để "ngoc" tìm được "Ngọc" và để token không trùng nhau dưới collation không phân biệt dấu của MySQL
+     */
+    public static List<String> keywordTokens(String keyword) {
+        if (keyword == null) {
+            return List.of();
+        }
+        String normalized = COMBINING_MARKS.matcher(Normalizer.normalize(keyword, Normalizer.Form.NFD)).replaceAll("")
+                .replace('đ', 'd').replace('Đ', 'D')
+                .toLowerCase(Locale.ROOT);
+        return WORD_SEPARATOR.splitAsStream(normalized)
+                .filter(word -> !word.isEmpty())
+                .map(word -> word.length() > StallCardToken.MAX_LENGTH ? word.substring(0, StallCardToken.MAX_LENGTH) : word)
+                .distinct()
+                .toList();
+    }
+
+    /**
+     * Index mọi tiền tố (1..MAX_LENGTH ký tự) của từng từ để keyword gõ dở vẫn tra bằng nhau trên index
+     */
+    private void addIndexTokens(Set<String> tokens, String text) {
+        for (String word : keywordTokens(text)) {
+            for (int length = 1; length <= word.length(); length++) {
+                tokens.add(word.substring(0, length));
+            }
+        }
+    }
+
+    /**
+     * Ghi lại token của stall có tập token thay đổi (stall đã xóa có tập rỗng) - đổi tồn kho/rating không ghi gì
+     */
+    private void syncTokens(Collection<Long> stallIds, Map<Long, Set<String>> tokens) {
+        Map<Long, Set<String>> existing = new HashMap<>();
+        for (Object[] row : stallCardTokenRepository.findTokensByStallIdIn(stallIds)) {
+            existing.computeIfAbsent(((Number) row[0]).longValue(), id -> new HashSet<>()).add((String) row[1]);
+        }
+
+        List<Long> changed = stallIds.stream()
+                .distinct()
+                .filter(id -> !existing.getOrDefault(id, Set.of()).equals(tokens.getOrDefault(id, Set.of())))
+                .toList();
+        if (changed.isEmpty()) {
+            return;
+        }
+        stallCardTokenRepository.deleteByStallIdIn(changed);
+        List<StallCardToken> rows = new ArrayList<>();
+        for (Long stallId : changed) {
+            tokens.getOrDefault(stallId, Set.of())
+                    .forEach(token -> rows.add(StallCardToken.builder().token(token).stallId(stallId).build()));
+        }
+        stallCardTokenRepository.saveAll(rows);
+    }
+
+    private void runAfterCommit(Runnable action) {
+        Runnable apply = () -> {
+            try {
+                action.run();
+            } catch (Exception e) {
+                // Thẻ sẽ được sửa lại ở lần reconcile kế tiếp
+                log.warn("Failed to mark stall cards dirty: {}", e.getMessage());
+            }
+        };
+
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    apply.run();
+                }
+            });
+        } else {
+            apply.run();
+        }
+    }
+
+    /**
+     * Gom số product, tổng tồn kho và khoảng giá của product còn hàng trong 1 stall
+     */
+    private static class ProductStats {
+        int total;
+        long stock;
+        BigDecimal minPrice;
+        BigDecimal maxPrice;
+
+        void add(long available, BigDecimal price) {
+            total++;
+            stock += available;
+            if (available > 0 && price != null) {
+                minPrice = minPrice == null || price.compareTo(minPrice) < 0 ? price : minPrice;
+                maxPrice = maxPrice == null || price.compareTo(maxPrice) > 0 ? price : maxPrice;
+            }
+        }
+    }
+
+    private Instant toInstant(Object value) {
+        if (value instanceof Instant instant) {
+            return instant;
+        }
+        if (value instanceof Timestamp timestamp) {
+            return timestamp.toInstant();
+        }
+        if (value instanceof LocalDateTime localDateTime) {
+            return localDateTime.atZone(ZoneId.systemDefault()).toInstant();
+        }
+        return value instanceof OffsetDateTime offsetDateTime ? offsetDateTime.toInstant() : Instant.EPOCH;
+    }
+
+    private BigDecimal toBigDecimal(Object value) {
+        if (value == null) {
+            return null;
+        }
+        return value instanceof BigDecimal decimal ? decimal : new BigDecimal(value.toString());
+    }
+}
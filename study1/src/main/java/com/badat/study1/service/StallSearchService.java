@@ -0,0 +1,145 @@
+package com.badat.study1.service;
+
+import com.badat.study1.model.StallCard;
+import com.badat.study1.repository.StallCardRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.stereotype.Service;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Tìm kiếm gian hàng cho /products trên bảng stall_card (keyword, loại, shop, khoảng giá, còn hàng)
+ * Keyword khớp theo tiền tố từ trong tên stall và tên product, tra qua index stall_card_token
+ * Phân trang keyset: cursor = khóa sắp xếp + stall_id của dòng cuối trang trước, nên mỗi trang
+ * chỉ đọc size + 1 dòng theo index (status, khóa sắp xếp) thay vì OFFSET qua toàn bộ catalog
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class StallSearchService {
+
+    private static final String OPEN_STATUS = "OPEN";
+
+    private final StallCardRepository stallCardRepository;
+
+    public enum Sort { NEWEST, RATING, PRICE, STOCK }
+
+    public SearchResult search(SearchCriteria criteria) {
+        List<String> keywords = StallCardService.keywordTokens(criteria.getKeyword());
+        String category = criteria.getCategory() != null && !criteria.getCategory().isBlank()
+                ? criteria.getCategory().trim() : null;
+        String shop = likePattern(criteria.getShop());
+        Sort sort = criteria.getSort() != null ? criteria.getSort() : Sort.NEWEST;
+        Cursor after = Cursor.parse(criteria.getAfter());
+        // Lấy dư 1 dòng để biết còn trang sau
+        Pageable limit = PageRequest.of(0, criteria.getSize() + 1);
+
+        List<StallCard> rows = switch (sort) {
+            case RATING -> stallCardRepository.searchByRating(OPEN_STATUS, keywordsOrPlaceholder(keywords), keywords.size(), category, shop,
+                    criteria.getMinPrice(), criteria.getMaxPrice(), criteria.isInStock(),
+                    after != null ? after.value.doubleValue() : null, after != null ? after.stallId : null, limit);
+            case PRICE -> stallCardRepository.searchByPrice(OPEN_STATUS, keywordsOrPlaceholder(keywords), keywords.size(), category, shop,
+                    criteria.getMinPrice(), criteria.getMaxPrice(), criteria.isInStock(),
+                    after != null ? after.value : null, after != null ? after.stallId : null, limit);
+            case STOCK -> stallCardRepository.searchByStock(OPEN_STATUS, keywordsOrPlaceholder(keywords), keywords.size(), category, shop,
+                    criteria.getMinPrice(), criteria.getMaxPrice(), criteria.isInStock(),
+                    after != null ? after.value.intValue() : null, after != null ? after.stallId : null, limit);
+            case NEWEST -> stallCardRepository.searchByNewest(OPEN_STATUS, keywordsOrPlaceholder(keywords), keywords.size(), category, shop,
+                    criteria.getMinPrice(), criteria.getMaxPrice(), criteria.isInStock(),
+                    after != null ? Instant.ofEpochMilli(after.value.longValue()) : null, after != null ? after.stallId : null, limit);
+        };
+
+        String nextCursor = null;
+        if (rows.size() > criteria.getSize()) {
+            rows = new ArrayList<>(rows.subList(0, criteria.getSize()));
+            nextCursor = Cursor.of(sort, rows.get(rows.size() - 1));
+        }
+        return SearchResult.builder().cards(rows).nextCursor(nextCursor).sort(sort).build();
+    }
+
+    /**
+     * IN () rỗng không hợp lệ - khi không có keyword thì keywordCount = 0 đã bỏ qua điều kiện
+     */
+    private List<String> keywordsOrPlaceholder(List<String> keywords) {
+        return keywords.isEmpty() ? List.of("") : keywords;
+    }
+
+    /**
+     * Pattern LIKE "chứa" - %, _ và \ của người dùng được escape để khớp đúng ký tự (query dùng ESCAPE '\')
+     */
+    private String likePattern(String value) {
+        if (value == null || value.isBlank()) {
+            return null;
+        }
+        String escaped = value.trim().toLowerCase(Locale.ROOT)
+                .replace("\\", "\\\\")
+                .replace("%", "\\%")
+                .replace("_", "\\_");
+        return "%" + escaped + "%";
+    }
+
+    /**
+     * Cursor dạng "<khóa sắp xếp>_<stallId>" - cursor hỏng thì quay về trang đầu
+     */
+    private static class Cursor {
+        private final BigDecimal value;
+        private final Long stallId;
+
+        private Cursor(BigDecimal value, Long stallId) {
+            this.value = value;
+            this.stallId = stallId;
+        }
+
+        static Cursor parse(String cursor) {
+            if (cursor == null || cursor.isBlank()) {
+                return null;
+            }
+            int separator = cursor.lastIndexOf('_');
+            try {
+                return new Cursor(new BigDecimal(cursor.substring(0, separator)), Long.valueOf(cursor.substring(separator + 1)));
+            } catch (RuntimeException e) {
+                log.debug("Ignoring invalid search cursor: {}", cursor);
+                return null;
+            }
+        }
+
+        static String of(Sort sort, StallCard last) {
+            String value = switch (sort) {
+                case RATING -> last.getAverageRating().toString();
+                case PRICE -> last.getMinPrice().toPlainString();
+                case STOCK -> last.getProductCount().toString();
+                case NEWEST -> String.valueOf(last.getCreatedAt().toEpochMilli());
+            };
+            return value + "_" + last.getStallId();
+        }
+    }
+
+    @lombok.Data
+    @lombok.Builder
+    public static class SearchCriteria {
+        private String keyword;
+        private String category;
+        private String shop;
+        private BigDecimal minPrice;
+        private BigDecimal maxPrice;
+        private boolean inStock;
+        private Sort sort;
+        private String after;
+        private int size;
+    }
+
+    @lombok.Data
+    @lombok.Builder
+    public static class SearchResult {
+        private List<StallCard> cards;
+        private String nextCursor;
+        private Sort sort;
+    }
+}
@@ -0,0 +1,391 @@
+package com.badat.study1.service;
+
+import com.badat.study1.event.WarehouseReleaseEvent;
+import com.badat.study1.model.Warehouse;
+import com.badat.study1.repository.WarehouseRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.integration.redis.util.RedisLockRegistry;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionPhase;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Bộ đếm số item còn trống (không lock, không xóa) theo product, stall và shop
+ * Lưu trong Redis hash để mọi node dùng chung, được cập nhật incremental khi reserve/release/deliver/upload
+ * và reconcile định kỳ với DB. Browse và checkout đọc O(1) thay vì COUNT(*) trên bảng warehouse
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class StockCounterService {
+
+    private static final String PRODUCT_KEY = "stock:available:product";
+    private static final String STALL_KEY = "stock:available:stall";
+    private static final String SHOP_KEY = "stock:available:shop";
+    private static final String RECONCILE_LOCK_KEY = "stock:reconcile";
+
+    private static final String GENERATION_SUFFIX = ":gen";
+    private static final String JOURNAL_SUFFIX = ":journal";
+    private static final String JOURNAL_MARKER = "_";
+    private static final Duration JOURNAL_TTL = Duration.ofMinutes(10);
+
+    // Chỉ HINCRBY khi field đã có - field chưa có sẽ được nạp từ DB ở lần đọc đầu tiên
+    // Mỗi delta tăng generation của field (để lần nạp từ DB biết có delta chen vào) và được ghi vào journal khi đang rebuild
+    private static final RedisScript<Long> INCREMENT_IF_PRESENT = new DefaultRedisScript<>(
+            "redis.call('HINCRBY', KEYS[2], ARGV[1], 1) " +
+            "if redis.call('EXISTS', KEYS[3]) == 1 then redis.call('HINCRBY', KEYS[3], ARGV[1], ARGV[2]) end " +
+            "if redis.call('HEXISTS', KEYS[1], ARGV[1]) == 1 then " +
+            "return redis.call('HINCRBY', KEYS[1], ARGV[1], ARGV[2]) end return nil", Long.class);
+
+    // Nạp giá trị đếm từ DB chỉ khi generation của field không đổi kể từ trước lúc đếm
+    private static final RedisScript<Long> SEED_IF_UNCHANGED = new DefaultRedisScript<>(
+            "local current = redis.call('HGET', KEYS[1], ARGV[1]) if current then return tonumber(current) end " +
+            "if (redis.call('HGET', KEYS[2], ARGV[1]) or '0') ~= ARGV[2] then return nil end " +
+            "redis.call('HSET', KEYS[1], ARGV[1], ARGV[3]) return tonumber(ARGV[3])", Long.class);
+
+    // Cộng các delta ghi trong journal vào hash mới rồi thay hash cũ - nguyên tử với INCREMENT_IF_PRESENT
+    private static final RedisScript<Long> REPLACE_WITH_JOURNAL = new DefaultRedisScript<>(
+            "local journal = redis.call('HGETALL', KEYS[3]) " +
+            "for i = 1, #journal, 2 do " +
+            "if journal[i] ~= ARGV[1] and redis.call('HEXISTS', KEYS[2], journal[i]) == 1 then " +
+            "redis.call('HINCRBY', KEYS[2], journal[i], journal[i + 1]) end end " +
+            "redis.call('RENAME', KEYS[2], KEYS[1]) redis.call('DEL', KEYS[3]) return #journal / 2", Long.class);
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final WarehouseRepository warehouseRepository;
+    private final RedisLockRegistry redisLockRegistry;
+
+    /**
+     * Số item còn trống của product
+     */
+    public long getProductAvailable(Long productId) {
+        return read(PRODUCT_KEY, productId, () -> warehouseRepository.countByProductIdAndLockedFalseAndIsDeleteFalse(productId));
+    }
+
+    /**
+     * Số item còn trống của stall
+     */
+    public long getStallAvailable(Long stallId) {
+        return read(STALL_KEY, stallId, () -> warehouseRepository.countAvailableItemsByStallId(stallId));
+    }
+
+    /**
+     * Số item còn trống của shop
+     */
+    public long getShopAvailable(Long shopId) {
+        return read(SHOP_KEY, shopId, () -> warehouseRepository.countAvailableItemsByShopId(shopId));
+    }
+
+    /**
+     * Đọc số item còn trống của nhiều product trong 1 lần HMGET
+     * Product chưa có counter được đếm bằng 1 query GROUP BY cho tất cả rồi nạp vào Redis
+     */
+    public Map<Long, Long> getProductAvailable(Collection<Long> productIds) {
+        Map<Long, Long> result = new HashMap<>();
+        if (productIds.isEmpty()) {
+            return result;
+        }
+
+        List<Long> ids = new ArrayList<>(productIds);
+        List<Long> missing = new ArrayList<>();
+        try {
+            List<Object> fields = ids.stream().map(id -> (Object) id.toString()).toList();
+            List<Object> cached = stringRedisTemplate.opsForHash().multiGet(PRODUCT_KEY, fields);
+            for (int i = 0; i < ids.size(); i++) {
+                Object value = cached.get(i);
+                if (value != null) {
+                    result.put(ids.get(i), Long.parseLong(value.toString()));
+                } else {
+                    missing.add(ids.get(i));
+                }
+            }
+        } catch (Exception e) {
+            log.warn("Failed to read product stock counters from Redis, falling back to DB: {}", e.getMessage());
+            missing = ids;
+        }
+
+        if (!missing.isEmpty()) {
+            List<Object> generations = readGenerations(PRODUCT_KEY, missing);
+            Map<Long, Long> counts = new HashMap<>();
+            missing.forEach(id -> counts.put(id, 0L));
+            for (Object[] row : warehouseRepository.countAvailableItemsGroupByProductIn(missing)) {
+                counts.put(((Number) row[0]).longValue(), ((Number) row[1]).longValue());
+            }
+            result.putAll(counts);
+            if (generations != null) {
+                try {
+                    for (int i = 0; i < missing.size(); i++) {
+                        Long id = missing.get(i);
+                        seed(PRODUCT_KEY, id, generations.get(i), counts.get(id));
+                    }
+                } catch (Exception e) {
+                    log.warn("Failed to seed product stock counters: {}", e.getMessage());
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Đọc số item còn trống của nhiều stall trong 1 lần HMGET
+     */
+    public Map<Long, Long> getStallAvailable(Collection<Long> stallIds) {
+        Map<Long, Long> result = new HashMap<>();
+        if (stallIds.isEmpty()) {
+            return result;
+        }
+
+        List<Long> ids = new ArrayList<>(stallIds);
+        List<Object> fields = ids.stream().map(id -> (Object) id.toString()).toList();
+        try {
+            List<Object> cached = stringRedisTemplate.opsForHash().multiGet(STALL_KEY, fields);
+            for (int i = 0; i < ids.size(); i++) {
+                Object value = cached.get(i);
+                result.put(ids.get(i), value != null ? Long.parseLong(value.toString()) : getStallAvailable(ids.get(i)));
+            }
+        } catch (Exception e) {
+            log.warn("Failed to read stall stock counters from Redis, falling back to DB: {}", e.getMessage());
+            ids.forEach(id -> result.put(id, warehouseRepository.countAvailableItemsByStallId(id)));
+        }
+        return result;
+    }
+
+    /**
+     * Item chuyển từ còn trống sang bị lock (reserve)
+     */
+    public void onItemsReserved(Collection<Warehouse> items) {
+        adjust(items, -1);
+    }
+
+    /**
+     * Item bị lock được trả lại kho (release / hết hạn reservation)
+     */
+    public void onItemsReleased(Collection<Warehouse> items) {
+        adjust(items, 1);
+    }
+
+    /**
+     * Item bị lock được trả lại kho, đã gom sẵn số lượng theo product/stall/shop (release hàng loạt bằng SQL)
+     */
+    public void onItemsReleased(Map<Long, Long> productCounts, Map<Long, Long> stallCounts, Map<Long, Long> shopCounts) {
+        applyAfterCommit(productCounts, stallCounts, shopCounts);
+    }
+
+    /**
+     * Item mới được thêm hoặc khôi phục vào kho (upload TXT)
+     */
+    public void onItemsAdded(Collection<Warehouse> items) {
+        adjust(items, 1);
+    }
+
+    /**
+     * Item mới được thêm hoặc khôi phục vào kho, đã gom sẵn số lượng theo product/stall/shop (import hàng loạt bằng SQL)
+     */
+    public void onItemsAdded(Map<Long, Long> productCounts, Map<Long, Long> stallCounts, Map<Long, Long> shopCounts) {
+        applyAfterCommit(productCounts, stallCounts, shopCounts);
+    }
+
+    /**
+     * Item còn trống bị xóa khỏi kho (giao hàng / xóa sản phẩm)
+     */
+    public void onItemsRemoved(Collection<Warehouse> items) {
+        adjust(items, -1);
+    }
+
+    /**
+     * Reconcile counter với DB định kỳ - chỉ 1 node chạy nhờ Redis lock
+     */
+    @Scheduled(fixedDelayString = "${stock.counter.reconcile-interval-ms:300000}")
+    public void reconcile() {
+        Lock lock = redisLockRegistry.obtain(RECONCILE_LOCK_KEY);
+        if (!lock.tryLock()) {
+            log.info("Another instance is reconciling stock counters, skipping...");
+            return;
+        }
+
+        try {
+            rebuild(PRODUCT_KEY, warehouseRepository::countAvailableItemsGroupByProduct);
+            rebuild(STALL_KEY, warehouseRepository::countAvailableItemsGroupByStall);
+            rebuild(SHOP_KEY, warehouseRepository::countAvailableItemsGroupByShop);
+            log.info("Stock counters reconciled with database");
+        } catch (Exception e) {
+            log.error("Error reconciling stock counters: {}", e.getMessage(), e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long read(String key, Long id, LongSupplier dbCount) {
+        try {
+            Object cached = stringRedisTemplate.opsForHash().get(key, id.toString());
+            if (cached != null) {
+                return Long.parseLong(cached.toString());
+            }
+
+            // Generation đọc trước khi đếm: có delta nào áp dụng trong lúc đếm thì không nạp giá trị đã cũ
+            Object generation = stringRedisTemplate.opsForHash().get(key + GENERATION_SUFFIX, id.toString());
+            long count = dbCount.getAsLong();
+            seed(key, id, generation, count);
+            return count;
+        } catch (Exception e) {
+            log.warn("Failed to read stock counter {} for {}, falling back to DB: {}", key, id, e.getMessage());
+            return dbCount.getAsLong();
+        }
+    }
+
+    private List<Object> readGenerations(String key, List<Long> ids) {
+        try {
+            return stringRedisTemplate.opsForHash().multiGet(key + GENERATION_SUFFIX,
+                    ids.stream().map(id -> (Object) id.toString()).toList());
+        } catch (Exception e) {
+            log.warn("Failed to read stock counter generations {}: {}", key, e.getMessage());
+            return null;
+        }
+    }
+
+    private void seed(String key, Long id, Object generation, long count) {
+        stringRedisTemplate.execute(SEED_IF_UNCHANGED, List.of(key, key + GENERATION_SUFFIX),
+                id.toString(), generation != null ? generation.toString() : "0", String.valueOf(count));
+    }
+
+    /**
+     * Gom delta theo product/stall/shop của danh sách item
+     */
+    private void adjust(Collection<Warehouse> items, int deltaPerItem) {
+        if (items == null || items.isEmpty()) {
+            return;
+        }
+
+        Map<Long, Long> productDeltas = new HashMap<>();
+        Map<Long, Long> stallDeltas = new HashMap<>();
+        Map<Long, Long> shopDeltas = new HashMap<>();
+        for (Warehouse item : items) {
+            if (item.getProduct() != null) {
+                productDeltas.merge(item.getProduct().getId(), (long) deltaPerItem, Long::sum);
+            }
+            if (item.getStall() != null) {
+                stallDeltas.merge(item.getStall().getId(), (long) deltaPerItem, Long::sum);
+            }
+            if (item.getShop() != null) {
+                shopDeltas.merge(item.getShop().getId(), (long) deltaPerItem, Long::sum);
+            }
+        }
+
+        applyAfterCommit(productDeltas, stallDeltas, shopDeltas);
+    }
+
+    /**
+     * Áp dụng delta sau khi transaction commit (nếu không có transaction thì áp dụng ngay)
+     */
+    /**
+     * Reservation được trả lại kho (sweep hết hạn) - event listener AFTER_COMMIT nên transaction đã commit,
+     * cộng thẳng vào counter (đăng ký synchronization mới lúc này sẽ không bao giờ chạy)
+     */
+    @TransactionalEventListener(phase = TransactionPhase.AFTER_COMMIT, fallbackExecution = true)
+    public void onWarehouseReleased(WarehouseReleaseEvent event) {
+        applyNow(event.getReleasedByProduct(), event.getReleasedByStall(), event.getReleasedByShop());
+    }
+
+    private void applyAfterCommit(Map<Long, Long> productDeltas, Map<Long, Long> stallDeltas, Map<Long, Long> shopDeltas) {
+        Runnable apply = () -> applyNow(productDeltas, stallDeltas, shopDeltas);
+
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    apply.run();
+                }
+            });
+        } else {
+            apply.run();
+        }
+    }
+
+    private void applyNow(Map<Long, Long> productDeltas, Map<Long, Long> stallDeltas, Map<Long, Long> shopDeltas) {
+        try {
+            applyDeltas(PRODUCT_KEY, productDeltas);
+            applyDeltas(STALL_KEY, stallDeltas);
+            applyDeltas(SHOP_KEY, shopDeltas);
+        } catch (Exception e) {
+            // Counter sẽ được sửa lại ở lần reconcile kế tiếp
+            log.warn("Failed to update stock counters: {}", e.getMessage());
+        }
+        markStallCardsDirty(stallDeltas);
+    }
+
+    /**
+     * Tồn kho của stall đổi thì thẻ gian hàng (số sản phẩm, khoảng giá còn hàng) phải tính lại
+     * Ghi thẳng vào dirty set của StallCardService (đã sau commit, và tránh phụ thuộc vòng giữa 2 service)
+     */
+    private void markStallCardsDirty(Map<Long, Long> stallDeltas) {
+        String[] members = stallDeltas.entrySet().stream()
+                .filter(entry -> entry.getValue() != 0)
+                .map(entry -> entry.getKey().toString())
+                .toArray(String[]::new);
+        if (members.length == 0) {
+            return;
+        }
+        try {
+            stringRedisTemplate.opsForSet().add(StallCardService.DIRTY_KEY, members);
+        } catch (Exception e) {
+            // Thẻ sẽ được sửa lại ở lần reconcile kế tiếp
+            log.warn("Failed to mark stall cards dirty: {}", e.getMessage());
+        }
+    }
+
+    private void applyDeltas(String key, Map<Long, Long> deltas) {
+        for (Map.Entry<Long, Long> entry : deltas.entrySet()) {
+            if (entry.getValue() != 0) {
+                stringRedisTemplate.execute(INCREMENT_IF_PRESENT, List.of(key, key + GENERATION_SUFFIX, key + JOURNAL_SUFFIX),
+                        entry.getKey().toString(), entry.getValue().toString());
+            }
+        }
+    }
+
+    /**
+     * Ghi lại toàn bộ hash từ kết quả GROUP BY rồi RENAME để thay thế nguyên tử
+     * Journal được mở trước khi chạy GROUP BY: delta áp dụng từ lúc đó đến lúc thay hash được cộng lại vào hash mới
+     * Id không có trong kết quả (hết hàng) sẽ được nạp lại từ DB ở lần đọc tiếp theo
+     */
+    private void rebuild(String key, Supplier<List<Object[]>> groupByQuery) {
+        String journalKey = key + JOURNAL_SUFFIX;
+        stringRedisTemplate.opsForHash().put(journalKey, JOURNAL_MARKER, "0");
+        stringRedisTemplate.expire(journalKey, JOURNAL_TTL);
+        try {
+            Map<String, String> counts = new HashMap<>();
+            for (Object[] row : groupByQuery.get()) {
+                counts.put(row[0].toString(), row[1].toString());
+            }
+
+            if (counts.isEmpty()) {
+                stringRedisTemplate.delete(key);
+                return;
+            }
+
+            String rebuildKey = key + ":rebuild";
+            stringRedisTemplate.delete(rebuildKey);
+            stringRedisTemplate.opsForHash().putAll(rebuildKey, counts);
+            Long replayed = stringRedisTemplate.execute(REPLACE_WITH_JOURNAL, List.of(key, rebuildKey, journalKey), JOURNAL_MARKER);
+            log.debug("Rebuilt {} with {} journaled deltas", key, replayed);
+        } finally {
+            stringRedisTemplate.delete(journalKey);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.badat.study1.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Bus telemetry dùng chung cho các bảng log (user_activity_log, api_call_log, auditlog, security_events)
+ * Mỗi bảng là 1 sink do service sở hữu đăng ký: event có kiểu riêng, lọc + sample trên thread gọi,
+ * rồi append vào BatchingJdbcWriter của sink (1 consumer thread, JDBC batch insert, spill ra file khi cần).
+ * Cấu hình theo sink ở telemetry.sinks.&lt;tên&gt;.*, thiếu thì lấy telemetry.defaults.*
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class TelemetryBus {
+
+    private final JdbcTemplate jdbcTemplate;
+    private final PlatformTransactionManager transactionManager;
+    private final ObjectMapper objectMapper;
+    private final Environment environment;
+
+    @Value("${telemetry.defaults.capacity:8192}")
+    private int defaultCapacity;
+
+    @Value("${telemetry.defaults.batch-size:500}")
+    private int defaultBatchSize;
+
+    @Value("${telemetry.defaults.flush-interval-ms:200}")
+    private long defaultFlushIntervalMs;
+
+    @Value("${telemetry.defaults.offer-timeout-ms:50}")
+    private long defaultOfferTimeoutMs;
+
+    @Value("${telemetry.defaults.replay-interval-ms:30000}")
+    private long defaultReplayIntervalMs;
+
+    @Value("${telemetry.defaults.spill-dir:data/spill}")
+    private String defaultSpillDir;
+
+    private final Map<String, Sink<?>> sinks = new ConcurrentHashMap<>();
+
+    /**
+     * Đăng ký sink cho 1 bảng và khởi động writer của nó
+     *
+     * @param filter     event không thỏa thì bỏ qua (ví dụ endpoint tĩnh)
+     * @param alwaysKeep event thỏa thì không bị sample bỏ (ví dụ request lỗi)
+     */
+    public <T> Sink<T> register(String name, Class<T> eventType, String insertSql, Function<T, Object[]> binder,
+                                Predicate<T> filter, Predicate<T> alwaysKeep) {
+        String prefix = "telemetry.sinks." + name + ".";
+        BatchingJdbcWriter<T> writer = new BatchingJdbcWriter<>(name, eventType, insertSql, binder, jdbcTemplate,
+                new TransactionTemplate(transactionManager), objectMapper,
+                BatchingJdbcWriter.Settings.builder()
+                        .capacity(environment.getProperty(prefix + "capacity", Integer.class, defaultCapacity))
+                        .batchSize(environment.getProperty(prefix + "batch-size", Integer.class, defaultBatchSize))
+                        .flushIntervalMs(environment.getProperty(prefix + "flush-interval-ms", Long.class, defaultFlushIntervalMs))
+                        .offerTimeoutMs(environment.getProperty(prefix + "offer-timeout-ms", Long.class, defaultOfferTimeoutMs))
+                        .replayIntervalMs(environment.getProperty(prefix + "replay-interval-ms", Long.class, defaultReplayIntervalMs))
+                        .shutdownTimeoutMs(30000)
+                        .spillDir(environment.getProperty(prefix + "spill-dir", defaultSpillDir))
+                        .build());
+
+        Sink<T> sink = new Sink<>(writer, filter, alwaysKeep,
+                environment.getProperty(prefix + "enabled", Boolean.class, true),
+                environment.getProperty(prefix + "sample-rate", Double.class, 1.0));
+        if (sinks.putIfAbsent(name, sink) != null) {
+            throw new IllegalStateException("Telemetry sink " + name + " is already registered");
+        }
+        writer.start();
+        log.info("Telemetry sink {} registered (enabled: {}, sample rate: {})", name, sink.enabled, sink.sampleRate);
+        return sink;
+    }
+
+    @PreDestroy
+    public void stop() {
+        sinks.values().forEach(sink -> sink.writer.stop());
+    }
+
+    /**
+     * Snapshot metrics của tất cả sink
+     */
+    public List<SinkStats> getStats() {
+        return sinks.values().stream()
+                .map(Sink::getStats)
+                .sorted((a, b) -> a.getWriter().getName().compareTo(b.getWriter().getName()))
+                .toList();
+    }
+
+    /**
+     * Handle để service publish event vào sink của mình
+     */
+    public static class Sink<T> {
+        private final BatchingJdbcWriter<T> writer;
+        private final Predicate<T> filter;
+        private final Predicate<T> alwaysKeep;
+        private final boolean enabled;
+        private final double sampleRate;
+
+        private final LongAdder published = new LongAdder();
+        private final LongAdder filtered = new LongAdder();
+        private final LongAdder sampledOut = new LongAdder();
+
+        Sink(BatchingJdbcWriter<T> writer, Predicate<T> filter, Predicate<T> alwaysKeep, boolean enabled, double sampleRate) {
+            this.writer = writer;
+            this.filter = filter;
+            this.alwaysKeep = alwaysKeep;
+            this.enabled = enabled;
+            this.sampleRate = sampleRate;
+        }
+
+        /**
+         * Lọc, sample rồi append vào buffer của writer - không ghi DB trên thread gọi
+         */
+        public void publish(T event) {
+            published.increment();
+            if (!enabled || !filter.test(event)) {
+                filtered.increment();
+                return;
+            }
+            if (sampleRate < 1.0 && !alwaysKeep.test(event) && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+                sampledOut.increment();
+                return;
+            }
+            writer.append(event);
+        }
+
+        SinkStats getStats() {
+            return SinkStats.builder()
+                    .published(published.sum())
+                    .filtered(filtered.sum())
+                    .sampledOut(sampledOut.sum())
+                    .sampleRate(sampleRate)
+                    .enabled(enabled)
+                    .writer(writer.getStats())
+                    .timestamp(Instant.now())
+                    .build();
+        }
+    }
+
+    /**
+     * DTO cho metrics của 1 sink: published = filtered + sampledOut + writer.appended
+     */
+    @lombok.Data
+    @lombok.Builder
+    public static class SinkStats {
+        private long published;
+        private long filtered;
+        private long sampledOut;
+        private double sampleRate;
+        private boolean enabled;
+        private BatchingJdbcWriter.WriterStats writer;
+        private Instant timestamp;
+    }
+}
@@ -5,28 +5,46 @@ import com.badat.study1.model.UserActivityLog;
 import com.badat.study1.repository.UserActivityLogRepository;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 
 import java.math.BigDecimal;
+import java.sql.Timestamp;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.util.HashMap;
 import java.util.Map;
 
+/**
+ * Ghi user activity log qua sink "user-activity-log" của TelemetryBus: mỗi lần log chỉ là 1 lần append vào buffer,
+ * JSON details được serialize và insert theo JDBC batch trên consumer thread của writer
+ */
 @Slf4j
 @Service
 @RequiredArgsConstructor
 public class UserActivityLogService {
     
+    private static final String INSERT_ACTIVITY_LOG_SQL = "INSERT INTO user_activity_log " +
+            "(user_id, action, category, entity_type, entity_id, details, ip_address, user_agent, endpoint, method, " +
+            "success, failure_reason, is_delete, created_by, created_at) " +
+            "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, false, 'SYSTEM', ?)";
+    
     private final UserActivityLogRepository userActivityLogRepository;
-    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final TelemetryBus telemetryBus;
+    private final ObjectMapper objectMapper;
+    
+    private TelemetryBus.Sink<ActivityEvent> sink;
+    
+    @PostConstruct
+    public void registerSink() {
+        sink = telemetryBus.register("user-activity-log", ActivityEvent.class, INSERT_ACTIVITY_LOG_SQL, this::bind,
+                event -> true, event -> !event.isSuccess());
+    }
     
-    @Async("activityLogExecutor")
     public void logProductView(User user, Long productId, String productName, String ipAddress, String userAgent, String endpoint, String method, boolean success, String failureReason) {
         try {
             Map<String, Object> details = new HashMap<>();
@@ -34,30 +52,27 @@ public class UserActivityLogService {
             details.put("productName", productName);
             details.put("timestamp", LocalDateTime.now());
             
-            UserActivityLog activityLog = UserActivityLog.builder()
+            append(ActivityEvent.builder()
                     .userId(user.getId())
                     .action("VIEW_PRODUCT")
                     .category(UserActivityLog.Category.SHOPPING)
                     .entityType("Product")
                     .entityId(productId)
-                    .details(toJson(details))
+                    .details(details)
                     .ipAddress(ipAddress)
                     .userAgent(userAgent)
                     .endpoint(endpoint)
                     .method(method)
                     .success(success)
                     .failureReason(failureReason)
-                    .build();
-            
-            userActivityLogRepository.save(activityLog);
-            log.info("Product view logged for user {}: product {} (success: {})", user.getUsername(), productName, success);
+                    .build());
+            log.debug("Product view logged for user {}: product {} (success: {})", user.getUsername(), productName, success);
             
         } catch (Exception e) {
             log.error("Error logging product view for user {}: {}", user.getUsername(), e.getMessage());
         }
     }
     
-    @Async("activityLogExecutor")
     public void logCartAction(User user, String action, Long productId, int quantity, String ipAddress, String endpoint, String method, boolean success, String failureReason) {
         try {
             Map<String, Object> details = new HashMap<>();
@@ -65,29 +80,26 @@ public class UserActivityLogService {
             details.put("quantity", quantity);
             details.put("timestamp", LocalDateTime.now());
             
-            UserActivityLog activityLog = UserActivityLog.builder()
+            append(ActivityEvent.builder()
                     .userId(user.getId())
                     .action(action)
                     .category(UserActivityLog.Category.SHOPPING)
                     .entityType("Cart")
                     .entityId(productId)
-                    .details(toJson(details))
+                    .details(details)
                     .ipAddress(ipAddress)
                     .endpoint(endpoint)
                     .method(method)
                     .success(success)
                     .failureReason(failureReason)
-                    .build();
-            
-            userActivityLogRepository.save(activityLog);
-            log.info("Cart action logged for user {}: {} product {} (success: {})", user.getUsername(), action, productId, success);
+                    .build());
+            log.debug("Cart action logged for user {}: {} product {} (success: {})", user.getUsername(), action, productId, success);
             
         } catch (Exception e) {
             log.error("Error logging cart action for user {}: {}", user.getUsername(), e.getMessage());
         }
     }
     
-    @Async("activityLogExecutor")
     public void logOrderAction(User user, String action, Long orderId, BigDecimal amount, String ipAddress, String endpoint, String method, boolean success, String failureReason) {
         try {
             Map<String, Object> details = new HashMap<>();
@@ -95,29 +107,26 @@ public class UserActivityLogService {
             details.put("amount", amount != null ? amount.toString() : null);
             details.put("timestamp", LocalDateTime.now());
             
-            UserActivityLog activityLog = UserActivityLog.builder()
+            append(ActivityEvent.builder()
                     .userId(user.getId())
                     .action(action)
                     .category(UserActivityLog.Category.ORDER)
                     .entityType("Order")
                     .entityId(orderId)
-                    .details(toJson(details))
+                    .details(details)
                     .ipAddress(ipAddress)
                     .endpoint(endpoint)
                     .method(method)
                     .success(success)
                     .failureReason(failureReason)
-                    .build();
-            
-            userActivityLogRepository.save(activityLog);
-            log.info("Order action logged for user {}: {} order {} (success: {})", user.getUsername(), action, orderId, success);
+                    .build());
+            log.debug("Order action logged for user {}: {} order {} (success: {})", user.getUsername(), action, orderId, success);
             
         } catch (Exception e) {
             log.error("Error logging order action for user {}: {}", user.getUsername(), e.getMessage());
         }
     }
     
-    @Async("activityLogExecutor")
     public void logPaymentAction(User user, String action, Long orderId, String paymentMethod, BigDecimal amount, boolean success, String ipAddress, String endpoint, String method, String failureReason) {
         try {
             Map<String, Object> details = new HashMap<>();
@@ -127,22 +136,20 @@ public class UserActivityLogService {
             details.put("success", success);
             details.put("timestamp", LocalDateTime.now());
             
-            UserActivityLog activityLog = UserActivityLog.builder()
+            append(ActivityEvent.builder()
                     .userId(user.getId())
                     .action(action)
                     .category(UserActivityLog.Category.PAYMENT)
                     .entityType("Payment")
                     .entityId(orderId)
-                    .details(toJson(details))
+                    .details(details)
                     .ipAddress(ipAddress)
                     .endpoint(endpoint)
                     .method(method)
                     .success(success)
                     .failureReason(failureReason)
-                    .build();
-            
-            userActivityLogRepository.save(activityLog);
-            log.info("Payment action logged for user {}: {} order {} success={}", 
+                    .build());
+            log.debug("Payment action logged for user {}: {} order {} success={}", 
                     user.getUsername(), action, orderId, success);
             
         } catch (Exception e) {
@@ -150,7 +157,6 @@ public class UserActivityLogService {
         }
     }
     
-    @Async("activityLogExecutor")
     public void logReviewAction(User user, String action, Long productId, int rating, String ipAddress, String endpoint, String method, boolean success, String failureReason) {
         try {
             Map<String, Object> details = new HashMap<>();
@@ -158,22 +164,20 @@ public class UserActivityLogService {
             details.put("rating", rating);
             details.put("timestamp", LocalDateTime.now());
             
-            UserActivityLog activityLog = UserActivityLog.builder()
+            append(ActivityEvent.builder()
                     .userId(user.getId())
                     .action(action)
                     .category(UserActivityLog.Category.REVIEW)
                     .entityType("Review")
                     .entityId(productId)
-                    .details(toJson(details))
+                    .details(details)
                     .ipAddress(ipAddress)
                     .endpoint(endpoint)
                     .method(method)
                     .success(success)
                     .failureReason(failureReason)
-                    .build();
-            
-            userActivityLogRepository.save(activityLog);
-            log.info("Review action logged for user {}: {} product {} rating={} (success: {})", 
+                    .build());
+            log.debug("Review action logged for user {}: {} product {} rating={} (success: {})", 
                     user.getUsername(), action, productId, rating, success);
             
         } catch (Exception e) {
@@ -181,94 +185,84 @@ public class UserActivityLogService {
         }
     }
     
-    @Async("activityLogExecutor")
     public void logAccountAction(User user, String action, String details, String ipAddress, String endpoint, String method, boolean success, String failureReason) {
         try {
             Map<String, Object> detailsMap = new HashMap<>();
             detailsMap.put("details", details);
             detailsMap.put("timestamp", LocalDateTime.now());
             
-            UserActivityLog activityLog = UserActivityLog.builder()
+            append(ActivityEvent.builder()
                     .userId(user.getId())
                     .action(action)
                     .category(UserActivityLog.Category.ACCOUNT)
                     .entityType("Account")
-                    .details(toJson(detailsMap))
+                    .details(detailsMap)
                     .ipAddress(ipAddress)
                     .endpoint(endpoint)
                     .method(method)
                     .success(success)
                     .failureReason(failureReason)
-                    .build();
-            
-            userActivityLogRepository.save(activityLog);
-            log.info("Account action logged for user {}: {} (success: {})", user.getUsername(), action, success);
+                    .build());
+            log.debug("Account action logged for user {}: {} (success: {})", user.getUsername(), action, success);
             
         } catch (Exception e) {
             log.error("Error logging account action for user {}: {}", user.getUsername(), e.getMessage());
         }
     }
     
-    @Async("activityLogExecutor")
     public void logLogin(User user, String ipAddress, String userAgent, String endpoint, String method, boolean success, String failureReason) {
         try {
             Map<String, Object> details = new HashMap<>();
             details.put("timestamp", LocalDateTime.now());
             details.put("success", true);
             
-            UserActivityLog activityLog = UserActivityLog.builder()
+            append(ActivityEvent.builder()
                     .userId(user.getId())
                     .action("LOGIN")
                     .category(UserActivityLog.Category.ACCOUNT)
                     .entityType("Account")
                     .entityId(user.getId())
-                    .details(toJson(details))
+                    .details(details)
                     .ipAddress(ipAddress)
                     .userAgent(userAgent)
                     .endpoint(endpoint)
                     .method(method)
                     .success(success)
                     .failureReason(failureReason)
-                    .build();
-            
-            userActivityLogRepository.save(activityLog);
-            log.info("Login logged for user {}: {} (success: {})", user.getUsername(), endpoint, success);
+                    .build());
+            log.debug("Login logged for user {}: {} (success: {})", user.getUsername(), endpoint, success);
             
         } catch (Exception e) {
             log.error("Error logging login for user {}: {}", user.getUsername(), e.getMessage());
         }
     }
     
-    @Async("activityLogExecutor")
     public void logLogout(User user, String ipAddress, String userAgent, String endpoint, String method, boolean success, String failureReason) {
         try {
             Map<String, Object> details = new HashMap<>();
             details.put("timestamp", LocalDateTime.now());
             
-            UserActivityLog activityLog = UserActivityLog.builder()
+            append(ActivityEvent.builder()
                     .userId(user.getId())
                     .action("LOGOUT")
                     .category(UserActivityLog.Category.ACCOUNT)
                     .entityType("Account")
                     .entityId(user.getId())
-                    .details(toJson(details))
+                    .details(details)
                     .ipAddress(ipAddress)
                     .userAgent(userAgent)
                     .endpoint(endpoint)
                     .method(method)
                     .success(success)
                     .failureReason(failureReason)
-                    .build();
-            
-            userActivityLogRepository.save(activityLog);
-            log.info("Logout logged for user {}: {} (success: {})", user.getUsername(), endpoint, success);
+                    .build());
+            log.debug("Logout logged for user {}: {} (success: {})", user.getUsername(), endpoint, success);
             
         } catch (Exception e) {
             log.error("Error logging logout for user {}: {}", user.getUsername(), e.getMessage());
         }
     }
     
-    @Async("activityLogExecutor")
     public void logRegister(User user, String ipAddress, String userAgent, String endpoint, String method, boolean success, String failureReason) {
         try {
             Map<String, Object> details = new HashMap<>();
@@ -276,143 +270,129 @@ public class UserActivityLogService {
             details.put("email", user.getEmail());
             details.put("username", user.getUsername());
             
-            UserActivityLog activityLog = UserActivityLog.builder()
+            append(ActivityEvent.builder()
                     .userId(user.getId())
                     .action("REGISTER")
                     .category(UserActivityLog.Category.ACCOUNT)
                     .entityType("Account")
                     .entityId(user.getId())
-                    .details(toJson(details))
+                    .details(details)
                     .ipAddress(ipAddress)
                     .userAgent(userAgent)
                     .endpoint(endpoint)
                     .method(method)
                     .success(success)
                     .failureReason(failureReason)
-                    .build();
-            
-            userActivityLogRepository.save(activityLog);
-            log.info("Register logged for user {}: {} (success: {})", user.getUsername(), endpoint, success);
+                    .build());
+            log.debug("Register logged for user {}: {} (success: {})", user.getUsername(), endpoint, success);
             
         } catch (Exception e) {
             log.error("Error logging register for user {}: {}", user.getUsername(), e.getMessage());
         }
     }
     
-    @Async("activityLogExecutor")
     public void logOtpVerify(User user, String ipAddress, String userAgent, String endpoint, String method, boolean success, String failureReason) {
         try {
             Map<String, Object> details = new HashMap<>();
             details.put("timestamp", LocalDateTime.now());
             details.put("success", true);
             
-            UserActivityLog activityLog = UserActivityLog.builder()
+            append(ActivityEvent.builder()
                     .userId(user.getId())
                     .action("OTP_VERIFY")
                     .category(UserActivityLog.Category.ACCOUNT)
                     .entityType("Account")
                     .entityId(user.getId())
-                    .details(toJson(details))
+                    .details(details)
                     .ipAddress(ipAddress)
                     .userAgent(userAgent)
                     .endpoint(endpoint)
                     .method(method)
                     .success(success)
                     .failureReason(failureReason)
-                    .build();
-            
-            userActivityLogRepository.save(activityLog);
-            log.info("OTP verify logged for user {}: {} (success: {})", user.getUsername(), endpoint, success);
+                    .build());
+            log.debug("OTP verify logged for user {}: {} (success: {})", user.getUsername(), endpoint, success);
             
         } catch (Exception e) {
             log.error("Error logging OTP verify for user {}: {}", user.getUsername(), e.getMessage());
         }
     }
     
-    @Async("activityLogExecutor")
     public void logProfileUpdate(User user, String details, String ipAddress, String userAgent, String endpoint, String method, boolean success, String failureReason) {
         try {
             Map<String, Object> detailsMap = new HashMap<>();
             detailsMap.put("details", details);
             detailsMap.put("timestamp", LocalDateTime.now());
             
-            UserActivityLog activityLog = UserActivityLog.builder()
+            append(ActivityEvent.builder()
                     .userId(user.getId())
                     .action("PROFILE_UPDATE")
                     .category(UserActivityLog.Category.ACCOUNT)
                     .entityType("Account")
                     .entityId(user.getId())
-                    .details(toJson(detailsMap))
+                    .details(detailsMap)
                     .ipAddress(ipAddress)
                     .userAgent(userAgent)
                     .endpoint(endpoint)
                     .method(method)
                     .success(success)
                     .failureReason(failureReason)
-                    .build();
-            
-            userActivityLogRepository.save(activityLog);
-            log.info("Profile update logged for user {}: {} (success: {})", user.getUsername(), endpoint, success);
+                    .build());
+            log.debug("Profile update logged for user {}: {} (success: {})", user.getUsername(), endpoint, success);
             
         } catch (Exception e) {
             log.error("Error logging profile update for user {}: {}", user.getUsername(), e.getMessage());
         }
     }
     
-    @Async("activityLogExecutor")
     public void logPasswordChange(User user, String ipAddress, String userAgent, String endpoint, String method, boolean success, String failureReason) {
         try {
             Map<String, Object> details = new HashMap<>();
             details.put("timestamp", LocalDateTime.now());
             details.put("success", true);
             
-            UserActivityLog activityLog = UserActivityLog.builder()
+            append(ActivityEvent.builder()
                     .userId(user.getId())
                     .action("PASSWORD_CHANGE")
                     .category(UserActivityLog.Category.ACCOUNT)
                     .entityType("Account")
                     .entityId(user.getId())
-                    .details(toJson(details))
+                    .details(details)
                     .ipAddress(ipAddress)
                     .userAgent(userAgent)
                     .endpoint(endpoint)
                     .method(method)
                     .success(success)
                     .failureReason(failureReason)
-                    .build();
-            
-            userActivityLogRepository.save(activityLog);
-            log.info("Password change logged for user {}: {} (success: {})", user.getUsername(), endpoint, success);
+                    .build());
+            log.debug("Password change logged for user {}: {} (success: {})", user.getUsername(), endpoint, success);
             
         } catch (Exception e) {
             log.error("Error logging password change for user {}: {}", user.getUsername(), e.getMessage());
         }
     }
     
-    @Async("activityLogExecutor")
     public void logUserActivity(User user, String action, UserActivityLog.Category category, String entityType, Long entityId, String details, String endpoint, String method, String ipAddress, String userAgent, boolean success, String failureReason) {
         try {
             Map<String, Object> detailsMap = new HashMap<>();
             detailsMap.put("details", details);
             detailsMap.put("timestamp", LocalDateTime.now());
             
-            UserActivityLog activityLog = UserActivityLog.builder()
+            append(ActivityEvent.builder()
                     .userId(user.getId())
                     .action(action)
                     .category(category)
                     .entityType(entityType)
                     .entityId(entityId)
-                    .details(toJson(detailsMap))
+                    .details(detailsMap)
                     .ipAddress(ipAddress)
                     .userAgent(userAgent)
                     .endpoint(endpoint)
                     .method(method)
                     .success(success)
                     .failureReason(failureReason)
-                    .build();
-            
-            userActivityLogRepository.save(activityLog);
-            log.info("User activity logged for user {}: {} - {} (success: {})", user.getUsername(), action, endpoint, success);
+                    .build());
+            log.debug("User activity logged for user {}: {} - {} (success: {})", user.getUsername(), action, endpoint, success);
             
         } catch (Exception e) {
             log.error("Error logging user activity for user {}: {}", user.getUsername(), e.getMessage());
@@ -433,6 +413,28 @@ public class UserActivityLogService {
         }
     }
     
+    private void append(ActivityEvent event) {
+        event.setCreatedAt(LocalDateTime.now());
+        sink.publish(event);
+    }
+    
+    /**
+     * Tham số insert - chuỗi được cắt theo độ dài cột để 1 dòng quá dài không làm hỏng cả batch
+     */
+    private Object[] bind(ActivityEvent event) {
+        return new Object[]{
+                event.getUserId(), truncate(event.getAction(), 100), event.getCategory().name(),
+                truncate(event.getEntityType(), 50), event.getEntityId(), toJson(event.getDetails()),
+                truncate(event.getIpAddress(), 45), truncate(event.getUserAgent(), 500), truncate(event.getEndpoint(), 255),
+                truncate(event.getMethod(), 10), event.isSuccess(), truncate(event.getFailureReason(), 500),
+                Timestamp.valueOf(event.getCreatedAt())
+        };
+    }
+    
+    private String truncate(String value, int maxLength) {
+        return value != null && value.length() > maxLength ? value.substring(0, maxLength) : value;
+    }
+    
     private String toJson(Object object) {
         try {
             return objectMapper.writeValueAsString(object);
@@ -441,4 +443,27 @@ public class UserActivityLogService {
             return "{}";
         }
     }
+    
+    /**
+     * 1 dòng user_activity_log trong buffer (cũng là định dạng 1 dòng của file spill)
+     */
+    @lombok.Data
+    @lombok.Builder
+    @lombok.NoArgsConstructor
+    @lombok.AllArgsConstructor
+    public static class ActivityEvent {
+        private Long userId;
+        private String action;
+        private UserActivityLog.Category category;
+        private String entityType;
+        private Long entityId;
+        private Map<String, Object> details;
+        private String ipAddress;
+        private String userAgent;
+        private String endpoint;
+        private String method;
+        private boolean success;
+        private String failureReason;
+        private LocalDateTime createdAt;
+    }
 }
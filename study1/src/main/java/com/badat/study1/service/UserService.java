@@ -42,17 +42,19 @@ public class UserService {
     private final OtpService otpService;
     private final RedisTemplate<String, Object> redisTemplate;
     private final ObjectMapper objectMapper;
+    private final ImageStorageService imageStorageService;
     
     // Temporary storage for OTP and registration data (legacy - not used anymore)
     private final Map<String, String> otpStorage = new HashMap<>();
 
-    public UserService(UserRepository userRepository, WalletRepository walletRepository, EmailService emailService, OtpService otpService, RedisTemplate<String, Object> redisTemplate, ObjectMapper objectMapper) {
+    public UserService(UserRepository userRepository, WalletRepository walletRepository, EmailService emailService, OtpService otpService, RedisTemplate<String, Object> redisTemplate, ObjectMapper objectMapper, ImageStorageService imageStorageService) {
         this.userRepository = userRepository;
         this.walletRepository = walletRepository;
         this.emailService = emailService;
         this.otpService = otpService;
         this.redisTemplate = redisTemplate;
         this.objectMapper = objectMapper;
+        this.imageStorageService = imageStorageService;
         this.passwordEncoder = new BCryptPasswordEncoder();
     }
 
@@ -562,41 +564,22 @@ public class UserService {
         
         User user = userOpt.get();
         
-        // Convert file to byte array
-        byte[] avatarBytes = file.getBytes();
+        // Store image (and its thumbnail) in the content-addressed image store
+        ImageStorageService.StoredImage avatar = imageStorageService.store(file.getBytes());
         
-        // Update user with byte data
-        user.setAvatarData(avatarBytes);
+        // Update user with image hashes only
+        user.setAvatarHash(avatar.getHash());
+        user.setAvatarThumbHash(avatar.getThumbnailHash());
         userRepository.save(user);
         
-        log.info("Avatar uploaded for user ID: {} as byte array ({} bytes)", userId, avatarBytes.length);
+        log.info("Avatar uploaded for user ID: {} as image {} ({} bytes)", userId, avatar.getHash(), avatar.getSize());
     }
     
-    public byte[] getAvatar(Long userId) {
-        try {
-            log.info("Getting avatar for user ID: {}", userId);
-            Optional<User> userOpt = userRepository.findById(userId);
-            if (userOpt.isEmpty()) {
-                log.warn("User not found for ID: {}", userId);
-                return getDefaultAvatar();
-            }
-
-            User user = userOpt.get();
-            log.info("User found: {}, Avatar data length: {}", user.getUsername(), 
-                    user.getAvatarData() != null ? user.getAvatarData().length : 0);
-
-            // Use avatarData (byte array) or default avatar
-            if (user.getAvatarData() != null && user.getAvatarData().length > 0) {
-                log.info("Returning avatar data for user {}: {} bytes", user.getUsername(), user.getAvatarData().length);
-                return user.getAvatarData();
-            }
-
-            log.info("No avatar data found for user {}, returning default", user.getUsername());
-            return getDefaultAvatar();
-        } catch (Exception e) {
-            log.error("Error getting avatar for user {}: {}", userId, e.getMessage());
-            return getDefaultAvatar();
-        }
+    /**
+     * Hash thumbnail avatar của user, null nếu user chưa có avatar
+     */
+    public String getAvatarHash(Long userId) {
+        return userRepository.findAvatarThumbHashById(userId).orElse(null);
     }
     
     @Transactional
@@ -608,11 +591,12 @@ public class UserService {
         
         User user = userOpt.get();
         
-        // Clear database references (byte data only)
-        user.setAvatarData(null);
+        // Clear image references (the stored file may be shared by other users with the same image)
+        user.setAvatarHash(null);
+        user.setAvatarThumbHash(null);
         userRepository.save(user);
         
-        log.info("Avatar deleted for user ID: {} (byte data cleared)", userId);
+        log.info("Avatar deleted for user ID: {} (image reference cleared)", userId);
     }
     
     private UserCreateRequest convertToUserCreateRequest(Object rawData) {
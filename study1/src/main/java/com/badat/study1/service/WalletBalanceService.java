@@ -0,0 +1,59 @@
+package com.badat.study1.service;
+
+import com.badat.study1.repository.WalletRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.math.BigDecimal;
+
+/**
+ * API thay đổi số dư ví bằng câu UPDATE có điều kiện
+ * Mỗi lần trừ/cộng tiền là 1 round trip, DB tự đảm bảo không âm số dư nên không cần Redis lock
+ * hay read-modify-write trong Java. Các câu UPDATE tăng version để tương thích với @Version của Wallet
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class WalletBalanceService {
+
+    private final WalletRepository walletRepository;
+
+    /**
+     * Trừ tiền nếu đủ số dư - trả về false nếu không đủ tiền hoặc không có ví
+     */
+    @Transactional
+    public boolean tryDebit(Long userId, BigDecimal amount) {
+        if (amount == null || amount.signum() < 0) {
+            throw new RuntimeException("Invalid debit amount: " + amount);
+        }
+
+        boolean debited = walletRepository.debitIfSufficient(userId, amount) == 1;
+        if (!debited) {
+            log.info("Debit of {} VND rejected for user {}: insufficient balance or no wallet", amount, userId);
+        }
+        return debited;
+    }
+
+    /**
+     * Cộng tiền vào ví
+     */
+    @Transactional
+    public void credit(Long userId, BigDecimal amount) {
+        if (amount == null || amount.signum() < 0) {
+            throw new RuntimeException("Invalid credit amount: " + amount);
+        }
+
+        if (walletRepository.credit(userId, amount) == 0) {
+            throw new RuntimeException("Wallet not found for user: " + userId);
+        }
+    }
+
+    /**
+     * Số dư hiện tại đọc trực tiếp từ DB (dùng cho thông báo lỗi / log)
+     */
+    public BigDecimal getBalance(Long userId) {
+        return walletRepository.findBalanceByUserId(userId).orElse(BigDecimal.ZERO);
+    }
+}
@@ -50,6 +50,21 @@ public class WalletHistoryService {
         }
     }
 
+	/**
+	 * Ghi lịch sử cho ví của user bằng 1 câu INSERT ... SELECT (không đọc wallet để lấy wallet id)
+	 */
+	@Transactional(propagation = Propagation.REQUIRES_NEW)
+	public void saveHistoryForUser(Long userId,
+	                               BigDecimal amount,
+	                               String referenceId,
+	                               WalletHistory.Type type,
+	                               WalletHistory.Status status,
+	                               String description) {
+		if (walletHistoryRepository.insertForUser(userId, type.name(), amount, referenceId, description, status.name()) == 0) {
+			throw new RuntimeException("Wallet not found for user: " + userId);
+		}
+	}
+
 	@Transactional(propagation = Propagation.REQUIRES_NEW)
 	public void saveHistory(Long walletId,
 	                       BigDecimal amount,
@@ -0,0 +1,216 @@
+package com.badat.study1.service;
+
+import com.badat.study1.event.WalletHoldBatchEvent;
+import com.badat.study1.model.WalletHold;
+import com.badat.study1.repository.WalletHoldRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.integration.redis.util.RedisLockRegistry;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Lịch hết hạn của wallet hold, lưu trong Redis ZSET (member = holdId, score = expiresAt epoch ms)
+ * Mỗi tick chỉ lấy các hold đã đến hạn từ đầu ZSET thay vì quét bảng wallet_hold,
+ * nên hold được settle trong khoảng 1 tick sau expiresAt.
+ * Lấy hold bằng Lua script đẩy score lên now + lease một cách nguyên tử: mỗi hold chỉ được 1 node xử lý,
+ * nếu node đó chết trước khi xong thì hold đến hạn lại sau lease và được node khác xử lý
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class WalletHoldExpiryScheduler {
+
+    private static final String EXPIRY_KEY = "wallet:hold:expiry";
+    private static final String REBUILD_LOCK_KEY = "wallet:hold:expiry:rebuild";
+
+    // ARGV[1] = now, ARGV[2] = số hold tối đa, ARGV[3] = score mới (now + lease)
+    private static final RedisScript<List> CLAIM_DUE = new DefaultRedisScript<>(
+            "local due = redis.call('ZRANGEBYSCORE', KEYS[1], '-inf', ARGV[1], 'LIMIT', 0, ARGV[2]) " +
+            "for _, member in ipairs(due) do redis.call('ZADD', KEYS[1], ARGV[3], member) end " +
+            "return due", List.class);
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final WalletHoldRepository walletHoldRepository;
+    private final RedisLockRegistry redisLockRegistry;
+    private final ApplicationEventPublisher eventPublisher;
+
+    @Value("${wallet.hold.expiry.batch-size:100}")
+    private int batchSize;
+
+    @Value("${wallet.hold.expiry.lease-ms:60000}")
+    private long leaseMs;
+
+    // Metrics
+    private final LongAdder scheduled = new LongAdder();
+    private final LongAdder fired = new LongAdder();
+
+    /**
+     * Đăng ký hold vào lịch hết hạn - áp dụng sau khi transaction tạo hold commit
+     */
+    public void schedule(Long holdId, Instant expiresAt) {
+        afterCommit(() -> {
+            stringRedisTemplate.opsForZSet().add(EXPIRY_KEY, holdId.toString(), expiresAt.toEpochMilli());
+            scheduled.increment();
+        });
+    }
+
+    /**
+     * Gỡ hold khỏi lịch khi hold đã được complete/release
+     */
+    public void cancel(Long holdId) {
+        afterCommit(() -> stringRedisTemplate.opsForZSet().remove(EXPIRY_KEY, holdId.toString()));
+    }
+
+    /**
+     * Gỡ nhiều hold khỏi lịch trong 1 lần ZREM
+     */
+    public void cancelAll(Collection<Long> holdIds) {
+        if (holdIds.isEmpty()) {
+            return;
+        }
+        Object[] members = holdIds.stream().map(Object::toString).toArray();
+        afterCommit(() -> stringRedisTemplate.opsForZSet().remove(EXPIRY_KEY, members));
+    }
+
+    /**
+     * Tick: lấy các hold đã đến hạn theo batch và publish HOLDS_EXPIRED để settlement engine settle cả batch
+     */
+    @Scheduled(fixedDelayString = "${wallet.hold.expiry.tick-ms:250}")
+    public void fireDueHolds() {
+        try {
+            long now = System.currentTimeMillis();
+            List<?> due;
+            do {
+                due = stringRedisTemplate.execute(CLAIM_DUE, List.of(EXPIRY_KEY),
+                        String.valueOf(now), String.valueOf(batchSize), String.valueOf(now + leaseMs));
+                if (due == null) {
+                    return;
+                }
+
+                if (!due.isEmpty()) {
+                    List<Long> holdIds = due.stream().map(member -> Long.valueOf(member.toString())).toList();
+                    fired.add(holdIds.size());
+                    eventPublisher.publishEvent(WalletHoldBatchEvent.holdsExpired(this, holdIds));
+                }
+            } while (due.size() == batchSize);
+        } catch (Exception e) {
+            log.warn("Failed to poll wallet hold expiry schedule: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Dựng lại lịch từ các hold PENDING khi khởi động và resync định kỳ (phòng khi Redis mất dữ liệu)
+     * ZADD NX nên không ghi đè score của hold đang được node khác xử lý
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    @Scheduled(initialDelayString = "${wallet.hold.expiry.resync-interval-ms:600000}",
+            fixedDelayString = "${wallet.hold.expiry.resync-interval-ms:600000}")
+    public void rebuild() {
+        Lock lock = redisLockRegistry.obtain(REBUILD_LOCK_KEY);
+        if (!lock.tryLock()) {
+            log.info("Another instance is rebuilding wallet hold expiry schedule, skipping...");
+            return;
+        }
+
+        try {
+            List<Object[]> pendingHolds = walletHoldRepository.findIdAndExpiresAtByStatus(WalletHold.Status.PENDING);
+            int added = 0;
+            for (Object[] row : pendingHolds) {
+                Instant expiresAt = (Instant) row[1];
+                if (Boolean.TRUE.equals(stringRedisTemplate.opsForZSet()
+                        .addIfAbsent(EXPIRY_KEY, row[0].toString(), expiresAt.toEpochMilli()))) {
+                    added++;
+                }
+            }
+            log.info("Wallet hold expiry schedule synced: {} pending holds, {} added", pendingHolds.size(), added);
+        } catch (Exception e) {
+            log.error("Error rebuilding wallet hold expiry schedule: {}", e.getMessage(), e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Số hold đã quá hạn nhưng chưa được settle
+     */
+    public long getOverdueCount() {
+        try {
+            Long count = stringRedisTemplate.opsForZSet().count(EXPIRY_KEY, Double.NEGATIVE_INFINITY, System.currentTimeMillis());
+            return count != null ? count : 0;
+        } catch (Exception e) {
+            log.warn("Failed to count overdue wallet holds: {}", e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * Lấy snapshot metrics lịch hết hạn
+     */
+    public ExpiryStats getExpiryStats() {
+        Long size = null;
+        try {
+            size = stringRedisTemplate.opsForZSet().zCard(EXPIRY_KEY);
+        } catch (Exception e) {
+            log.warn("Failed to read wallet hold expiry schedule size: {}", e.getMessage());
+        }
+
+        return ExpiryStats.builder()
+                .scheduledHolds(size != null ? size : 0)
+                .overdueHolds(getOverdueCount())
+                .scheduled(scheduled.sum())
+                .fired(fired.sum())
+                .timestamp(Instant.now())
+                .build();
+    }
+
+    private void afterCommit(Runnable action) {
+        Runnable safeAction = () -> {
+            try {
+                action.run();
+            } catch (Exception e) {
+                // Hold sẽ được đưa lại vào lịch ở lần resync kế tiếp
+                log.warn("Failed to update wallet hold expiry schedule: {}", e.getMessage());
+            }
+        };
+
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    safeAction.run();
+                }
+            });
+        } else {
+            safeAction.run();
+        }
+    }
+
+    /**
+     * DTO cho expiry stats
+     */
+    @lombok.Data
+    @lombok.Builder
+    public static class ExpiryStats {
+        private long scheduledHolds;
+        private long overdueHolds;
+        private long scheduled;
+        private long fired;
+        private Instant timestamp;
+    }
+}
@@ -11,8 +11,6 @@ import com.badat.study1.repository.OrderRepository;
 import com.badat.study1.repository.OrderItemRepository;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.integration.redis.util.RedisLockRegistry;
-import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -23,8 +21,6 @@ import java.util.List;
 import java.util.Optional;
 import java.util.Map;
 import java.util.HashMap;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.TimeUnit;
 
 @Service
 @RequiredArgsConstructor
@@ -37,52 +33,30 @@ public class WalletHoldService {
     private final OrderRepository orderRepository;
     private final OrderItemRepository orderItemRepository;
     private final OrderService orderService;
-    private final RedisLockRegistry redisLockRegistry;
+    private final WalletBalanceService walletBalanceService;
+    private final WalletHoldExpiryScheduler walletHoldExpiryScheduler;
     
     /**
      * Hold money trong ví user với thời gian 1 phút (để test)
-     * Sử dụng Redis lock để tránh race condition khi cùng 1 user
+     * Trừ tiền bằng 1 câu UPDATE có điều kiện balance >= amount nên không cần lock theo user
+     *
+     * @return hold vừa tạo - hoàn tiền theo id của hold (releaseHold)
      */
     @Transactional
-    public void holdMoney(Long userId, BigDecimal amount, String orderId) {
+    public WalletHold holdMoney(Long userId, BigDecimal amount, String orderId) {
         log.info("Holding money for user {}: {} VND, order: {}", userId, amount, orderId);
         
-        // User-level lock để tránh race condition khi cùng 1 user
-        String userLockKey = "user:wallet:lock:" + userId;
-        Lock userLock = redisLockRegistry.obtain(userLockKey);
-        
-        try {
-            if (userLock.tryLock(10, TimeUnit.SECONDS)) {
-                log.info("Acquired user wallet lock for user: {}", userId);
-                
-                // 1. Kiểm tra số dư (double-check trong lock)
-                Wallet wallet = walletRepository.findByUserId(userId)
-                    .orElseThrow(() -> new RuntimeException("Wallet not found for user: " + userId));
-                    
-                log.info("Current wallet balance for user {}: {} VND", userId, wallet.getBalance());
-                
-                if (wallet.getBalance().compareTo(amount) < 0) {
-                    throw new RuntimeException("Insufficient balance. Required: " + amount + ", Available: " + wallet.getBalance());
-                }
-                
-                // 2. Trừ tiền khỏi wallet
-                BigDecimal newBalance = wallet.getBalance().subtract(amount);
-                wallet.setBalance(newBalance);
-                walletRepository.save(wallet);
-                
-                log.info("Wallet balance updated for user {}: {} -> {} VND", userId, wallet.getBalance(), newBalance);
-            } else {
-                throw new RuntimeException("Failed to acquire wallet lock for user: " + userId + " - another operation is in progress");
-            }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            throw new RuntimeException("Interrupted while waiting for wallet lock for user: " + userId, e);
-        } finally {
-            userLock.unlock();
-            log.info("Released user wallet lock for user: {}", userId);
+        // 1. Trừ tiền khỏi wallet - DB kiểm tra ví tồn tại, số dư và trừ trong cùng 1 câu lệnh
+        // Chỉ khi trừ thất bại mới đọc ví để báo lỗi đúng (không có ví / không đủ tiền)
+        if (!walletBalanceService.tryDebit(userId, amount)) {
+            BigDecimal available = walletRepository.findBalanceByUserId(userId)
+                .orElseThrow(() -> new RuntimeException("Wallet not found for user: " + userId));
+            throw new RuntimeException("Insufficient balance. Required: " + amount + ", Available: " + available);
         }
         
-        // 3. Tạo hold record với thời gian 1 phút
+        log.info("Wallet balance debited for user {}: -{} VND", userId, amount);
+        
+        // 2. Tạo hold record với thời gian 1 phút
         WalletHold hold = WalletHold.builder()
             .userId(userId)
             .amount(amount)
@@ -93,15 +67,15 @@ public class WalletHoldService {
             
         walletHoldRepository.save(hold);
         
-        // 4. Tạo wallet history
+        // Đăng ký vào lịch hết hạn - hold sẽ được settle ngay khi đến expiresAt
+        walletHoldExpiryScheduler.schedule(hold.getId(), hold.getExpiresAt());
+        
+        // 3. Tạo wallet history - wallet id lấy theo user ngay trong câu INSERT
         try {
-            Wallet wallet = walletRepository.findByUserId(userId)
-                .orElseThrow(() -> new RuntimeException("Wallet not found for user: " + userId));
-            walletHistoryService.saveHistory(
-                wallet.getId(),
+            walletHistoryService.saveHistoryForUser(
+                userId,
                 amount.negate(), // Số âm vì đây là hold
                 orderId,
-                null,
                 WalletHistory.Type.PURCHASE,
                 WalletHistory.Status.PENDING,
                 "Money held for payment - Order: " + orderId
@@ -111,11 +85,12 @@ public class WalletHoldService {
         }
         
         log.info("Money hold created successfully for user {}: {} VND", userId, amount);
+        return hold;
     }
     
     /**
      * Release hold money về ví user
-     * Sử dụng Redis lock để tránh race condition
+     * Chuyển hold PENDING -> CANCELLED bằng update có điều kiện nên mỗi hold chỉ được hoàn tiền 1 lần
      */
     @Transactional
     public void releaseHold(Long holdId) {
@@ -129,37 +104,27 @@ public class WalletHoldService {
             return;
         }
         
-        // User-level lock để tránh race condition
-        String userLockKey = "user:wallet:lock:" + hold.getUserId();
-        Lock userLock = redisLockRegistry.obtain(userLockKey);
+        if (!refundHold(hold)) {
+            log.warn("Hold {} was already processed by another operation", holdId);
+            return;
+        }
         
-        try {
-            if (userLock.tryLock(10, TimeUnit.SECONDS)) {
-                log.info("Acquired user wallet lock for release hold: {}", holdId);
-                
-                // 1. Cập nhật hold status
-                hold.setStatus(WalletHold.Status.CANCELLED);
-                walletHoldRepository.save(hold);
-                
-                // 2. Hoàn tiền về ví
-                Wallet wallet = walletRepository.findByUserId(hold.getUserId())
-                    .orElseThrow(() -> new RuntimeException("Wallet not found for user: " + hold.getUserId()));
-                    
-                BigDecimal newBalance = wallet.getBalance().add(hold.getAmount());
-                wallet.setBalance(newBalance);
-                walletRepository.save(wallet);
-                
-                log.info("Wallet balance restored for user {}: {} -> {} VND", hold.getUserId(), wallet.getBalance(), newBalance);
-            } else {
-                throw new RuntimeException("Failed to acquire wallet lock for release hold: " + holdId);
-            }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            throw new RuntimeException("Interrupted while waiting for wallet lock for release hold: " + holdId, e);
-        } finally {
-            userLock.unlock();
-            log.info("Released user wallet lock for release hold: {}", holdId);
+        log.info("Hold released successfully for user {}: {} VND", hold.getUserId(), hold.getAmount());
+    }
+    
+    /**
+     * Hủy hold và hoàn tiền về ví - trả về false nếu hold không còn PENDING
+     */
+    private boolean refundHold(WalletHold hold) {
+        // 1. Cập nhật hold status (chỉ thành công nếu hold vẫn PENDING)
+        if (walletHoldRepository.transitionStatus(hold.getId(), WalletHold.Status.PENDING, WalletHold.Status.CANCELLED) == 0) {
+            return false;
         }
+        hold.setStatus(WalletHold.Status.CANCELLED);
+        walletHoldExpiryScheduler.cancel(hold.getId());
+        
+        // 2. Hoàn tiền về ví
+        walletBalanceService.credit(hold.getUserId(), hold.getAmount());
         
         // 3. Update wallet history - update PURCHASE hiện tại thành SUCCESS và tạo REFUND
         try {
@@ -188,88 +153,7 @@ public class WalletHoldService {
         } catch (Exception e) {
             log.warn("Failed to update wallet history for release: {}", e.getMessage());
         }
-        
-        log.info("Hold released successfully for user {}: {} VND", hold.getUserId(), hold.getAmount());
-    }
-    
-    /**
-     * Release hold money về ví user bằng userId và orderId
-     * Sử dụng Redis lock để tránh race condition
-     */
-    @Transactional
-    public void releaseHold(Long userId, String orderId) {
-        log.info("Releasing hold for user {} with orderId: {}", userId, orderId);
-        
-        // User-level lock để tránh race condition
-        String userLockKey = "user:wallet:lock:" + userId;
-        Lock userLock = redisLockRegistry.obtain(userLockKey);
-        
-        try {
-            if (userLock.tryLock(10, TimeUnit.SECONDS)) {
-                log.info("Acquired user wallet lock for release hold: user={}, orderId={}", userId, orderId);
-                
-                // Tìm hold theo userId và orderId
-                List<WalletHold> userHolds = walletHoldRepository.findByUserIdAndOrderIdAndStatus(userId, orderId, WalletHold.Status.PENDING);
-                
-                if (userHolds.isEmpty()) {
-                    log.warn("No pending holds found for user {} with orderId: {}", userId, orderId);
-                    return;
-                }
-                
-                // Release tất cả holds cho user và orderId này
-                for (WalletHold hold : userHolds) {
-                    if (hold.getStatus() == WalletHold.Status.PENDING) {
-                        // 1. Cập nhật hold status
-                        hold.setStatus(WalletHold.Status.CANCELLED);
-                        walletHoldRepository.save(hold);
-                        
-                        // 2. Hoàn tiền về ví
-                        Wallet wallet = walletRepository.findByUserId(userId)
-                            .orElseThrow(() -> new RuntimeException("Wallet not found for user: " + userId));
-                            
-                        BigDecimal newBalance = wallet.getBalance().add(hold.getAmount());
-                        wallet.setBalance(newBalance);
-                        walletRepository.save(wallet);
-                        
-                        log.info("Hold {} released for user {}: {} VND", hold.getId(), userId, hold.getAmount());
-                        
-                        // 3. Update wallet history - update PURCHASE hiện tại thành REFUND
-                        try {
-                            walletHistoryService.updateWalletHistoryStatus(
-                                wallet.getId(),
-                                hold.getOrderId(),
-                                WalletHistory.Type.PURCHASE,
-                                WalletHistory.Status.SUCCESS, // Update PURCHASE thành SUCCESS trước
-                                "Hold released - Order: " + hold.getOrderId()
-                            );
-                            
-                            // Sau đó tạo REFUND record mới
-                            walletHistoryService.saveHistory(
-                                wallet.getId(),
-                                hold.getAmount(), // Số dương vì đây là hoàn tiền
-                                hold.getOrderId(),
-                                null,
-                                WalletHistory.Type.REFUND,
-                                WalletHistory.Status.SUCCESS,
-                                "Hold released - Order: " + hold.getOrderId()
-                            );
-                        } catch (Exception e) {
-                            log.warn("Failed to update wallet history for release: {}", e.getMessage());
-                        }
-                    }
-                }
-                
-                log.info("All holds released successfully for user {} with orderId: {}", userId, orderId);
-            } else {
-                throw new RuntimeException("Failed to acquire wallet lock for user: " + userId + " - another operation is in progress");
-            }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            throw new RuntimeException("Interrupted while waiting for wallet lock for user: " + userId, e);
-        } finally {
-            userLock.unlock();
-            log.info("Released user wallet lock for user: {}", userId);
-        }
+        return true;
     }
     
     /**
@@ -287,9 +171,19 @@ public class WalletHoldService {
             return;
         }
         
-        // 1. Cập nhật hold status
-        hold.setStatus(WalletHold.Status.COMPLETED);
-        walletHoldRepository.save(hold);
+        // 1. Chuyển hold PENDING -> COMPLETED có điều kiện và phân phối tiền cho seller và admin
+        Optional<Order> orderOpt = orderRepository.findByOrderCode(hold.getOrderId());
+        List<Order> orders = orderOpt.map(List::of).orElse(List.of());
+        if (orders.isEmpty()) {
+            log.warn("No orders found for hold {}, cannot distribute payment", hold.getId());
+            if (!markCompleted(hold)) {
+                log.warn("Hold {} was already processed by another operation", holdId);
+                return;
+            }
+        } else if (!distributePaymentToSellerAndAdmin(hold, orders)) {
+            log.warn("Hold {} was already processed by another operation", holdId);
+            return;
+        }
         
         // 2. Tạo wallet history cho buyer (chi tiêu)
         try {
@@ -309,56 +203,36 @@ public class WalletHoldService {
             log.warn("Failed to create wallet history for buyer: {}", e.getMessage());
         }
         
-        // 3. Phân phối tiền cho seller và admin
-        try {
-            Optional<Order> orderOpt = orderRepository.findByOrderCode(hold.getOrderId());
-            List<Order> orders = orderOpt.map(List::of).orElse(List.of());
-            
-            if (!orders.isEmpty()) {
-                distributePaymentToSellerAndAdmin(hold, orders);
-            } else {
-                log.warn("No orders found for hold {}, cannot distribute payment", hold.getId());
-            }
-        } catch (Exception e) {
-            log.error("Failed to distribute payment for hold {}: {}", hold.getId(), e.getMessage());
-        }
-        
         log.info("Hold completed successfully for user {}: {} VND", hold.getUserId(), hold.getAmount());
     }
     
     /**
-     * Cron job chạy mỗi 5 giây để xử lý expired holds - chuyển tiền cho seller/admin
-     * Kết hợp với trigger system để tăng tốc xử lý
+     * Chuyển hold PENDING -> COMPLETED bằng update có điều kiện - trả về false nếu hold đã được xử lý ở nơi khác
      */
-    @Scheduled(fixedRate = 5000) // Mỗi 5 giây - tăng tần suất
-    public void processExpiredHolds() {
-        log.info("Processing expired holds...");
-        
-        List<WalletHold> expiredHolds = walletHoldRepository
-            .findByStatusAndExpiresAtBefore(WalletHold.Status.PENDING, Instant.now());
-            
-        log.info("Found {} expired holds", expiredHolds.size());
-        
-        // Xử lý batch expired holds để tăng tốc độ
-        processBatchExpiredHolds(expiredHolds);
+    private boolean markCompleted(WalletHold hold) {
+        if (walletHoldRepository.transitionStatus(hold.getId(), WalletHold.Status.PENDING, WalletHold.Status.COMPLETED) == 0) {
+            return false;
+        }
+        hold.setStatus(WalletHold.Status.COMPLETED);
+        walletHoldExpiryScheduler.cancel(hold.getId());
+        return true;
     }
     
     /**
      * Chuyển tiền cho seller và admin theo commission
      * FIXED: Xử lý theo từng order_item riêng biệt thay vì theo order
+     * Đọc order_item trước, rồi mới chuyển hold sang COMPLETED có điều kiện: mỗi hold chỉ được phân phối 1 lần,
+     * lỗi khi đọc thì hold vẫn PENDING để caller hoàn tiền
+     *
+     * @return false nếu hold đã được xử lý ở nơi khác (không chuyển tiền)
      */
-    @Transactional
-    private void distributePaymentToSellerAndAdmin(WalletHold hold, List<Order> orders) {
+    private boolean distributePaymentToSellerAndAdmin(WalletHold hold, List<Order> orders) {
         log.info("Distributing payment for hold {} to sellers and admin from {} orders", hold.getId(), orders.size());
         
         BigDecimal totalAmount = hold.getAmount();
         BigDecimal totalCommissionAmount = BigDecimal.ZERO;
         
-        // 1. Cập nhật hold status
-        hold.setStatus(WalletHold.Status.COMPLETED);
-        walletHoldRepository.save(hold);
-        
-        // 2. Xử lý từng order_item riêng biệt
+        // 1. Xử lý từng order_item riêng biệt
         Map<Long, BigDecimal> sellerAmounts = new HashMap<>();
         
         for (Order order : orders) {
@@ -382,6 +256,11 @@ public class WalletHoldService {
             }
         }
         
+        // 2. Cập nhật hold status - chỉ hold còn PENDING mới được chuyển tiền
+        if (!markCompleted(hold)) {
+            return false;
+        }
+        
         // 3. Chuyển tiền cho từng seller riêng biệt
         for (Map.Entry<Long, BigDecimal> entry : sellerAmounts.entrySet()) {
             Long sellerId = entry.getKey();
@@ -391,9 +270,7 @@ public class WalletHoldService {
                 Wallet sellerWallet = walletRepository.findByUserId(sellerId)
                     .orElseThrow(() -> new RuntimeException("Seller wallet not found for seller: " + sellerId));
                     
-                BigDecimal newSellerBalance = sellerWallet.getBalance().add(sellerAmount);
-                sellerWallet.setBalance(newSellerBalance);
-                walletRepository.save(sellerWallet);
+                walletBalanceService.credit(sellerId, sellerAmount);
                 
                 // Tạo wallet history cho seller
                 walletHistoryService.saveHistory(
@@ -419,9 +296,7 @@ public class WalletHoldService {
                 Wallet adminWallet = walletRepository.findByUserId(1L)
                     .orElseThrow(() -> new RuntimeException("Admin wallet not found"));
                     
-                BigDecimal newAdminBalance = adminWallet.getBalance().add(totalCommissionAmount);
-                adminWallet.setBalance(newAdminBalance);
-                walletRepository.save(adminWallet);
+                walletBalanceService.credit(1L, totalCommissionAmount);
                 
                 // Tạo wallet history cho admin
                 walletHistoryService.saveHistory(
@@ -466,6 +341,7 @@ public class WalletHoldService {
         }
         
         log.info("Payment distribution completed for hold {}: {} VND total", hold.getId(), totalAmount);
+        return true;
     }
     
     /**
@@ -485,60 +361,45 @@ public class WalletHoldService {
     }
     
     /**
-     * Xử lý batch expired holds với parallel processing
+     * Xử lý một hold đã hết hạn (được WalletHoldExpiryScheduler fire đúng hạn)
+     * Có order thì chuyển tiền cho seller/admin, không có order hoặc lỗi thì hoàn tiền về buyer
+     * Không cần lock theo user: chuyển tiền và hoàn tiền đều bắt đầu bằng update status có điều kiện PENDING,
+     * nên dù 2 luồng cùng xử lý 1 hold thì chỉ 1 luồng thực hiện
      */
-    private void processBatchExpiredHolds(List<WalletHold> expiredHolds) {
-        if (expiredHolds.isEmpty()) {
+    @Transactional
+    public void processExpiredHold(Long holdId) {
+        WalletHold hold = walletHoldRepository.findById(holdId).orElse(null);
+        if (hold == null || hold.getStatus() != WalletHold.Status.PENDING) {
+            log.info("Hold {} is no longer PENDING, skipping expiry processing", holdId);
+            walletHoldExpiryScheduler.cancel(holdId);
             return;
         }
         
-        // Chia thành các batch nhỏ để xử lý parallel
-        int batchSize = 10; // Xử lý 10 holds/lần
-        int totalBatches = (int) Math.ceil((double) expiredHolds.size() / batchSize);
-        
-        log.info("Processing {} expired holds in {} batches of size {}", 
-                expiredHolds.size(), totalBatches, batchSize);
-        
-        for (int i = 0; i < expiredHolds.size(); i += batchSize) {
-            int endIndex = Math.min(i + batchSize, expiredHolds.size());
-            List<WalletHold> batch = expiredHolds.subList(i, endIndex);
+        try {
+            log.info("Processing expired hold: {} for user: {}", hold.getId(), hold.getUserId());
             
-            // Xử lý batch này
-            processSingleBatchExpiredHolds(batch);
-        }
-    }
-    
-    /**
-     * Xử lý một batch expired holds
-     */
-    private void processSingleBatchExpiredHolds(List<WalletHold> batch) {
-        log.info("Processing batch of {} expired holds", batch.size());
-        
-        for (WalletHold hold : batch) {
-            try {
-                log.info("Processing expired hold: {} for user: {}", hold.getId(), hold.getUserId());
-                
-                // Tìm order tương ứng để lấy thông tin seller và commission
-                Optional<Order> orderOpt = orderRepository.findByOrderCode(hold.getOrderId());
-                List<Order> orders = orderOpt.map(List::of).orElse(List.of());
-                
-                if (!orders.isEmpty()) {
-                    // Chuyển tiền cho seller và admin theo commission
-                    distributePaymentToSellerAndAdmin(hold, orders);
-                } else {
-                    // Nếu không tìm thấy order, hoàn tiền về buyer
-                    log.warn("No orders found for hold {}, refunding to buyer", hold.getId());
-                    releaseHold(hold.getId());
-                }
-                
-            } catch (Exception e) {
-                log.error("Failed to process expired hold {}: {}", hold.getId(), e.getMessage());
-                // Fallback: hoàn tiền về buyer nếu có lỗi
-                try {
-                    releaseHold(hold.getId());
-                } catch (Exception fallbackError) {
-                    log.error("Failed to fallback release hold {}: {}", hold.getId(), fallbackError.getMessage());
+            // Tìm order tương ứng để lấy thông tin seller và commission
+            Optional<Order> orderOpt = orderRepository.findByOrderCode(hold.getOrderId());
+            List<Order> orders = orderOpt.map(List::of).orElse(List.of());
+            
+            if (!orders.isEmpty()) {
+                // Chuyển tiền cho seller và admin theo commission
+                if (!distributePaymentToSellerAndAdmin(hold, orders)) {
+                    log.info("Hold {} was already processed by another operation", hold.getId());
                 }
+            } else {
+                // Nếu không tìm thấy order, hoàn tiền về buyer
+                log.warn("No orders found for hold {}, refunding to buyer", hold.getId());
+                refundHold(hold);
+            }
+            
+        } catch (Exception e) {
+            log.error("Failed to process expired hold {}: {}", hold.getId(), e.getMessage());
+            // Fallback: hoàn tiền về buyer nếu có lỗi
+            try {
+                refundHold(hold);
+            } catch (Exception fallbackError) {
+                log.error("Failed to fallback release hold {}: {}", hold.getId(), fallbackError.getMessage());
             }
         }
     }
@@ -0,0 +1,227 @@
+package com.badat.study1.service;
+
+import com.badat.study1.model.Order;
+import com.badat.study1.model.OrderItem;
+import com.badat.study1.model.Wallet;
+import com.badat.study1.model.WalletHistory;
+import com.badat.study1.model.WalletHold;
+import com.badat.study1.repository.OrderItemRepository;
+import com.badat.study1.repository.OrderRepository;
+import com.badat.study1.repository.WalletHoldRepository;
+import com.badat.study1.repository.WalletRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Settlement engine cho các wallet hold đã hết hạn
+ * Settle cả batch trong 1 transaction: cộng dồn tiền theo từng ví trong bộ nhớ rồi mỗi ví chỉ 1 câu
+ * UPDATE wallet SET balance = balance + ?, history ghi bằng JDBC batch insert.
+ * Ví admin (hot row) chỉ được cộng commission 1 lần cho cả batch thay vì 1 lần mỗi item
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class WalletSettlementService {
+
+    // Admin nhận commission (giả sử admin có userId = 1)
+    private static final Long ADMIN_USER_ID = 1L;
+
+    private static final String CREDIT_WALLET_SQL =
+            "UPDATE wallet SET balance = balance + ?, version = version + 1, updated_at = ? WHERE id = ?";
+    private static final String INSERT_HISTORY_SQL =
+            "INSERT INTO wallethistory (wallet_id, type, amount, reference_id, description, is_delete, created_by, created_at, status) " +
+            "VALUES (?, ?, ?, ?, ?, false, 'system', ?, ?)";
+    private static final String COMPLETE_PURCHASE_HISTORY_SQL =
+            "UPDATE wallethistory SET status = 'SUCCESS', description = ?, updated_at = ? " +
+            "WHERE wallet_id = ? AND reference_id = ? AND type = 'PURCHASE' AND status = 'PENDING'";
+
+    private final WalletHoldRepository walletHoldRepository;
+    private final WalletRepository walletRepository;
+    private final OrderRepository orderRepository;
+    private final OrderItemRepository orderItemRepository;
+    private final WalletHoldExpiryScheduler walletHoldExpiryScheduler;
+    private final JdbcTemplate jdbcTemplate;
+
+    // Metrics settlement
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder settledHolds = new LongAdder();
+    private final LongAdder walletUpdates = new LongAdder();
+    private final LongAdder historyRows = new LongAdder();
+
+    /**
+     * Settle một batch hold đã hết hạn
+     * Hold không tìm thấy order được trả về trong kết quả để caller hoàn tiền về buyer như cũ
+     */
+    @Transactional
+    public SettlementResult settleExpiredHolds(List<Long> holdIds) {
+        if (holdIds.isEmpty()) {
+            return new SettlementResult(List.of(), List.of());
+        }
+
+        // 1. Khóa các hold còn PENDING - hold đã bị release/complete ở luồng khác thì bỏ qua
+        List<Long> pendingIds = walletHoldRepository.lockPendingIds(holdIds);
+        if (pendingIds.isEmpty()) {
+            return new SettlementResult(List.of(), List.of());
+        }
+        List<WalletHold> holds = walletHoldRepository.findAllById(pendingIds);
+
+        // 2. Load order và order item của cả batch
+        Map<String, Order> ordersByCode = orderRepository.findByOrderCodeIn(
+                holds.stream().map(WalletHold::getOrderId).collect(Collectors.toSet())).stream()
+                .collect(Collectors.toMap(Order::getOrderCode, Function.identity(), (a, b) -> a));
+
+        List<WalletHold> settled = new ArrayList<>();
+        List<WalletHold> unmatched = new ArrayList<>();
+        for (WalletHold hold : holds) {
+            (ordersByCode.containsKey(hold.getOrderId()) ? settled : unmatched).add(hold);
+        }
+        if (settled.isEmpty()) {
+            return new SettlementResult(List.of(), unmatched);
+        }
+
+        Set<Long> orderIds = settled.stream().map(hold -> ordersByCode.get(hold.getOrderId()).getId())
+                .collect(Collectors.toSet());
+        Map<Long, List<OrderItem>> itemsByOrder = orderItemRepository.findByOrderIdIn(orderIds).stream()
+                .collect(Collectors.groupingBy(OrderItem::getOrderId));
+
+        // 3. Tính tiền cho seller/admin của từng hold
+        Map<Long, Map<Long, BigDecimal>> sellerAmountsByHold = new LinkedHashMap<>();
+        Map<Long, BigDecimal> commissionByHold = new LinkedHashMap<>();
+        Set<Long> userIds = new HashSet<>();
+        userIds.add(ADMIN_USER_ID);
+        for (WalletHold hold : settled) {
+            Map<Long, BigDecimal> sellerAmounts = new LinkedHashMap<>();
+            BigDecimal commission = BigDecimal.ZERO;
+            for (OrderItem orderItem : itemsByOrder.getOrDefault(ordersByCode.get(hold.getOrderId()).getId(), List.of())) {
+                sellerAmounts.merge(orderItem.getSellerId(), orderItem.getSellerAmount(), BigDecimal::add);
+                commission = commission.add(orderItem.getCommissionAmount());
+            }
+            sellerAmountsByHold.put(hold.getId(), sellerAmounts);
+            commissionByHold.put(hold.getId(), commission);
+            userIds.addAll(sellerAmounts.keySet());
+            userIds.add(hold.getUserId());
+        }
+
+        Map<Long, Long> walletIdByUser = walletRepository.findByUserIdIn(userIds).stream()
+                .collect(Collectors.toMap(Wallet::getUserId, Wallet::getId));
+        Long adminWalletId = walletIdByUser.get(ADMIN_USER_ID);
+
+        // 4. Cộng dồn credit theo ví và gom history rows
+        Instant now = Instant.now();
+        Timestamp nowTs = Timestamp.from(now);
+        Map<Long, BigDecimal> creditsByWallet = new TreeMap<>();
+        List<Object[]> historyArgs = new ArrayList<>();
+        List<Object[]> purchaseArgs = new ArrayList<>();
+        BigDecimal batchCommission = BigDecimal.ZERO;
+
+        for (WalletHold hold : settled) {
+            for (Map.Entry<Long, BigDecimal> entry : sellerAmountsByHold.get(hold.getId()).entrySet()) {
+                Long sellerWalletId = walletIdByUser.get(entry.getKey());
+                if (sellerWalletId == null) {
+                    log.error("Seller wallet not found for seller {}, skipping payout of hold {}", entry.getKey(), hold.getId());
+                    continue;
+                }
+                creditsByWallet.merge(sellerWalletId, entry.getValue(), BigDecimal::add);
+                historyArgs.add(new Object[]{sellerWalletId, WalletHistory.Type.SALE_SUCCESS.name(), entry.getValue(),
+                        hold.getOrderId(), "Payment received from order: " + hold.getOrderId() + " (Seller: " + entry.getKey() + ")",
+                        nowTs, WalletHistory.Status.SUCCESS.name()});
+            }
+
+            BigDecimal commission = commissionByHold.get(hold.getId());
+            if (commission.compareTo(BigDecimal.ZERO) > 0) {
+                if (adminWalletId == null) {
+                    log.error("Admin wallet not found, skipping commission of hold {}", hold.getId());
+                } else {
+                    batchCommission = batchCommission.add(commission);
+                    historyArgs.add(new Object[]{adminWalletId, WalletHistory.Type.COMMISSION.name(), commission,
+                            hold.getOrderId(), "Commission received from order: " + hold.getOrderId(),
+                            nowTs, WalletHistory.Status.SUCCESS.name()});
+                }
+            }
+
+            Long buyerWalletId = walletIdByUser.get(hold.getUserId());
+            if (buyerWalletId != null) {
+                purchaseArgs.add(new Object[]{"Payment completed - Order: " + hold.getOrderId(), nowTs,
+                        buyerWalletId, hold.getOrderId()});
+            }
+        }
+        if (batchCommission.compareTo(BigDecimal.ZERO) > 0) {
+            creditsByWallet.merge(adminWalletId, batchCommission, BigDecimal::add);
+        }
+
+        // 5. Ghi xuống DB - UPDATE ví theo thứ tự wallet id để các batch song song không deadlock
+        List<Long> settledIds = settled.stream().map(WalletHold::getId).toList();
+        walletHoldRepository.updateStatusByIds(settledIds, WalletHold.Status.COMPLETED);
+
+        List<Object[]> creditArgs = creditsByWallet.entrySet().stream()
+                .map(entry -> new Object[]{entry.getValue(), nowTs, entry.getKey()})
+                .toList();
+        jdbcTemplate.batchUpdate(CREDIT_WALLET_SQL, creditArgs);
+        jdbcTemplate.batchUpdate(INSERT_HISTORY_SQL, historyArgs);
+        jdbcTemplate.batchUpdate(COMPLETE_PURCHASE_HISTORY_SQL, purchaseArgs);
+
+        orderRepository.updateStatusByIds(orderIds, Order.Status.COMPLETED);
+        orderItemRepository.updateStatusByOrderIds(orderIds, OrderItem.Status.COMPLETED);
+
+        walletHoldExpiryScheduler.cancelAll(settledIds);
+
+        batches.increment();
+        settledHolds.add(settled.size());
+        walletUpdates.add(creditArgs.size());
+        historyRows.add(historyArgs.size());
+
+        log.info("Settled {} holds: {} wallet updates, {} history rows, {} VND commission to admin",
+                settled.size(), creditArgs.size(), historyArgs.size(), batchCommission);
+
+        return new SettlementResult(settledIds, unmatched);
+    }
+
+    /**
+     * Lấy snapshot metrics settlement
+     */
+    public SettlementStats getSettlementStats() {
+        return SettlementStats.builder()
+                .batches(batches.sum())
+                .settledHolds(settledHolds.sum())
+                .walletUpdates(walletUpdates.sum())
+                .historyRows(historyRows.sum())
+                .timestamp(Instant.now())
+                .build();
+    }
+
+    /**
+     * Kết quả settle một batch
+     */
+    public record SettlementResult(List<Long> settledHoldIds, List<WalletHold> unmatchedHolds) {
+    }
+
+    /**
+     * DTO cho settlement stats
+     */
+    @lombok.Data
+    @lombok.Builder
+    public static class SettlementStats {
+        private long batches;
+        private long settledHolds;
+        private long walletUpdates;
+        private long historyRows;
+        private Instant timestamp;
+    }
+}
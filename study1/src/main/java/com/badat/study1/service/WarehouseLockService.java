@@ -4,6 +4,7 @@ import com.badat.study1.model.Warehouse;
 import com.badat.study1.repository.WarehouseRepository;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.integration.redis.util.RedisLockRegistry;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
@@ -11,9 +12,12 @@ import org.springframework.transaction.annotation.Transactional;
 
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.TreeMap;
+import java.util.UUID;
 import java.util.concurrent.locks.Lock;
 import org.springframework.data.domain.Pageable;
 
@@ -24,6 +28,14 @@ public class WarehouseLockService {
     
     private final WarehouseRepository warehouseRepository;
     private final RedisLockRegistry redisLockRegistry;
+    private final StockCounterService stockCounterService;
+    private final ReservationExpiryService reservationExpiryService;
+    
+    @Value("${warehouse.reservation-sweep.batch-size:500}")
+    private int sweepBatchSize;
+    
+    @Value("${warehouse.reservation-sweep.max-chunks:100}")
+    private int sweepMaxChunks;
     
     /**
      * Lock một warehouse item cho product
@@ -51,6 +63,7 @@ public class WarehouseLockService {
                     warehouse.setLockedBy(getCurrentUserId());
                     warehouse.setLockedAt(LocalDateTime.now());
                     warehouseRepository.save(warehouse);
+                    stockCounterService.onItemsReserved(List.of(warehouse));
                     
                     log.info("Successfully locked warehouse item: {} for product: {}", 
                         warehouse.getId(), productId);
@@ -150,7 +163,7 @@ public class WarehouseLockService {
                         log.info("Acquired lock for product: {}", productId);
                         
                         // 0. Kiểm tra số lượng có sẵn trước khi tìm
-                        long availableCount = warehouseRepository.countByProductIdAndLockedFalseAndIsDeleteFalse(productId);
+                        long availableCount = stockCounterService.getProductAvailable(productId);
                         log.info("Available stock for product {}: {} items", productId, availableCount);
                         
                         if (availableCount < requiredQuantity) {
@@ -201,6 +214,7 @@ public class WarehouseLockService {
             // 4. Lưu tất cả thay đổi vào CSDL trong 1 lần batch
             if (!itemsToSave.isEmpty()) {
                 warehouseRepository.saveAll(itemsToSave);
+                stockCounterService.onItemsReserved(itemsToSave);
                 log.info("Successfully saved {} warehouse items in batch", itemsToSave.size());
             }
 
@@ -227,11 +241,16 @@ public class WarehouseLockService {
         
         Warehouse warehouse = warehouseRepository.findById(warehouseId)
             .orElseThrow(() -> new RuntimeException("Warehouse item not found: " + warehouseId));
+        boolean returnsToStock = Boolean.TRUE.equals(warehouse.getLocked()) && !Boolean.TRUE.equals(warehouse.getIsDelete());
             
         warehouse.setLocked(false);
         warehouse.setLockedBy(null);
         warehouse.setLockedAt(null);
+        warehouse.setReservationToken(null);
         warehouseRepository.save(warehouse);
+        if (returnsToStock) {
+            stockCounterService.onItemsReleased(List.of(warehouse));
+        }
         
         log.info("Successfully unlocked warehouse item: {}", warehouseId);
     }
@@ -261,13 +280,37 @@ public class WarehouseLockService {
         
         Warehouse warehouse = warehouseRepository.findById(warehouseId)
             .orElseThrow(() -> new RuntimeException("Warehouse item not found: " + warehouseId));
+        // Item đã reserve (locked) không còn nằm trong số hàng trống nên chỉ trừ counter nếu giao item chưa lock
+        boolean wasAvailable = !Boolean.TRUE.equals(warehouse.getLocked()) && !Boolean.TRUE.equals(warehouse.getIsDelete());
             
         warehouse.setIsDelete(true);
         warehouse.setDeletedBy("SYSTEM");
         warehouseRepository.save(warehouse);
+        if (wasAvailable) {
+            stockCounterService.onItemsRemoved(List.of(warehouse));
+        }
         
         log.info("Successfully marked warehouse item as delivered: {}", warehouseId);
     }
+
+    /**
+     * Giao toàn bộ item đã reserve của 1 order bằng 1 câu UPDATE ... WHERE id IN (...)
+     * Item đã reserve không còn trong counter hàng trống nên không cần cập nhật stock counter
+     */
+    @Transactional
+    public void markReservedAsDelivered(List<Long> warehouseIds) {
+        if (warehouseIds.isEmpty()) {
+            return;
+        }
+
+        int delivered = warehouseRepository.markReservedAsDeliveredByIds(warehouseIds);
+        if (delivered != warehouseIds.size()) {
+            throw new RuntimeException("Only " + delivered + " of " + warehouseIds.size()
+                    + " reserved warehouse items could be delivered");
+        }
+
+        log.info("Marked {} reserved warehouse items as delivered", delivered);
+    }
     
     /**
      * Lấy current user ID (placeholder - cần implement authentication)
@@ -278,113 +321,114 @@ public class WarehouseLockService {
     }
     
     /**
-     * Lấy số lượng hàng có sẵn cho product (không bị lock, không bị xóa)
+     * Lấy số lượng hàng có sẵn cho product (không bị lock, không bị xóa) từ stock counter
      */
     public long getAvailableStockCount(Long productId) {
-        return warehouseRepository.countByProductIdAndLockedFalseAndIsDeleteFalse(productId);
+        return stockCounterService.getProductAvailable(productId);
     }
     
     /**
      * Reserve warehouse items với timeout (tạm thời lock với thời gian hết hạn)
-     * Sử dụng để tránh race condition khi nhiều user cùng mua
+     * Mỗi product chỉ tốn 1 câu UPDATE claim + 1 câu SELECT đọc lại, không cần Redis lock:
+     * row lock của câu UPDATE đã đảm bảo không có 2 người mua claim trùng item
      */
     @Transactional
     public List<Warehouse> reserveWarehouseItemsWithTimeout(Map<Long, Integer> productQuantities, Long userId, int timeoutMinutes) {
-        List<Warehouse> reservedItems = new ArrayList<>();
-        
+        return reserveWarehouseItemsWithTimeout(productQuantities, userId, timeoutMinutes, UUID.randomUUID().toString());
+    }
+    
+    /**
+     * Reserve với reservation token do caller cấp - caller dùng token này để release đúng các item của lần reserve
+     */
+    @Transactional
+    public List<Warehouse> reserveWarehouseItemsWithTimeout(Map<Long, Integer> productQuantities, Long userId, int timeoutMinutes,
+                                                            String reservationToken) {
         log.info("Reserving warehouse items with {} minutes timeout for user: {}", timeoutMinutes, userId);
         
-        try {
-            for (Map.Entry<Long, Integer> entry : productQuantities.entrySet()) {
-                Long productId = entry.getKey();
-                Integer requiredQuantity = entry.getValue();
-                
-                String lockKey = "warehouse:reserve:" + productId;
-                Lock lock = redisLockRegistry.obtain(lockKey);
-                
-                try {
-                    if (lock.tryLock(5, java.util.concurrent.TimeUnit.SECONDS)) {
-                        log.info("Acquired reservation lock for product: {}", productId);
-                        
-                        // SỬ DỤNG SELECT FOR UPDATE để tránh race condition
-                        // Lock database rows ngay từ đầu để đảm bảo atomicity
-                        List<Warehouse> items = warehouseRepository.findAvailableItemsForReservation(productId, requiredQuantity);
-                        
-                        if (items.size() < requiredQuantity) {
-                            log.warn("Not enough stock for product {}. Required: {}, Available: {}", 
-                                productId, requiredQuantity, items.size());
-                            throw new RuntimeException("Không đủ hàng cho sản phẩm: " + productId + 
-                                " (cần " + requiredQuantity + ", chỉ có " + items.size() + ")");
-                        }
-                        
-                        // Set reservation timeout
-                        LocalDateTime expiresAt = LocalDateTime.now().plusMinutes(timeoutMinutes);
-                        for (Warehouse item : items) {
-                            item.setLocked(true);
-                            item.setLockedBy(userId);
-                            item.setLockedAt(LocalDateTime.now());
-                            item.setReservedUntil(expiresAt); // Thêm field này vào Warehouse model
-                        }
-                        
-                        warehouseRepository.saveAll(items);
-                        reservedItems.addAll(items);
-                        
-                        log.info("Successfully reserved {} items for product {} until {}", 
-                            items.size(), productId, expiresAt);
-                            
-                    } else {
-                        log.warn("Failed to acquire reservation lock for product: {}", productId);
-                        throw new RuntimeException("Không thể đặt chỗ hàng cho sản phẩm: " + productId);
-                    }
-                } finally {
-                    lock.unlock();
-                }
-            }
+        LocalDateTime now = LocalDateTime.now();
+        LocalDateTime expiresAt = now.plusMinutes(timeoutMinutes);
+        
+        // Claim theo thứ tự productId tăng dần để 2 giỏ hàng nhiều sản phẩm không deadlock lẫn nhau
+        Map<Long, Integer> sortedQuantities = new TreeMap<>(productQuantities);
+        for (Map.Entry<Long, Integer> entry : sortedQuantities.entrySet()) {
+            Long productId = entry.getKey();
+            Integer requiredQuantity = entry.getValue();
             
-            log.info("Successfully reserved {} total items with timeout", reservedItems.size());
-            return reservedItems;
+            int claimed = warehouseRepository.claimAvailableItems(productId, requiredQuantity, userId, now, expiresAt, reservationToken);
             
-        } catch (Exception e) {
-            // Rollback: release tất cả items đã reserve
-            log.error("Failed to reserve warehouse items, releasing all reservations", e);
-            for (Warehouse item : reservedItems) {
-                try {
-                    unlockWarehouseItem(item.getId());
-                } catch (Exception rollbackEx) {
-                    log.error("Failed to release item during rollback: {}", item.getId(), rollbackEx);
-                }
+            if (claimed < requiredQuantity) {
+                log.warn("Not enough stock for product {}. Required: {}, Available: {}", 
+                    productId, requiredQuantity, claimed);
+                // Throw để @Transactional rollback toàn bộ các claim của lần reserve này
+                throw new RuntimeException("Không thể đặt chỗ hàng: Không đủ hàng cho sản phẩm: " + productId + 
+                    " (cần " + requiredQuantity + ", chỉ có " + claimed + ")");
             }
-            throw new RuntimeException("Không thể đặt chỗ hàng: " + e.getMessage());
+            
+            log.info("Successfully reserved {} items for product {} until {}", claimed, productId, expiresAt);
         }
+        
+        List<Warehouse> reservedItems = warehouseRepository.findByReservationToken(reservationToken);
+        stockCounterService.onItemsReserved(reservedItems);
+        log.info("Successfully reserved {} total items with timeout", reservedItems.size());
+        return reservedItems;
+    }
+    
+    /**
+     * Trả lại kho các item còn đang reserve theo reservation token - item đã giao không bị ảnh hưởng,
+     * gọi lại nhiều lần vẫn an toàn. Stock counter được cộng lại sau khi commit
+     *
+     * @return số item đã release
+     */
+    @Transactional
+    public int releaseReservation(String reservationToken) {
+        List<Object[]> rows = warehouseRepository.findReservedByTokenForUpdate(reservationToken);
+        if (rows.isEmpty()) {
+            return 0;
+        }
+        
+        List<Long> ids = new ArrayList<>(rows.size());
+        Map<Long, Long> productCounts = new HashMap<>();
+        Map<Long, Long> stallCounts = new HashMap<>();
+        Map<Long, Long> shopCounts = new HashMap<>();
+        for (Object[] row : rows) {
+            ids.add(((Number) row[0]).longValue());
+            productCounts.merge(((Number) row[1]).longValue(), 1L, Long::sum);
+            stallCounts.merge(((Number) row[2]).longValue(), 1L, Long::sum);
+            shopCounts.merge(((Number) row[3]).longValue(), 1L, Long::sum);
+        }
+        
+        int released = warehouseRepository.releaseReservationsByIds(ids);
+        stockCounterService.onItemsReleased(productCounts, stallCounts, shopCounts);
+        
+        log.info("Released {} reserved warehouse items of reservation {}", released, reservationToken);
+        return released;
     }
     
     /**
      * Cron job để release expired reservations
+     * Release theo từng chunk, mỗi chunk 1 transaction riêng nên không giữ lock lâu trên bảng warehouse;
+     * số chunk mỗi lần chạy có giới hạn, phần còn lại được xử lý ở lần chạy sau
      */
     @Scheduled(fixedRate = 60000) // Mỗi 1 phút
-    @Transactional
     public void releaseExpiredReservations() {
         log.info("Checking for expired warehouse reservations...");
         
+        LocalDateTime now = LocalDateTime.now();
+        int totalReleased = 0;
         try {
-            LocalDateTime now = LocalDateTime.now();
-            List<Warehouse> expiredItems = warehouseRepository.findByLockedTrueAndReservedUntilBefore(now);
-            
-            if (!expiredItems.isEmpty()) {
-                log.info("Found {} expired warehouse reservations", expiredItems.size());
-                
-                for (Warehouse item : expiredItems) {
-                    item.setLocked(false);
-                    item.setLockedBy(null);
-                    item.setLockedAt(null);
-                    item.setReservedUntil(null);
+            for (int chunk = 0; chunk < sweepMaxChunks; chunk++) {
+                int released = reservationExpiryService.releaseExpiredChunk(now, sweepBatchSize);
+                totalReleased += released;
+                if (released < sweepBatchSize) {
+                    break;
                 }
-                
-                warehouseRepository.saveAll(expiredItems);
-                log.info("Released {} expired warehouse reservations", expiredItems.size());
             }
         } catch (Exception e) {
             log.error("Error releasing expired reservations: {}", e.getMessage(), e);
         }
+        
+        if (totalReleased > 0) {
+            log.info("Released {} expired warehouse reservations", totalReleased);
+        }
     }
 }
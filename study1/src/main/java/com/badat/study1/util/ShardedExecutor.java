@@ -0,0 +1,170 @@
+package com.badat.study1.util;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Executor chia lane theo key (productId, userId...)
+ * Task cùng key luôn chạy tuần tự trên cùng 1 lane (1 thread), task khác key chạy song song trên các lane khác,
+ * nhờ vậy các payment cùng sản phẩm không còn tranh nhau Redis lock / tryLock timeout
+ * Task nhiều key (submitAll) chiếm đồng thời mọi lane của các key nên cũng tuần tự với từng key đó
+ */
+@Slf4j
+public class ShardedExecutor {
+
+    private final String name;
+    private final List<ThreadPoolExecutor> lanes;
+    private final List<LaneMetrics> metrics;
+
+    public ShardedExecutor(String name, int laneCount) {
+        this.name = name;
+        this.lanes = new ArrayList<>(laneCount);
+        this.metrics = new ArrayList<>(laneCount);
+
+        for (int i = 0; i < laneCount; i++) {
+            String threadName = name + "-lane-" + i;
+            ThreadPoolExecutor lane = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(), runnable -> {
+                        Thread thread = new Thread(runnable, threadName);
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            lanes.add(lane);
+            metrics.add(new LaneMetrics());
+        }
+
+        log.info("Sharded executor {} started with {} lanes", name, laneCount);
+    }
+
+    /**
+     * Lane index cho key
+     */
+    public int laneOf(long key) {
+        return (int) Math.floorMod(key, (long) lanes.size());
+    }
+
+    /**
+     * Submit task vào lane của key - trả về future hoàn tất khi task chạy xong
+     */
+    public CompletableFuture<Void> submit(long key, Runnable task) {
+        return enqueue(laneOf(key), task);
+    }
+
+    /**
+     * Submit task tuần tự với mọi key: lane của mỗi key phụ chạy 1 task giữ chỗ chờ đến khi task xong,
+     * lane cuối chạy task khi mọi lane khác đã tới lượt. Các task nhiều lane được enqueue nguyên khối
+     * (synchronized) nên xếp cùng thứ tự trên mọi lane chung - không có 2 task giữ lane của nhau mà chờ nhau
+     */
+    public CompletableFuture<Void> submitAll(Collection<Long> keys, Runnable task) {
+        List<Integer> laneIndexes = keys.stream().map(this::laneOf).distinct().sorted().toList();
+        if (laneIndexes.size() <= 1) {
+            return enqueue(laneIndexes.isEmpty() ? 0 : laneIndexes.get(0), task);
+        }
+
+        List<Integer> holders = laneIndexes.subList(0, laneIndexes.size() - 1);
+        CountDownLatch held = new CountDownLatch(holders.size());
+        CountDownLatch done = new CountDownLatch(1);
+        synchronized (this) {
+            for (int laneIndex : holders) {
+                enqueue(laneIndex, () -> {
+                    held.countDown();
+                    await(done);
+                });
+            }
+            return enqueue(laneIndexes.get(laneIndexes.size() - 1), () -> {
+                try {
+                    await(held);
+                    task.run();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+    }
+
+    private void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(name + " lane interrupted while waiting for other lanes", e);
+        }
+    }
+
+    private CompletableFuture<Void> enqueue(int laneIndex, Runnable task) {
+        LaneMetrics laneMetrics = metrics.get(laneIndex);
+        long submittedAt = System.nanoTime();
+
+        laneMetrics.submitted.increment();
+        return CompletableFuture.runAsync(() -> {
+            try {
+                task.run();
+            } finally {
+                long latencyMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - submittedAt);
+                laneMetrics.completed.increment();
+                laneMetrics.totalLatencyMs.add(latencyMs);
+                laneMetrics.maxLatencyMs.accumulateAndGet(latencyMs, Math::max);
+            }
+        }, lanes.get(laneIndex));
+    }
+
+    /**
+     * Snapshot metrics từng lane: độ sâu queue và latency (submit → xong)
+     */
+    public List<LaneStats> getLaneStats() {
+        List<LaneStats> stats = new ArrayList<>(lanes.size());
+        for (int i = 0; i < lanes.size(); i++) {
+            LaneMetrics laneMetrics = metrics.get(i);
+            long completed = laneMetrics.completed.sum();
+            stats.add(LaneStats.builder()
+                    .lane(i)
+                    .depth(lanes.get(i).getQueue().size() + lanes.get(i).getActiveCount())
+                    .submitted(laneMetrics.submitted.sum())
+                    .completed(completed)
+                    .averageLatencyMs(completed == 0 ? 0.0 : (double) laneMetrics.totalLatencyMs.sum() / completed)
+                    .maxLatencyMs(laneMetrics.maxLatencyMs.get())
+                    .build());
+        }
+        return stats;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void shutdown() {
+        lanes.forEach(ExecutorService::shutdown);
+    }
+
+    private static class LaneMetrics {
+        private final LongAdder submitted = new LongAdder();
+        private final LongAdder completed = new LongAdder();
+        private final LongAdder totalLatencyMs = new LongAdder();
+        private final AtomicLong maxLatencyMs = new AtomicLong();
+    }
+
+    /**
+     * DTO cho lane stats
+     */
+    @lombok.Data
+    @lombok.Builder
+    public static class LaneStats {
+        private int lane;
+        private int depth;
+        private long submitted;
+        private long completed;
+        private double averageLatencyMs;
+        private long maxLatencyMs;
+    }
+}